@@ -2,8 +2,8 @@ package org.openmrs.module.rwandaprimarycare;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.rwandaprimarycare.openhim.ConnectivityMonitor;
 
-import java.net.InetAddress;
 import java.util.UUID;
 
 public class CustomUtils {
@@ -11,18 +11,17 @@ public class CustomUtils {
     protected static final Log log = LogFactory.getLog(CustomUtils.class);
 
     /**
-     * Check if the system has internet connectivity
+     * Check if OpenHIM is currently reachable, as last published by the
+     * {@link ConnectivityMonitor}. Never blocks on the network.
      *
-     * @return true if online, false otherwise
+     * @return true if online (or degraded), false if offline
      */
     public static boolean isOnline() {
         try {
-            // Try to reach a reliable public DNS server
-            InetAddress address = InetAddress.getByName("8.8.8.8");
-            return address.isReachable(3000); // 3 second timeout
+            return ConnectivityMonitor.getInstance().isOnline();
         } catch (Exception e) {
-            log.warn("Internet connectivity check failed: " + e.getMessage());
-            return false;
+            log.warn("Connectivity monitor is not available: " + e.getMessage());
+            return true;
         }
     }
 
@@ -0,0 +1,29 @@
+package org.openmrs.module.rwandaprimarycare;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads of the background executors of the module, named after the executor
+ * and numbered, so they never keep the JVM alive and can be told apart in a thread dump.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+	private final String prefix;
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * @param prefix name of the threads, followed by their number, e.g. "rwandaprimarycare-search-"
+	 */
+	public DaemonThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, prefix + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -1,10 +1,10 @@
 package org.openmrs.module.rwandaprimarycare;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -35,6 +35,9 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.idgen.IdentifierSource;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
 import org.openmrs.module.namephonetics.NamePhoneticsService;
+import org.openmrs.module.rwandaprimarycare.identifier.PrimaryIdentifierPool;
+import org.openmrs.module.rwandaprimarycare.metadata.PrimaryCareMetadata;
+import org.openmrs.module.rwandaprimarycare.metadata.PrimaryCareMetadata.Item;
 import org.openmrs.parameter.EncounterSearchCriteria;
 import org.openmrs.parameter.EncounterSearchCriteriaBuilder;
 
@@ -222,190 +225,59 @@ public class PrimaryCareBusinessLogic {
      * @return
      */
     public static EncounterType getRegistrationEncounterType() {
-        return Context.getEncounterService().getEncounterType("Registration");
+        return PrimaryCareMetadata.getInstance().getEncounterType(Item.REGISTRATION_ENCOUNTER_TYPE);
     }
 
     public static EncounterType getVitalsEncounterType() {
-        return Context.getEncounterService().getEncounterType("Vitals");
+        return PrimaryCareMetadata.getInstance().getEncounterType(Item.VITALS_ENCOUNTER_TYPE);
     }
     
     public static VisitType getOutpatientVisitType() {
-        return Context.getVisitService().getVisitTypeByUuid("3515b588-b1df-4110-991b-0d603686d8e6");
+        return PrimaryCareMetadata.getInstance().getVisitType(Item.OUTPATIENT_VISIT_TYPE);
     }
 
 
     public static Concept getWeightConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("concept.weight");
-        if (gp == null)
-        	throw new RuntimeException("You must set the global property concept.weight.");
-        
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-	        try {
-	            concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-	        } catch (Exception ex) { }
-	        if (concept == null) {
-	            throw new RuntimeException("Cannot find concept specified by global property concept.weight");
-	        }
-        }
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.WEIGHT_CONCEPT);
     }
     
     public static Concept getHeightConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("concept.height");
-        if (gp == null)
-        	throw new RuntimeException("You must set the global property concept.height");
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-	        try {
-	            concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-	        } catch (Exception ex) { }
-	        if (concept == null) {
-	            throw new RuntimeException("Cannot find concept specified by global property concept.height");
-	        }
-        }    
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.HEIGHT_CONCEPT);
     }
 
     public static Concept getTemperatureConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("concept.temperature");
-        if (gp == null)
-        	throw new RuntimeException("You must set the global property concept.temperature.");
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-	        try {
-	            concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-	        } catch (Exception ex) { }
-	        if (concept == null) {
-	            throw new RuntimeException("Cannot find concept specified by global property concept.temperature");
-	        }
-        }
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.TEMPERATURE_CONCEPT);
     }
 
 
     public static Concept getSystolicBloodPressureConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("registration.concept.SYSTOLICBLOODPRESSURE");
-        if (gp == null)
-            throw new RuntimeException("You must set the global property registration.concept.SYSTOLICBLOODPRESSURE.");
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-            try {
-                concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-            } catch (Exception ex) { }
-            if (concept == null) {
-                throw new RuntimeException("Cannot find concept specified by global property registration.concept.SYSTOLICBLOODPRESSURE");
-            }
-        }
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.SYSTOLIC_BLOOD_PRESSURE_CONCEPT);
     }
 
 
     public static Concept getDiastolicBloodPressureConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("registration.concept.DIASTOLICBLOODPRESSURE");
-        if (gp == null)
-            throw new RuntimeException("You must set the global property registration.concept.DIASTOLICBLOODPRESSURE.");
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-            try {
-                concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-            } catch (Exception ex) { }
-            if (concept == null) {
-                throw new RuntimeException("Cannot find concept specified by global property registration.concept.DIASTOLICBLOODPRESSURE");
-            }
-        }
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.DIASTOLIC_BLOOD_PRESSURE_CONCEPT);
     }
 
     public static Concept getPulseConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("registration.concept.PULSE");
-        if (gp == null)
-            throw new RuntimeException("You must set the global property registration.concept.PULSE.");
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-            try {
-                concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-            } catch (Exception ex) { }
-            if (concept == null) {
-                throw new RuntimeException("Cannot find concept specified by global property registration.concept.PULSE");
-            }
-        }
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.PULSE_CONCEPT);
     }
 
     public static Concept getRespirationRateConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("registration.concept.RESPIRATORYRATE");
-        if (gp == null)
-            throw new RuntimeException("You must set the global property registration.concept.RESPIRATORYRATE.");
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-            try {
-                concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-            } catch (Exception ex) { }
-            if (concept == null) {
-                throw new RuntimeException("Cannot find concept specified by global property registration.concept.RESPIRATORYRATE");
-            }
-        }
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.RESPIRATORY_RATE_CONCEPT);
     }
 
     public static Concept getBloodOxygenSaturationConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("registration.concept.BloodOxygenSaturation");
-        if (gp == null)
-            throw new RuntimeException("You must set the global property registration.concept.BloodOxygenSaturation.");
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-            try {
-                concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-            } catch (Exception ex) { }
-            if (concept == null) {
-                throw new RuntimeException("Cannot find concept specified by global property registration.concept.BloodOxygenSaturation");
-            }
-        }
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.BLOOD_OXYGEN_SATURATION_CONCEPT);
     }
 
 
     public static Concept getTreatmentPlanOtherConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("registration.concept.TREATMENTPLANOTHER");
-        if (gp == null)
-            throw new RuntimeException("You must set the global property registration.concept.registration.concept.TREATMENTPLANOTHER.");
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-            try {
-                concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-            } catch (Exception ex) { }
-            if (concept == null) {
-                throw new RuntimeException("Cannot find concept specified by global property registration.concept.registration.concept.TREATMENTPLANOTHER");
-            }
-        }
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.TREATMENT_PLAN_OTHER_CONCEPT);
     }
     //Adding Clinical impression and treatment plan other
     public static Concept getClinicalImpressionCommentsConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("registration.concept.CLINICALIMPRESSIONCOMMENTS");
-        if (gp == null)
-            throw new RuntimeException("You must set the global property registration.concept.registration.concept.CLINICALIMPRESSIONCOMMENTS.");
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-            try {
-                concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-            } catch (Exception ex) { }
-            if (concept == null) {
-                throw new RuntimeException("Cannot find concept specified by global property registration.concept.registration.concept.CLINICALIMPRESSIONCOMMENTS");
-            }
-        }
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.CLINICAL_IMPRESSION_COMMENTS_CONCEPT);
     }
 
 
@@ -413,42 +285,16 @@ public class PrimaryCareBusinessLogic {
 
     
     public static Concept getDiagnosisNonCodedConcept() {
-        Concept concept = null;
-        String gp = Context.getAdministrationService().getGlobalProperty("concept.diagnosisNonCoded");
-        if (gp == null)
-        	throw new RuntimeException("You must set the global property concept.diagnosisNonCoded");
-        concept = Context.getConceptService().getConceptByUuid(gp);
-        if (concept == null){
-	        try {
-	            concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-	        } catch (Exception ex) { }
-	        if (concept == null) {
-	            throw new RuntimeException("Cannot find concept specified by global property concept.diagnosisNonCoded");
-	        }
-        }
-        return concept;
+        return PrimaryCareMetadata.getInstance().getConcept(Item.DIAGNOSIS_NON_CODED_CONCEPT);
     }
 
     public static PatientIdentifierType getPrimaryPatientIdentiferType() {
-    	String gp = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_PRIMARY_IDENTIFIER_TYPE);
-    	if (gp == null)
-    		throw new RuntimeException("You must set the value for the main identifier type for primary care.  This is set in GP:  registration.primaryIdentifierType");
-        PatientIdentifierType pit = null;
-        pit = Context.getPatientService().getPatientIdentifierTypeByUuid(gp);
-        try {
-            pit = Context.getPatientService().getPatientIdentifierType(Integer.valueOf(gp));
-        } catch (Exception ex) { 
-            pit = Context.getPatientService().getPatientIdentifierTypeByName(gp);   
-        }
-        if (pit == null) {
-            throw new RuntimeException("Cannot find patient identifier type specified by global property " + PrimaryCareConstants.GLOBAL_PROPERTY_PRIMARY_IDENTIFIER_TYPE);
-        }
-        return pit;
+        return PrimaryCareMetadata.getInstance().getPatientIdentifierType(Item.PRIMARY_IDENTIFIER_TYPE);
     }
     
     public static Integer getNumberOfBarcodeCopiesToPrint(){
         try{
-            return Integer.valueOf(Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_BAR_CODE_COUNT));
+            return Integer.valueOf(PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_BAR_CODE_COUNT));
         } catch (Exception ex ){
         	log.error("couldn't parse or find global property registration.barCodeCount.  defaulting to 1.");
             return 1;
@@ -468,36 +314,11 @@ public class PrimaryCareBusinessLogic {
     public static List<PatientIdentifierType> getPatientIdentifierTypesToUse() {
         List<PatientIdentifierType> ret = new ArrayList<PatientIdentifierType>();
         ret.add(getPrimaryPatientIdentiferType());
-        
-        String s = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OTHER_IDENTIFIER_TYPES);
-        if (s != null) {
-            String[] ids = s.split(",");
-            for (String idAsString : ids) {
-                try {
-                    idAsString = idAsString.trim();
-                    if (idAsString.length() == 0)
-                        continue;
-                    PatientIdentifierType idType = null;
-                    idType = Context.getPatientService().getPatientIdentifierTypeByUuid(idAsString);
-                    if (idType == null){
-	                    try {
-	                        Integer id = Integer.valueOf(idAsString);
-	                        idType = Context.getPatientService().getPatientIdentifierType(id);
-	                    } catch (Exception ex){
-	                        idType = Context.getPatientService().getPatientIdentifierTypeByName(idAsString);
-	                    }
-                    }
-                    if (idType == null) {
-                        throw new IllegalArgumentException("Cannot find patient identifier type " + idAsString + " specified in global property " + PrimaryCareConstants.GLOBAL_PROPERTY_OTHER_IDENTIFIER_TYPES);
-                    }
-                    if (!ret.contains(idType)) {
-                        ret.add(idType);
-                    }
-                } catch (Exception ex) {
-                    throw new IllegalArgumentException("Error in global property " + PrimaryCareConstants.GLOBAL_PROPERTY_OTHER_IDENTIFIER_TYPES + " near '" + idAsString + "'");
-                }
+        for (PatientIdentifierType idType : PrimaryCareMetadata.getInstance().getPatientIdentifierTypes(Item.OTHER_IDENTIFIER_TYPES)) {
+            if (!ret.contains(idType)) {
+                ret.add(idType);
             }
-        }       
+        }
         return ret;
     }
     
@@ -532,7 +353,7 @@ public class PrimaryCareBusinessLogic {
                 }
             }
         }
-        sortResultsForUser(ret, location);
+        rankResults(ret, location, null);
         return ret;
     }
 
@@ -545,18 +366,66 @@ public class PrimaryCareBusinessLogic {
      * @return
      */
     public static List<Patient> sortResultsForUser(List<Patient> patientList, final Location userLocation) {
-        if (userLocation != null) {
-            Collections.sort(patientList, new Comparator<Patient>() {
-               public int compare(Patient left, Patient right) {
-                   Integer leftWeight = getLocations(left).contains(userLocation) ? 0 : 1;
-                   Integer rightWeight = getLocations(right).contains(userLocation) ? 0 : 1;
-                   return leftWeight.compareTo(rightWeight);
-                } 
-            });
+        return rankResults(patientList, userLocation, null);
+    }
+
+    /**
+     * Sorts patients by how well they match umudugudu (see {@link #umuduguduWeightHelper(Patient, String)}),
+     * then puts those registered at userLocation first; the same order sortResultsForUser followed
+     * by sortResultsForUmudugudu used to give.
+     * 
+     * The weights of each patient are computed once into a key array, then the list is sorted
+     * once; the sort is stable so patients of equal weight keep their order.
+     * 
+     * @param patientList sorted in place
+     * @param userLocation optional
+     * @param umudugudu optional
+     * @return patientList
+     */
+    public static List<Patient> rankResults(List<Patient> patientList, Location userLocation, String umudugudu) {
+        if (patientList == null || patientList.size() < 2 || (userLocation == null && umudugudu == null)) {
+            return patientList;
+        }
+        PersonAttributeType locationAttributeType = userLocation != null ? getAssignedLocationPersonAttributeType() : null;
+        String userLocationId = userLocation != null && userLocation.getLocationId() != null ? userLocation.getLocationId().toString() : null;
+
+        // weight in the high bits, original position in the low bits: sorting the longs is a stable sort by weight
+        int size = patientList.size();
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            Patient patient = patientList.get(i);
+            int weight = 0;
+            if (umudugudu != null) {
+                weight = umuduguduWeightHelper(patient, umudugudu) * 2;
+            }
+            if (userLocation != null && !isAssignedToLocation(patient, locationAttributeType, userLocationId)) {
+                weight += 1;
+            }
+            keys[i] = ((long) weight << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        List<Patient> ranked = new ArrayList<Patient>(size);
+        for (long key : keys) {
+            ranked.add(patientList.get((int) key));
+        }
+        for (int i = 0; i < size; i++) {
+            patientList.set(i, ranked.get(i));
         }
         return patientList;
     }
 
+    /**
+     * Compares the stored location id of the health center attribute, without loading the Location
+     */
+    private static boolean isAssignedToLocation(Patient patient, PersonAttributeType locationAttributeType, String locationId) {
+        if (locationAttributeType == null || locationId == null) {
+            return false;
+        }
+        PersonAttribute attribute = patient.getAttribute(locationAttributeType);
+        return attribute != null && locationId.equals(attribute.getValue());
+    }
+
     /**
      * Currently looks for a person attribute named "Health Center" but may eventually be changed to return
      * all encounter locations for the patient.
@@ -587,33 +456,31 @@ public class PrimaryCareBusinessLogic {
     }
 
     public static List<Patient> sortResultsForUmudugudu(List<Patient> patientList, final String umudugudu) {
-        if (umudugudu != null) {
-            Collections.sort(patientList, new Comparator<Patient>() {
-               public int compare(Patient left, Patient right) {
-                   return umuduguduWeightHelper(left, umudugudu).compareTo(umuduguduWeightHelper(right, umudugudu));
-                } 
-            });
-        }
-        return patientList;
-
+        return rankResults(patientList, null, umudugudu);
     }
 
     /**
      * How good a match is the given umudugudu for the given patient?
      * 
+     * Only non-voided addresses count, and the current one is the preferred one, as in the order
+     * of PrimaryCareService.getPatients, so a page ordered by the database keeps its order here.
+     * 
      * @param patient
      * @param umudugudu
      * @return 0 if the patient is currently in the umudugudu, 1 if they ever have been, 2 if they never have been
      */
-    private static Integer umuduguduWeightHelper(Patient patient, String umudugudu) {
-        boolean first = true;
+    private static int umuduguduWeightHelper(Patient patient, String umudugudu) {
+        int weight = 2;
         for (PersonAddress pa : patient.getAddresses()) {
-            if (pa.getAddress1() != null && pa.getAddress1().equalsIgnoreCase(umudugudu)) {
-                return first ? 0 : 1;
+            if (pa.isVoided() || pa.getAddress1() == null || !pa.getAddress1().equalsIgnoreCase(umudugudu)) {
+                continue;
             }
-            first = false;
+            if (Boolean.TRUE.equals(pa.getPreferred())) {
+                return 0;
+            }
+            weight = 1;
         }
-        return 2;
+        return weight;
     }
     
     /**
@@ -640,20 +507,7 @@ public class PrimaryCareBusinessLogic {
     
     
     public static RelationshipType getParentRelationshipType(){
-    	String gp = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_PARENT_TO_CHILD_RELATIONSHIP_TYPE);
-        if (gp == null)
-        	throw new RuntimeException("you must set a value for global property registration.parentChildRelationshipTypeId.");
-        RelationshipType rt = Context.getPersonService().getRelationshipTypeByUuid(gp);
-        if (rt == null){
-        	try {
-        		rt = Context.getPersonService().getRelationshipType(Integer.valueOf(gp));
-        	} catch (Exception ex){
-        		rt = Context.getPersonService().getRelationshipTypeByName(gp);
-        	}
-        	if (rt == null)
-        		throw new RuntimeException("can't parse registration.parentChildRelationshipTypeId.");
-        }
-        return rt;
+        return PrimaryCareMetadata.getInstance().getRelationshipType(Item.PARENT_RELATIONSHIP_TYPE);
     }
     /**
      * 
@@ -687,8 +541,7 @@ public class PrimaryCareBusinessLogic {
      * @return
      */
     public static String getNewPrimaryIdentifierString(){
-        List<String> idList = getNewPrimaryIdentifiers(1);
-        String addIdentifier = idList.get(0);
+        String addIdentifier = PrimaryIdentifierPool.getInstance().take();
         if (addIdentifier == null || addIdentifier.length() == 0){
             IdentifierSource is = PrimaryCareUtil.getPrimaryIdentifierTypeSource();
             throw new RuntimeException("generateNewIdentifier failed for " + is.getName());
@@ -720,20 +573,18 @@ public class PrimaryCareBusinessLogic {
                 if (pa.getHydratedObject().equals(userLocation))
                     newList.add(p);
             }
-            PrimaryCareBusinessLogic.sortResultsForUser(newList, userLocation);
-            PrimaryCareBusinessLogic.sortResultsForUmudugudu(newList, umudugudu);
+            PrimaryCareBusinessLogic.rankResults(newList, userLocation, umudugudu);
             return newList;
         }
 
-        PrimaryCareBusinessLogic.sortResultsForUser(ret, userLocation);
-        PrimaryCareBusinessLogic.sortResultsForUmudugudu(ret, umudugudu);
+        PrimaryCareBusinessLogic.rankResults(ret, userLocation, umudugudu);
         return ret;
         
     }
     
     public static List<Concept> getInsuranceTypeAnswers(){
         List<Concept> ret = new ArrayList<Concept>();
-        String sList = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_INSURANCE_TYPE_ANSWERS);
+        String sList = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_INSURANCE_TYPE_ANSWERS);
         for (StringTokenizer st = new StringTokenizer(sList, ","); st.hasMoreTokens(); ) {
             String s = st.nextToken().trim();
             Concept c = Context.getConceptService().getConceptByUuid(s);
@@ -842,23 +693,8 @@ public class PrimaryCareBusinessLogic {
     }
 
 	public static Concept getBMIConcept() {
-		Concept concept = null;
-		String gp = Context.getAdministrationService().getGlobalProperty("concept.bmi");
-		if (gp == null)
-			throw new RuntimeException("you must set the global property concept.bmi");
-		concept = Context.getConceptService().getConceptByUuid(gp);
-		if (concept == null){
-	        try {
-	            concept = Context.getConceptService().getConcept(Integer.valueOf(gp));
-	        } catch (Exception ex) { 
-	        	//pass
-	        }
-		}    
-        if (concept == null) {
-            throw new RuntimeException("Cannot find concept specified by global property concept.height");
-        }
-        return concept;
-    }
+		return PrimaryCareMetadata.getInstance().getConcept(Item.BMI_CONCEPT);
+	}
 	
 	/**
 	 * wrapper for saveEncounter that ensures a Visit is created when registration encounter is created.
@@ -0,0 +1,252 @@
+package org.openmrs.module.rwandaprimarycare;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The global properties read on every request (concepts, registration settings, OpenHIM and DHIS2
+ * connection settings), held in memory instead of being read from the database each time.
+ *
+ * All properties starting with one of {@link #PREFIXES} are loaded at once into an immutable
+ * {@link Snapshot}. When one of them is saved or deleted a new snapshot is built with the change
+ * and swapped in, so a reader always sees one consistent set of values and never blocks.
+ */
+@Component("rwandaprimarycare.primaryCareConfig")
+public class PrimaryCareConfig implements GlobalPropertyListener {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	/**
+	 * Global property prefixes held by the snapshot
+	 */
+	public static final String[] PREFIXES = { "registration.", "concept.", "primaryCare.", "posttoopenhim.", "dhis2.",
+			"facility." };
+
+	private volatile Snapshot snapshot;
+
+	private volatile boolean listening;
+
+	/**
+	 * @return the Spring-managed instance of this configuration
+	 */
+	public static PrimaryCareConfig getInstance() {
+		return Context.getRegisteredComponent("rwandaprimarycare.primaryCareConfig", PrimaryCareConfig.class);
+	}
+
+	/**
+	 * @return the current settings of the module
+	 */
+	public static Snapshot get() {
+		return getInstance().getSnapshot();
+	}
+
+	/**
+	 * Loads the snapshot and starts following global property changes
+	 */
+	public synchronized void start() {
+		reload();
+		if (!listening) {
+			Context.getAdministrationService().addGlobalPropertyListener(this);
+			listening = true;
+		}
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		if (listening) {
+			try {
+				Context.getAdministrationService().removeGlobalPropertyListener(this);
+			} catch (Exception e) {
+				log.debug("Could not remove the global property listener: " + e.getMessage());
+			}
+			listening = false;
+		}
+		snapshot = null;
+	}
+
+	/**
+	 * @return the current snapshot, loaded on first use if the module has not started it yet
+	 */
+	public Snapshot getSnapshot() {
+		Snapshot current = snapshot;
+		if (current == null) {
+			synchronized (this) {
+				if (snapshot == null) {
+					reload();
+				}
+				current = snapshot;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Re-reads all the properties from the database
+	 */
+	public synchronized void reload() {
+		Map<String, String> values = new HashMap<String, String>();
+		for (String prefix : PREFIXES) {
+			for (GlobalProperty gp : Context.getAdministrationService().getGlobalPropertiesByPrefix(prefix)) {
+				values.put(gp.getProperty(), gp.getPropertyValue());
+			}
+		}
+		snapshot = new Snapshot(values);
+		log.debug("Loaded " + values.size() + " global properties");
+	}
+
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return isHeld(propertyName);
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		update(newValue.getProperty(), newValue.getPropertyValue(), false);
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		update(propertyName, null, true);
+	}
+
+	/**
+	 * Copy on write: concurrent readers keep the snapshot they already have
+	 */
+	private synchronized void update(String propertyName, String value, boolean deleted) {
+		if (snapshot == null || !isHeld(propertyName)) {
+			return;
+		}
+		Map<String, String> values = new HashMap<String, String>(snapshot.values);
+		if (deleted) {
+			values.remove(propertyName);
+		} else {
+			values.put(propertyName, value);
+		}
+		snapshot = new Snapshot(values);
+		log.debug("Global property " + propertyName + (deleted ? " deleted" : " changed") + ", configuration updated");
+	}
+
+	private static boolean isHeld(String propertyName) {
+		if (propertyName == null) {
+			return false;
+		}
+		for (String prefix : PREFIXES) {
+			if (propertyName.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Immutable set of global property values, with the frequently used ones already parsed
+	 */
+	public static class Snapshot {
+
+		private static final Log log = LogFactory.getLog(PrimaryCareConfig.class);
+
+		private final Map<String, String> values;
+
+		private final boolean showDiagnosisLink;
+
+		private final Boolean restrictSearchByHealthCenter;
+
+		private final boolean fhirEnabled;
+
+		Snapshot(Map<String, String> values) {
+			this.values = Collections.unmodifiableMap(values);
+			this.showDiagnosisLink = "true".equals(values.get("registration.showDiagnosisLink"));
+			String restrict = values.get(PrimaryCareConstants.GLOBAL_PROPERTY_RESTRICT_BY_HEALTH_CENTER);
+			this.restrictSearchByHealthCenter = restrict == null || restrict.equals("") ? null : Boolean.valueOf(restrict);
+			this.fhirEnabled = "true".equalsIgnoreCase(values.get("primaryCare.fhir.enabled"));
+		}
+
+		/**
+		 * @return the value of the global property, or null if it is not set or not one of {@link #PREFIXES}
+		 */
+		public String get(String propertyName) {
+			return values.get(propertyName);
+		}
+
+		/**
+		 * @return the value of the global property parsed as an integer, or defaultValue if it is
+		 *         not set or not a number
+		 */
+		public int getInt(String propertyName, int defaultValue) {
+			String value = values.get(propertyName);
+			if (value == null || value.trim().isEmpty()) {
+				return defaultValue;
+			}
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				log.warn("Global property " + propertyName + " is not a valid integer: " + value + ", using " + defaultValue);
+				return defaultValue;
+			}
+		}
+
+		public boolean isShowDiagnosisLink() {
+			return showDiagnosisLink;
+		}
+
+		/**
+		 * @return registration.restrictSearchByHealthCenter, or null if it is not set
+		 */
+		public Boolean getRestrictSearchByHealthCenter() {
+			return restrictSearchByHealthCenter;
+		}
+
+		public boolean isFhirEnabled() {
+			return fhirEnabled;
+		}
+
+		public String getOpenHimNidaApi() {
+			return values.get(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_NIDA_API);
+		}
+
+		public String getOpenHimUser() {
+			return values.get(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_USER_NAME);
+		}
+
+		public String getOpenHimPassword() {
+			return values.get(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_USER_PWD);
+		}
+
+		public String getOpenHimClientRegistryBaseUrl() {
+			return values.get(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_CR_BASE_URL);
+		}
+
+		public String getDhis2OrganizationUnitCode() {
+			return values.get(PrimaryCareConstants.GLOBAL_PROPERTY_DHIS2_PREFIX);
+		}
+
+		public String getFacilityId() {
+			return values.get(PrimaryCareConstants.GLOBAL_PROPERTY_FACILITY_ID);
+		}
+
+		/**
+		 * @return the number of properties held, for monitoring
+		 */
+		public int size() {
+			return values.size();
+		}
+	}
+}
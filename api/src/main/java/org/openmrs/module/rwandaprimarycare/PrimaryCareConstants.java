@@ -68,6 +68,50 @@ public class PrimaryCareConstants {
     public static final String GLOBAL_PROPERTY_SCHEDULER_PASSWORD = "posttoopenhim.scheduler.password";
     public static final String NATIONALITY_ATTRIBUTE_TYPE = "Nationality";
     public static final String MIGRATE_SHR_ENDPOINT = "http://localhost:8080/openmrs/ws/rest/fhir2/Patient/";
+    public static final String GLOBAL_PROPERTY_HTTP_MAX_CONNECTIONS = "primaryCare.http.maxConnections";
+    public static final String GLOBAL_PROPERTY_HTTP_MAX_CONNECTIONS_PER_ROUTE = "primaryCare.http.maxConnectionsPerRoute";
+    public static final String GLOBAL_PROPERTY_HTTP_CONNECT_TIMEOUT = "primaryCare.http.connectTimeout";
+    public static final String GLOBAL_PROPERTY_HTTP_READ_TIMEOUT = "primaryCare.http.readTimeout";
+    public static final String GLOBAL_PROPERTY_HTTP_POOL_ACQUIRE_TIMEOUT = "primaryCare.http.poolAcquireTimeout";
+    public static final String GLOBAL_PROPERTY_CONNECTIVITY_PROBE_INTERVAL = "primaryCare.connectivity.probeInterval";
+    public static final String GLOBAL_PROPERTY_CONNECTIVITY_PROBE_TIMEOUT = "primaryCare.connectivity.probeTimeout";
+    public static final String GLOBAL_PROPERTY_CONNECTIVITY_SLOW_THRESHOLD = "primaryCare.connectivity.slowThreshold";
+    public static final String GLOBAL_PROPERTY_CONNECTIVITY_FAILURE_THRESHOLD = "primaryCare.connectivity.failureThreshold";
+    public static final String GLOBAL_PROPERTY_CONNECTIVITY_RECOVERY_THRESHOLD = "primaryCare.connectivity.recoveryThreshold";
+    public static final String GLOBAL_PROPERTY_OUTBOX_INTERVAL = "primaryCare.outbox.interval";
+    public static final String GLOBAL_PROPERTY_OUTBOX_BATCH_SIZE = "primaryCare.outbox.batchSize";
+    public static final String GLOBAL_PROPERTY_OUTBOX_MAX_RETRIES = "primaryCare.outbox.maxRetries";
+    public static final String GLOBAL_PROPERTY_OUTBOX_BACKOFF_BASE = "primaryCare.outbox.backoffBase";
+    public static final String GLOBAL_PROPERTY_OUTBOX_BACKOFF_MAX = "primaryCare.outbox.backoffMax";
+    public static final String GLOBAL_PROPERTY_SEARCH_CR_DEADLINE = "primaryCare.search.crDeadline";
+    public static final String GLOBAL_PROPERTY_SEARCH_NPR_DEADLINE = "primaryCare.search.nprDeadline";
+    public static final String GLOBAL_PROPERTY_SEARCH_THREADS = "primaryCare.search.threads";
+    public static final String GLOBAL_PROPERTY_SEARCH_QUEUE_SIZE = "primaryCare.search.queueSize";
+    public static final String GLOBAL_PROPERTY_CR_CACHE_MAX_ENTRIES = "primaryCare.crCache.maxEntries";
+    public static final String GLOBAL_PROPERTY_CR_CACHE_POSITIVE_TTL = "primaryCare.crCache.positiveTtl";
+    public static final String GLOBAL_PROPERTY_CR_CACHE_NEGATIVE_TTL = "primaryCare.crCache.negativeTtl";
+    public static final String GLOBAL_PROPERTY_SUGGESTIONS_MAX_RESULTS = "primaryCare.suggestions.maxResults";
+    public static final String GLOBAL_PROPERTY_SEARCH_PAGE_SIZE = "primaryCare.search.pageSize";
+    public static final String GLOBAL_PROPERTY_SEARCH_MAX_PAGE_SIZE = "primaryCare.search.maxPageSize";
+    public static final String GLOBAL_PROPERTY_METADATA_FAIL_FAST = "primaryCare.metadata.failFast";
+    public static final String GLOBAL_PROPERTY_IDENTIFIER_POOL_BLOCK_SIZE = "primaryCare.identifierPool.blockSize";
+    public static final String GLOBAL_PROPERTY_IDENTIFIER_POOL_LOW_WATER_MARK = "primaryCare.identifierPool.lowWaterMark";
+    public static final String GLOBAL_PROPERTY_BULK_IDS_CHUNK_SIZE = "primaryCare.bulkIds.chunkSize";
+    public static final String GLOBAL_PROPERTY_OPENHIM_IDENTIFIER_SEARCH_PROBE_PERCENT = "primaryCare.openhim.identifierSearchProbePercent";
+    public static final String GLOBAL_PROPERTY_OPENHIM_EMPTY_RESPONSE_ENRICHMENT = "primaryCare.openhim.emptyResponseEnrichment";
+    public static final String GLOBAL_PROPERTY_OPENHIM_PROXY_THREADS = "primaryCare.openhim.proxyThreads";
+    public static final String GLOBAL_PROPERTY_OPENHIM_PROXY_QUEUE_SIZE = "primaryCare.openhim.proxyQueueSize";
+    public static final String GLOBAL_PROPERTY_OPENHIM_PROXY_TIMEOUT = "primaryCare.openhim.proxyTimeout";
+    public static final String GLOBAL_PROPERTY_CIRCUIT_BREAKER_WINDOW_SIZE = "primaryCare.circuitBreaker.windowSize";
+    public static final String GLOBAL_PROPERTY_CIRCUIT_BREAKER_MINIMUM_CALLS = "primaryCare.circuitBreaker.minimumCalls";
+    public static final String GLOBAL_PROPERTY_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = "primaryCare.circuitBreaker.failureRateThreshold";
+    public static final String GLOBAL_PROPERTY_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD = "primaryCare.circuitBreaker.slowCallThreshold";
+    public static final String GLOBAL_PROPERTY_CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD = "primaryCare.circuitBreaker.slowCallRateThreshold";
+    public static final String GLOBAL_PROPERTY_CIRCUIT_BREAKER_OPEN_DURATION = "primaryCare.circuitBreaker.openDuration";
+    public static final String GLOBAL_PROPERTY_CIRCUIT_BREAKER_HALF_OPEN_CALLS = "primaryCare.circuitBreaker.halfOpenCalls";
+    public static final String GLOBAL_PROPERTY_SHR_MIGRATION_WORKERS = "primaryCare.shrMigration.workers";
+    public static final String GLOBAL_PROPERTY_SHR_MIGRATION_QUEUE_SIZE = "primaryCare.shrMigration.queueSize";
+    public static final String GLOBAL_PROPERTY_DHIS2_ORG_UNIT_REFRESH_INTERVAL = "primaryCare.dhis2.orgUnitRefreshInterval";
 
 
 }
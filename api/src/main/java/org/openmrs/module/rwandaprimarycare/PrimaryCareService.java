@@ -1,11 +1,17 @@
 package org.openmrs.module.rwandaprimarycare;
 
 import java.util.List;
+import java.util.Map;
 
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PersonAttributeType;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.rwandaprimarycare.pojos.OfflineTransaction;
+import org.openmrs.module.rwandaprimarycare.pojos.ReservedIdentifier;
+import org.openmrs.module.rwandaprimarycare.pojos.ShrMigration;
+import org.openmrs.module.rwandaprimarycare.pojos.patient.PatientPojo;
+import org.openmrs.module.rwandaprimarycare.search.PatientSuggestionIndex;
 import org.springframework.transaction.annotation.Transactional;
 
 public interface PrimaryCareService extends OpenmrsService {
@@ -25,6 +31,16 @@ public interface PrimaryCareService extends OpenmrsService {
 	@Transactional(readOnly=true)
     public List<String>  getPatientSearchList(String search, PatientSearchType searchType, Integer previousId);
 
+	/**
+	 * Number of occurrences of each distinct value of a suggestion field, used to build the
+	 * in-memory suggestion index
+	 *
+	 * @param field the indexed field
+	 * @return value to number of non-voided occurrences
+	 */
+	@Transactional(readOnly=true)
+	public Map<String, Long> getSuggestionValueCounts(PatientSuggestionIndex.Field field);
+
 	/**
 	 * Sorts the return list so that patients who match userLocation show up first
 	 * 
@@ -62,12 +78,138 @@ public interface PrimaryCareService extends OpenmrsService {
             Location userLocation);
 
 	/**
-	 * Save offline transaction for later synchronization
+	 * One page of the patient search. Patients currently living in the umudugudu come first, then
+	 * patients who ever lived there, each group with the patients who match userLocation first;
+	 * the same order as the unpaged search, but done by the database so only the requested page
+	 * is loaded.
+	 *
+	 * @param firstResult index of the first patient to return, starting at 0
+	 * @param maxResults page size; 0 or less returns all remaining patients
+	 * @return the requested page
+	 */
+	@Transactional(readOnly=true)
+	public List<Patient> getPatients(
+    		String frenchEnglishName,
+    		String rwandanName,
+    		String gender,
+    		Float age,
+    		String umudugudu,
+    		PersonAttributeType healthCenterPat,
+            Location userLocation,
+            int firstResult,
+            int maxResults);
+
+	/**
+	 * @return total number of patients matching the paged search, across all pages
+	 */
+	@Transactional(readOnly=true)
+	public Long getPatientCount(
+    		String frenchEnglishName,
+    		String rwandanName,
+    		String gender,
+    		Float age,
+    		String umudugudu,
+    		PersonAttributeType healthCenterPat,
+            Location userLocation);
+
+	/**
+	 * Search result rows (names, identifiers, addresses, attributes and insurance cards) of the
+	 * given patients, without loading each Patient
+	 *
+	 * @param patientIds ids of the patients, in the order the results should be returned
+	 * @return one PatientPojo per patient
+	 */
+	@Transactional(readOnly=true)
+	public List<PatientPojo> getPatientPojos(List<Integer> patientIds);
+
+	/**
+	 * Save offline transaction for later synchronization. New transactions are queued as PENDING.
 	 *
 	 * @param offlineTransaction Transaction to save
+	 * @return the saved transaction
+	 */
+	@Transactional
+	public OfflineTransaction saveOfflineTransaction(OfflineTransaction offlineTransaction);
+
+	/**
+	 * Pending offline transactions whose next attempt is due, oldest first
+	 *
+	 * @param maxResults batch size
+	 * @return pending transactions ready to be replayed
+	 */
+	@Transactional(readOnly=true)
+	public List<OfflineTransaction> getOfflineTransactionsDueForSync(int maxResults);
+
+	/**
+	 * @return number of offline transactions per status (PENDING, HELD, COMPLETED, DEAD_LETTER)
+	 */
+	@Transactional(readOnly=true)
+	public Map<String, Long> getOfflineTransactionCountsByStatus();
+
+	/**
+	 * Offline transactions held until the patient they carry gets its real UPI, oldest first. They
+	 * are not replayed until they are saved again as PENDING.
+	 *
+	 * @return the HELD transactions
+	 */
+	@Transactional(readOnly=true)
+	public List<OfflineTransaction> getOfflineTransactionsHeld();
+
+	/**
+	 * Records identifiers generated by idgen for the identifier pool, so they survive a restart
+	 *
+	 * @param reservedIdentifiers identifiers just generated
+	 */
+	@Transactional
+	public void saveReservedIdentifiers(List<ReservedIdentifier> reservedIdentifiers);
+
+	/**
+	 * @return all identifiers held by the identifier pool, oldest first
+	 */
+	@Transactional(readOnly=true)
+	public List<ReservedIdentifier> getReservedIdentifiers();
+
+	/**
+	 * Removes an identifier from the reservations when it is handed out
+	 *
+	 * @param identifier the identifier
+	 * @return false if it was not reserved (anymore)
 	 */
 	@Transactional
-	public void saveOfflineTransaction(Object offlineTransaction);
+	public boolean deleteReservedIdentifier(String identifier);
+
+	/**
+	 * Records that the patient has to be migrated to the SHR. A patient has one row: a pending
+	 * migration is left as is, a completed or dead-lettered one is made pending again.
+	 *
+	 * @param patientId the patient
+	 * @return the pending migration
+	 */
+	@Transactional
+	public ShrMigration queueShrMigration(Integer patientId);
+
+	/**
+	 * @return the SHR migration of the patient, or null if none was ever queued
+	 */
+	@Transactional(readOnly=true)
+	public ShrMigration getShrMigration(Integer patientId);
+
+	@Transactional
+	public ShrMigration saveShrMigration(ShrMigration shrMigration);
+
+	/**
+	 * Pending SHR migrations whose next attempt is due, oldest first
+	 *
+	 * @param maxResults batch size
+	 */
+	@Transactional(readOnly=true)
+	public List<ShrMigration> getShrMigrationsDue(int maxResults);
+
+	/**
+	 * @return number of SHR migrations per status (PENDING, COMPLETED, DEAD_LETTER)
+	 */
+	@Transactional(readOnly=true)
+	public Map<String, Long> getShrMigrationCountsByStatus();
 
 	/**
 	 * Find patients by identifier value
@@ -0,0 +1,134 @@
+package org.openmrs.module.rwandaprimarycare;
+
+import org.openmrs.Location;
+import org.openmrs.User;
+import org.openmrs.api.APIAuthenticationException;
+import org.openmrs.api.context.Context;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Data kept per user while the user has an open HTTP session, such as the location the user
+ * logged in at, and the location code override of the current thread.
+ *
+ * Requests of the same user run concurrently, so the data is held in concurrent maps keyed by
+ * user id: reads never lock and a write only touches the entry it changes. The web layer reports
+ * the sessions of each user through {@link #sessionStarted} and {@link #sessionEnded}; the data of
+ * a user is dropped when the last of them ends.
+ *
+ * Generating identifiers for another location used to overwrite the login location of the user
+ * and restore it afterwards, which other requests of the user could see in between. A location
+ * code override set with {@link #callWithLocationCode} instead applies to the current thread only,
+ * until the callable returns.
+ */
+public final class PrimaryCareUserContext {
+
+	private static final ConcurrentMap<Integer, ConcurrentMap<String, Object>> userData = new ConcurrentHashMap<Integer, ConcurrentMap<String, Object>>();
+
+	// guarded by the class
+	private static final Map<Integer, Integer> openSessions = new HashMap<Integer, Integer>();
+
+	private static final ThreadLocal<String> scopedLocationCode = new ThreadLocal<String>();
+
+	private PrimaryCareUserContext() {
+	}
+
+	/**
+	 * @return the value stored for the authenticated user, or null
+	 * @throws APIAuthenticationException if no user is authenticated
+	 */
+	public static Object get(String key) {
+		ConcurrentMap<String, Object> data = userData.get(getUserId());
+		return data == null ? null : data.get(key);
+	}
+
+	/**
+	 * Stores a value for the authenticated user; null removes it
+	 *
+	 * @throws APIAuthenticationException if no user is authenticated
+	 */
+	public static void set(String key, Object value) {
+		Integer userId = getUserId();
+		ConcurrentMap<String, Object> data = userData.get(userId);
+		if (data == null) {
+			if (value == null) {
+				return;
+			}
+			ConcurrentMap<String, Object> created = new ConcurrentHashMap<String, Object>();
+			data = userData.putIfAbsent(userId, created);
+			if (data == null) {
+				data = created;
+			}
+		}
+		if (value == null) {
+			data.remove(key);
+		} else {
+			data.put(key, value);
+		}
+	}
+
+	/**
+	 * @return the location the user logged in at, or null
+	 */
+	public static Location getLoginLocation() {
+		return (Location) get(PrimaryCareConstants.VOLATILE_USER_DATA_LOGIN_LOCATION);
+	}
+
+	/**
+	 * @return the location code forced on the current thread, or null if there is none
+	 */
+	public static String getScopedLocationCode() {
+		return scopedLocationCode.get();
+	}
+
+	/**
+	 * Calls the callable with getPrimaryCareLocationCode returning locationCode on this thread,
+	 * e.g. to generate identifiers for a given health center from a background thread
+	 */
+	public static <T> T callWithLocationCode(String locationCode, Callable<T> callable) throws Exception {
+		String previous = scopedLocationCode.get();
+		scopedLocationCode.set(locationCode);
+		try {
+			return callable.call();
+		} finally {
+			if (previous == null) {
+				scopedLocationCode.remove();
+			} else {
+				scopedLocationCode.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * Counts an HTTP session of the user
+	 */
+	public static synchronized void sessionStarted(Integer userId) {
+		Integer count = openSessions.get(userId);
+		openSessions.put(userId, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Drops the data of the user once the last of its HTTP sessions ended
+	 */
+	public static synchronized void sessionEnded(Integer userId) {
+		Integer count = openSessions.get(userId);
+		if (count != null && count > 1) {
+			openSessions.put(userId, count - 1);
+			return;
+		}
+		openSessions.remove(userId);
+		userData.remove(userId);
+	}
+
+	private static Integer getUserId() {
+		User u = Context.getAuthenticatedUser();
+		if (u == null) {
+			throw new APIAuthenticationException();
+		}
+		return u.getUserId();
+	}
+}
@@ -3,11 +3,7 @@ package org.openmrs.module.rwandaprimarycare;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.StringTokenizer;
-import java.util.WeakHashMap;
 
 import javax.servlet.http.HttpSession;
 import org.openmrs.GlobalProperty;
@@ -25,8 +21,6 @@ import org.openmrs.Person;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.PersonAttribute;
 import org.openmrs.PersonAttributeType;
-import org.openmrs.User;
-import org.openmrs.api.APIAuthenticationException;
 import org.openmrs.api.PersonService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.idgen.IdentifierSource;
@@ -40,10 +34,6 @@ public class PrimaryCareUtil {
 
 	protected final static Log log = LogFactory.getLog(PrimaryCareUtil.class);
 
-	// A place to store data that will persist longer than a session, but won't
-	// persist beyond application restart
-	private static Map<User, Map<String, Object>> volatileUserData = new WeakHashMap<User, Map<String, Object>>();
-
 	public static Obs newObs(Patient patient, Concept c, Date obsDate, Location location){
 		Obs ret = new Obs();
 		ret.setCreator(Context.getAuthenticatedUser());
@@ -87,7 +77,7 @@ public class PrimaryCareUtil {
 	 */
 	public static PatientIdentifierType getNationalIdIdentifierType(){
 		PatientIdentifierType ret = null;
-		String st = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_NATIONAL_ID_TYPE);
+		String st = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_NATIONAL_ID_TYPE);
 		if (st != null && !st.equals("")){
 			ret = Context.getPatientService().getPatientIdentifierTypeByName(st);
 		}
@@ -102,7 +92,7 @@ public class PrimaryCareUtil {
 	 */
 	public static PersonAttributeType getHealthCenterAttributeType(){
 		PersonAttributeType ret = null;
-		String st = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_HEALTH_CENTER_ATTRIBUTE_TYPE);
+		String st = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_HEALTH_CENTER_ATTRIBUTE_TYPE);
 		if (st != null && !st.equals("")){
 			ret = Context.getPersonService().getPersonAttributeTypeByName(st);
 		}
@@ -117,7 +107,7 @@ public class PrimaryCareUtil {
 	 */
 	public static Concept getMothersNameConcept(){
 		Concept ret = null;
-		String st = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_MOTHERS_NAME_CONCEPT);
+		String st = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_MOTHERS_NAME_CONCEPT);
 		if (st != null && !st.equals("")){
 			try {
 				ret = Context.getConceptService().getConcept(Integer.valueOf(st));
@@ -179,7 +169,7 @@ public class PrimaryCareUtil {
 	 */
 	public static Concept getFathersNameConcept(){
 		Concept ret = null;
-		String st = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_FATHERS_NAME_CONCEPT);
+		String st = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_FATHERS_NAME_CONCEPT);
 		if (st != null && !st.equals("")){
 			try {
 				ret = Context.getConceptService().getConcept(Integer.valueOf(st));
@@ -190,7 +180,7 @@ public class PrimaryCareUtil {
 
 	public static Concept getInsuranceTypeConcept(){
 		Concept ret = null;
-		String st = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_INSURANCE_TYPE);
+		String st = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_INSURANCE_TYPE);
 		if (st != null && !st.equals("")){
 			try {
 				ret = Context.getConceptService().getConcept(Integer.valueOf(st));
@@ -201,7 +191,7 @@ public class PrimaryCareUtil {
 
 	public static Concept getInsuranceNumberConcept(){
 		Concept ret = null;
-		String st = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_INSURANCE_NUMBER);
+		String st = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_INSURANCE_NUMBER);
 		if (st != null && !st.equals("")){
 			try {
 				ret = Context.getConceptService().getConcept(Integer.valueOf(st));
@@ -218,7 +208,20 @@ public class PrimaryCareUtil {
 	 * @return location code as String
 	 */
 	public static String getPrimaryCareLocationCode(){ 
-		String ret = evaluatePrimaryCareLocationCode();
+		String ret = PrimaryCareUserContext.getScopedLocationCode();
+		if (ret == null)
+			ret = evaluatePrimaryCareLocationCode();
+		if(!StringUtils.isNumeric(ret))
+			throw new RuntimeException("The registration.defaultLocationCode global property is not set correctly.  Please use only digits.");
+		return ret;
+	}
+
+	/**
+	 * @return the location code identifiers generated for the given location are prefixed with, as
+	 *         if the user had logged in there
+	 */
+	public static String getPrimaryCareLocationCode(Location location){
+		String ret = evaluatePrimaryCareLocationCode(location);
 		if(!StringUtils.isNumeric(ret))
 			throw new RuntimeException("The registration.defaultLocationCode global property is not set correctly.  Please use only digits.");
 		return ret;
@@ -232,9 +235,12 @@ public class PrimaryCareUtil {
 	 * @return location code as String
 	 */
 	private static String evaluatePrimaryCareLocationCode(){
-		Object myLocationObj =  getVolatileUserData(PrimaryCareConstants.VOLATILE_USER_DATA_LOGIN_LOCATION);
-		if (myLocationObj == null){
-			String ret = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_DEFAULT_LOCATION_CODE);
+		return evaluatePrimaryCareLocationCode(PrimaryCareUserContext.getLoginLocation());
+	}
+
+	private static String evaluatePrimaryCareLocationCode(Location myLocation){
+		if (myLocation == null){
+			String ret = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_DEFAULT_LOCATION_CODE);
 			if (ret != null && !ret.equals(""))
 				return ret;
 			else
@@ -246,32 +252,12 @@ public class PrimaryCareUtil {
 
 		// The real danger here is that there is ANY duplication in EITHER of these global properties across multiple servers.
 
-		Location myLocation = (Location) myLocationObj;
-		String str = null;
-		str = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_RWANDA_LOCATION_CODE);
-		if (str.contains("|")){   //multiple locations 
-			for (StringTokenizer st = new StringTokenizer(str, "|"); st.hasMoreTokens(); ) {
-				String s = st.nextToken().trim();
-				if (s.contains(":")){
-					String[] stArr = s.split(":");
-					if (stArr[0].equals(myLocation.getName()))
-						return stArr[1];
-				} else {
-					throw new RuntimeException("The registration.rwandaLocationCode global property is not set correctly.  Please use the format <<location_Name>>:MOH_ID| etc...");
-				}
-			}                
-		} else {   //single 
-			if (str.contains(":")){
-				String[] stArr = str.split(":");
-				if (stArr[0].equals(myLocation.getName()))
-					return stArr[1];
-			} else {
-				return str;
-			}
-		}
+		String code = RwandaLocationCodes.get().getCode(myLocation);
+		if (code != null)
+			return code;
 		//LK: if the location code is not found in the global properties use the default location code (as this is preferential to throwing
 		//	  an exception, though we would expect each location to be set up within the global properties.
-		String ret = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_DEFAULT_LOCATION_CODE);
+		String ret = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_DEFAULT_LOCATION_CODE);
 		if (ret != null && !ret.equals(""))
 		{
 			return ret;
@@ -316,7 +302,7 @@ public class PrimaryCareUtil {
 
 	public static Concept getServiceRequestedConcept(){
 		Concept ret = null;
-		String st = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_SERVICE_REQUESTED_CONCEPT);
+		String st = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_SERVICE_REQUESTED_CONCEPT);
 		if (st != null && !st.equals("")){
 			try {
 				ret = Context.getConceptService().getConcept(Integer.valueOf(st));
@@ -358,32 +344,7 @@ public class PrimaryCareUtil {
 	 * @return
 	 */
 	public static List<Location> getLocationsInRwandaLocationCodesGP(){ //these are LocationName:FOSA pairs
-
-		List<Location> ret = new ArrayList<Location>();
-		String gp = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_RWANDA_LOCATION_CODE);
-		if (gp == null)
-			throw new RuntimeException("you must set the global property registration.rwandaLocationCodes for this to work.");
-		if (gp.contains("|")){
-			for (StringTokenizer st = new StringTokenizer(gp, "|"); st.hasMoreTokens(); ) {
-				String str = st.nextToken().trim();
-				if (str.contains(":")){
-					String[] stArr = str.split(":");
-					Location loc = Context.getLocationService().getLocation(stArr[0]);
-					if (loc == null)
-						throw new RuntimeException("RwandaPrimaryCare couldn't load a location listed by name in registration.rwandaLocationCodes.  Tried to look up " + stArr[0]);
-					ret.add(loc);
-				} 
-			}    
-		} else { //single
-			if (gp.contains(":")){
-				String[] stArr = gp.split(":");
-				Location loc = Context.getLocationService().getLocation(stArr[0]);
-				if (loc == null)
-					throw new RuntimeException("RwandaPrimaryCare couldn't load a location listed by name in registration.rwandaLocationCodes.  Tried to look up " + stArr[0]);
-				ret.add(loc);
-			} 
-		}
-		return ret;
+		return RwandaLocationCodes.get().getLocations();
 	}
 
 
@@ -395,27 +356,7 @@ public class PrimaryCareUtil {
 	 * @return
 	 */
 	public static Location getPrimaryCareLocationFromCodeList(String locationCode){
-		String str = null;
-		str = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_RWANDA_LOCATION_CODE);
-		if (str.contains("|")){   //multiple locations 
-			for (StringTokenizer st = new StringTokenizer(str, "|"); st.hasMoreTokens(); ) {
-				String s = st.nextToken().trim();
-				if (s.contains(":")){
-					String[] stArr = s.split(":");
-					if (stArr[1].equals(locationCode))
-						return Context.getLocationService().getLocation(stArr[0]);
-				} else {
-					throw new RuntimeException("The registration.rwandaLocationCode global property is not set correctly.  Please use the format <<location_Name>>:MOH_ID| etc...");
-				}
-			}                
-		} else {   //single 
-			if (str.contains(":")){
-				String[] stArr = str.split(":");
-				if (stArr[1].equals(locationCode))
-					return Context.getLocationService().getLocation(stArr[0]);
-			} 
-		}
-		return null;
+		return RwandaLocationCodes.get().getLocation(locationCode);
 	}
 
 	public static String calculateBMI(Patient patient, List<Obs> obsToCreate) {
@@ -639,43 +580,28 @@ public class PrimaryCareUtil {
 
 	/**
 	 * Get a piece of information for the currently authenticated user. This information is stored
-	 * only temporarily. When a new module is loaded or the server is restarted, this information
-	 * will disappear. If there is not information by this key, null is returned.
+	 * only temporarily. When the last session of the user ends, a new module is loaded or the server
+	 * is restarted, this information will disappear. If there is not information by this key, null
+	 * is returned.
 	 * 
 	 * @param key identifying string for the information
 	 * @return the information stored
+	 * @see PrimaryCareUserContext
 	 */
 	public static Object getVolatileUserData(String key) {
-		User u = Context.getAuthenticatedUser();
-		if (u == null) {
-			throw new APIAuthenticationException();
-		}
-		Map<String, Object> myData = volatileUserData.get(u);
-		if (myData == null) {
-			return null;
-		} else {
-			return myData.get(key);
-		}
+		return PrimaryCareUserContext.get(key);
 	}
 
 	/**
 	 * Set a piece of information for the currently authenticated user. This information is stored
-	 * only temporarily. When a new module is loaded or the server is restarted, this information
-	 * will disappear
+	 * only temporarily. When the last session of the user ends, a new module is loaded or the server
+	 * is restarted, this information will disappear
 	 * 
 	 * @param key identifying string for this information
 	 * @param value information to be stored
+	 * @see PrimaryCareUserContext
 	 */
 	public static void setVolatileUserData(String key, Object value) {
-		User u = Context.getAuthenticatedUser();
-		if (u == null) {
-			throw new APIAuthenticationException();
-		}
-		Map<String, Object> myData = volatileUserData.get(u);
-		if (myData == null) {
-			myData = new HashMap<String, Object>();
-			volatileUserData.put(u, myData);
-		}
-		myData.put(key, value);
+		PrimaryCareUserContext.set(key, value);
 	}
 }
@@ -0,0 +1,217 @@
+package org.openmrs.module.rwandaprimarycare;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The registration.rwandaLocationCodes global property ("Location name:FOSA code|Location name:FOSA code"),
+ * parsed once into maps from location to FOSA code and back.
+ *
+ * The parsed form is rebuilt on first use after the property changes, or after a location was
+ * saved, retired or purged (see {@link org.openmrs.module.rwandaprimarycare.metadata.PrimaryCareMetadataAdvice}),
+ * since a listed name may only then match a location. Entries listing a location or a FOSA code a
+ * second time are ignored, so the first entry wins as it always did; they would otherwise give two
+ * health centers the same identifier prefix. Problems are logged once per value of the property.
+ */
+public class RwandaLocationCodes {
+
+	private static final Log log = LogFactory.getLog(RwandaLocationCodes.class);
+
+	static final String FORMAT_ERROR = "The registration.rwandaLocationCode global property is not set correctly.  Please use the format <<location_Name>>:MOH_ID| etc...";
+
+	private static volatile RwandaLocationCodes current;
+
+	// the property value whose problems were last logged
+	private static volatile String reportedSource;
+
+	private final String source;
+
+	// location name -> FOSA code, in the order of the property
+	private final Map<String, String> codeByLocationName;
+
+	private final Map<Integer, String> codeByLocationId;
+
+	private final Map<String, Integer> locationIdByCode;
+
+	private final Map<String, String> locationNameByCode;
+
+	// names listed in the property that are not an existing location
+	private final List<String> unknownLocations;
+
+	// the whole property, when it is a single entry without a location name
+	private final String singleCode;
+
+	private final boolean malformed;
+
+	private final List<String> errors;
+
+	/**
+	 * @return the parsed current value of registration.rwandaLocationCodes
+	 */
+	public static RwandaLocationCodes get() {
+		String gp = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_RWANDA_LOCATION_CODE);
+		RwandaLocationCodes codes = current;
+		if (codes == null || (gp == null ? codes.source != null : !gp.equals(codes.source))) {
+			codes = new RwandaLocationCodes(gp);
+			current = codes;
+		}
+		return codes;
+	}
+
+	/**
+	 * Has the next call to {@link #get()} parse the property again, for when locations changed
+	 */
+	public static void invalidate() {
+		current = null;
+	}
+
+	private RwandaLocationCodes(String gp) {
+		source = gp;
+		Map<String, String> byName = new LinkedHashMap<String, String>();
+		Map<Integer, String> byId = new HashMap<Integer, String>();
+		Map<String, Integer> idByCode = new HashMap<String, Integer>();
+		Map<String, String> nameByCode = new HashMap<String, String>();
+		List<String> unknown = new ArrayList<String>();
+		List<String> problems = new ArrayList<String>();
+		String single = null;
+		boolean badFormat = false;
+
+		if (gp != null) {
+			boolean multiple = gp.contains("|");
+			if (!multiple && !gp.contains(":")) {
+				single = gp;
+			} else {
+				for (String entry : gp.split("\\|")) {
+					entry = entry.trim();
+					if (entry.length() == 0) {
+						continue;
+					}
+					if (!entry.contains(":")) {
+						badFormat = true;
+						problems.add("Entry '" + entry + "' has no location name");
+						continue;
+					}
+					String[] parts = entry.split(":");
+					String name = parts[0];
+					String code = parts.length > 1 ? parts[1] : "";
+					if (byName.containsKey(name)) {
+						problems.add("Location " + name + " is listed more than once, using code " + byName.get(name));
+						continue;
+					}
+					if (nameByCode.containsKey(code)) {
+						problems.add("FOSA code " + code + " is listed for both " + nameByCode.get(code) + " and " + name
+								+ ", using " + nameByCode.get(code));
+						continue;
+					}
+					byName.put(name, code);
+					nameByCode.put(code, name);
+					Location location = Context.getLocationService().getLocation(name);
+					if (location == null) {
+						unknown.add(name);
+						problems.add("No location is named " + name);
+					} else {
+						byId.put(location.getLocationId(), code);
+						idByCode.put(code, location.getLocationId());
+					}
+				}
+			}
+		}
+		codeByLocationName = Collections.unmodifiableMap(byName);
+		codeByLocationId = Collections.unmodifiableMap(byId);
+		locationIdByCode = Collections.unmodifiableMap(idByCode);
+		locationNameByCode = Collections.unmodifiableMap(nameByCode);
+		unknownLocations = Collections.unmodifiableList(unknown);
+		singleCode = single;
+		malformed = badFormat;
+		errors = Collections.unmodifiableList(problems);
+		if (gp == null ? reportedSource != null : !gp.equals(reportedSource)) {
+			reportedSource = gp;
+			for (String problem : problems) {
+				log.error(PrimaryCareConstants.GLOBAL_PROPERTY_RWANDA_LOCATION_CODE + ": " + problem);
+			}
+		}
+	}
+
+	/**
+	 * @return the FOSA code listed for the location, the code of a property holding a single code
+	 *         without location name, or null if the location is not listed
+	 * @throws RuntimeException if the location is not listed and the property is malformed
+	 */
+	public String getCode(Location location) {
+		if (singleCode != null) {
+			return singleCode;
+		}
+		String code = location.getLocationId() != null ? codeByLocationId.get(location.getLocationId()) : null;
+		if (code == null) {
+			code = codeByLocationName.get(location.getName());
+		}
+		if (code == null && malformed) {
+			throw new RuntimeException(FORMAT_ERROR);
+		}
+		return code;
+	}
+
+	/**
+	 * @return the location listed with the FOSA code, or null if none is
+	 * @throws RuntimeException if the code is not listed and the property is malformed
+	 */
+	public Location getLocation(String code) {
+		Integer locationId = locationIdByCode.get(code);
+		if (locationId != null) {
+			return Context.getLocationService().getLocation(locationId);
+		}
+		if (malformed) {
+			throw new RuntimeException(FORMAT_ERROR);
+		}
+		return null;
+	}
+
+	/**
+	 * @return all locations listed, in the order of the property
+	 * @throws RuntimeException if the property is not set or lists a location that does not exist
+	 */
+	public List<Location> getLocations() {
+		if (source == null) {
+			throw new RuntimeException("you must set the global property registration.rwandaLocationCodes for this to work.");
+		}
+		if (!unknownLocations.isEmpty()) {
+			throw new RuntimeException("RwandaPrimaryCare couldn't load a location listed by name in registration.rwandaLocationCodes.  Tried to look up "
+					+ unknownLocations.get(0));
+		}
+		List<Location> ret = new ArrayList<Location>();
+		for (String code : codeByLocationName.values()) {
+			ret.add(Context.getLocationService().getLocation(locationIdByCode.get(code)));
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the problems found in the property, empty if none
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return FOSA code by location name, for monitoring
+	 */
+	public Map<String, String> getCodesByLocationName() {
+		return codeByLocationName;
+	}
+
+	/**
+	 * @return location name by FOSA code
+	 */
+	public Map<String, String> getLocationNamesByCode() {
+		return locationNameByCode;
+	}
+}
@@ -23,35 +23,104 @@ import org.openmrs.Privilege;
 import org.openmrs.VisitType;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.rwandaprimarycare.address.AddressHierarchyIndex;
 import org.openmrs.module.rwandaprimarycare.htmlformentry.handler.AddressHierarchyTagHandler;
+import org.openmrs.module.rwandaprimarycare.identifier.PrimaryIdentifierPool;
+import org.openmrs.module.rwandaprimarycare.metadata.PrimaryCareMetadata;
+import org.openmrs.module.rwandaprimarycare.openhim.ConnectivityMonitor;
+import org.openmrs.module.rwandaprimarycare.openhim.OfflineTransactionSyncTask;
+import org.openmrs.module.rwandaprimarycare.openhim.OpenHIMHttpClient;
+import org.openmrs.module.rwandaprimarycare.openhim.OpenHIMProxyExecutor;
+import org.openmrs.module.rwandaprimarycare.openhim.OrgUnitCatalog;
+import org.openmrs.module.rwandaprimarycare.openhim.ShrMigrationQueue;
+import org.openmrs.module.rwandaprimarycare.search.PatientSearchOrchestrator;
+import org.openmrs.module.rwandaprimarycare.search.PatientSuggestionIndex;
 
 /**
  * This class contains the logic that is run every time this module
  * is either started or shutdown
  */
-public class RwandaPrimaryCareActivator extends BaseModuleActivator {
+public class RwandaPrimaryCareActivator extends BaseModuleActivator implements DaemonTokenAware {
 
 	private final Log log = LogFactory.getLog(this.getClass());
 
+	/**
+	 * @see DaemonTokenAware#setDaemonToken(DaemonToken)
+	 */
+	public void setDaemonToken(DaemonToken token) {
+		PrimaryIdentifierPool.setDaemonToken(token);
+	}
+
 	/**
 	 * @see BaseModuleActivator#started()
 	 */
 	public void started() {
         log.info("Rwanda Primary Care Module started");
 
+        log.info("Loading global property configuration");
+        PrimaryCareConfig.getInstance().start();
+        OpenHIMHttpClient.getInstance().start();
+
         log.info("Registering tag with htmlformentry");
         HtmlFormEntryService hfes = Context.getService(HtmlFormEntryService.class);
 		hfes.addHandler("addressHierarchyRwanda", new AddressHierarchyTagHandler());
 
 		log.info("Registering required metadata");
 		addMetadata();
+
+		log.info("Resolving primary care metadata");
+		PrimaryCareMetadata.getInstance().start();
+
+		log.info("Loading location codes");
+		RwandaLocationCodes.get();
+
+		log.info("Loading address hierarchy tree");
+		AddressHierarchyIndex.getInstance().start();
+
+		log.info("Loading reserved primary identifiers");
+		PrimaryIdentifierPool.getInstance().start();
+
+		log.info("Starting OpenHIM connectivity monitor");
+		ConnectivityMonitor.getInstance().start();
+
+		log.info("Starting offline transaction sync task");
+		OfflineTransactionSyncTask.getInstance().start();
+
+		log.info("Starting SHR migration queue");
+		ShrMigrationQueue.getInstance().start();
+
+		log.info("Loading DHIS2 organisation units");
+		OrgUnitCatalog.getInstance().start();
+
+		log.info("Loading patient suggestion index");
+		PatientSuggestionIndex.getInstance().start();
+
+		log.info("Starting patient search pool");
+		PatientSearchOrchestrator.getInstance().start();
+
+		log.info("Starting OpenHIM proxy pool");
+		OpenHIMProxyExecutor.getInstance().start();
 	}
 	
 	/**
 	 * @see BaseModuleActivator#started()
 	 */
 	public void stopped() {
+		OpenHIMProxyExecutor.getInstance().stop();
+		PatientSearchOrchestrator.getInstance().stop();
+		PatientSuggestionIndex.getInstance().stop();
+		OrgUnitCatalog.getInstance().stop();
+		ShrMigrationQueue.getInstance().stop();
+		OfflineTransactionSyncTask.getInstance().stop();
+		ConnectivityMonitor.getInstance().stop();
+		PrimaryIdentifierPool.getInstance().stop();
+		AddressHierarchyIndex.getInstance().stop();
+		PrimaryCareMetadata.getInstance().stop();
+		OpenHIMHttpClient.getInstance().stop();
+		PrimaryCareConfig.getInstance().stop();
 		log.info("Rwanda Primary Care Module stopped");
 	}
 	
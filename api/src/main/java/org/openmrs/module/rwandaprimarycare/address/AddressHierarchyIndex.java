@@ -0,0 +1,161 @@
+package org.openmrs.module.rwandaprimarycare.address;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.addresshierarchy.service.AddressHierarchyService;
+import org.openmrs.module.rwandaprimarycare.DaemonThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the {@link AddressHierarchyTree} the cascading address pickers and the umudugudu search
+ * read from, instead of querying the address hierarchy module on each keystroke.
+ *
+ * The tree is loaded when the module starts. Whenever an address hierarchy entry or level is saved
+ * or deleted (see {@link AddressHierarchyIndexAdvice}) a new tree is loaded in the background
+ * RELOAD_DELAY seconds later; the changes made meanwhile are picked up by the same load, so an
+ * import of thousands of entries costs a few loads rather than one per entry. Readers keep the
+ * previous tree until the new one replaces it.
+ */
+@Component("rwandaprimarycare.addressHierarchyIndex")
+public class AddressHierarchyIndex {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	private static final int RELOAD_DELAY = 10;
+
+	private volatile AddressHierarchyTree tree;
+
+	private volatile ScheduledExecutorService reloader;
+
+	private final AtomicBoolean reloadScheduled = new AtomicBoolean();
+
+	private final AtomicLong loads = new AtomicLong();
+
+	private volatile Date lastLoaded;
+
+	private volatile long lastLoadMillis = -1;
+
+	private volatile String lastError;
+
+	/**
+	 * @return the Spring-managed instance of this index
+	 */
+	public static AddressHierarchyIndex getInstance() {
+		return Context.getRegisteredComponent("rwandaprimarycare.addressHierarchyIndex", AddressHierarchyIndex.class);
+	}
+
+	/**
+	 * Loads the tree
+	 */
+	public synchronized void start() {
+		if (reloader != null) {
+			return;
+		}
+		reloader = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rwandaprimarycare-address-hierarchy-"));
+		try {
+			load();
+		} catch (RuntimeException e) {
+			// loaded again on first use
+			log.error("Could not load the address hierarchy tree", e);
+		}
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		if (reloader != null) {
+			reloader.shutdownNow();
+			reloader = null;
+		}
+		reloadScheduled.set(false);
+		tree = null;
+	}
+
+	/**
+	 * @return the current tree, loaded now if there is none yet
+	 * @throws APIException if the address hierarchy cannot be read
+	 */
+	public AddressHierarchyTree getTree() {
+		AddressHierarchyTree current = tree;
+		if (current != null) {
+			return current;
+		}
+		synchronized (this) {
+			if (tree == null) {
+				load();
+			}
+			return tree;
+		}
+	}
+
+	/**
+	 * Loads a new tree in the background in RELOAD_DELAY seconds, unless a load is already scheduled
+	 */
+	public void scheduleReload() {
+		ScheduledExecutorService current = reloader;
+		if (current == null || current.isShutdown() || !reloadScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		current.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				// a change made while loading schedules the next load
+				reloadScheduled.set(false);
+				try {
+					Context.openSession();
+					load();
+				} catch (Throwable t) {
+					log.error("Could not reload the address hierarchy tree, keeping the previous one", t);
+				} finally {
+					Context.closeSession();
+				}
+			}
+		}, RELOAD_DELAY, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return size and age of the tree, for monitoring
+	 */
+	public Map<String, Object> getStatus() {
+		AddressHierarchyTree current = tree;
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("loaded", current != null);
+		status.put("entries", current != null ? current.size() : 0);
+		status.put("levels", current != null ? current.getLevelCount() : 0);
+		status.put("loads", loads.get());
+		status.put("lastLoaded", lastLoaded);
+		status.put("lastLoadMillis", lastLoadMillis);
+		status.put("reloadScheduled", reloadScheduled.get());
+		status.put("lastError", lastError);
+		return status;
+	}
+
+	private void load() {
+		long start = System.currentTimeMillis();
+		try {
+			AddressHierarchyTree loaded = AddressHierarchyTree.load(Context.getService(AddressHierarchyService.class));
+			tree = loaded;
+			loads.incrementAndGet();
+			lastLoaded = new Date();
+			lastLoadMillis = System.currentTimeMillis() - start;
+			lastError = null;
+			log.info("Loaded " + loaded.size() + " address hierarchy entries on " + loaded.getLevelCount() + " levels in "
+					+ lastLoadMillis + " ms");
+		} catch (RuntimeException e) {
+			lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+			throw new APIException("Could not load the address hierarchy", e);
+		}
+	}
+}
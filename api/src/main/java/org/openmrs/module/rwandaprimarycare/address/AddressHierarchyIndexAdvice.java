@@ -0,0 +1,35 @@
+package org.openmrs.module.rwandaprimarycare.address;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.regex.Pattern;
+
+/**
+ * Around advice on the AddressHierarchyService: has {@link AddressHierarchyIndex} load a new tree
+ * whenever address hierarchy entries or levels are saved or deleted, from this module or any other
+ */
+public class AddressHierarchyIndexAdvice implements MethodInterceptor {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	// also matches bulk changes such as deleteAllAddressHierarchyEntries
+	private static final Pattern HIERARCHY_CHANGE = Pattern.compile("^(save|delete|purge)\\w*AddressHierarchy\\w*$");
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		if (!HIERARCHY_CHANGE.matcher(invocation.getMethod().getName()).matches()) {
+			return invocation.proceed();
+		}
+		Object ret = invocation.proceed();
+		try {
+			AddressHierarchyIndex.getInstance().scheduleReload();
+		} catch (Exception e) {
+			// never fail an address hierarchy save because of the index
+			log.warn("Could not schedule the reload of the address hierarchy tree: " + e.getMessage());
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,253 @@
+package org.openmrs.module.rwandaprimarycare.address;
+
+import org.openmrs.module.addresshierarchy.AddressHierarchyEntry;
+import org.openmrs.module.addresshierarchy.AddressHierarchyLevel;
+import org.openmrs.module.addresshierarchy.service.AddressHierarchyService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Snapshot of the address hierarchy (country, province, district, sector, cell, umudugudu), never
+ * modified once built.
+ *
+ * All nodes sit in one array grouped by parent, each group sorted by name, so the children of an
+ * entry are a slice of that array found through its offset (parent to children arrays). The entry
+ * of a given name under a given parent is found in one hash lookup, and each node knows its level,
+ * whose name and child level name are kept once per level.
+ */
+public final class AddressHierarchyTree {
+
+	private static final Comparator<Node> BY_NAME = new Comparator<Node>() {
+
+		@Override
+		public int compare(Node a, Node b) {
+			int c = a.nameLowerCase.compareTo(b.nameLowerCase);
+			return c != 0 ? c : a.id - b.id;
+		}
+	};
+
+	// level names from the top down
+	private final String[] levelNames;
+
+	// nodes grouped by parent; the top level entries come first
+	private final Node[] nodes;
+
+	// position in nodes of each entry, by entry id
+	private final Map<Integer, Integer> positionById;
+
+	// children of the node at position p are nodes[childStart[p], childEnd[p])
+	private final int[] childStart;
+	private final int[] childEnd;
+
+	private final int topEnd;
+
+	// entry id by parent id and exact name, the parent of the top level entries being 0
+	private final Map<String, Integer> idByParentAndName;
+
+	private AddressHierarchyTree(String[] levelNames, List<Node> all) {
+		this.levelNames = levelNames;
+
+		// group by parent, each group sorted by name
+		Map<Integer, List<Node>> byParent = new HashMap<Integer, List<Node>>();
+		for (Node node : all) {
+			List<Node> siblings = byParent.get(node.parentId);
+			if (siblings == null) {
+				siblings = new ArrayList<Node>();
+				byParent.put(node.parentId, siblings);
+			}
+			siblings.add(node);
+		}
+		for (List<Node> siblings : byParent.values()) {
+			Collections.sort(siblings, BY_NAME);
+		}
+
+		Node[] placed = new Node[all.size()];
+		int[] starts = new int[all.size()];
+		int[] ends = new int[all.size()];
+		positionById = new HashMap<Integer, Integer>(all.size() * 4 / 3 + 1);
+		idByParentAndName = new HashMap<String, Integer>(all.size() * 4 / 3 + 1);
+
+		// breadth first, so that a node is placed before its children are
+		int next = 0;
+		List<Node> top = byParent.get(0);
+		if (top != null) {
+			for (Node node : top) {
+				placed[next++] = node;
+			}
+		}
+		topEnd = next;
+		for (int p = 0; p < next; p++) {
+			Node node = placed[p];
+			positionById.put(node.id, p);
+			// with two siblings of the same name, the first one wins
+			idByParentAndName.putIfAbsent(key(node.parentId, node.name), node.id);
+			starts[p] = next;
+			List<Node> children = byParent.get(node.id);
+			if (children != null) {
+				for (Node child : children) {
+					placed[next++] = child;
+				}
+			}
+			ends[p] = next;
+		}
+		// entries whose parent is not in the hierarchy cannot be reached and are left out
+		nodes = next < placed.length ? Arrays.copyOf(placed, next) : placed;
+		childStart = next < starts.length ? Arrays.copyOf(starts, next) : starts;
+		childEnd = next < ends.length ? Arrays.copyOf(ends, next) : ends;
+	}
+
+	/**
+	 * Builds the tree from the address hierarchy module, one query per level
+	 */
+	public static AddressHierarchyTree load(AddressHierarchyService ahs) {
+		List<AddressHierarchyLevel> levels = ahs.getOrderedAddressHierarchyLevels();
+		String[] levelNames = new String[levels.size()];
+		List<Node> all = new ArrayList<Node>();
+		for (int i = 0; i < levels.size(); i++) {
+			levelNames[i] = levels.get(i).getName();
+			for (AddressHierarchyEntry entry : ahs.getAddressHierarchyEntriesByLevel(levels.get(i))) {
+				AddressHierarchyEntry parent = entry.getParent();
+				if (entry.getName() == null || (i > 0 && parent == null)) {
+					continue;
+				}
+				all.add(new Node(entry.getAddressHierarchyEntryId(), entry.getName(),
+						parent != null ? parent.getAddressHierarchyEntryId() : 0, i));
+			}
+		}
+		return new AddressHierarchyTree(levelNames, all);
+	}
+
+	/**
+	 * @param parentId an entry id, or null for the top of the hierarchy
+	 * @return the children of the entry sorted by name, empty if the entry is unknown or a leaf
+	 */
+	public List<Node> getChildren(Integer parentId) {
+		if (parentId == null) {
+			return slice(0, topEnd);
+		}
+		Integer position = positionById.get(parentId);
+		if (position == null) {
+			return Collections.emptyList();
+		}
+		return slice(childStart[position], childEnd[position]);
+	}
+
+	/**
+	 * @param parentId an entry id, or null for the top of the hierarchy
+	 * @param name the exact name of the child
+	 * @return the id of the child of that name, or null
+	 */
+	public Integer getChildId(Integer parentId, String name) {
+		if (name == null) {
+			return null;
+		}
+		return idByParentAndName.get(key(parentId != null ? parentId : 0, name));
+	}
+
+	/**
+	 * @return the entry, or null if it is not in the hierarchy
+	 */
+	public Node getNode(Integer id) {
+		Integer position = id != null ? positionById.get(id) : null;
+		return position != null ? nodes[position] : null;
+	}
+
+	/**
+	 * @return the name of the level of the node, e.g. "District"
+	 */
+	public String getLevelName(Node node) {
+		return levelNames[node.level];
+	}
+
+	/**
+	 * @return the name of the level below that of the node, or null for the lowest level
+	 */
+	public String getChildLevelName(Node node) {
+		return node.level + 1 < levelNames.length ? levelNames[node.level + 1] : null;
+	}
+
+	/**
+	 * @return the number of entries in the tree
+	 */
+	public int size() {
+		return nodes.length;
+	}
+
+	/**
+	 * @return the number of levels
+	 */
+	public int getLevelCount() {
+		return levelNames.length;
+	}
+
+	private List<Node> slice(int from, int to) {
+		if (from >= to) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(Arrays.asList(nodes).subList(from, to));
+	}
+
+	private static String key(int parentId, String name) {
+		return parentId + "|" + name;
+	}
+
+	/**
+	 * One address hierarchy entry
+	 */
+	public static final class Node {
+
+		private final int id;
+
+		private final String name;
+
+		private final String nameLowerCase;
+
+		private final int parentId;
+
+		private final int level;
+
+		Node(int id, String name, int parentId, int level) {
+			this.id = id;
+			this.name = name;
+			this.nameLowerCase = name.toLowerCase(Locale.ROOT);
+			this.parentId = parentId;
+			this.level = level;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return true if the name contains search, ignoring case; an empty search matches all
+		 */
+		public boolean nameContains(String search) {
+			return search.isEmpty() || nameLowerCase.contains(search.toLowerCase(Locale.ROOT));
+		}
+
+		/**
+		 * @return the id of the parent entry, 0 for the top of the hierarchy
+		 */
+		public int getParentId() {
+			return parentId;
+		}
+
+		/**
+		 * @return the depth of the entry, 0 for the top of the hierarchy
+		 */
+		public int getLevel() {
+			return level;
+		}
+	}
+}
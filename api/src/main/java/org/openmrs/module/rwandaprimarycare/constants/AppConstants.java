@@ -45,4 +45,16 @@ public class AppConstants {
 
     // Operation statuses
     public static final String COMPLETED_STATUS = "COMPLETED";
+    public static final String PENDING_STATUS = "PENDING";
+    public static final String DEAD_LETTER_STATUS = "DEAD_LETTER";
+    // offline transaction waiting for the real UPI of its patient, see OFFLINE_UPID
+    public static final String HELD_STATUS = "HELD";
+
+    // Offline transaction types
+    public static final String OFFLINE_PATIENT_SYNC_IN = "patient_sync_in";
+    public static final String OFFLINE_PATIENT_SYNC_UP = "patient_sync_up";
+    public static final String OFFLINE_UPID = "upid_offline";
+
+    // Prefix of the placeholder UPI given to a patient while NPR is unreachable
+    public static final String OFFLINE_UPID_PREFIX = "OFFLINE-";
 }
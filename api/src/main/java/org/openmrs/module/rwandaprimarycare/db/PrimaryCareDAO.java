@@ -1,10 +1,16 @@
 package org.openmrs.module.rwandaprimarycare.db;
 
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PersonAttributeType;
+import org.openmrs.module.rwandaprimarycare.pojos.OfflineTransaction;
+import org.openmrs.module.rwandaprimarycare.pojos.ReservedIdentifier;
+import org.openmrs.module.rwandaprimarycare.pojos.ShrMigration;
+import org.openmrs.module.rwandaprimarycare.pojos.patient.PatientPojo;
 
 public interface PrimaryCareDAO {
 	public List<String> getPatientFamilyNamesList(String search);
@@ -12,6 +18,14 @@ public interface PrimaryCareDAO {
 	public List<String> getParentsFamilyNamesList(String search,int personAttributeTypeId);
 /*	public List<String> getFathersFamilyNamesList(String search);*/
 	public List<String> getPatientAddress1List(String search);
+
+	/**
+	 * Number of non-voided occurrences of each distinct value, used to build the suggestion index
+	 */
+	public Map<String, Long> getPatientGivenNameCounts();
+	public Map<String, Long> getPatientFamilyNameCounts();
+	public Map<String, Long> getPersonAttributeValueCounts(int personAttributeTypeId);
+	public Map<String, Long> getPatientAddress1Counts();
 	
 //	public List<String> getPatientNeighborhoodCellList(String search);
 //	public List<String> getPatientCountyDistrictList(String search);
@@ -29,5 +43,60 @@ public interface PrimaryCareDAO {
     		PersonAttributeType healthCenterPat, 
             Location userLocation,
             boolean restrictByHealthCenter);
+
+	/**
+	 * One page of {@link #getPatients(String, String, String, Float, int, String, PersonAttributeType, Location, boolean)},
+	 * with the location and umudugudu ranking done by the database
+	 */
+	public List<Patient> getPatients(
+    		String givenName, 
+    		String familyName,
+    		String gender,
+    		Float age, 
+    		int ageRange,
+    		String Address1,
+    		PersonAttributeType healthCenterPat, 
+            Location userLocation,
+            boolean restrictByHealthCenter,
+            int firstResult,
+            int maxResults);
+
+	public Long getPatientCount(
+    		String givenName, 
+    		String familyName,
+    		String gender,
+    		Float age, 
+    		int ageRange,
+    		String Address1,
+    		PersonAttributeType healthCenterPat, 
+            Location userLocation,
+            boolean restrictByHealthCenter);
+
+	/**
+	 * Search result rows of the given patients, fetched with a fixed number of set-based queries
+	 */
+	public List<PatientPojo> getPatientPojos(List<Integer> patientIds);
+
+	public OfflineTransaction saveOfflineTransaction(OfflineTransaction offlineTransaction);
+
+	public List<OfflineTransaction> getOfflineTransactionsDue(String status, Date dueBy, int maxResults);
+
+	public Map<String, Long> getOfflineTransactionCountsByStatus();
+
+	public List<OfflineTransaction> getOfflineTransactionsByStatus(String status);
+
+	public void saveReservedIdentifiers(List<ReservedIdentifier> reservedIdentifiers);
+
+	public List<ReservedIdentifier> getReservedIdentifiers();
+
+	public int deleteReservedIdentifier(String identifier);
+
+	public ShrMigration getShrMigration(Integer patientId);
+
+	public ShrMigration saveShrMigration(ShrMigration shrMigration);
+
+	public List<ShrMigration> getShrMigrationsDue(String status, Date dueBy, int maxResults);
+
+	public Map<String, Long> getShrMigrationCountsByStatus();
 	
 }
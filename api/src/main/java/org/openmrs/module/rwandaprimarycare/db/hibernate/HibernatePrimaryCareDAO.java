@@ -1,9 +1,16 @@
 package org.openmrs.module.rwandaprimarycare.db.hibernate;
 
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -11,16 +18,49 @@ import org.hibernate.Criteria;
 import org.hibernate.Query;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.MatchMode;
+import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PersonAttributeType;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
 import org.openmrs.module.rwandaprimarycare.db.PrimaryCareDAO;
+import org.openmrs.module.rwandaprimarycare.pojos.OfflineTransaction;
+import org.openmrs.module.rwandaprimarycare.pojos.ReservedIdentifier;
+import org.openmrs.module.rwandaprimarycare.pojos.ShrMigration;
+import org.openmrs.module.rwandaprimarycare.pojos.patient.Address;
+import org.openmrs.module.rwandaprimarycare.pojos.patient.Identifier;
+import org.openmrs.module.rwandaprimarycare.pojos.patient.PatientPojo;
 
 public class HibernatePrimaryCareDAO implements PrimaryCareDAO {
 
     protected final Log log = LogFactory.getLog(getClass());
 	
+    private static final int MAX_IN_LIST_SIZE = 1000;
+
+    /**
+     * Identifier types shown in search results, by patient_identifier_type_id
+     */
+    private static final Map<Integer, String> IDENTIFIER_SYSTEMS = new HashMap<Integer, String>();
+    static {
+        IDENTIFIER_SYSTEMS.put(3, "PRIMARY_CARE_ID");
+        IDENTIFIER_SYSTEMS.put(5, "NID");
+        IDENTIFIER_SYSTEMS.put(13, "UPI");
+        IDENTIFIER_SYSTEMS.put(14, "NIN");
+        IDENTIFIER_SYSTEMS.put(15, "NID_APPLICATION_NUMBER");
+        IDENTIFIER_SYSTEMS.put(4, "TRACNET_NUMBER");
+    }
+
+    private static final List<String> PATIENT_POJO_ATTRIBUTES = Arrays.asList(
+            PrimaryCareConstants.GLOBAL_PROPERTY_CIVIL_STATUS_CONCEPT,
+            PrimaryCareConstants.GLOBAL_PROPERTY_PHONE_NUMBER_CONCEPT,
+            PrimaryCareConstants.FATHER_NAME_ATTRIBUTE_TYPE,
+            PrimaryCareConstants.MOTHER_NAME_ATTRIBUTE_TYPE,
+            PrimaryCareConstants.GLOBAL_PROPERTY_EDUCATION_LEVEL_CONCEPT,
+            PrimaryCareConstants.GLOBAL_PROPERTY_PROFESSION_CONCEPT,
+            PrimaryCareConstants.GLOBAL_PROPERTY_RELIGION_CONCEPT,
+            PrimaryCareConstants.GLOBAL_PROPERTY_SPOUSE_NAME_CONCEPT);
+
     private SessionFactory sessionFactory;
     
     public void setSessionFactory(SessionFactory sessionFactory) {
@@ -31,27 +71,48 @@ public class HibernatePrimaryCareDAO implements PrimaryCareDAO {
     	String hql = null;
     	if (search != null & search.length() > 0) {    		
 	    	hql = "select distinct pn.familyName " +
-			"from Patient p, PersonName pn where p = pn.person and pn.familyName like '%" + search + "%'";
+			"from Patient p, PersonName pn where p = pn.person and pn.familyName like :search";
     	}
-    	return this.fetchList(hql);
+    	return this.fetchList(hql, search);
     }
 
     public List<String> getParentsFamilyNamesList(String search,int personAttributeTypeId) {
     	String hql = null;
     	if (search != null & search.length() > 0) {    		
 	    	hql = "select distinct pa.value " +
-			"from PersonAttribute pa, PersonAttributeType pat where pat.personAttributeTypeId = "+personAttributeTypeId+" and pa.value like '%" + search + "%'";
+			"from PersonAttribute pa where pa.attributeType.personAttributeTypeId = " + personAttributeTypeId + " and pa.value like :search";
     	}
-    	return this.fetchList(hql);
+    	return this.fetchList(hql, search);
     }
 
     public List<String> getPatientGivenNamesList(String search) {
     	String hql = null;
     	if (search != null & search.length() > 0) {    		
 	    	hql = "select distinct pn.givenName " +
-			"from Patient p, PersonName pn where p = pn.person and pn.givenName like '%" + search + "%'";
+			"from Patient p, PersonName pn where p = pn.person and pn.givenName like :search";
     	}
-    	return this.fetchList(hql);
+    	return this.fetchList(hql, search);
+    }
+
+    public Map<String, Long> getPatientGivenNameCounts() {
+        return fetchCounts("select pn.givenName, count(pn.personNameId) from Patient p, PersonName pn " +
+                "where p = pn.person and pn.voided = false and pn.givenName is not null group by pn.givenName");
+    }
+
+    public Map<String, Long> getPatientFamilyNameCounts() {
+        return fetchCounts("select pn.familyName, count(pn.personNameId) from Patient p, PersonName pn " +
+                "where p = pn.person and pn.voided = false and pn.familyName is not null group by pn.familyName");
+    }
+
+    public Map<String, Long> getPersonAttributeValueCounts(int personAttributeTypeId) {
+        return fetchCounts("select pa.value, count(pa.personAttributeId) from PersonAttribute pa " +
+                "where pa.attributeType.personAttributeTypeId = " + personAttributeTypeId +
+                " and pa.voided = false and pa.value is not null group by pa.value");
+    }
+
+    public Map<String, Long> getPatientAddress1Counts() {
+        return fetchCounts("select pa.address1, count(pa.personAddressId) from PersonAddress pa " +
+                "where pa.voided = false and pa.address1 is not null group by pa.address1");
     }
  
     
@@ -144,14 +205,430 @@ public class HibernatePrimaryCareDAO implements PrimaryCareDAO {
 		return patients;
     }
     
-    private List<String> fetchList(String hql) {
+    /**
+     * One page of the name search, ranked in the query like rankResults ranks the unpaged search:
+     * patients whose current umudugudu is the searched one first, then patients who ever lived
+     * there, and within each of these patients registered at the user's location first. Only
+     * non-voided addresses count and the current one is the preferred one, as in rankResults.
+     * Ties are broken by patient id so pages are stable.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Patient> getPatients(
+    		String givenName,
+    		String familyName,
+    		String gender,
+    		Float age,
+    		int ageRange,
+    		String address1,
+    		PersonAttributeType healthCenterPat,
+    		Location userLocation,
+    		boolean restrictByHealthCenter,
+    		int firstResult,
+    		int maxResults) {
+        boolean rankByLocation = userLocation != null && healthCenterPat != null;
+        boolean rankByUmudugudu = address1 != null && !address1.equals("");
+        StringBuilder hql = new StringBuilder("select p from Patient p");
+        Map<String, Object> params = appendPatientSearchRestrictions(hql, givenName, familyName, gender, age, ageRange,
+                address1, healthCenterPat, userLocation, restrictByHealthCenter);
+        hql.append(" order by ");
+        // umudugudu is the primary key, as in rankResults
+        if (rankByUmudugudu) {
+            hql.append("case when exists (select cur.personAddressId from PersonAddress cur where cur.person = p and cur.voided = false")
+                    .append(" and cur.preferred = true and lower(cur.address1) = :umudugudu) then 0")
+                    .append(" when exists (select past.personAddressId from PersonAddress past where past.person = p")
+                    .append(" and past.voided = false and lower(past.address1) = :umudugudu) then 1 else 2 end, ");
+            params.put("umudugudu", address1.toLowerCase());
+        }
+        if (rankByLocation) {
+            hql.append("case when exists (select hc.personAttributeId from PersonAttribute hc where hc.person = p and hc.voided = false")
+                    .append(" and hc.attributeType = :healthCenterPat and hc.value = :userLocationId) then 0 else 1 end, ");
+            params.put("healthCenterPat", healthCenterPat);
+            params.put("userLocationId", userLocation.getLocationId().toString());
+        }
+        hql.append("p.patientId");
+
+        Query query = sessionFactory.getCurrentSession().createQuery(hql.toString());
+        setParameters(query, params);
+        query.setFirstResult(Math.max(firstResult, 0));
+        if (maxResults > 0) {
+            query.setMaxResults(maxResults);
+        }
+        return query.list();
+    }
+
+    public Long getPatientCount(
+    		String givenName,
+    		String familyName,
+    		String gender,
+    		Float age,
+    		int ageRange,
+    		String address1,
+    		PersonAttributeType healthCenterPat,
+    		Location userLocation,
+    		boolean restrictByHealthCenter) {
+        StringBuilder hql = new StringBuilder("select count(p.patientId) from Patient p");
+        Map<String, Object> params = appendPatientSearchRestrictions(hql, givenName, familyName, gender, age, ageRange,
+                address1, healthCenterPat, userLocation, restrictByHealthCenter);
+        Query query = sessionFactory.getCurrentSession().createQuery(hql.toString());
+        setParameters(query, params);
+        return ((Number) query.uniqueResult()).longValue();
+    }
+
+    /**
+     * Same restrictions as the Criteria based getPatients, written with exists subqueries so a
+     * patient with several matching names or addresses is returned once
+     *
+     * @return the named parameters used
+     */
+    private Map<String, Object> appendPatientSearchRestrictions(
+    		StringBuilder hql,
+    		String givenName,
+    		String familyName,
+    		String gender,
+    		Float age,
+    		int ageRange,
+    		String address1,
+    		PersonAttributeType healthCenterPat,
+    		Location userLocation,
+    		boolean restrictByHealthCenter) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        hql.append(" where p.voided = false");
+
+        if (age != null && !age.equals(Float.valueOf(0))) {
+            Calendar cal = Calendar.getInstance();
+            cal.add(Calendar.YEAR, -Math.round(age));
+            cal.add(Calendar.YEAR, -ageRange);
+            params.put("minBirthdate", cal.getTime());
+
+            cal = Calendar.getInstance();
+            cal.add(Calendar.YEAR, -Math.round(age));
+            cal.add(Calendar.YEAR, ageRange);
+            params.put("maxBirthdate", cal.getTime());
+            hql.append(" and p.birthdate between :minBirthdate and :maxBirthdate");
+        }
+
+        boolean hasGivenName = givenName != null && !givenName.equals("");
+        boolean hasFamilyName = familyName != null && !familyName.equals("");
+        if (hasGivenName || hasFamilyName) {
+            hql.append(" and exists (select pn.personNameId from PersonName pn where pn.person = p and pn.voided = false");
+            if (hasGivenName) {
+                hql.append(" and (lower(pn.givenName) like :givenName or lower(pn.familyName) like :givenName)");
+                params.put("givenName", "%" + givenName.toLowerCase() + "%");
+            }
+            if (hasFamilyName) {
+                hql.append(" and (lower(pn.givenName) like :familyName or lower(pn.familyName) like :familyName)");
+                params.put("familyName", "%" + familyName.toLowerCase() + "%");
+            }
+            hql.append(")");
+        }
+
+        if (gender != null && !gender.equals("")) {
+            hql.append(" and p.gender = :gender");
+            params.put("gender", gender);
+        }
+
+        if (address1 != null && !address1.equals("")) {
+            hql.append(" and exists (select pa.personAddressId from PersonAddress pa where pa.person = p and pa.voided = false")
+                    .append(" and lower(pa.address1) like :address1)");
+            params.put("address1", "%" + address1.toLowerCase() + "%");
+        }
+
+        //restrict by registered health center
+        if (restrictByHealthCenter && userLocation != null && healthCenterPat != null) {
+            hql.append(" and exists (select hca.personAttributeId from PersonAttribute hca where hca.person = p and hca.voided = false")
+                    .append(" and hca.attributeType = :restrictPat and (hca.value = :restrictLocationId or hca.value is null))");
+            params.put("restrictPat", healthCenterPat);
+            params.put("restrictLocationId", userLocation.getLocationId().toString());
+        }
+        return params;
+    }
+
+    private void setParameters(Query query, Map<String, Object> params) {
+        for (Map.Entry<String, Object> e : params.entrySet()) {
+            query.setParameter(e.getKey(), e.getValue());
+        }
+    }
+
+    public OfflineTransaction saveOfflineTransaction(OfflineTransaction offlineTransaction) {
+        sessionFactory.getCurrentSession().saveOrUpdate(offlineTransaction);
+        return offlineTransaction;
+    }
+
+    /**
+     * Oldest first, so replays reach the Client Registry in the order they were queued
+     */
+    @SuppressWarnings("unchecked")
+    public List<OfflineTransaction> getOfflineTransactionsDue(String status, Date dueBy, int maxResults) {
+        return sessionFactory.getCurrentSession().createCriteria(OfflineTransaction.class)
+                .add(Restrictions.eq("status", status))
+                .add(Restrictions.or(Restrictions.isNull("nextAttempt"), Restrictions.le("nextAttempt", dueBy)))
+                .addOrder(Order.asc("timestamp"))
+                .addOrder(Order.asc("id"))
+                .setMaxResults(maxResults)
+                .list();
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Long> getOfflineTransactionCountsByStatus() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        List<Object[]> rows = sessionFactory.getCurrentSession()
+                .createQuery("select ot.status, count(ot.id) from OfflineTransaction ot group by ot.status")
+                .list();
+        for (Object[] row : rows) {
+            counts.put((String) row[0], ((Number) row[1]).longValue());
+        }
+        return counts;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<OfflineTransaction> getOfflineTransactionsByStatus(String status) {
+        return sessionFactory.getCurrentSession().createCriteria(OfflineTransaction.class)
+                .add(Restrictions.eq("status", status))
+                .addOrder(Order.asc("timestamp"))
+                .addOrder(Order.asc("id"))
+                .list();
+    }
+
+    public void saveReservedIdentifiers(List<ReservedIdentifier> reservedIdentifiers) {
+        for (ReservedIdentifier reservedIdentifier : reservedIdentifiers) {
+            sessionFactory.getCurrentSession().save(reservedIdentifier);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<ReservedIdentifier> getReservedIdentifiers() {
+        return sessionFactory.getCurrentSession().createCriteria(ReservedIdentifier.class)
+                .addOrder(Order.asc("id"))
+                .list();
+    }
+
+    /**
+     * A bulk delete, so two servers or threads removing the same identifier see one row deleted between them
+     */
+    public int deleteReservedIdentifier(String identifier) {
+        return sessionFactory.getCurrentSession()
+                .createQuery("delete from ReservedIdentifier ri where ri.identifier = :identifier")
+                .setParameter("identifier", identifier)
+                .executeUpdate();
+    }
+
+    public ShrMigration getShrMigration(Integer patientId) {
+        return (ShrMigration) sessionFactory.getCurrentSession().createCriteria(ShrMigration.class)
+                .add(Restrictions.eq("patientId", patientId))
+                .uniqueResult();
+    }
+
+    public ShrMigration saveShrMigration(ShrMigration shrMigration) {
+        sessionFactory.getCurrentSession().saveOrUpdate(shrMigration);
+        return shrMigration;
+    }
+
+    /**
+     * Oldest first, so patients registered first are migrated first
+     */
+    @SuppressWarnings("unchecked")
+    public List<ShrMigration> getShrMigrationsDue(String status, Date dueBy, int maxResults) {
+        return sessionFactory.getCurrentSession().createCriteria(ShrMigration.class)
+                .add(Restrictions.eq("status", status))
+                .add(Restrictions.or(Restrictions.isNull("nextAttempt"), Restrictions.le("nextAttempt", dueBy)))
+                .addOrder(Order.asc("id"))
+                .setMaxResults(maxResults)
+                .list();
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Long> getShrMigrationCountsByStatus() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        List<Object[]> rows = sessionFactory.getCurrentSession()
+                .createQuery("select sm.status, count(sm.id) from ShrMigration sm group by sm.status")
+                .list();
+        for (Object[] row : rows) {
+            counts.put((String) row[0], ((Number) row[1]).longValue());
+        }
+        return counts;
+    }
+
+    /**
+     * Builds the search result rows of the given patients with one query per kind of data
+     * (names, identifiers, addresses, attributes, insurance cards) instead of walking each
+     * Patient graph. Patients are returned in the order of the given ids.
+     */
+    @SuppressWarnings("unchecked")
+    public List<PatientPojo> getPatientPojos(List<Integer> patientIds) {
+        List<PatientPojo> results = new ArrayList<PatientPojo>();
+        if (patientIds == null || patientIds.isEmpty()) {
+            return results;
+        }
+        Map<Integer, PatientPojo> byId = new LinkedHashMap<Integer, PatientPojo>();
+        for (Integer patientId : patientIds) {
+            PatientPojo patientPojo = new PatientPojo();
+            patientPojo.setOpenMrsId(String.valueOf(patientId));
+            patientPojo.setNationality("Rwanda");
+            patientPojo.setIdentifiers(new ArrayList<Identifier>());
+            patientPojo.setAddressList(new ArrayList<Address>());
+            byId.put(patientId, patientPojo);
+        }
+        List<Integer> ids = new ArrayList<Integer>(byId.keySet());
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
+
+        for (Object[] row : fetchByPatientIds("select p.patientId, p.gender, p.birthdate, p.dead from Patient p " +
+                "where p.patientId in (:ids)", ids)) {
+            PatientPojo patientPojo = byId.get(row[0]);
+            patientPojo.setGender((String) row[1]);
+            if (row[2] != null) {
+                patientPojo.setDateOfBirth(formatter.format((Date) row[2]));
+            }
+            patientPojo.setCitizenStatus((Boolean) row[3]);
+        }
+
+        // preferred name first, like Person.getPersonName()
+        Set<Integer> named = new HashSet<Integer>();
+        for (Object[] row : fetchByPatientIds("select pn.person.personId, pn.givenName, pn.familyName from PersonName pn " +
+                "where pn.person.personId in (:ids) and pn.voided = false order by pn.preferred desc, pn.personNameId", ids)) {
+            if (named.add((Integer) row[0])) {
+                PatientPojo patientPojo = byId.get(row[0]);
+                patientPojo.setPostNames((String) row[1]);
+                patientPojo.setSurName((String) row[2]);
+            }
+        }
+
+        for (Object[] row : fetchByPatientIds("select pi.patient.patientId, pi.identifierType.patientIdentifierTypeId, pi.identifier " +
+                "from PatientIdentifier pi where pi.patient.patientId in (:ids) and pi.voided = false order by pi.patientIdentifierId", ids)) {
+            String system = IDENTIFIER_SYSTEMS.get(row[1]);
+            if (system != null) {
+                byId.get(row[0]).getIdentifiers().add(new Identifier(system, (String) row[2]));
+            }
+        }
+
+        Map<Integer, List<String>> insuranceCards = getInsuranceCardNumbers(ids);
+        for (Map.Entry<Integer, PatientPojo> e : byId.entrySet()) {
+            List<String> cards = insuranceCards.get(e.getKey());
+            if (cards == null || cards.isEmpty()) {
+                e.getValue().getIdentifiers().add(new Identifier("INSURANCE_POLICY_NUMBER", ""));
+            } else {
+                for (String card : cards) {
+                    e.getValue().getIdentifiers().add(new Identifier("INSURANCE_POLICY_NUMBER", card));
+                }
+            }
+        }
+
+        for (Object[] row : fetchByPatientIds("select pa.person.personId, pa.personAddressId, pa.address15, pa.address1, " +
+                "pa.postalCode, pa.cityVillage, pa.countyDistrict, pa.stateProvince, pa.country, pa.address3, pa.address2 " +
+                "from PersonAddress pa where pa.person.personId in (:ids) and pa.voided = false order by pa.personAddressId", ids)) {
+            Address address = new Address();
+            address.setAddressId(String.valueOf(row[1]));
+            address.setType((String) row[2]);
+            address.setText((String) row[3]);
+            address.setPostalCode((String) row[4]);
+            address.setCity((String) row[5]);
+            address.setDistrict((String) row[6]);
+            address.setState((String) row[7]);
+            address.setCountry((String) row[8]);
+            address.setCell((String) row[9]);
+            address.setSector((String) row[10]);
+            byId.get(row[0]).getAddressList().add(address);
+        }
+
+        // first active value of each attribute type, like Person.getAttribute(String)
+        Set<String> seenAttributes = new HashSet<String>();
+        Query attributeQuery = sessionFactory.getCurrentSession().createQuery("select pa.person.personId, pa.attributeType.name, pa.value " +
+                "from PersonAttribute pa where pa.person.personId in (:ids) and pa.voided = false " +
+                "and pa.attributeType.name in (:names) order by pa.personAttributeId");
+        attributeQuery.setParameterList("names", PATIENT_POJO_ATTRIBUTES);
+        for (Object[] row : fetchByPatientIds(attributeQuery, ids)) {
+            if (seenAttributes.add(row[0] + "|" + row[1])) {
+                setAttribute(byId.get(row[0]), (String) row[1], (String) row[2]);
+            }
+        }
+
+        results.addAll(byId.values());
+        return results;
+    }
+
+    /**
+     * Insurance card numbers per patient, read from the mohbilling tables. Returns an empty map if
+     * they cannot be read, so the search still works without billing data.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Integer, List<String>> getInsuranceCardNumbers(List<Integer> patientIds) {
+        Map<Integer, List<String>> cards = new HashMap<Integer, List<String>>();
+        try {
+            for (Object[] row : fetchByPatientIds("select ip.owner.patientId, ip.insuranceCardNo from InsurancePolicy ip " +
+                    "where ip.owner.patientId in (:ids) order by ip.insurancePolicyId", patientIds)) {
+                List<String> patientCards = cards.get(row[0]);
+                if (patientCards == null) {
+                    patientCards = new ArrayList<String>();
+                    cards.put((Integer) row[0], patientCards);
+                }
+                patientCards.add((String) row[1]);
+            }
+        } catch (Exception e) {
+            log.error("Could not load insurance policies: " + e.getMessage());
+        }
+        return cards;
+    }
+
+    private void setAttribute(PatientPojo patientPojo, String attributeTypeName, String value) {
+        if (PrimaryCareConstants.GLOBAL_PROPERTY_CIVIL_STATUS_CONCEPT.equals(attributeTypeName)) {
+            patientPojo.setMaritalStatus(value);
+        } else if (PrimaryCareConstants.GLOBAL_PROPERTY_PHONE_NUMBER_CONCEPT.equals(attributeTypeName)) {
+            patientPojo.setPhoneNumber(value);
+        } else if (PrimaryCareConstants.FATHER_NAME_ATTRIBUTE_TYPE.equals(attributeTypeName)) {
+            patientPojo.setFatherName(value);
+        } else if (PrimaryCareConstants.MOTHER_NAME_ATTRIBUTE_TYPE.equals(attributeTypeName)) {
+            patientPojo.setMotherName(value);
+        } else if (PrimaryCareConstants.GLOBAL_PROPERTY_EDUCATION_LEVEL_CONCEPT.equals(attributeTypeName)) {
+            patientPojo.setEducationalLevel(value);
+        } else if (PrimaryCareConstants.GLOBAL_PROPERTY_PROFESSION_CONCEPT.equals(attributeTypeName)) {
+            patientPojo.setProfession(value);
+        } else if (PrimaryCareConstants.GLOBAL_PROPERTY_RELIGION_CONCEPT.equals(attributeTypeName)) {
+            patientPojo.setReligion(value);
+        } else if (PrimaryCareConstants.GLOBAL_PROPERTY_SPOUSE_NAME_CONCEPT.equals(attributeTypeName)) {
+            patientPojo.setSpouse(value);
+        }
+    }
+
+    private List<Object[]> fetchByPatientIds(String hql, List<Integer> patientIds) {
+        return fetchByPatientIds(sessionFactory.getCurrentSession().createQuery(hql), patientIds);
+    }
+
+    /**
+     * Runs the query once per chunk of ids, keeping "in" lists within database limits
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object[]> fetchByPatientIds(Query query, List<Integer> patientIds) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int from = 0; from < patientIds.size(); from += MAX_IN_LIST_SIZE) {
+            List<Integer> chunk = patientIds.subList(from, Math.min(from + MAX_IN_LIST_SIZE, patientIds.size()));
+            query.setParameterList("ids", chunk);
+            rows.addAll(query.list());
+        }
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> fetchList(String hql, String search) {
     	List<String> rows = new ArrayList<String>();
     	if (hql != null && hql.length() > 0) {
 			Query q = sessionFactory.getCurrentSession().createQuery(hql);
+			q.setString("search", "%" + search + "%");
 			rows = q.list();
     	}
 		return rows;
     }
+
+    /**
+     * Runs a "select value, count(...) ... group by value" query
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Long> fetchCounts(String hql) {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        List<Object[]> rows = sessionFactory.getCurrentSession().createQuery(hql).list();
+        for (Object[] row : rows) {
+            counts.put((String) row[0], ((Number) row[1]).longValue());
+        }
+        return counts;
+    }
     
     
     
@@ -159,9 +636,9 @@ public class HibernatePrimaryCareDAO implements PrimaryCareDAO {
     String hql = null;
     if (search != null & search.length() > 0) {         
         hql = "select distinct pa.address1 " +
-        "from Person p, PersonAddress pa where p = pa.person and pa.address1 like '%" + search + "%'";
+        "from Person p, PersonAddress pa where p = pa.person and pa.address1 like :search";
     }
-    return this.fetchList(hql);     
+    return this.fetchList(hql, search);     
   }
 //  
 //  //TODO: fix this when you get the mappings from address hierarchy && lookup options for umudugudu
@@ -0,0 +1,333 @@
+package org.openmrs.module.rwandaprimarycare.identifier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareBusinessLogic;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareUserContext;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareUtil;
+import org.openmrs.module.rwandaprimarycare.pojos.ReservedIdentifier;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Primary identifiers generated ahead of time, per health center prefix (FOSA code).
+ *
+ * Asking idgen for one identifier at a time serializes every registration on the sequence row of
+ * the identifier source. The pool instead reserves blocks of primaryCare.identifierPool.blockSize
+ * identifiers and hands them out from memory. When fewer than primaryCare.identifierPool.lowWaterMark
+ * are left the next block is reserved in a daemon thread. Reserved identifiers are also stored in
+ * rwandaprimarycare_reserved_identifier and reloaded at startup, so none are lost on restart; the
+ * row is deleted when the identifier is handed out.
+ *
+ * The prefix comes from the location of the user, so each FOSA code has its own pool, filled with
+ * getPrimaryCareLocationCode forced to that code. An empty pool falls back to generating the
+ * identifier directly.
+ */
+@Component("rwandaprimarycare.primaryIdentifierPool")
+public class PrimaryIdentifierPool {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	private static final int DEFAULT_BLOCK_SIZE = 50;
+
+	private static final int DEFAULT_LOW_WATER_MARK = 10;
+
+	private static volatile DaemonToken daemonToken;
+
+	private final ConcurrentMap<String, LocationPool> pools = new ConcurrentHashMap<String, LocationPool>();
+
+	private final AtomicLong discarded = new AtomicLong();
+
+	private volatile boolean started;
+
+	/**
+	 * @return the Spring-managed instance of this pool
+	 */
+	public static PrimaryIdentifierPool getInstance() {
+		return Context.getRegisteredComponent("rwandaprimarycare.primaryIdentifierPool", PrimaryIdentifierPool.class);
+	}
+
+	/**
+	 * @param token the token the module activator receives, to refill the pools in daemon threads
+	 */
+	public static void setDaemonToken(DaemonToken token) {
+		daemonToken = token;
+	}
+
+	/**
+	 * Loads the identifiers reserved before the last shutdown. Those generated by another identifier
+	 * source than the current one are discarded.
+	 */
+	public synchronized void start() {
+		if (started) {
+			return;
+		}
+		Integer sourceId;
+		try {
+			sourceId = PrimaryCareUtil.getPrimaryIdentifierTypeSource().getId();
+		} catch (RuntimeException e) {
+			log.warn("No identifier source for the primary identifier type, identifier pool not started: " + e.getMessage());
+			return;
+		}
+		int loaded = 0;
+		for (ReservedIdentifier reserved : PrimaryCareBusinessLogic.getService().getReservedIdentifiers()) {
+			if (!sourceId.equals(reserved.getIdentifierSourceId())) {
+				PrimaryCareBusinessLogic.getService().deleteReservedIdentifier(reserved.getIdentifier());
+				discarded.incrementAndGet();
+				continue;
+			}
+			LocationPool pool = getPool(reserved.getLocationCode());
+			pool.sourceId = sourceId;
+			pool.identifiers.add(reserved.getIdentifier());
+			pool.depth.incrementAndGet();
+			loaded++;
+		}
+		started = true;
+		log.info("Identifier pool started with " + loaded + " reserved identifier(s) for " + pools.size() + " location(s)");
+		int blockSize = getBlockSize();
+		for (LocationPool pool : pools.values()) {
+			refillIfLow(pool, blockSize);
+		}
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		// the reservations stay in the database for the next start
+		started = false;
+		pools.clear();
+	}
+
+	/**
+	 * @return a new primary identifier with the prefix of the location of the user
+	 */
+	public String take() {
+		int blockSize = getBlockSize();
+		if (!started || blockSize <= 0) {
+			return generate();
+		}
+		LocationPool pool = getPool(PrimaryCareUtil.getPrimaryCareLocationCode());
+		String identifier;
+		while ((identifier = pool.identifiers.poll()) != null) {
+			pool.depth.decrementAndGet();
+			// the delete decides who owns the identifier, should it have been handed out already
+			if (PrimaryCareBusinessLogic.getService().deleteReservedIdentifier(identifier)) {
+				break;
+			}
+		}
+		refillIfLow(pool, blockSize);
+		if (identifier == null) {
+			pool.misses.incrementAndGet();
+			return generate();
+		}
+		pool.handedOut.incrementAndGet();
+		return identifier;
+	}
+
+	/**
+	 * Generates identifiers for a location, bypassing the pool, in a daemon thread with an OpenMRS
+	 * session of its own, so what idgen loads and logs for them never piles up in the session of the
+	 * caller. Runs in the calling thread if the module has not received its daemon token.
+	 *
+	 * @param locationCode FOSA code the identifiers are generated for
+	 * @param quantity number of identifiers to generate
+	 * @return the generated identifiers
+	 */
+	public List<String> generateInOwnSession(final String locationCode, final int quantity) throws Exception {
+		final Callable<List<String>> generation = new Callable<List<String>>() {
+
+			@Override
+			public List<String> call() {
+				return PrimaryCareBusinessLogic.getNewPrimaryIdentifiers(quantity);
+			}
+		};
+		DaemonToken token = daemonToken;
+		if (token == null) {
+			return PrimaryCareUserContext.callWithLocationCode(locationCode, generation);
+		}
+		final AtomicReference<List<String>> generated = new AtomicReference<List<String>>();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread thread = Daemon.runInDaemonThread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					generated.set(PrimaryCareUserContext.callWithLocationCode(locationCode, generation));
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			}
+		}, token);
+		thread.join();
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		if (generated.get() == null) {
+			throw new IllegalStateException("Identifier generation for location code " + locationCode + " did not complete");
+		}
+		return generated.get();
+	}
+
+	/**
+	 * @return depth and statistics of the pool of each location, for monitoring
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("started", started);
+		status.put("blockSize", getBlockSize());
+		status.put("lowWaterMark", getLowWaterMark());
+		status.put("discarded", discarded.get());
+		Map<String, Object> locations = new TreeMap<String, Object>();
+		for (LocationPool pool : pools.values()) {
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			stats.put("depth", pool.depth.get());
+			stats.put("handedOut", pool.handedOut.get());
+			stats.put("misses", pool.misses.get());
+			stats.put("refills", pool.refills.get());
+			stats.put("refilling", pool.refilling.get());
+			stats.put("lastRefill", pool.lastRefill);
+			stats.put("lastError", pool.lastError);
+			locations.put(pool.locationCode, stats);
+		}
+		status.put("locations", locations);
+		return status;
+	}
+
+	private String generate() {
+		return PrimaryCareBusinessLogic.getNewPrimaryIdentifiers(1).get(0);
+	}
+
+	private LocationPool getPool(String locationCode) {
+		LocationPool pool = pools.get(locationCode);
+		if (pool == null) {
+			LocationPool created = new LocationPool(locationCode);
+			pool = pools.putIfAbsent(locationCode, created);
+			if (pool == null) {
+				pool = created;
+			}
+		}
+		return pool;
+	}
+
+	private void refillIfLow(final LocationPool pool, final int blockSize) {
+		if (pool.depth.get() >= getLowWaterMark() || !pool.refilling.compareAndSet(false, true)) {
+			return;
+		}
+		Runnable refill = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					refill(pool, blockSize);
+					pool.lastError = null;
+				} catch (Throwable t) {
+					pool.lastError = t.getClass().getSimpleName() + ": " + t.getMessage();
+					log.error("Could not reserve identifiers for location code " + pool.locationCode, t);
+				} finally {
+					pool.refilling.set(false);
+				}
+			}
+		};
+		DaemonToken token = daemonToken;
+		if (token != null) {
+			Daemon.runInDaemonThread(refill, token);
+		} else {
+			refill.run();
+		}
+	}
+
+	private void refill(LocationPool pool, final int blockSize) throws Exception {
+		final IdentifierSource source = PrimaryCareUtil.getPrimaryIdentifierTypeSource();
+		if (pool.sourceId != null && !pool.sourceId.equals(source.getId())) {
+			// the primary identifier type changed, the reserved identifiers belong to the old one
+			String old;
+			while ((old = pool.identifiers.poll()) != null) {
+				pool.depth.decrementAndGet();
+				PrimaryCareBusinessLogic.getService().deleteReservedIdentifier(old);
+				discarded.incrementAndGet();
+			}
+		}
+		pool.sourceId = source.getId();
+
+		List<String> generated = PrimaryCareUserContext.callWithLocationCode(pool.locationCode, new Callable<List<String>>() {
+
+			@Override
+			public List<String> call() {
+				return Context.getService(IdentifierSourceService.class).generateIdentifiers(source, blockSize,
+						"reg module identifier pool");
+			}
+		});
+		List<ReservedIdentifier> reserved = new ArrayList<ReservedIdentifier>(generated.size());
+		for (String identifier : generated) {
+			reserved.add(new ReservedIdentifier(identifier, pool.locationCode, source.getId()));
+		}
+		PrimaryCareBusinessLogic.getService().saveReservedIdentifiers(reserved);
+		pool.identifiers.addAll(generated);
+		pool.depth.addAndGet(generated.size());
+		pool.refills.incrementAndGet();
+		pool.lastRefill = new Date();
+		log.debug("Reserved " + generated.size() + " identifiers for location code " + pool.locationCode);
+	}
+
+	private int getBlockSize() {
+		return PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_IDENTIFIER_POOL_BLOCK_SIZE,
+				DEFAULT_BLOCK_SIZE);
+	}
+
+	private int getLowWaterMark() {
+		return PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_IDENTIFIER_POOL_LOW_WATER_MARK,
+				DEFAULT_LOW_WATER_MARK);
+	}
+
+	/**
+	 * Identifiers reserved for one FOSA code
+	 */
+	private static class LocationPool {
+
+		private final String locationCode;
+
+		private final ConcurrentLinkedQueue<String> identifiers = new ConcurrentLinkedQueue<String>();
+
+		// ConcurrentLinkedQueue.size() walks the queue
+		private final AtomicInteger depth = new AtomicInteger();
+
+		private final AtomicBoolean refilling = new AtomicBoolean();
+
+		private final AtomicLong handedOut = new AtomicLong();
+
+		private final AtomicLong misses = new AtomicLong();
+
+		private final AtomicLong refills = new AtomicLong();
+
+		private volatile Integer sourceId;
+
+		private volatile Date lastRefill;
+
+		private volatile String lastError;
+
+		LocationPool(String locationCode) {
+			this.locationCode = locationCode;
+		}
+	}
+}
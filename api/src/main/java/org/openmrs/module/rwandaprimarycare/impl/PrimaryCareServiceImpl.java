@@ -1,7 +1,12 @@
 package org.openmrs.module.rwandaprimarycare.impl;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -11,12 +16,19 @@ import org.openmrs.PersonAttributeType;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.util.PrivilegeConstants;
-import org.openmrs.module.addresshierarchy.AddressHierarchyEntry;
-import org.openmrs.module.addresshierarchy.service.AddressHierarchyService;
 import org.openmrs.module.rwandaprimarycare.PrimaryCareBusinessLogic;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
 import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
 import org.openmrs.module.rwandaprimarycare.PrimaryCareService;
+import org.openmrs.module.rwandaprimarycare.address.AddressHierarchyIndex;
+import org.openmrs.module.rwandaprimarycare.address.AddressHierarchyTree.Node;
+import org.openmrs.module.rwandaprimarycare.constants.AppConstants;
 import org.openmrs.module.rwandaprimarycare.db.PrimaryCareDAO;
+import org.openmrs.module.rwandaprimarycare.pojos.OfflineTransaction;
+import org.openmrs.module.rwandaprimarycare.pojos.ReservedIdentifier;
+import org.openmrs.module.rwandaprimarycare.pojos.ShrMigration;
+import org.openmrs.module.rwandaprimarycare.pojos.patient.PatientPojo;
+import org.openmrs.module.rwandaprimarycare.search.PatientSuggestionIndex;
 
 public class PrimaryCareServiceImpl extends BaseOpenmrsService implements PrimaryCareService {
 
@@ -37,9 +49,13 @@ public class PrimaryCareServiceImpl extends BaseOpenmrsService implements Primar
      */
     public List<String>  getPatientSearchList(String search, PatientSearchType searchType, Integer previousId) {
         
-        AddressHierarchyService ahs = Context.getService(AddressHierarchyService.class);
-        
     	List<String> results = null;
+    	if (searchType != PatientSearchType.UMUDUGUDU || previousId == null) {
+    	    //answered from memory once the suggestion index is loaded
+    	    results = PatientSuggestionIndex.getInstance().suggest(search, searchType);
+    	    if (results != null)
+    	        return results;
+    	}
     	if (searchType == PatientSearchType.FANAME){
     		results = dao.getPatientGivenNamesList(search); //FANAME = given_name
     	} else if (searchType == PatientSearchType.RWNAME) {
@@ -53,23 +69,20 @@ public class PrimaryCareServiceImpl extends BaseOpenmrsService implements Primar
     		PersonAttributeType fatherNameAttributeType = Context.getPersonService().getPersonAttributeTypeByName(PrimaryCareConstants.FATHER_NAME_ATTRIBUTE_TYPE);
     		results.addAll(dao.getParentsFamilyNamesList(search,fatherNameAttributeType.getPersonAttributeTypeId()));
     	} else if (searchType == PatientSearchType.COUNTRY){
-    	    List<AddressHierarchyEntry> aList = ahs.getTopOfHierarchyList();
-    	    if (aList != null && aList.size() > 0)
+    	    List<Node> aList = AddressHierarchyIndex.getInstance().getTree().getChildren(null);
+    	    if (aList.size() > 0)
     	        results = new ArrayList<String>();
-    	    for (AddressHierarchyEntry a : aList){
-    	        if (a != null && (a.getLocationName().toLowerCase().contains(search.toLowerCase()) || search.equals("")))
-    	            results.add(a.getAddressHierarchyEntryId() + "|" + a.getLocationName());   
+    	    for (Node a : aList){
+    	        if (a.nameContains(search))
+    	            results.add(a.getId() + "|" + a.getName());
     	    }
-    	} else if (searchType == PatientSearchType.PROVINCE){
-    	    results = addressHierarchyListtoStringList(ahs.getNextComponent(previousId), search);
-    	} else if (searchType == PatientSearchType.DISTRICT){
-            results = addressHierarchyListtoStringList(ahs.getNextComponent(previousId), search);
-        } else if (searchType == PatientSearchType.SECTOR){
-            results = addressHierarchyListtoStringList(ahs.getNextComponent(previousId), search);
-        } else if (searchType == PatientSearchType.CELL){
-            results = addressHierarchyListtoStringList(ahs.getNextComponent(previousId), search);
-        } else if (searchType == PatientSearchType.UMUDUGUDU){
-            results = addressHierarchyListtoStringList(ahs.getNextComponent(previousId), search);
+    	} else if (searchType == PatientSearchType.PROVINCE || searchType == PatientSearchType.DISTRICT
+    	        || searchType == PatientSearchType.SECTOR || searchType == PatientSearchType.CELL
+    	        || searchType == PatientSearchType.UMUDUGUDU){
+    	    //children of the entry picked at the level above, answered from the address hierarchy tree
+    	    List<Node> children = previousId != null ? AddressHierarchyIndex.getInstance().getTree().getChildren(previousId)
+    	            : Collections.<Node>emptyList();
+    	    results = addressHierarchyListtoStringList(children, search);
         }
     	
     	return results;
@@ -77,6 +90,30 @@ public class PrimaryCareServiceImpl extends BaseOpenmrsService implements Primar
     }
     
     
+    public Map<String, Long> getSuggestionValueCounts(PatientSuggestionIndex.Field field) {
+        switch (field) {
+            case GIVEN_NAME:
+                return dao.getPatientGivenNameCounts();
+            case FAMILY_NAME:
+                return dao.getPatientFamilyNameCounts();
+            case MOTHER_NAME:
+                return getAttributeValueCounts(PrimaryCareConstants.MOTHER_NAME_ATTRIBUTE_TYPE);
+            case FATHER_NAME:
+                return getAttributeValueCounts(PrimaryCareConstants.FATHER_NAME_ATTRIBUTE_TYPE);
+            case ADDRESS1:
+                return dao.getPatientAddress1Counts();
+            default:
+                return new HashMap<String, Long>();
+        }
+    }
+
+    private Map<String, Long> getAttributeValueCounts(String attributeTypeName) {
+        PersonAttributeType attributeType = Context.getPersonService().getPersonAttributeTypeByName(attributeTypeName);
+        if (attributeType == null)
+            return new HashMap<String, Long>();
+        return dao.getPersonAttributeValueCounts(attributeType.getPersonAttributeTypeId());
+    }
+    
     //TODO: only include patients who's health center is the location in the session (at hibernate level)
     // include mothers'name or father's name?
     
@@ -102,12 +139,8 @@ public class PrimaryCareServiceImpl extends BaseOpenmrsService implements Primar
     	
     	//for now pull range from hard-coded values
     	int range = PrimaryCareConstants.ageRange; //currently set to 10
-    	String restrictByHealthCenter = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_RESTRICT_BY_HEALTH_CENTER);
-    	if (restrictByHealthCenter == null || restrictByHealthCenter.equals(""))
-    	    throw new RuntimeException("Please set the value for the global property registration.restrictSearchByHealthCenter");
-    	List<Patient> ret = dao.getPatients(frenchEnglishName, rwandanName, gender, age, range, umudugudu, healthCenterPat, userLocation, Boolean.valueOf(restrictByHealthCenter));
-    	PrimaryCareBusinessLogic.sortResultsForUser(ret, userLocation);
-    	PrimaryCareBusinessLogic.sortResultsForUmudugudu(ret, umudugudu);
+    	List<Patient> ret = dao.getPatients(frenchEnglishName, rwandanName, gender, age, range, umudugudu, healthCenterPat, userLocation, isRestrictByHealthCenter());
+    	PrimaryCareBusinessLogic.rankResults(ret, userLocation, umudugudu);
     	
     	
 
@@ -140,13 +173,46 @@ public class PrimaryCareServiceImpl extends BaseOpenmrsService implements Primar
     	return ret;
     }
     
+    public List<Patient> getPatients(
+    		String frenchEnglishName,
+    		String rwandanName,
+    		String gender,
+    		Float age,
+    		String umudugudu,
+    		PersonAttributeType healthCenterPat,
+    		Location userLocation,
+    		int firstResult,
+    		int maxResults) {
+        return dao.getPatients(frenchEnglishName, rwandanName, gender, age, PrimaryCareConstants.ageRange, umudugudu,
+                healthCenterPat, userLocation, isRestrictByHealthCenter(), firstResult, maxResults);
+    }
+
+    public Long getPatientCount(
+    		String frenchEnglishName,
+    		String rwandanName,
+    		String gender,
+    		Float age,
+    		String umudugudu,
+    		PersonAttributeType healthCenterPat,
+    		Location userLocation) {
+        return dao.getPatientCount(frenchEnglishName, rwandanName, gender, age, PrimaryCareConstants.ageRange, umudugudu,
+                healthCenterPat, userLocation, isRestrictByHealthCenter());
+    }
+
+    private boolean isRestrictByHealthCenter() {
+        Boolean restrictByHealthCenter = PrimaryCareConfig.get().getRestrictSearchByHealthCenter();
+        if (restrictByHealthCenter == null)
+            throw new RuntimeException("Please set the value for the global property registration.restrictSearchByHealthCenter");
+        return restrictByHealthCenter;
+    }
+    
     //TODO:   fill in cells of the hierarchy based on umudugudu??
-    private List<String> addressHierarchyListtoStringList(List<AddressHierarchyEntry> ahList, String search){
+    private List<String> addressHierarchyListtoStringList(List<Node> ahList, String search){
             List<String> stList = new ArrayList<String>();
-            for (AddressHierarchyEntry ah : ahList){
-                if (ah != null && ah.getLocationName() != null && (search.equals("") || ah.getLocationName().toLowerCase().contains(search.toLowerCase()))){
+            for (Node ah : ahList){
+                if (ah.nameContains(search)){
                     //we need to parse out address hierarchy ID before display, and set as javascript var on page.
-                    stList.add(ah.getAddressHierarchyEntryId()+ "|" + ah.getLocationName());
+                    stList.add(ah.getId()+ "|" + ah.getName());
                 }    
             }
             if (stList.size() == 0)
@@ -156,13 +222,80 @@ public class PrimaryCareServiceImpl extends BaseOpenmrsService implements Primar
             return stList;
     }
 
+    public List<PatientPojo> getPatientPojos(List<Integer> patientIds) {
+        return dao.getPatientPojos(patientIds);
+    }
+
     /**
      * Save offline transaction for later synchronization
      */
-    public void saveOfflineTransaction(Object offlineTransaction) {
-        // TODO: Implement offline transaction persistence
-        // This would typically save to database for later sync
-        log.warn("saveOfflineTransaction called but not yet implemented - transaction will not be saved");
+    public OfflineTransaction saveOfflineTransaction(OfflineTransaction offlineTransaction) {
+        if (offlineTransaction.getUuid() == null)
+            offlineTransaction.setUuid(UUID.randomUUID().toString());
+        if (offlineTransaction.getTimestamp() == null)
+            offlineTransaction.setTimestamp(new Date());
+        if (offlineTransaction.getRetryCount() == null)
+            offlineTransaction.setRetryCount(0);
+        if (offlineTransaction.getIsUpdated() == null)
+            offlineTransaction.setIsUpdated(0);
+        if (offlineTransaction.getStatus() == null)
+            offlineTransaction.setStatus(AppConstants.PENDING_STATUS);
+        return dao.saveOfflineTransaction(offlineTransaction);
+    }
+
+    public List<OfflineTransaction> getOfflineTransactionsDueForSync(int maxResults) {
+        return dao.getOfflineTransactionsDue(AppConstants.PENDING_STATUS, new Date(), maxResults);
+    }
+
+    public Map<String, Long> getOfflineTransactionCountsByStatus() {
+        return dao.getOfflineTransactionCountsByStatus();
+    }
+
+    public List<OfflineTransaction> getOfflineTransactionsHeld() {
+        return dao.getOfflineTransactionsByStatus(AppConstants.HELD_STATUS);
+    }
+
+    public void saveReservedIdentifiers(List<ReservedIdentifier> reservedIdentifiers) {
+        dao.saveReservedIdentifiers(reservedIdentifiers);
+    }
+
+    public List<ReservedIdentifier> getReservedIdentifiers() {
+        return dao.getReservedIdentifiers();
+    }
+
+    public boolean deleteReservedIdentifier(String identifier) {
+        return dao.deleteReservedIdentifier(identifier) > 0;
+    }
+
+    public ShrMigration queueShrMigration(Integer patientId) {
+        ShrMigration migration = dao.getShrMigration(patientId);
+        if (migration == null) {
+            migration = new ShrMigration(patientId);
+        } else if (AppConstants.PENDING_STATUS.equals(migration.getStatus())) {
+            return migration;
+        }
+        migration.setStatus(AppConstants.PENDING_STATUS);
+        migration.setAttempts(0);
+        migration.setNextAttempt(null);
+        migration.setLastError(null);
+        migration.setDateCompleted(null);
+        return dao.saveShrMigration(migration);
+    }
+
+    public ShrMigration getShrMigration(Integer patientId) {
+        return dao.getShrMigration(patientId);
+    }
+
+    public ShrMigration saveShrMigration(ShrMigration shrMigration) {
+        return dao.saveShrMigration(shrMigration);
+    }
+
+    public List<ShrMigration> getShrMigrationsDue(int maxResults) {
+        return dao.getShrMigrationsDue(AppConstants.PENDING_STATUS, new Date(), maxResults);
+    }
+
+    public Map<String, Long> getShrMigrationCountsByStatus() {
+        return dao.getShrMigrationCountsByStatus();
     }
 
     /**
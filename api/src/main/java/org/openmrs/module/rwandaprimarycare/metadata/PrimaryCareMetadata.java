@@ -0,0 +1,349 @@
+package org.openmrs.module.rwandaprimarycare.metadata;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.RelationshipType;
+import org.openmrs.VisitType;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the metadata the module uses on every vitals, diagnosis and registration page:
+ * concepts, encounter types, the outpatient visit type, identifier types and the parent relationship type.
+ *
+ * Each {@link Item} is resolved once, from its global property or its fixed name / uuid, to the
+ * id of the object; later lookups load the object by id, which Hibernate serves from its caches.
+ * A resolution failure is remembered too, so a misconfigured item fails with the same clear
+ * message every time without hitting the database again.
+ *
+ * An item named by a global property remembers the value it was resolved from and is resolved
+ * again as soon as {@link PrimaryCareConfig} holds another value. All items are dropped when a
+ * concept, encounter type, visit type, identifier type or relationship type is saved
+ * (see {@link PrimaryCareMetadataAdvice}) and resolved again on next use.
+ *
+ * {@link #resolveAll()} resolves every item at once. The module calls it on startup and logs
+ * every misconfigured item; it only refuses to start when primaryCare.metadata.failFast is true.
+ */
+@Component("rwandaprimarycare.primaryCareMetadata")
+public class PrimaryCareMetadata {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	private enum Kind {
+		CONCEPT, ENCOUNTER_TYPE, VISIT_TYPE, IDENTIFIER_TYPE, IDENTIFIER_TYPES, RELATIONSHIP_TYPE
+	}
+
+	public enum Item {
+		REGISTRATION_ENCOUNTER_TYPE(Kind.ENCOUNTER_TYPE, null, "Registration"),
+		VITALS_ENCOUNTER_TYPE(Kind.ENCOUNTER_TYPE, null, "Vitals"),
+		OUTPATIENT_VISIT_TYPE(Kind.VISIT_TYPE, null, "3515b588-b1df-4110-991b-0d603686d8e6"),
+		WEIGHT_CONCEPT(Kind.CONCEPT, "concept.weight", null),
+		HEIGHT_CONCEPT(Kind.CONCEPT, "concept.height", null),
+		TEMPERATURE_CONCEPT(Kind.CONCEPT, "concept.temperature", null),
+		BMI_CONCEPT(Kind.CONCEPT, "concept.bmi", null),
+		SYSTOLIC_BLOOD_PRESSURE_CONCEPT(Kind.CONCEPT, "registration.concept.SYSTOLICBLOODPRESSURE", null),
+		DIASTOLIC_BLOOD_PRESSURE_CONCEPT(Kind.CONCEPT, "registration.concept.DIASTOLICBLOODPRESSURE", null),
+		PULSE_CONCEPT(Kind.CONCEPT, "registration.concept.PULSE", null),
+		RESPIRATORY_RATE_CONCEPT(Kind.CONCEPT, "registration.concept.RESPIRATORYRATE", null),
+		BLOOD_OXYGEN_SATURATION_CONCEPT(Kind.CONCEPT, "registration.concept.BloodOxygenSaturation", null),
+		TREATMENT_PLAN_OTHER_CONCEPT(Kind.CONCEPT, "registration.concept.TREATMENTPLANOTHER", null),
+		CLINICAL_IMPRESSION_COMMENTS_CONCEPT(Kind.CONCEPT, "registration.concept.CLINICALIMPRESSIONCOMMENTS", null),
+		DIAGNOSIS_NON_CODED_CONCEPT(Kind.CONCEPT, "concept.diagnosisNonCoded", null),
+		PRIMARY_IDENTIFIER_TYPE(Kind.IDENTIFIER_TYPE, PrimaryCareConstants.GLOBAL_PROPERTY_PRIMARY_IDENTIFIER_TYPE, null),
+		OTHER_IDENTIFIER_TYPES(Kind.IDENTIFIER_TYPES, PrimaryCareConstants.GLOBAL_PROPERTY_OTHER_IDENTIFIER_TYPES, null),
+		PARENT_RELATIONSHIP_TYPE(Kind.RELATIONSHIP_TYPE, PrimaryCareConstants.GLOBAL_PROPERTY_PARENT_TO_CHILD_RELATIONSHIP_TYPE, null);
+
+		private final Kind kind;
+
+		private final String globalProperty;
+
+		private final String reference;
+
+		Item(Kind kind, String globalProperty, String reference) {
+			this.kind = kind;
+			this.globalProperty = globalProperty;
+			this.reference = reference;
+		}
+
+		/**
+		 * @return the global property naming this item, or null if the item has a fixed name or uuid
+		 */
+		public String getGlobalProperty() {
+			return globalProperty;
+		}
+	}
+
+	private final Map<Item, Resolved> resolved = new ConcurrentHashMap<Item, Resolved>();
+
+	// bumped on every invalidation, so a resolution that raced with it is not kept
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong resolutions = new AtomicLong();
+
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @return the Spring-managed instance of this registry
+	 */
+	public static PrimaryCareMetadata getInstance() {
+		return Context.getRegisteredComponent("rwandaprimarycare.primaryCareMetadata", PrimaryCareMetadata.class);
+	}
+
+	/**
+	 * Resolves every item
+	 *
+	 * @throws APIException listing every misconfigured item, if primaryCare.metadata.failFast is true
+	 */
+	public synchronized void start() {
+		Map<Item, String> errors = resolveAll();
+		if (errors.isEmpty()) {
+			log.info("Resolved " + Item.values().length + " metadata items");
+			return;
+		}
+		StringBuilder message = new StringBuilder("The Rwanda primary care metadata is not configured correctly:");
+		for (String error : errors.values()) {
+			message.append("\n - ").append(error);
+		}
+		if ("true".equalsIgnoreCase(PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_METADATA_FAIL_FAST))) {
+			throw new APIException(message.toString());
+		}
+		log.error(message);
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		invalidateAll();
+	}
+
+	/**
+	 * Resolves every item that is not resolved yet
+	 *
+	 * @return the error message of each item that cannot be resolved, empty if all are fine
+	 */
+	public Map<Item, String> resolveAll() {
+		Map<Item, String> errors = new LinkedHashMap<Item, String>();
+		for (Item item : Item.values()) {
+			Resolved r = resolve(item);
+			if (r.error != null) {
+				errors.put(item, r.error);
+			}
+		}
+		return errors;
+	}
+
+	public Concept getConcept(Item item) {
+		return Context.getConceptService().getConcept(getId(item, Kind.CONCEPT));
+	}
+
+	public EncounterType getEncounterType(Item item) {
+		return Context.getEncounterService().getEncounterType(getId(item, Kind.ENCOUNTER_TYPE));
+	}
+
+	public VisitType getVisitType(Item item) {
+		return Context.getVisitService().getVisitType(getId(item, Kind.VISIT_TYPE));
+	}
+
+	public PatientIdentifierType getPatientIdentifierType(Item item) {
+		return Context.getPatientService().getPatientIdentifierType(getId(item, Kind.IDENTIFIER_TYPE));
+	}
+
+	/**
+	 * @return a new list of the identifier types of a list item, empty if its global property is not set
+	 */
+	public List<PatientIdentifierType> getPatientIdentifierTypes(Item item) {
+		List<PatientIdentifierType> ret = new ArrayList<PatientIdentifierType>();
+		for (Integer id : get(item, Kind.IDENTIFIER_TYPES).ids) {
+			ret.add(Context.getPatientService().getPatientIdentifierType(id));
+		}
+		return ret;
+	}
+
+	public RelationshipType getRelationshipType(Item item) {
+		return Context.getPersonService().getRelationshipType(getId(item, Kind.RELATIONSHIP_TYPE));
+	}
+
+	/**
+	 * Drops every resolved item, they are resolved again on next use
+	 */
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		resolved.clear();
+		invalidations.incrementAndGet();
+	}
+
+	/**
+	 * @return resolved and failed items and counters, for monitoring
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		Map<String, Object> items = new LinkedHashMap<String, Object>();
+		for (Item item : Item.values()) {
+			Resolved r = resolved.get(item);
+			items.put(item.name(), r == null ? null : r.error != null ? r.error : r.ids);
+		}
+		status.put("items", items);
+		status.put("resolutions", resolutions.get());
+		status.put("invalidations", invalidations.get());
+		return status;
+	}
+
+	private Integer getId(Item item, Kind kind) {
+		return get(item, kind).ids.get(0);
+	}
+
+	/**
+	 * @throws RuntimeException with the resolution error if the item cannot be resolved
+	 */
+	private Resolved get(Item item, Kind kind) {
+		if (item.kind != kind) {
+			throw new IllegalArgumentException(item + " is not a " + kind);
+		}
+		Resolved r = resolve(item);
+		if (r.error != null) {
+			throw new RuntimeException(r.error);
+		}
+		return r;
+	}
+
+	private Resolved resolve(Item item) {
+		String source = item.globalProperty != null ? PrimaryCareConfig.get().get(item.globalProperty) : item.reference;
+		Resolved r = resolved.get(item);
+		if (r != null && (source == null ? r.source == null : source.equals(r.source))) {
+			return r;
+		}
+		long before = generation.get();
+		r = lookUp(item, source);
+		resolutions.incrementAndGet();
+		if (generation.get() == before) {
+			resolved.put(item, r);
+		}
+		return r;
+	}
+
+	/**
+	 * @param source the global property value, or the fixed name / uuid, of the item
+	 */
+	private Resolved lookUp(Item item, String source) {
+		if (source == null || source.trim().isEmpty()) {
+			if (item.kind == Kind.IDENTIFIER_TYPES) {
+				return new Resolved(source, Collections.<Integer> emptyList(), null);
+			}
+			return Resolved.failed(source, "You must set the global property " + item.globalProperty);
+		}
+		String ref = source.trim();
+		switch (item.kind) {
+			case CONCEPT: {
+				Concept c = Context.getConceptService().getConceptByUuid(ref);
+				if (c == null && isInteger(ref)) {
+					c = Context.getConceptService().getConcept(Integer.valueOf(ref));
+				}
+				return c != null ? Resolved.of(source, c.getConceptId())
+						: Resolved.failed(source, "Cannot find concept specified by global property " + item.globalProperty);
+			}
+			case ENCOUNTER_TYPE: {
+				EncounterType et = Context.getEncounterService().getEncounterType(ref);
+				return et != null ? Resolved.of(source, et.getEncounterTypeId()) : Resolved.failed(source, "Cannot find encounter type " + ref);
+			}
+			case VISIT_TYPE: {
+				VisitType vt = Context.getVisitService().getVisitTypeByUuid(ref);
+				return vt != null ? Resolved.of(source, vt.getVisitTypeId()) : Resolved.failed(source, "Cannot find visit type " + ref);
+			}
+			case IDENTIFIER_TYPE: {
+				PatientIdentifierType pit = findIdentifierType(ref);
+				return pit != null ? Resolved.of(source, pit.getPatientIdentifierTypeId())
+						: Resolved.failed(source, "Cannot find patient identifier type specified by global property " + item.globalProperty);
+			}
+			case IDENTIFIER_TYPES: {
+				List<Integer> ids = new ArrayList<Integer>();
+				for (String part : ref.split(",")) {
+					part = part.trim();
+					if (part.length() == 0) {
+						continue;
+					}
+					PatientIdentifierType pit = findIdentifierType(part);
+					if (pit == null) {
+						return Resolved.failed(source, "Cannot find patient identifier type " + part + " specified in global property "
+								+ item.globalProperty);
+					}
+					if (!ids.contains(pit.getPatientIdentifierTypeId())) {
+						ids.add(pit.getPatientIdentifierTypeId());
+					}
+				}
+				return new Resolved(source, Collections.unmodifiableList(ids), null);
+			}
+			case RELATIONSHIP_TYPE: {
+				RelationshipType rt = Context.getPersonService().getRelationshipTypeByUuid(ref);
+				if (rt == null) {
+					rt = isInteger(ref) ? Context.getPersonService().getRelationshipType(Integer.valueOf(ref))
+							: Context.getPersonService().getRelationshipTypeByName(ref);
+				}
+				return rt != null ? Resolved.of(source, rt.getRelationshipTypeId())
+						: Resolved.failed(source, "Cannot find relationship type specified by global property " + item.globalProperty);
+			}
+			default:
+				throw new IllegalStateException("Unknown metadata kind " + item.kind);
+		}
+	}
+
+	/**
+	 * By uuid, then id, then name
+	 */
+	private PatientIdentifierType findIdentifierType(String ref) {
+		PatientIdentifierType pit = Context.getPatientService().getPatientIdentifierTypeByUuid(ref);
+		if (pit == null) {
+			pit = isInteger(ref) ? Context.getPatientService().getPatientIdentifierType(Integer.valueOf(ref))
+					: Context.getPatientService().getPatientIdentifierTypeByName(ref);
+		}
+		return pit;
+	}
+
+	private static boolean isInteger(String value) {
+		try {
+			Integer.parseInt(value);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The ids an item resolved to, or why it could not be resolved
+	 */
+	private static class Resolved {
+
+		private final String source;
+
+		private final List<Integer> ids;
+
+		private final String error;
+
+		Resolved(String source, List<Integer> ids, String error) {
+			this.source = source;
+			this.ids = ids;
+			this.error = error;
+		}
+
+		static Resolved of(String source, Integer id) {
+			return new Resolved(source, Collections.singletonList(id), null);
+		}
+
+		static Resolved failed(String source, String error) {
+			return new Resolved(source, null, error);
+		}
+	}
+}
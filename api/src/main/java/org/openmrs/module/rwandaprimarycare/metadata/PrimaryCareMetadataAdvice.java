@@ -0,0 +1,46 @@
+package org.openmrs.module.rwandaprimarycare.metadata;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.rwandaprimarycare.RwandaLocationCodes;
+
+import java.util.regex.Pattern;
+
+/**
+ * Around advice on the services owning the metadata held by {@link PrimaryCareMetadata}: drops the
+ * resolved items whenever a concept, encounter type, visit type, identifier type or relationship
+ * type is saved, retired or purged, from this module or any other. Location changes likewise
+ * drop the parsed {@link RwandaLocationCodes}, whose names may only then match a location.
+ */
+public class PrimaryCareMetadataAdvice implements MethodInterceptor {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	private static final Pattern METADATA_CHANGE = Pattern
+			.compile("^(save|retire|unretire|purge)(Concept|EncounterType|VisitType|PatientIdentifierType|RelationshipType)$");
+
+	private static final Pattern LOCATION_CHANGE = Pattern.compile("^(save|retire|unretire|purge)Location$");
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		String name = invocation.getMethod().getName();
+		if (LOCATION_CHANGE.matcher(name).matches()) {
+			Object ret = invocation.proceed();
+			RwandaLocationCodes.invalidate();
+			return ret;
+		}
+		if (!METADATA_CHANGE.matcher(name).matches()) {
+			return invocation.proceed();
+		}
+		Object ret = invocation.proceed();
+		try {
+			PrimaryCareMetadata.getInstance().invalidateAll();
+		} catch (Exception e) {
+			// never fail a metadata save because of the registry
+			log.warn("Could not reset the primary care metadata: " + e.getMessage());
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,232 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Circuit breaker of one upstream.
+ *
+ * CLOSED: calls go through and their outcome is recorded over the last
+ * primaryCare.circuitBreaker.windowSize calls. Once at least minimumCalls have been recorded, a
+ * failure rate or a slow call rate at or above its threshold opens the breaker.
+ *
+ * OPEN: calls are rejected at once with a {@link CircuitOpenException}, so the caller falls back
+ * (offline queue, local UPI) without waiting out the connect timeout. After openDuration the
+ * breaker lets a few trial calls through (HALF_OPEN).
+ *
+ * HALF_OPEN: halfOpenCalls trial calls are let through; one failed or slow call opens the
+ * breaker again, halfOpenCalls successful ones close it.
+ *
+ * A 4xx answer means the upstream is up, so it counts as a success. Thresholds are read from the
+ * global properties on each call.
+ */
+public class CircuitBreaker {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final int DEFAULT_WINDOW_SIZE = 20;
+	private static final int DEFAULT_MINIMUM_CALLS = 5;
+	private static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+	private static final int DEFAULT_SLOW_CALL_THRESHOLD = 5000;
+	private static final int DEFAULT_SLOW_CALL_RATE_THRESHOLD = 80;
+	private static final int DEFAULT_OPEN_DURATION = 30000;
+	private static final int DEFAULT_HALF_OPEN_CALLS = 3;
+
+	private final String name;
+
+	private State state = State.CLOSED;
+
+	// outcomes of the last calls while CLOSED, as a ring buffer
+	private boolean[] failed = new boolean[0];
+	private boolean[] slow = new boolean[0];
+	private int next;
+	private int recorded;
+	private int failedCount;
+	private int slowCount;
+
+	private long openedAt;
+	private int halfOpenPermits;
+	private int halfOpenSuccesses;
+
+	private long calls;
+	private long failures;
+	private long slowCalls;
+	private long rejected;
+	private Date lastStateChange = new Date();
+	private String lastError;
+
+	CircuitBreaker(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Calls the upstream through the breaker
+	 *
+	 * @return what call returns
+	 * @throws CircuitOpenException if the breaker is open
+	 * @throws Exception whatever call throws
+	 */
+	public <T> T execute(Callable<T> call) throws Exception {
+		if (!tryAcquire()) {
+			throw new CircuitOpenException(name);
+		}
+		long start = System.currentTimeMillis();
+		try {
+			T result = call.call();
+			record(null, System.currentTimeMillis() - start);
+			return result;
+		} catch (HttpClientErrorException e) {
+			record(null, System.currentTimeMillis() - start);
+			throw e;
+		} catch (Exception e) {
+			record(e, System.currentTimeMillis() - start);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if a call would be let through now; does not take a half-open permit
+	 */
+	public synchronized boolean isCallPermitted() {
+		switch (state) {
+			case OPEN:
+				return System.currentTimeMillis() - openedAt >= getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CIRCUIT_BREAKER_OPEN_DURATION,
+						DEFAULT_OPEN_DURATION);
+			case HALF_OPEN:
+				return halfOpenPermits > 0;
+			default:
+				return true;
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("state", state.name());
+		status.put("lastStateChange", lastStateChange);
+		status.put("windowCalls", recorded);
+		status.put("windowFailureRate", recorded > 0 ? failedCount * 100 / recorded : 0);
+		status.put("windowSlowCallRate", recorded > 0 ? slowCount * 100 / recorded : 0);
+		status.put("calls", calls);
+		status.put("failures", failures);
+		status.put("slowCalls", slowCalls);
+		status.put("rejected", rejected);
+		status.put("lastError", lastError);
+		return status;
+	}
+
+	private synchronized boolean tryAcquire() {
+		if (state == State.OPEN && isCallPermitted()) {
+			transition(State.HALF_OPEN);
+		}
+		if (state == State.OPEN || (state == State.HALF_OPEN && halfOpenPermits <= 0)) {
+			rejected++;
+			return false;
+		}
+		if (state == State.HALF_OPEN) {
+			halfOpenPermits--;
+		}
+		return true;
+	}
+
+	private synchronized void record(Exception error, long elapsed) {
+		boolean isFailure = error != null;
+		boolean isSlow = elapsed >= getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD,
+				DEFAULT_SLOW_CALL_THRESHOLD);
+		calls++;
+		if (isFailure) {
+			failures++;
+			lastError = error.getClass().getSimpleName() + ": " + error.getMessage();
+		}
+		if (isSlow) {
+			slowCalls++;
+		}
+
+		if (state == State.HALF_OPEN) {
+			if (isFailure || isSlow) {
+				transition(State.OPEN);
+			} else if (++halfOpenSuccesses >= getHalfOpenCalls()) {
+				transition(State.CLOSED);
+			}
+			return;
+		}
+		if (state != State.CLOSED) {
+			// a call that started before the breaker opened
+			return;
+		}
+
+		int windowSize = Math.max(1, getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CIRCUIT_BREAKER_WINDOW_SIZE,
+				DEFAULT_WINDOW_SIZE));
+		if (failed.length != windowSize) {
+			resetWindow(windowSize);
+		}
+		if (recorded == windowSize) {
+			failedCount -= failed[next] ? 1 : 0;
+			slowCount -= slow[next] ? 1 : 0;
+		} else {
+			recorded++;
+		}
+		failed[next] = isFailure;
+		slow[next] = isSlow;
+		failedCount += isFailure ? 1 : 0;
+		slowCount += isSlow ? 1 : 0;
+		next = (next + 1) % windowSize;
+
+		if (recorded >= getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CIRCUIT_BREAKER_MINIMUM_CALLS, DEFAULT_MINIMUM_CALLS)
+				&& (failedCount * 100 >= recorded * getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD,
+						DEFAULT_FAILURE_RATE_THRESHOLD)
+				|| slowCount * 100 >= recorded * getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD,
+						DEFAULT_SLOW_CALL_RATE_THRESHOLD))) {
+			transition(State.OPEN);
+		}
+	}
+
+	private void transition(State to) {
+		if (to == State.OPEN) {
+			openedAt = System.currentTimeMillis();
+		} else if (to == State.HALF_OPEN) {
+			halfOpenPermits = getHalfOpenCalls();
+			halfOpenSuccesses = 0;
+		} else {
+			resetWindow(failed.length);
+		}
+		if (state != to) {
+			log.warn("Circuit breaker of " + name + ": " + state + " -> " + to
+					+ (to == State.OPEN && lastError != null ? " (last error: " + lastError + ")" : ""));
+			state = to;
+			lastStateChange = new Date();
+		}
+	}
+
+	private void resetWindow(int windowSize) {
+		failed = new boolean[windowSize];
+		slow = new boolean[windowSize];
+		next = 0;
+		recorded = 0;
+		failedCount = 0;
+		slowCount = 0;
+	}
+
+	private int getHalfOpenCalls() {
+		return Math.max(1, getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CIRCUIT_BREAKER_HALF_OPEN_CALLS, DEFAULT_HALF_OPEN_CALLS));
+	}
+
+	private int getInt(String property, int defaultValue) {
+		return PrimaryCareConfig.get().getInt(property, defaultValue);
+	}
+}
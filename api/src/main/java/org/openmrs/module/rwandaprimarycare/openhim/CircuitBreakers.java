@@ -0,0 +1,74 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import org.openmrs.api.context.Context;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One {@link CircuitBreaker} per remote system the registration desk depends on, so that an
+ * outage of one of them does not make the others look down.
+ *
+ * Non Spring-managed classes should obtain the bean through {@link #getInstance()}.
+ */
+@Component("rwandaprimarycare.circuitBreakers")
+public class CircuitBreakers {
+
+	public enum Upstream {
+		/**
+		 * Client Registry behind OpenHIM
+		 */
+		CLIENT_REGISTRY,
+		/**
+		 * NPR / UPI generator (citizens API) behind OpenHIM
+		 */
+		NPR,
+		/**
+		 * DHIS2 behind OpenHIM
+		 */
+		DHIS2,
+		/**
+		 * Local SHR migration endpoint
+		 */
+		SHR_MIGRATE
+	}
+
+	private final Map<Upstream, CircuitBreaker> breakers = new EnumMap<Upstream, CircuitBreaker>(Upstream.class);
+
+	public CircuitBreakers() {
+		for (Upstream upstream : Upstream.values()) {
+			breakers.put(upstream, new CircuitBreaker(upstream.name()));
+		}
+	}
+
+	/**
+	 * @return the Spring-managed instance
+	 */
+	public static CircuitBreakers getInstance() {
+		return Context.getRegisteredComponent("rwandaprimarycare.circuitBreakers", CircuitBreakers.class);
+	}
+
+	/**
+	 * Shorthand for getInstance().get(upstream)
+	 */
+	public static CircuitBreaker of(Upstream upstream) {
+		return getInstance().get(upstream);
+	}
+
+	public CircuitBreaker get(Upstream upstream) {
+		return breakers.get(upstream);
+	}
+
+	/**
+	 * @return state and statistics of every breaker, for monitoring
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		for (Map.Entry<Upstream, CircuitBreaker> entry : breakers.entrySet()) {
+			status.put(entry.getKey().name(), entry.getValue().getStatus());
+		}
+		return status;
+	}
+}
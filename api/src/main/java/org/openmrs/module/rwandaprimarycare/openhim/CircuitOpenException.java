@@ -0,0 +1,13 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+/**
+ * Thrown instead of calling an upstream whose circuit breaker is open
+ */
+public class CircuitOpenException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(String upstream) {
+		super("Circuit breaker of " + upstream + " is open, call not attempted");
+	}
+}
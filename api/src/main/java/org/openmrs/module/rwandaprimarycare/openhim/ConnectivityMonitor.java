@@ -0,0 +1,210 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.DaemonThreadFactory;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Background monitor of the link to OpenHIM.
+ *
+ * A single daemon thread probes the configured OpenHIM base URL at a fixed interval and
+ * publishes the result as an {@link State}. Request threads only read the published state,
+ * so they never wait on a network check.
+ *
+ * Hysteresis: the link is reported OFFLINE only after a number of consecutive failed probes,
+ * and stays OFFLINE until a number of consecutive probes succeeded again. An ONLINE link is
+ * reported DEGRADED on its first failures and on slow answers.
+ */
+@Component("rwandaprimarycare.connectivityMonitor")
+public class ConnectivityMonitor {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public enum State {
+		ONLINE, DEGRADED, OFFLINE
+	}
+
+	private static final int DEFAULT_PROBE_INTERVAL = 30;
+	private static final int DEFAULT_PROBE_TIMEOUT = 3000;
+	private static final int DEFAULT_SLOW_THRESHOLD = 2000;
+	private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	private static final int DEFAULT_RECOVERY_THRESHOLD = 2;
+
+	private final AtomicReference<State> state = new AtomicReference<State>(State.ONLINE);
+
+	private volatile ScheduledExecutorService executor;
+
+	// only touched from the probe thread
+	private int consecutiveFailures = 0;
+	private int consecutiveSuccesses = 0;
+
+	private volatile Date lastProbe;
+	private volatile Date lastStateChange = new Date();
+	private volatile long lastLatency = -1;
+	private volatile String lastError;
+
+	/**
+	 * @return the Spring-managed instance of this monitor
+	 */
+	public static ConnectivityMonitor getInstance() {
+		return Context.getRegisteredComponent("rwandaprimarycare.connectivityMonitor", ConnectivityMonitor.class);
+	}
+
+	/**
+	 * @return the last published state; never blocks
+	 */
+	public State getState() {
+		return state.get();
+	}
+
+	/**
+	 * @return true unless the link is considered OFFLINE
+	 */
+	public boolean isOnline() {
+		return state.get() != State.OFFLINE;
+	}
+
+	/**
+	 * Starts the probe thread. The first probe runs immediately.
+	 */
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rwandaprimarycare-connectivity-monitor-"));
+		scheduleProbe(0);
+		log.info("OpenHIM connectivity monitor started");
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+			log.info("OpenHIM connectivity monitor stopped");
+		}
+	}
+
+	/**
+	 * @return current state and probe statistics, for monitoring
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("state", state.get().name());
+		status.put("lastStateChange", lastStateChange);
+		status.put("lastProbe", lastProbe);
+		status.put("lastLatencyMs", lastLatency);
+		status.put("lastError", lastError);
+		return status;
+	}
+
+	private void scheduleProbe(long delaySeconds) {
+		ScheduledExecutorService current = executor;
+		if (current == null || current.isShutdown()) {
+			return;
+		}
+		current.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				int interval = DEFAULT_PROBE_INTERVAL;
+				try {
+					Context.openSession();
+					interval = PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CONNECTIVITY_PROBE_INTERVAL, DEFAULT_PROBE_INTERVAL);
+					probe();
+				} catch (Throwable t) {
+					log.warn("OpenHIM connectivity probe failed unexpectedly: " + t.getMessage());
+				} finally {
+					Context.closeSession();
+					scheduleProbe(Math.max(interval, 1));
+				}
+			}
+		}, delaySeconds, TimeUnit.SECONDS);
+	}
+
+	private void probe() {
+		PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+		String baseUrl = config.getOpenHimNidaApi();
+		int timeout = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CONNECTIVITY_PROBE_TIMEOUT, DEFAULT_PROBE_TIMEOUT);
+		int slowThreshold = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CONNECTIVITY_SLOW_THRESHOLD, DEFAULT_SLOW_THRESHOLD);
+		int failureThreshold = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CONNECTIVITY_FAILURE_THRESHOLD, DEFAULT_FAILURE_THRESHOLD);
+		int recoveryThreshold = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CONNECTIVITY_RECOVERY_THRESHOLD, DEFAULT_RECOVERY_THRESHOLD);
+
+		lastProbe = new Date();
+		if (baseUrl == null || baseUrl.trim().isEmpty()) {
+			lastError = "Global property " + PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_NIDA_API + " is not set";
+			transition(State.OFFLINE);
+			return;
+		}
+
+		boolean reachable;
+		long start = System.currentTimeMillis();
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(baseUrl.trim()).openConnection();
+			connection.setRequestMethod("HEAD");
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
+			connection.setInstanceFollowRedirects(false);
+			// any HTTP answer (even 401/404) proves OpenHIM is reachable
+			connection.getResponseCode();
+			reachable = true;
+			lastError = null;
+		} catch (Exception e) {
+			reachable = false;
+			lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+		lastLatency = System.currentTimeMillis() - start;
+
+		if (reachable) {
+			consecutiveFailures = 0;
+			consecutiveSuccesses++;
+			if (state.get() == State.OFFLINE && consecutiveSuccesses < recoveryThreshold) {
+				// recovery in progress
+				return;
+			}
+			transition(lastLatency > slowThreshold ? State.DEGRADED : State.ONLINE);
+		} else {
+			consecutiveSuccesses = 0;
+			consecutiveFailures++;
+			if (consecutiveFailures >= failureThreshold) {
+				transition(State.OFFLINE);
+			} else if (state.get() == State.ONLINE) {
+				transition(State.DEGRADED);
+			}
+		}
+	}
+
+	private void transition(State newState) {
+		State previous = state.getAndSet(newState);
+		if (previous != newState) {
+			lastStateChange = new Date();
+			String message = "OpenHIM connectivity changed from " + previous + " to " + newState
+					+ " (latency=" + lastLatency + "ms" + (lastError != null ? ", error=" + lastError : "") + ")";
+			if (newState == State.ONLINE) {
+				log.info(message);
+			} else {
+				log.warn(message);
+			}
+		}
+	}
+}
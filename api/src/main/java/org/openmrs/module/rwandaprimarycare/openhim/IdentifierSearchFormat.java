@@ -0,0 +1,121 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The identifier search format an upstream answers to, learned from the searches sent to it
+ *
+ * FHIR servers answer identifier=system|value; OpenHIM/SanteMPI only answers identifier=value and
+ * returns an empty Bundle for the standard format. Until a search has returned results the format
+ * is unknown and both are tried, standard first. Once known, only that format is sent. A few
+ * searches, picked at random at the probe rate, still go through the standard-first sequence, so
+ * an upstream that gains (or loses) standard support is noticed.
+ */
+class IdentifierSearchFormat {
+
+	enum Mode {
+		UNKNOWN, STANDARD, VALUE_ONLY
+	}
+
+	private final String baseUrl;
+
+	private volatile Mode mode = Mode.UNKNOWN;
+
+	private volatile Date modeChanged;
+
+	private final AtomicLong searches = new AtomicLong();
+
+	private final AtomicLong valueOnlyFirst = new AtomicLong();
+
+	private final AtomicLong probes = new AtomicLong();
+
+	private final AtomicLong retries = new AtomicLong();
+
+	private final AtomicLong retryHits = new AtomicLong();
+
+	private final AtomicLong modeChanges = new AtomicLong();
+
+	IdentifierSearchFormat(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+
+	/**
+	 * Plans one search
+	 *
+	 * @param probePercent percentage of searches sent in the standard-first sequence whatever the mode
+	 * @return the attempts to make, in order
+	 */
+	Plan plan(int probePercent) {
+		searches.incrementAndGet();
+		Mode current = mode;
+		boolean probe = current != Mode.UNKNOWN && probePercent > 0
+				&& ThreadLocalRandom.current().nextInt(100) < probePercent;
+		if (probe) {
+			probes.incrementAndGet();
+		}
+		if (current == Mode.VALUE_ONLY && !probe) {
+			valueOnlyFirst.incrementAndGet();
+			return new Plan(true, false);
+		}
+		// an empty standard result is only retried while the format is not known
+		return new Plan(false, current == Mode.UNKNOWN || probe);
+	}
+
+	/**
+	 * Records that a search in the given format returned results
+	 */
+	void found(boolean valueOnly) {
+		Mode learned = valueOnly ? Mode.VALUE_ONLY : Mode.STANDARD;
+		if (mode != learned) {
+			mode = learned;
+			modeChanged = new Date();
+			modeChanges.incrementAndGet();
+		}
+	}
+
+	void retried(boolean found) {
+		retries.incrementAndGet();
+		if (found) {
+			retryHits.incrementAndGet();
+		}
+	}
+
+	Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("baseUrl", baseUrl);
+		stats.put("mode", mode.name());
+		stats.put("modeChanged", modeChanged);
+		stats.put("modeChanges", modeChanges.get());
+		stats.put("searches", searches.get());
+		stats.put("valueOnlyFirst", valueOnlyFirst.get());
+		stats.put("probes", probes.get());
+		stats.put("retries", retries.get());
+		stats.put("retryHits", retryHits.get());
+		return stats;
+	}
+
+	/**
+	 * How one identifier search is sent
+	 */
+	static class Plan {
+
+		/**
+		 * true to send the value-only format first rather than the standard one
+		 */
+		final boolean valueOnly;
+
+		/**
+		 * true to retry in value-only format if the standard format returns nothing
+		 */
+		final boolean retryOnEmpty;
+
+		Plan(boolean valueOnly, boolean retryOnEmpty) {
+			this.valueOnly = valueOnly;
+			this.retryOnEmpty = retryOnEmpty;
+		}
+	}
+}
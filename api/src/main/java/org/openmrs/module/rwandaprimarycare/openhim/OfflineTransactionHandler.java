@@ -0,0 +1,27 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import org.openmrs.module.rwandaprimarycare.pojos.OfflineTransaction;
+import org.openmrs.module.rwandaprimarycare.pojos.PayloadData;
+
+/**
+ * Applies the answer of a replayed {@link OfflineTransaction} of one type locally.
+ *
+ * Spring components implementing this interface are picked up by the
+ * {@link OfflineTransactionSyncTask}, which hands them the response body of each successful
+ * replay of their type. The row is marked COMPLETED only if the handler returns; an exception
+ * is recorded as a failed attempt and the row is replayed later.
+ */
+public interface OfflineTransactionHandler {
+
+	/**
+	 * @return the {@link OfflineTransaction#getType()} this handler applies
+	 */
+	String getType();
+
+	/**
+	 * @param transaction the replayed row
+	 * @param payloadData the request that was replayed
+	 * @param responseBody the body of the upstream answer, possibly null
+	 */
+	void onReplayed(OfflineTransaction transaction, PayloadData payloadData, String responseBody);
+}
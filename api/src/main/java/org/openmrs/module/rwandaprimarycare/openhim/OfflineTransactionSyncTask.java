@@ -0,0 +1,238 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import com.google.gson.Gson;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.DaemonThreadFactory;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareBusinessLogic;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.constants.AppConstants;
+import org.openmrs.module.rwandaprimarycare.pojos.OfflineTransaction;
+import org.openmrs.module.rwandaprimarycare.pojos.PayloadData;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the offline transaction outbox.
+ *
+ * Registrations and updates made while OpenHIM was unreachable are queued as
+ * {@link OfflineTransaction} rows holding a {@link PayloadData} (url, method, body).
+ * This task replays pending rows in batches, oldest first, whenever the
+ * {@link ConnectivityMonitor} reports OpenHIM reachable:
+ * - success marks the row COMPLETED, once the {@link OfflineTransactionHandler} of the row type,
+ *   if any, has applied the answer locally
+ * - failure bumps retryCount and postpones the row with exponential backoff
+ * - rows past the retry limit, or rejected by the Client Registry (4xx), are moved to DEAD_LETTER
+ * HELD rows wait for a handler to release them as PENDING and are not replayed.
+ */
+@Component("rwandaprimarycare.offlineTransactionSyncTask")
+public class OfflineTransactionSyncTask {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	private static final int DEFAULT_INTERVAL = 60;
+	private static final int DEFAULT_BATCH_SIZE = 50;
+	private static final int DEFAULT_MAX_RETRIES = 10;
+	private static final int DEFAULT_BACKOFF_BASE = 30;
+	private static final int DEFAULT_BACKOFF_MAX = 3600;
+	private static final int MAX_ERROR_LENGTH = 1024;
+
+	private volatile ScheduledExecutorService executor;
+
+	private volatile Date lastRun;
+	private volatile int lastRunSynced;
+	private volatile int lastRunFailed;
+
+	/**
+	 * @return the Spring-managed instance of this task
+	 */
+	public static OfflineTransactionSyncTask getInstance() {
+		return Context.getRegisteredComponent("rwandaprimarycare.offlineTransactionSyncTask", OfflineTransactionSyncTask.class);
+	}
+
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rwandaprimarycare-offline-sync-"));
+		scheduleRun(DEFAULT_INTERVAL);
+		log.info("Offline transaction sync task started");
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+			log.info("Offline transaction sync task stopped");
+		}
+	}
+
+	/**
+	 * @return outbox depth per status and statistics of the last run, for monitoring
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("counts", PrimaryCareBusinessLogic.getService().getOfflineTransactionCountsByStatus());
+		status.put("lastRun", lastRun);
+		status.put("lastRunSynced", lastRunSynced);
+		status.put("lastRunFailed", lastRunFailed);
+		return status;
+	}
+
+	private void scheduleRun(long delaySeconds) {
+		ScheduledExecutorService current = executor;
+		if (current == null || current.isShutdown()) {
+			return;
+		}
+		current.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				int interval = DEFAULT_INTERVAL;
+				try {
+					Context.openSession();
+					interval = PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OUTBOX_INTERVAL, DEFAULT_INTERVAL);
+					drain();
+				} catch (Throwable t) {
+					log.error("Offline transaction sync failed unexpectedly", t);
+				} finally {
+					Context.closeSession();
+					scheduleRun(Math.max(interval, 1));
+				}
+			}
+		}, delaySeconds, TimeUnit.SECONDS);
+	}
+
+	private void drain() {
+		if (!ConnectivityMonitor.getInstance().isOnline()) {
+			log.debug("OpenHIM is offline, skipping offline transaction sync");
+			return;
+		}
+		PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+		int batchSize = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OUTBOX_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+		int maxRetries = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OUTBOX_MAX_RETRIES, DEFAULT_MAX_RETRIES);
+		int backoffBase = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OUTBOX_BACKOFF_BASE, DEFAULT_BACKOFF_BASE);
+		int backoffMax = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OUTBOX_BACKOFF_MAX, DEFAULT_BACKOFF_MAX);
+
+		String username = config.getOpenHimUser();
+		String password = config.getOpenHimPassword();
+		if (username == null || password == null) {
+			log.warn("OpenHIM credentials not configured, skipping offline transaction sync");
+			return;
+		}
+		String authHeader = "Basic " + new String(Base64.encodeBase64((username + ":" + password).getBytes()));
+
+		List<OfflineTransaction> due = PrimaryCareBusinessLogic.getService().getOfflineTransactionsDueForSync(batchSize);
+		Map<String, OfflineTransactionHandler> handlers = getHandlers();
+		int synced = 0;
+		int failed = 0;
+		for (OfflineTransaction transaction : due) {
+			boolean linkDown = false;
+			try {
+				replay(transaction, authHeader, handlers);
+				transaction.setStatus(AppConstants.COMPLETED_STATUS);
+				transaction.setIsUpdated(1);
+				transaction.setDateSynced(new Date());
+				transaction.setNextAttempt(null);
+				transaction.setLastError(null);
+				synced++;
+			} catch (HttpStatusCodeException e) {
+				failed++;
+				boolean permanent = e.getStatusCode().is4xxClientError()
+						&& e.getStatusCode() != HttpStatus.REQUEST_TIMEOUT
+						&& e.getStatusCode() != HttpStatus.TOO_MANY_REQUESTS;
+				recordFailure(transaction, e.getStatusCode() + " " + e.getResponseBodyAsString(), permanent,
+						maxRetries, backoffBase, backoffMax);
+			} catch (ResourceAccessException e) {
+				failed++;
+				linkDown = true;
+				recordFailure(transaction, e.getMessage(), false, maxRetries, backoffBase, backoffMax);
+			} catch (Exception e) {
+				failed++;
+				recordFailure(transaction, e.getClass().getSimpleName() + ": " + e.getMessage(), false,
+						maxRetries, backoffBase, backoffMax);
+			}
+			PrimaryCareBusinessLogic.getService().saveOfflineTransaction(transaction);
+			if (linkDown) {
+				// no point trying the rest of the batch until the link is back
+				break;
+			}
+		}
+
+		lastRun = new Date();
+		lastRunSynced = synced;
+		lastRunFailed = failed;
+		if (!due.isEmpty()) {
+			log.info("Offline transaction sync: " + synced + " synced, " + failed + " failed out of " + due.size());
+		}
+	}
+
+	private void replay(OfflineTransaction transaction, String authHeader, Map<String, OfflineTransactionHandler> handlers) {
+		PayloadData payloadData = new Gson().fromJson(transaction.getPayload(), PayloadData.class);
+		if (payloadData == null || payloadData.getUrl() == null) {
+			throw new IllegalStateException("Offline transaction " + transaction.getUuid() + " has no target url");
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		headers.set("Authorization", authHeader);
+		HttpMethod method = payloadData.getMethod() != null ? HttpMethod.valueOf(payloadData.getMethod().toUpperCase()) : HttpMethod.POST;
+		HttpEntity<String> request = new HttpEntity<String>(payloadData.getPayload(), headers);
+		ResponseEntity<String> response = OpenHIMHttpClient.getSharedRestTemplate().exchange(payloadData.getUrl(), method,
+				request, String.class);
+		OfflineTransactionHandler handler = handlers.get(transaction.getType());
+		if (handler != null) {
+			handler.onReplayed(transaction, payloadData, response.getBody());
+		}
+	}
+
+	/**
+	 * @return the registered handlers by transaction type
+	 */
+	private Map<String, OfflineTransactionHandler> getHandlers() {
+		Map<String, OfflineTransactionHandler> handlers = new HashMap<String, OfflineTransactionHandler>();
+		for (OfflineTransactionHandler handler : Context.getRegisteredComponents(OfflineTransactionHandler.class)) {
+			handlers.put(handler.getType(), handler);
+		}
+		return handlers;
+	}
+
+	private void recordFailure(OfflineTransaction transaction, String error, boolean permanent, int maxRetries,
+			int backoffBase, int backoffMax) {
+		int retries = (transaction.getRetryCount() == null ? 0 : transaction.getRetryCount()) + 1;
+		transaction.setRetryCount(retries);
+		if (error != null && error.length() > MAX_ERROR_LENGTH) {
+			error = error.substring(0, MAX_ERROR_LENGTH);
+		}
+		transaction.setLastError(error);
+		if (permanent || retries >= maxRetries) {
+			transaction.setStatus(AppConstants.DEAD_LETTER_STATUS);
+			transaction.setNextAttempt(null);
+			log.warn("Offline transaction " + transaction.getUuid() + " (" + transaction.getType()
+					+ ") moved to dead letter after " + retries + " attempt(s): " + error);
+		} else {
+			long delay = Math.min((long) backoffBase << Math.min(retries - 1, 20), (long) backoffMax);
+			transaction.setNextAttempt(new Date(System.currentTimeMillis() + delay * 1000));
+		}
+	}
+}
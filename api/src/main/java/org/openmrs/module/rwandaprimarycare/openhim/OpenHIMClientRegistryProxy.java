@@ -2,13 +2,20 @@ package org.openmrs.module.rwandaprimarycare.openhim;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.InputStreamEntity;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Patient;
-import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
 import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -22,14 +29,29 @@ import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -50,6 +72,12 @@ public class OpenHIMClientRegistryProxy {
 
 	protected final Log log = LogFactory.getLog(getClass());
 
+	/**
+	 * Pooled keep-alive HTTP client shared with the rest of the module
+	 */
+	@Autowired
+	private OpenHIMHttpClient httpClient;
+
 	/**
 	 * FHIR Context for parsing and serializing Patient resources
 	 * Initialized lazily to avoid startup overhead
@@ -73,6 +101,50 @@ public class OpenHIMClientRegistryProxy {
 		"If-Modified-Since"
 	);
 
+	/**
+	 * Hop-by-hop response headers, which apply to one connection and are not relayed when streaming
+	 */
+	private static final List<String> HOP_BY_HOP_HEADERS = Arrays.asList(
+		"connection",
+		"keep-alive",
+		"proxy-authenticate",
+		"proxy-authorization",
+		"te",
+		"trailer",
+		"transfer-encoding",
+		"upgrade"
+	);
+
+	/**
+	 * Size of the buffer bodies are piped through when streaming
+	 */
+	private static final int STREAM_BUFFER_SIZE = 8192;
+
+	private static final int DEFAULT_IDENTIFIER_SEARCH_PROBE_PERCENT = 5;
+
+	/**
+	 * Values of primaryCare.openhim.emptyResponseEnrichment
+	 */
+	private static final String ENRICHMENT_SYNTHESIZE = "synthesize";
+	private static final String ENRICHMENT_FETCH = "fetch";
+	private static final String ENRICHMENT_NONE = "none";
+
+	/**
+	 * Patient/{id} and optional /_history/{version} in a Location header
+	 */
+	private static final Pattern RESOURCE_LOCATION = Pattern.compile("Patient/([^/?#]+)(?:/_history/([^/?#]+))?");
+
+	/**
+	 * Number of empty create/update responses per enrichment path
+	 */
+	private final ConcurrentMap<String, AtomicLong> enrichmentCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Identifier search format learned for each OpenHIM base URL
+	 */
+	private final ConcurrentMap<String, IdentifierSearchFormat> identifierSearchFormats =
+		new ConcurrentHashMap<String, IdentifierSearchFormat>();
+
 	/**
 	 * Forward FHIR request to OpenHIM Client Registry channel
 	 *
@@ -100,8 +172,8 @@ public class OpenHIMClientRegistryProxy {
 
 		try {
 			// 1. Get OpenHIM configuration from global properties
-			String openhimBaseUrl = Context.getAdministrationService()
-				.getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_CR_BASE_URL);
+			PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+			String openhimBaseUrl = config.getOpenHimClientRegistryBaseUrl();
 
 			if (openhimBaseUrl == null || openhimBaseUrl.isEmpty()) {
 				log.error("OpenHIM Client Registry base URL not configured");
@@ -110,10 +182,8 @@ public class OpenHIMClientRegistryProxy {
 					PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_CR_BASE_URL);
 			}
 
-			String username = Context.getAdministrationService()
-				.getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_USER_NAME);
-			String password = Context.getAdministrationService()
-				.getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_USER_PWD);
+			String username = config.getOpenHimUser();
+			String password = config.getOpenHimPassword();
 
 			if (username == null || password == null) {
 				log.error("OpenHIM credentials not configured");
@@ -122,16 +192,24 @@ public class OpenHIMClientRegistryProxy {
 			}
 
 			// 2. Build target URI (preserve URL encoding of query parameters)
-			// Using UriComponentsBuilder with build(true) to prevent double-encoding
-			// The query string from the original request is already URL-encoded
-			UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromUriString(openhimBaseUrl + resourcePath);
-			if (queryString != null && !queryString.isEmpty()) {
-				// Use query() method which accepts pre-encoded query string
-				uriBuilder.query(queryString);
+			// Patient identifier searches are sent in the format the upstream is known to answer to
+			IdentifierSearchFormat.Plan searchPlan = null;
+			IdentifierSearchFormat searchFormat = null;
+			String targetQuery = queryString;
+			if ("GET".equalsIgnoreCase(httpMethod) &&
+				resourcePath != null && resourcePath.contains("Patient") &&
+				queryString != null && queryString.contains("identifier=") &&
+				hasSystemValueFormat(queryString)) {
+
+				searchFormat = getIdentifierSearchFormat(openhimBaseUrl);
+				searchPlan = searchFormat.plan(config.getInt(
+					PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_IDENTIFIER_SEARCH_PROBE_PERCENT,
+					DEFAULT_IDENTIFIER_SEARCH_PROBE_PERCENT));
+				if (searchPlan.valueOnly) {
+					targetQuery = transformIdentifierSearchForOpenHIM(queryString);
+				}
 			}
-			// build(true) tells Spring the components are already encoded - don't encode again
-			// This prevents pipe '|' from being decoded and corrupted during URL reconstruction
-			URI targetUri = uriBuilder.build(true).toUri();
+			URI targetUri = buildTargetUri(openhimBaseUrl, resourcePath, targetQuery);
 
 			log.info("Forwarding " + httpMethod + " request to OpenHIM: " + targetUri);
 
@@ -191,8 +269,8 @@ public class OpenHIMClientRegistryProxy {
 				entity = new HttpEntity<byte[]>(headers);
 			}
 
-			// 6. Forward to OpenHIM
-			RestTemplate restTemplate = new RestTemplate();
+			// 6. Forward to OpenHIM (pooled connection, reused across requests)
+			RestTemplate restTemplate = httpClient.getRestTemplate();
 			HttpMethod method = HttpMethod.valueOf(httpMethod.toUpperCase());
 
 			// Use URI object instead of String to preserve URL encoding
@@ -202,20 +280,18 @@ public class OpenHIMClientRegistryProxy {
 			log.info("OpenHIM response: " + response.getStatusCode());
 
 			// 6.5. Apply auto-detection fallback for Patient identifier searches
-			// For GET Patient searches with identifier parameter, automatically try
-			// value-only format if standard FHIR format (system|value) returns empty
-			if ("GET".equalsIgnoreCase(httpMethod) &&
-				resourcePath != null && resourcePath.contains("Patient") &&
-				queryString != null && queryString.contains("identifier=")) {
-
+			// For GET Patient searches with identifier parameter, try the value-only
+			// format if standard FHIR format (system|value) returns empty and the
+			// upstream format is not known yet (or is being probed)
+			if (searchPlan != null) {
 				response = applyIdentifierSearchFallback(
-					response, targetUri, queryString, entity, restTemplate, method);
+					response, targetUri, queryString, entity, restTemplate, method, searchFormat, searchPlan);
 			}
 
 			// 6.6. Enrich empty POST/PUT responses with patient data
 			// OpenHIM/SanteMPI returns HTTP 201/200 with empty body on create/update
 			// This violates FHIR spec (should return created/updated resource)
-			// Workaround: Fetch the patient back from OpenHIM and return it
+			// Workaround: Build the resource from the request (or fetch it back, if configured)
 			if (("POST".equalsIgnoreCase(httpMethod) || "PUT".equalsIgnoreCase(httpMethod)) &&
 				resourcePath != null && resourcePath.contains("Patient")) {
 
@@ -267,6 +343,217 @@ public class OpenHIMClientRegistryProxy {
 		}
 	}
 
+	/**
+	 * Whether a request is forwarded to OpenHIM unchanged, both ways, so that it can go through
+	 * {@link #streamToOpenHIM} instead of {@link #forwardToOpenHIM}
+	 *
+	 * Patient creates and updates are transformed, and Patient identifier searches may be retried
+	 * in another format depending on the response, so those two need the bodies in memory.
+	 * Everything else (other searches and reads, DELETE, non-Patient resources) is pass-through.
+	 *
+	 * @param httpMethod HTTP method (GET, POST, PUT, DELETE)
+	 * @param resourcePath FHIR resource path (e.g., "/Patient" or "/Patient/123")
+	 * @param queryString Query parameters, or null
+	 * @return true if the request can be streamed
+	 */
+	public boolean isPassThrough(String httpMethod, String resourcePath, String queryString) {
+		boolean patient = resourcePath != null && resourcePath.contains("Patient");
+		if (!patient) {
+			return true;
+		}
+		if ("POST".equalsIgnoreCase(httpMethod) || "PUT".equalsIgnoreCase(httpMethod)) {
+			return false;
+		}
+		return !("GET".equalsIgnoreCase(httpMethod) && queryString != null && queryString.contains("identifier="));
+	}
+
+	/**
+	 * Forward a pass-through request to OpenHIM, piping the bodies instead of buffering them
+	 *
+	 * The servlet input stream is sent upstream as the request entity, and the upstream response
+	 * is copied to the servlet output through a fixed-size buffer, so memory use does not grow
+	 * with the size of a Bundle. When the client accepts gzip, gzip is asked of OpenHIM and the
+	 * compressed bytes are relayed as received, along with Content-Encoding and Content-Length.
+	 * Otherwise the response is sent uncompressed, inflated on the fly should OpenHIM compress it
+	 * anyway. Status and end-to-end headers of the OpenHIM response, errors included, are relayed
+	 * as-is.
+	 *
+	 * Configuration and network errors are answered with an OperationOutcome, like
+	 * {@link #forwardToOpenHIM}, as long as nothing has been written to the response yet.
+	 *
+	 * @param httpMethod HTTP method (GET, POST, PUT, DELETE)
+	 * @param resourcePath FHIR resource path (e.g., "/Observation" or "/Patient/123")
+	 * @param queryString Query parameters (e.g., "family=Man&given=John")
+	 * @param requestHeaders Original request headers
+	 * @param request the request, whose body is forwarded
+	 * @param response the response OpenHIM's response is written to
+	 * @param deadline time in milliseconds since the epoch by which the OpenHIM connection gives up
+	 *            waiting, whatever the configured timeouts; 0 for the configured timeouts only
+	 * @throws IOException if the client goes away while the response is written
+	 */
+	public void streamToOpenHIM(
+			String httpMethod,
+			String resourcePath,
+			String queryString,
+			Map<String, String> requestHeaders,
+			HttpServletRequest request,
+			HttpServletResponse response,
+			long deadline) throws IOException {
+
+		PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+		String openhimBaseUrl = config.getOpenHimClientRegistryBaseUrl();
+		if (openhimBaseUrl == null || openhimBaseUrl.isEmpty()) {
+			log.error("OpenHIM Client Registry base URL not configured");
+			writeResponse(createErrorResponse(HttpStatus.SERVICE_UNAVAILABLE,
+				"OpenHIM Client Registry not configured. Set global property: " +
+				PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_CR_BASE_URL), response);
+			return;
+		}
+		String username = config.getOpenHimUser();
+		String password = config.getOpenHimPassword();
+		if (username == null || password == null) {
+			log.error("OpenHIM credentials not configured");
+			writeResponse(createErrorResponse(HttpStatus.SERVICE_UNAVAILABLE,
+				"OpenHIM credentials not configured"), response);
+			return;
+		}
+
+		URI targetUri = buildTargetUri(openhimBaseUrl, resourcePath, queryString);
+		log.info("Streaming " + httpMethod + " request to OpenHIM: " + targetUri);
+
+		RequestBuilder upstream = RequestBuilder.create(httpMethod.toUpperCase(Locale.ENGLISH)).setUri(targetUri);
+		for (String headerName : HEADERS_TO_COPY) {
+			String headerValue = requestHeaders.get(headerName);
+			if (headerValue != null) {
+				upstream.setHeader(headerName, headerValue);
+			}
+		}
+		upstream.setHeader("Authorization", createBasicAuthHeader(username, password));
+		if (requestHeaders.get("Accept") == null) {
+			upstream.setHeader("Accept", "application/fhir+json, application/json");
+		}
+		boolean clientAcceptsGzip = acceptsGzip(requestHeaders.get("Accept-Encoding"));
+		if (clientAcceptsGzip) {
+			upstream.setHeader("Accept-Encoding", "gzip");
+		}
+		int contentLength = request.getContentLength();
+		if (contentLength > 0 || requestHeaders.get("Transfer-Encoding") != null) {
+			upstream.setEntity(new InputStreamEntity(request.getInputStream(), contentLength));
+		}
+		if (deadline > 0) {
+			upstream.setConfig(httpClient.getStreamingRequestConfig(deadline - System.currentTimeMillis()));
+		}
+
+		CloseableHttpResponse upstreamResponse;
+		try {
+			upstreamResponse = httpClient.getStreamingHttpClient().execute(upstream.build());
+		} catch (IOException e) {
+			log.error("Cannot reach OpenHIM: " + e.getMessage(), e);
+			writeResponse(createErrorResponse(HttpStatus.SERVICE_UNAVAILABLE,
+				"OpenHIM Client Registry unreachable: " + e.getMessage()), response);
+			return;
+		}
+
+		try {
+			int status = upstreamResponse.getStatusLine().getStatusCode();
+			log.info("OpenHIM response: " + status);
+			org.apache.http.HttpEntity entity = upstreamResponse.getEntity();
+			Header encoding = entity != null ? entity.getContentEncoding() : null;
+			boolean inflate = encoding != null && encoding.getValue().toLowerCase(Locale.ENGLISH).contains("gzip")
+					&& !clientAcceptsGzip;
+
+			response.setStatus(status);
+			for (Header header : upstreamResponse.getAllHeaders()) {
+				String name = header.getName().toLowerCase(Locale.ENGLISH);
+				if (HOP_BY_HOP_HEADERS.contains(name)) {
+					continue;
+				}
+				if (inflate && ("content-encoding".equals(name) || "content-length".equals(name))) {
+					continue;
+				}
+				response.addHeader(header.getName(), header.getValue());
+			}
+			if (entity == null) {
+				return;
+			}
+
+			InputStream in = entity.getContent();
+			try {
+				if (inflate) {
+					in = new GZIPInputStream(in, STREAM_BUFFER_SIZE);
+				}
+				OutputStream out = response.getOutputStream();
+				byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+				long total = 0;
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+					total += read;
+				}
+				out.flush();
+				log.debug("Streamed " + total + " bytes from OpenHIM" + (inflate ? " (inflated)" : ""));
+			} finally {
+				in.close();
+			}
+		} finally {
+			// returns the connection to the pool, or drops it if the body was not read to the end
+			upstreamResponse.close();
+		}
+	}
+
+	/**
+	 * @return true if the Accept-Encoding header allows gzip
+	 */
+	private boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+				return !(parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?"));
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write a buffered response (used for the errors of the streaming path)
+	 */
+	private void writeResponse(ResponseEntity<String> entity, HttpServletResponse response) throws IOException {
+		response.setStatus(entity.getStatusCode().value());
+		MediaType contentType = entity.getHeaders().getContentType();
+		if (contentType != null) {
+			response.setContentType(contentType.toString());
+		}
+		response.setCharacterEncoding("UTF-8");
+		byte[] body = entity.getBody() != null ? entity.getBody().getBytes("UTF-8") : new byte[0];
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+		response.getOutputStream().flush();
+	}
+
+	/**
+	 * Build the OpenHIM URI of a request, keeping the query string as it was encoded by the client
+	 *
+	 * @param openhimBaseUrl OpenHIM base URL
+	 * @param resourcePath FHIR resource path
+	 * @param queryString URL-encoded query parameters, or null
+	 * @return target URI
+	 */
+	private URI buildTargetUri(String openhimBaseUrl, String resourcePath, String queryString) {
+		// Using UriComponentsBuilder with build(true) to prevent double-encoding
+		// The query string from the original request is already URL-encoded
+		UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromUriString(openhimBaseUrl + resourcePath);
+		if (queryString != null && !queryString.isEmpty()) {
+			// Use query() method which accepts pre-encoded query string
+			uriBuilder.query(queryString);
+		}
+		// build(true) tells Spring the components are already encoded - don't encode again
+		// This prevents pipe '|' from being decoded and corrupted during URL reconstruction
+		return uriBuilder.build(true).toUri();
+	}
+
 	/**
 	 * Transform Patient resource for OpenHIM protocol requirements
 	 *
@@ -281,7 +568,7 @@ public class OpenHIMClientRegistryProxy {
 	 * @param resourcePath Resource path (e.g., "/Patient" or "/Patient/123")
 	 * @return Transformed request body (or original if transformation not needed/failed)
 	 */
-	private String transformPatientForOpenHIM(String requestBody, String httpMethod, String resourcePath) {
+	String transformPatientForOpenHIM(String requestBody, String httpMethod, String resourcePath) {
 		// Only transform POST/PUT Patient resources
 		if (requestBody == null || requestBody.isEmpty()) {
 			return requestBody;
@@ -303,6 +590,27 @@ public class OpenHIMClientRegistryProxy {
 			return requestBody;
 		}
 
+		// Rewrite the id in place; the HAPI round trip below only handles bodies the scanner rejects
+		try {
+			String transformedBody = PatientIdRewriter.setIdToUpi(requestBody);
+			if (transformedBody == null) {
+				log.error("OpenHIM requires UPI identifier, but none found in Patient resource. " +
+						 "Patient will likely be rejected by OpenHIM.");
+				return requestBody;
+			}
+			log.info("Transformed Patient.id to UPI value for OpenHIM compatibility");
+			return transformedBody;
+		} catch (IllegalArgumentException e) {
+			log.debug("Patient body is not well-formed JSON, transforming with HAPI: " + e.getMessage());
+		}
+		return transformPatientWithHapi(requestBody);
+	}
+
+	/**
+	 * Parse / set id / encode round trip through the HAPI Patient model, for bodies
+	 * {@link PatientIdRewriter} cannot scan. HAPI's parser is more lenient than the scanner.
+	 */
+	String transformPatientWithHapi(String requestBody) {
 		try {
 			// Lazy initialization of FhirContext (thread-safe)
 			if (fhirContext == null) {
@@ -372,14 +680,14 @@ public class OpenHIMClientRegistryProxy {
 	/**
 	 * Create FHIR-compliant OperationOutcome for errors
 	 *
-	 * Used when proxy encounters configuration or network errors
+	 * Used when proxy encounters configuration or network errors, or cannot take the request
 	 * (not used for OpenHIM errors - those are forwarded as-is)
 	 *
 	 * @param status HTTP status code
 	 * @param message Error message
 	 * @return ResponseEntity with FHIR OperationOutcome
 	 */
-	private ResponseEntity<String> createErrorResponse(HttpStatus status, String message) {
+	public ResponseEntity<String> createErrorResponse(HttpStatus status, String message) {
 		String severity = status.is5xxServerError() ? "error" : "warning";
 		String operationOutcome = "{\n" +
 			"  \"resourceType\": \"OperationOutcome\",\n" +
@@ -472,28 +780,55 @@ public class OpenHIMClientRegistryProxy {
 		return new String(body);
 	}
 
+	/**
+	 * Identifier search formats learned so far, for monitoring
+	 *
+	 * @return learned mode, retry and probe counts per OpenHIM base URL
+	 */
+	public List<Map<String, Object>> getIdentifierSearchStats() {
+		List<Map<String, Object>> stats = new ArrayList<Map<String, Object>>();
+		for (IdentifierSearchFormat format : identifierSearchFormats.values()) {
+			stats.add(format.getStats());
+		}
+		return stats;
+	}
+
+	private IdentifierSearchFormat getIdentifierSearchFormat(String baseUrl) {
+		IdentifierSearchFormat format = identifierSearchFormats.get(baseUrl);
+		if (format == null) {
+			IdentifierSearchFormat created = new IdentifierSearchFormat(baseUrl);
+			format = identifierSearchFormats.putIfAbsent(baseUrl, created);
+			if (format == null) {
+				format = created;
+			}
+		}
+		return format;
+	}
+
 	/**
 	 * Apply identifier search fallback for OpenHIM compatibility (Auto-detection)
 	 *
 	 * AUTO-DETECTION STRATEGY:
 	 * 1. Check if original response has zero results (total=0)
-	 * 2. Check if query uses FHIR standard format (system|value)
-	 * 3. If both true, retry with value-only format
-	 * 4. Return whichever response succeeded
+	 * 2. Check if the search was sent in FHIR standard format (system|value)
+	 * 3. If both true and the plan allows it, retry with value-only format
+	 * 4. Return whichever response succeeded, and remember its format for the upstream
 	 *
 	 * This allows the proxy to work with:
 	 * - FHIR-compliant servers (HAPI FHIR, etc.) → uses standard format, no retry
-	 * - Non-compliant servers (OpenHIM/SanteMPI) → falls back automatically
-	 * - Mixed environments → adapts per request
+	 * - Non-compliant servers (OpenHIM/SanteMPI) → learns to send value-only first
+	 * - Mixed environments → each base URL keeps its own format
 	 *
-	 * Performance: Only retries on empty results, minimal overhead (~1ms check)
+	 * Performance: once the format is known a search is sent once, except for the probes
 	 *
-	 * @param originalResponse Response from first attempt (standard FHIR format)
+	 * @param originalResponse Response from first attempt
 	 * @param originalUri The URI that was called
-	 * @param originalQueryString The query string used
+	 * @param originalQueryString The query string of the client (standard format)
 	 * @param entity HTTP entity (headers, body)
 	 * @param restTemplate RestTemplate for making retry request
 	 * @param method HTTP method
+	 * @param format Format learned for the upstream
+	 * @param plan How the search was sent
 	 * @return Best response (original if successful, fallback if original empty)
 	 */
 	private ResponseEntity<String> applyIdentifierSearchFallback(
@@ -502,14 +837,18 @@ public class OpenHIMClientRegistryProxy {
 			String originalQueryString,
 			HttpEntity<byte[]> entity,
 			RestTemplate restTemplate,
-			HttpMethod method) {
+			HttpMethod method,
+			IdentifierSearchFormat format,
+			IdentifierSearchFormat.Plan plan) {
 
 		try {
 			// Check if original search returned zero results
-			if (isEmptySearchResult(originalResponse.getBody())) {
+			if (!isEmptySearchResult(originalResponse.getBody())) {
+				format.found(plan.valueOnly);
+			} else {
 
-				// Check if query has system|value format that can be transformed
-				if (hasSystemValueFormat(originalQueryString)) {
+				// Retry in value-only format unless the upstream is known to answer the standard one
+				if (plan.retryOnEmpty) {
 
 					log.info("Standard identifier search returned 0 results, " +
 							"attempting value-only fallback for OpenHIM compatibility");
@@ -536,7 +875,10 @@ public class OpenHIMClientRegistryProxy {
 					fallbackHeaders.remove(HttpHeaders.CONTENT_ENCODING);
 
 					// If fallback found results, use it
-					if (!isEmptySearchResult(fallbackResponse.getBody())) {
+					boolean found = !isEmptySearchResult(fallbackResponse.getBody());
+					format.retried(found);
+					if (found) {
+						format.found(true);
 						log.info("✅ Fallback search successful, found patient(s)");
 						return ResponseEntity.status(fallbackResponse.getStatusCode())
 							.headers(fallbackHeaders)
@@ -632,11 +974,15 @@ public class OpenHIMClientRegistryProxy {
 	 * OpenHIM/SanteMPI violates FHIR spec by returning HTTP 201/200 with empty body.
 	 * The FHIR specification requires servers to return the created/updated resource.
 	 *
-	 * This method:
-	 * 1. Detects empty response body with 2xx status
-	 * 2. Extracts patient ID from the transformed request body
-	 * 3. Fetches the patient back from OpenHIM via GET
-	 * 4. Returns enriched response with full patient data
+	 * This method detects an empty response body with 2xx status and, depending on
+	 * primaryCare.openhim.emptyResponseEnrichment:
+	 * - synthesize (default): returns the transformed request body, with the id, version and
+	 *   last update the server reported in its Location, ETag and Last-Modified headers
+	 * - fetch: fetches the patient back from OpenHIM via GET, which costs a second round trip
+	 *   and may read stale data from an eventually consistent MPI
+	 * - none: returns the empty response
+	 *
+	 * The path each response took is counted, see {@link #getEnrichmentStats()}.
 	 *
 	 * @param originalResponse Response from OpenHIM POST/PUT
 	 * @param transformedBody Transformed request body (has UPI as Patient.id)
@@ -652,18 +998,143 @@ public class OpenHIMClientRegistryProxy {
 			String username,
 			String password) {
 
+		// Only enrich if response is successful but empty
+		if (!originalResponse.getStatusCode().is2xxSuccessful()) {
+			return originalResponse;
+		}
+
+		String responseBody = originalResponse.getBody();
+		if (responseBody != null && !responseBody.trim().isEmpty()) {
+			// Response has content, no enrichment needed
+			countEnrichment("upstreamBody");
+			return originalResponse;
+		}
+
+		String strategy = PrimaryCareConfig.get().get(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_EMPTY_RESPONSE_ENRICHMENT);
+		strategy = strategy == null || strategy.trim().isEmpty() ? ENRICHMENT_SYNTHESIZE : strategy.trim().toLowerCase(Locale.ENGLISH);
+
+		if (ENRICHMENT_NONE.equals(strategy)) {
+			countEnrichment("none");
+			return originalResponse;
+		}
+		if (ENRICHMENT_FETCH.equals(strategy)) {
+			ResponseEntity<String> fetched = fetchCreatedOrUpdatedPatient(
+				originalResponse, transformedBody, openhimBaseUrl, username, password);
+			countEnrichment(fetched != originalResponse ? "fetched" : "fetchFailed");
+			return fetched;
+		}
+		if (!ENRICHMENT_SYNTHESIZE.equals(strategy)) {
+			log.warn("Unknown value '" + strategy + "' of " + PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_EMPTY_RESPONSE_ENRICHMENT
+					+ ", synthesizing the response");
+		}
+		ResponseEntity<String> synthesized = synthesizeCreateUpdateResponse(originalResponse, transformedBody);
+		countEnrichment(synthesized != originalResponse ? "synthesized" : "synthesizeFailed");
+		return synthesized;
+	}
+
+	/**
+	 * Build the response to an empty create/update from the request that was sent
+	 *
+	 * The logical id, and the version when the server assigns one, are taken from the Location
+	 * header (.../Patient/{id}/_history/{version}), or else Content-Location; the version from the
+	 * ETag (W/"{version}") otherwise. meta.lastUpdated is the Last-Modified header, or the time the
+	 * response was received. Location, ETag and Last-Modified are returned to the client as sent.
+	 *
+	 * @param originalResponse Empty response from OpenHIM POST/PUT
+	 * @param transformedBody Transformed request body (has UPI as Patient.id)
+	 * @return Response with the patient, or original if the request body cannot be used
+	 */
+	private ResponseEntity<String> synthesizeCreateUpdateResponse(
+			ResponseEntity<String> originalResponse,
+			String transformedBody) {
+
 		try {
-			// Only enrich if response is successful but empty
-			if (!originalResponse.getStatusCode().is2xxSuccessful()) {
+			if (transformedBody == null || transformedBody.isEmpty()) {
+				log.warn("No request body to synthesize the response from, returning empty response");
 				return originalResponse;
 			}
-
-			String responseBody = originalResponse.getBody();
-			if (responseBody != null && !responseBody.trim().isEmpty()) {
-				// Response has content, no enrichment needed
+			JsonObject patient = new JsonParser().parse(transformedBody).getAsJsonObject();
+			HttpHeaders upstreamHeaders = originalResponse.getHeaders();
+
+			String id = null;
+			String versionId = null;
+			String location = upstreamHeaders.getFirst(HttpHeaders.LOCATION);
+			if (location == null) {
+				location = upstreamHeaders.getFirst(HttpHeaders.CONTENT_LOCATION);
+			}
+			if (location != null) {
+				Matcher matcher = RESOURCE_LOCATION.matcher(location);
+				if (matcher.find()) {
+					id = matcher.group(1);
+					versionId = matcher.group(2);
+				}
+			}
+			String etag = upstreamHeaders.getETag();
+			if (versionId == null && etag != null) {
+				versionId = etag.replaceFirst("^W/", "").replace("\"", "");
+			}
+			if (id != null) {
+				patient.addProperty("id", id);
+			} else if (!patient.has("id")) {
+				log.warn("No patient ID in request or response headers, returning empty response");
 				return originalResponse;
 			}
 
+			JsonObject meta = patient.has("meta") && patient.get("meta").isJsonObject()
+				? patient.getAsJsonObject("meta") : new JsonObject();
+			if (versionId != null && !versionId.isEmpty()) {
+				meta.addProperty("versionId", versionId);
+			}
+			long lastModified = upstreamHeaders.getLastModified();
+			SimpleDateFormat instant = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+			instant.setTimeZone(TimeZone.getTimeZone("UTC"));
+			meta.addProperty("lastUpdated", instant.format(new Date(lastModified > 0 ? lastModified : System.currentTimeMillis())));
+			patient.add("meta", meta);
+
+			HttpHeaders headers = new HttpHeaders();
+			for (String name : Arrays.asList(HttpHeaders.LOCATION, HttpHeaders.CONTENT_LOCATION, HttpHeaders.ETAG,
+					HttpHeaders.LAST_MODIFIED)) {
+				List<String> values = upstreamHeaders.get(name);
+				if (values != null) {
+					headers.put(name, values);
+				}
+			}
+			headers.setContentType(MediaType.parseMediaType("application/fhir+json;charset=UTF-8"));
+
+			log.info("Synthesized " + originalResponse.getStatusCode() + " response for Patient/"
+					+ patient.get("id").getAsString() + " from the request");
+			return ResponseEntity.status(originalResponse.getStatusCode())
+				.headers(headers)
+				.body(patient.toString());
+
+		} catch (Exception e) {
+			log.warn("Failed to synthesize response from request: " + e.getMessage());
+			return originalResponse;
+		}
+	}
+
+	/**
+	 * Fetch the created/updated patient back from OpenHIM
+	 *
+	 * 1. Extracts patient ID from the transformed request body
+	 * 2. Fetches the patient back from OpenHIM via GET
+	 * 3. Returns enriched response with full patient data
+	 *
+	 * @param originalResponse Empty response from OpenHIM POST/PUT
+	 * @param transformedBody Transformed request body (has UPI as Patient.id)
+	 * @param openhimBaseUrl OpenHIM base URL
+	 * @param username OpenHIM username for auth
+	 * @param password OpenHIM password for auth
+	 * @return Enriched response with patient data, or original if the fetch failed
+	 */
+	private ResponseEntity<String> fetchCreatedOrUpdatedPatient(
+			ResponseEntity<String> originalResponse,
+			String transformedBody,
+			String openhimBaseUrl,
+			String username,
+			String password) {
+
+		try {
 			log.info("OpenHIM returned empty body for POST/PUT, fetching patient back...");
 
 			// Extract patient ID from transformed request body
@@ -684,7 +1155,7 @@ public class OpenHIMClientRegistryProxy {
 			headers.set("Accept", "application/fhir+json, application/json");
 			HttpEntity<String> fetchEntity = new HttpEntity<>(headers);
 
-			RestTemplate restTemplate = new RestTemplate();
+			RestTemplate restTemplate = httpClient.getRestTemplate();
 			ResponseEntity<String> fetchResponse = restTemplate.exchange(
 				fetchUrl, HttpMethod.GET, fetchEntity, String.class);
 
@@ -715,6 +1186,32 @@ public class OpenHIMClientRegistryProxy {
 		}
 	}
 
+	/**
+	 * How empty create/update responses were handled, for monitoring
+	 *
+	 * @return number of responses per path: synthesized, synthesizeFailed, fetched, fetchFailed,
+	 *         none (enrichment disabled) and upstreamBody (OpenHIM returned a body)
+	 */
+	public Map<String, Long> getEnrichmentStats() {
+		Map<String, Long> stats = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : enrichmentCounts.entrySet()) {
+			stats.put(entry.getKey(), entry.getValue().get());
+		}
+		return stats;
+	}
+
+	private void countEnrichment(String path) {
+		AtomicLong count = enrichmentCounts.get(path);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = enrichmentCounts.putIfAbsent(path, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
 	/**
 	 * Extract Patient.id from FHIR JSON request body
 	 *
@@ -0,0 +1,291 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared HTTP client for every outbound call to OpenHIM (Client Registry, NPR/NIDA, DHIS2)
+ * and the local SHR migration endpoint.
+ *
+ * Connections are kept alive and pooled, so repeated lookups from the registration desk
+ * reuse the same TCP/TLS connection instead of opening a new one per request.
+ * Pool size and timeouts are read from global properties the first time the client is used.
+ * Once the module has started the client, saving or deleting one of the primaryCare.http.*
+ * properties calls {@link #reset()}, so the next call rebuilds the pool with the new values.
+ *
+ * {@link #getStreamingHttpClient()} shares the same pool for requests whose bodies are piped
+ * through unchanged.
+ *
+ * Non Spring-managed classes should obtain the bean through {@link #getInstance()}.
+ */
+@Component("rwandaprimarycare.openHIMHttpClient")
+public class OpenHIMHttpClient implements GlobalPropertyListener {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	private static final String HTTP_PROPERTY_PREFIX = "primaryCare.http.";
+
+	private static final int DEFAULT_MAX_CONNECTIONS = 40;
+	private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+	private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	private static final int DEFAULT_READ_TIMEOUT = 30000;
+	private static final int DEFAULT_POOL_ACQUIRE_TIMEOUT = 2000;
+
+	/**
+	 * Idle connections are validated before reuse and closed once idle for this long
+	 */
+	private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+	private static final long IDLE_CONNECTION_EVICTION_SECONDS = 30;
+
+	private volatile PoolingHttpClientConnectionManager connectionManager;
+	private volatile CloseableHttpClient httpClient;
+	private volatile CloseableHttpClient streamingHttpClient;
+	private volatile RestTemplate restTemplate;
+	private volatile RequestConfig streamingRequestConfig;
+
+	private volatile boolean listening;
+
+	/**
+	 * @return the Spring-managed instance of this client
+	 */
+	public static OpenHIMHttpClient getInstance() {
+		return Context.getRegisteredComponent("rwandaprimarycare.openHIMHttpClient", OpenHIMHttpClient.class);
+	}
+
+	/**
+	 * Starts following changes of the primaryCare.http.* global properties
+	 */
+	public synchronized void start() {
+		if (!listening) {
+			Context.getAdministrationService().addGlobalPropertyListener(this);
+			listening = true;
+		}
+	}
+
+	/**
+	 * Stops following global property changes and closes the pool
+	 */
+	@PreDestroy
+	public synchronized void stop() {
+		if (listening) {
+			try {
+				Context.getAdministrationService().removeGlobalPropertyListener(this);
+			} catch (Exception e) {
+				log.debug("Could not remove the global property listener: " + e.getMessage());
+			}
+			listening = false;
+		}
+		close();
+	}
+
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return propertyName != null && propertyName.startsWith(HTTP_PROPERTY_PREFIX);
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		log.info("Global property " + newValue.getProperty() + " changed, rebuilding the OpenHIM HTTP pool on next use");
+		reset();
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		log.info("Global property " + propertyName + " deleted, rebuilding the OpenHIM HTTP pool on next use");
+		reset();
+	}
+
+	/**
+	 * Convenience method for the common case of needing only the pooled RestTemplate
+	 *
+	 * @return the shared RestTemplate
+	 */
+	public static RestTemplate getSharedRestTemplate() {
+		return getInstance().getRestTemplate();
+	}
+
+	/**
+	 * @return a RestTemplate backed by the shared connection pool; safe for concurrent use
+	 */
+	public RestTemplate getRestTemplate() {
+		RestTemplate template = restTemplate;
+		if (template == null) {
+			synchronized (this) {
+				if (restTemplate == null) {
+					initialize();
+				}
+				template = restTemplate;
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * Client on the same pool that leaves Accept-Encoding and Content-Encoding alone: compressed
+	 * response bodies are returned as received, so they can be relayed without being inflated.
+	 * Response entities must be consumed or closed to give the connection back to the pool.
+	 *
+	 * @return the shared streaming client; safe for concurrent use
+	 */
+	public CloseableHttpClient getStreamingHttpClient() {
+		CloseableHttpClient client = streamingHttpClient;
+		if (client == null) {
+			synchronized (this) {
+				if (streamingHttpClient == null) {
+					initialize();
+				}
+				client = streamingHttpClient;
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Request config of the streaming client with every timeout capped, so that a request made
+	 * with it gives up by the given time at the latest
+	 *
+	 * @param remaining milliseconds left, at least 1
+	 * @return the request config to set on the request
+	 */
+	public RequestConfig getStreamingRequestConfig(long remaining) {
+		getStreamingHttpClient();
+		RequestConfig defaults = streamingRequestConfig;
+		int cap = (int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE));
+		return RequestConfig.copy(defaults)
+				.setConnectTimeout(Math.min(defaults.getConnectTimeout(), cap))
+				.setSocketTimeout(Math.min(defaults.getSocketTimeout(), cap))
+				.setConnectionRequestTimeout(Math.min(defaults.getConnectionRequestTimeout(), cap))
+				.build();
+	}
+
+	/**
+	 * Closes the current pool; the next call to {@link #getRestTemplate()} rebuilds it using
+	 * the current global property values
+	 */
+	public synchronized void reset() {
+		close();
+	}
+
+	/**
+	 * Pool statistics across all routes
+	 *
+	 * @return map with leased, available, pending and max connection counts
+	 */
+	public Map<String, Integer> getPoolStats() {
+		Map<String, Integer> stats = new LinkedHashMap<String, Integer>();
+		PoolingHttpClientConnectionManager manager = connectionManager;
+		if (manager == null) {
+			stats.put("leased", 0);
+			stats.put("available", 0);
+			stats.put("pending", 0);
+			stats.put("max", 0);
+			return stats;
+		}
+		PoolStats total = manager.getTotalStats();
+		stats.put("leased", total.getLeased());
+		stats.put("available", total.getAvailable());
+		stats.put("pending", total.getPending());
+		stats.put("max", total.getMax());
+		return stats;
+	}
+
+	public synchronized void close() {
+		restTemplate = null;
+		if (streamingHttpClient != null) {
+			try {
+				streamingHttpClient.close();
+			} catch (IOException e) {
+				log.warn("Error closing streaming HTTP client: " + e.getMessage());
+			}
+			streamingHttpClient = null;
+		}
+		if (httpClient != null) {
+			try {
+				httpClient.close();
+			} catch (IOException e) {
+				log.warn("Error closing pooled HTTP client: " + e.getMessage());
+			}
+			httpClient = null;
+		}
+		if (connectionManager != null) {
+			connectionManager.shutdown();
+			connectionManager = null;
+		}
+	}
+
+	private void initialize() {
+		PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+		int maxTotal = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_HTTP_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS);
+		int maxPerRoute = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_HTTP_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+		int connectTimeout = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_HTTP_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT);
+		int readTimeout = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_HTTP_READ_TIMEOUT, DEFAULT_READ_TIMEOUT);
+		int acquireTimeout = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_HTTP_POOL_ACQUIRE_TIMEOUT, DEFAULT_POOL_ACQUIRE_TIMEOUT);
+
+		PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager();
+		manager.setMaxTotal(maxTotal);
+		manager.setDefaultMaxPerRoute(maxPerRoute);
+		manager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+		CloseableHttpClient client = HttpClients.custom()
+				.setConnectionManager(manager)
+				.evictExpiredConnections()
+				.evictIdleConnections(IDLE_CONNECTION_EVICTION_SECONDS, TimeUnit.SECONDS)
+				.build();
+
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(client);
+		requestFactory.setConnectTimeout(connectTimeout);
+		requestFactory.setReadTimeout(readTimeout);
+		requestFactory.setConnectionRequestTimeout(acquireTimeout);
+
+		// the pool and its eviction belong to the client above
+		RequestConfig streamingConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout)
+				.setConnectionRequestTimeout(acquireTimeout)
+				.build();
+		CloseableHttpClient streamingClient = HttpClients.custom()
+				.setConnectionManager(manager)
+				.setConnectionManagerShared(true)
+				.disableContentCompression()
+				.setDefaultRequestConfig(streamingConfig)
+				.build();
+
+		connectionManager = manager;
+		httpClient = client;
+		streamingRequestConfig = streamingConfig;
+		streamingHttpClient = streamingClient;
+		restTemplate = new RestTemplate(requestFactory);
+
+		log.info("Initialized pooled OpenHIM HTTP client (maxTotal=" + maxTotal + ", maxPerRoute=" + maxPerRoute
+				+ ", connectTimeout=" + connectTimeout + "ms, readTimeout=" + readTimeout
+				+ "ms, poolAcquireTimeout=" + acquireTimeout + "ms)");
+	}
+}
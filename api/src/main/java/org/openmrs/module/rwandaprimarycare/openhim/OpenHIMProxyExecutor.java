@@ -0,0 +1,151 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.DaemonThreadFactory;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the OpenHIM exchanges of the Client Registry proxy off the servlet container threads.
+ *
+ * The proxy controller hands each request over and returns, so a slow MPI ties up at most
+ * primaryCare.openhim.proxyThreads threads of this pool rather than the connector threads that
+ * serve the OpenMRS UI. At most primaryCare.openhim.proxyQueueSize requests wait for a thread;
+ * beyond that {@link #submit} refuses the request, which the controller answers with a 503.
+ * Pool and queue sizes are read when the module starts the pool.
+ *
+ * An exchange only calls OpenHIM and reads global properties, so it runs in an OpenMRS session of
+ * its own without an authenticated user; the UserContext of the request thread is not thread safe
+ * and is never handed to the pool.
+ */
+@Component("rwandaprimarycare.openHIMProxyExecutor")
+public class OpenHIMProxyExecutor {
+
+    protected final Log log = LogFactory.getLog(OpenHIMProxyExecutor.class);
+
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_QUEUE_SIZE = 32;
+    private static final int DEFAULT_TIMEOUT = 45000;
+
+    private volatile ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * @return the Spring-managed instance of the proxy pool
+     */
+    public static OpenHIMProxyExecutor getInstance() {
+        return Context.getRegisteredComponent("rwandaprimarycare.openHIMProxyExecutor", OpenHIMProxyExecutor.class);
+    }
+
+    /**
+     * Creates the pool
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+        int threads = Math.max(1, config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_PROXY_THREADS, DEFAULT_THREADS));
+        int queueSize = Math.max(1, config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_PROXY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory("rwandaprimarycare-openhim-proxy-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        log.info("OpenHIM proxy pool started (threads=" + threads + ", queueSize=" + queueSize + ")");
+    }
+
+    /**
+     * Stops the pool, interrupting the exchanges still running
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            log.info("OpenHIM proxy pool stopped");
+        }
+    }
+
+    /**
+     * Queues an exchange, to run with its own OpenMRS session
+     *
+     * @return the queued exchange, which can be cancelled once the request timed out
+     * @throws RejectedExecutionException if all threads are busy and the queue is full, or the
+     *         pool is not running
+     */
+    public Future<?> submit(final Runnable exchange) {
+        try {
+            ThreadPoolExecutor current = executor;
+            if (current == null) {
+                throw new RejectedExecutionException("OpenHIM proxy pool not started");
+            }
+            Future<?> future = current.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    Context.openSession();
+                    try {
+                        exchange.run();
+                    } finally {
+                        Context.closeSession();
+                    }
+                }
+            });
+            submitted.incrementAndGet();
+            return future;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return how long a proxied request may take, queueing included, in milliseconds
+     */
+    public long getTimeout() {
+        return Math.max(1, PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_PROXY_TIMEOUT,
+                DEFAULT_TIMEOUT));
+    }
+
+    public void timedOut() {
+        timedOut.incrementAndGet();
+    }
+
+    /**
+     * @return pool usage and the number of requests refused or timed out, for monitoring
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        ThreadPoolExecutor current = executor;
+        stats.put("running", current != null);
+        if (current != null) {
+            stats.put("threads", current.getMaximumPoolSize());
+            stats.put("active", current.getActiveCount());
+            stats.put("queued", current.getQueue().size());
+            stats.put("queueCapacity", current.getQueue().size() + current.getQueue().remainingCapacity());
+            stats.put("completed", current.getCompletedTaskCount());
+        }
+        stats.put("submitted", submitted.get());
+        stats.put("rejected", rejected.get());
+        stats.put("timedOut", timedOut.get());
+        return stats;
+    }
+}
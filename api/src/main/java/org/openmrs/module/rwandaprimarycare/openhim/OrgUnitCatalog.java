@@ -0,0 +1,478 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import com.google.gson.Gson;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.DaemonThreadFactory;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.openhim.CircuitBreakers.Upstream;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DHIS2 organisation units, kept in memory for /rwandaprimarycare/orgUnit.
+ *
+ * The whole national hierarchy is a multi-megabyte answer, so it is fetched from DHIS2 (through
+ * OpenHIM) when the module starts and then revalidated every primaryCare.dhis2.orgUnitRefreshInterval
+ * seconds in a daemon thread, with the ETag and Last-Modified DHIS2 sent last time: an unchanged
+ * catalog costs a 304. The last good copy is also written to the application data directory, so a
+ * restart, or a DHIS2 outage, serves it at once instead of failing. Without any copy, one request
+ * fetches the catalog; after a failed fetch requests get no catalog, without calling DHIS2, until
+ * the retry RETRY_INTERVAL seconds later.
+ *
+ * The catalog has its own ETag, a hash of the served body, so clients revalidate with
+ * If-None-Match. Clients that need only part of it can filter by code or name prefix; both are
+ * answered from lists sorted once per refresh.
+ */
+@Component("rwandaprimarycare.orgUnitCatalog")
+public class OrgUnitCatalog {
+
+    protected final Log log = LogFactory.getLog(OrgUnitCatalog.class);
+
+    private static final int DEFAULT_REFRESH_INTERVAL = 6 * 60 * 60;
+    private static final int RETRY_INTERVAL = 5 * 60;
+    private static final String CATALOG_FILE = "dhis2OrgUnits.json";
+
+    private final Object refreshLock = new Object();
+
+    private volatile ScheduledExecutorService refresher;
+
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile Catalog catalog;
+    private volatile Date lastRefresh;
+    private volatile String lastError;
+
+    // until then requests do not fetch a missing catalog themselves; guarded by refreshLock
+    private long nextFetch;
+
+    /**
+     * @return the Spring-managed instance of this catalog
+     */
+    public static OrgUnitCatalog getInstance() {
+        return Context.getRegisteredComponent("rwandaprimarycare.orgUnitCatalog", OrgUnitCatalog.class);
+    }
+
+    /**
+     * Loads the copy on disk, if any, and revalidates it with DHIS2 in the background
+     */
+    public synchronized void start() {
+        if (refresher != null) {
+            return;
+        }
+        catalog = load();
+        refresher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rwandaprimarycare-dhis2-org-units-"));
+        scheduleRefresh(0);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+        catalog = null;
+    }
+
+    /**
+     * @return the catalog, fetched now if there is neither a copy in memory nor on disk, or null if
+     *         it could not be fetched lately
+     */
+    public Catalog getCatalog() {
+        Catalog current = catalog;
+        if (current != null || refresher == null) {
+            return current;
+        }
+        synchronized (refreshLock) {
+            // requests that waited for a failed fetch do not try again
+            if (catalog == null && System.currentTimeMillis() >= nextFetch) {
+                refresh();
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * @return size and age of the catalog and refresh statistics, for monitoring
+     */
+    public Map<String, Object> getStatus() {
+        Catalog current = catalog;
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("orgUnits", current != null ? current.units.size() : 0);
+        status.put("etag", current != null ? current.etag : null);
+        status.put("fetched", current != null ? new Date(current.fetched) : null);
+        status.put("upstreamEtag", current != null ? current.upstreamEtag : null);
+        status.put("upstreamLastModified", current != null ? current.upstreamLastModified : null);
+        status.put("refreshInterval", getRefreshInterval());
+        status.put("refreshes", refreshes.get());
+        status.put("notModified", notModified.get());
+        status.put("failures", failures.get());
+        status.put("lastRefresh", lastRefresh);
+        status.put("lastError", lastError);
+        return status;
+    }
+
+    private void scheduleRefresh(long delaySeconds) {
+        ScheduledExecutorService current = refresher;
+        if (current == null || current.isShutdown()) {
+            return;
+        }
+        current.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                boolean refreshed = false;
+                try {
+                    Context.openSession();
+                    synchronized (refreshLock) {
+                        refreshed = refresh();
+                    }
+                } catch (Throwable t) {
+                    log.error("Refresh of the DHIS2 organisation units failed unexpectedly", t);
+                } finally {
+                    Context.closeSession();
+                    scheduleRefresh(refreshed ? getRefreshInterval() : Math.min(RETRY_INTERVAL, getRefreshInterval()));
+                }
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Revalidates the catalog with DHIS2; must hold refreshLock. After a failure requests do not
+     * fetch a missing catalog before the background retry.
+     *
+     * @return false if DHIS2 could not be reached, the current catalog is then kept
+     */
+    private boolean refresh() {
+        final Catalog current = catalog;
+        PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+        String dhis2ServerPrefix = config.getDhis2OrganizationUnitCode();
+        final String url = config.getOpenHimNidaApi()
+                + (dhis2ServerPrefix != null && dhis2ServerPrefix.toLowerCase().indexOf("null") != 0 ? dhis2ServerPrefix : "")
+                + "/api/organisationUnits?paging=false&fields=id,name,displayName,code";
+
+        HttpHeaders headers = new HttpHeaders();
+        if (config.getOpenHimUser() != null && config.getOpenHimPassword() != null) {
+            headers.set(HttpHeaders.AUTHORIZATION, "Basic "
+                    + new String(Base64.encodeBase64((config.getOpenHimUser() + ":" + config.getOpenHimPassword()).getBytes())));
+        }
+        if (current != null && current.upstreamEtag != null) {
+            headers.set(HttpHeaders.IF_NONE_MATCH, current.upstreamEtag);
+        }
+        if (current != null && current.upstreamLastModified != null) {
+            headers.set(HttpHeaders.IF_MODIFIED_SINCE, current.upstreamLastModified);
+        }
+        final HttpEntity<String> request = new HttpEntity<String>(headers);
+        try {
+            ResponseEntity<String> response = CircuitBreakers.of(Upstream.DHIS2).execute(new Callable<ResponseEntity<String>>() {
+
+                @Override
+                public ResponseEntity<String> call() {
+                    return OpenHIMHttpClient.getSharedRestTemplate().exchange(url, HttpMethod.GET, request, String.class);
+                }
+            });
+            lastRefresh = new Date();
+            if (response.getStatusCode() == HttpStatus.NOT_MODIFIED && current != null) {
+                notModified.incrementAndGet();
+                lastError = null;
+                return true;
+            }
+            if (!response.getStatusCode().is2xxSuccessful() || response.getBody() == null) {
+                throw new IllegalStateException("DHIS2 answered " + response.getStatusCode() + " without organisation units");
+            }
+            OrgUnits parsed = new Gson().fromJson(response.getBody(), OrgUnits.class);
+            if (parsed == null || parsed.organisationUnits == null) {
+                throw new IllegalStateException("DHIS2 answer has no organisationUnits member");
+            }
+            Catalog refreshed = new Catalog(parsed.organisationUnits, response.getHeaders().getETag(),
+                    response.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED), System.currentTimeMillis());
+            catalog = refreshed;
+            refreshes.incrementAndGet();
+            lastError = null;
+            save(refreshed);
+            log.info("Loaded " + refreshed.units.size() + " DHIS2 organisation units");
+            return true;
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            nextFetch = System.currentTimeMillis() + Math.min(RETRY_INTERVAL, getRefreshInterval()) * 1000L;
+            lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+            log.warn("Could not refresh the DHIS2 organisation units" + (current != null ? ", keeping the copy of "
+                    + new Date(current.fetched) : "") + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private int getRefreshInterval() {
+        return Math.max(60, PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_DHIS2_ORG_UNIT_REFRESH_INTERVAL,
+                DEFAULT_REFRESH_INTERVAL));
+    }
+
+    private File getCatalogFile() {
+        return new File(OpenmrsUtil.getDirectoryInApplicationDataDirectory("rwandaprimarycare"), CATALOG_FILE);
+    }
+
+    private Catalog load() {
+        try {
+            File file = getCatalogFile();
+            if (!file.isFile()) {
+                return null;
+            }
+            Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            try {
+                StoredCatalog stored = new Gson().fromJson(reader, StoredCatalog.class);
+                if (stored == null || stored.organisationUnits == null) {
+                    return null;
+                }
+                Catalog loaded = new Catalog(stored.organisationUnits, stored.etag, stored.lastModified, stored.fetched);
+                log.info("Loaded " + loaded.units.size() + " DHIS2 organisation units fetched " + new Date(loaded.fetched)
+                        + " from " + file);
+                return loaded;
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            log.warn("Could not read the stored DHIS2 organisation units: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the catalog next to the previous copy and swaps them, so a crash midway never leaves a
+     * truncated file
+     */
+    private void save(Catalog catalog) {
+        File file = getCatalogFile();
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            StoredCatalog stored = new StoredCatalog();
+            stored.etag = catalog.upstreamEtag;
+            stored.lastModified = catalog.upstreamLastModified;
+            stored.fetched = catalog.fetched;
+            stored.organisationUnits = catalog.units;
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                new Gson().toJson(stored, writer);
+            } finally {
+                writer.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not store the DHIS2 organisation units in " + file + ": " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * One organisation unit, as DHIS2 returns it with fields=id,name,displayName,code
+     */
+    public static class OrgUnit {
+
+        private String id;
+        private String name;
+        private String displayName;
+        private String code;
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public String getCode() {
+            return code;
+        }
+    }
+
+    /**
+     * Body of the DHIS2 answer, and of ours
+     */
+    private static class OrgUnits {
+
+        private List<OrgUnit> organisationUnits;
+
+        OrgUnits(List<OrgUnit> organisationUnits) {
+            this.organisationUnits = organisationUnits;
+        }
+    }
+
+    /**
+     * Content of the catalog file
+     */
+    private static class StoredCatalog {
+
+        private String etag;
+        private String lastModified;
+        private long fetched;
+        private List<OrgUnit> organisationUnits;
+    }
+
+    /**
+     * One version of the catalog, never modified once built
+     */
+    public static class Catalog {
+
+        private final List<OrgUnit> units;
+        private final String body;
+        private final String etag;
+        private final String upstreamEtag;
+        private final String upstreamLastModified;
+        private final long fetched;
+
+        // units sorted by lower case code and name, with the keys alongside for binary search
+        private final OrgUnit[] byCode;
+        private final String[] codeKeys;
+        private final OrgUnit[] byName;
+        private final String[] nameKeys;
+
+        Catalog(List<OrgUnit> units, String upstreamEtag, String upstreamLastModified, long fetched) {
+            this.units = Collections.unmodifiableList(new ArrayList<OrgUnit>(units));
+            this.body = new Gson().toJson(new OrgUnits(this.units));
+            this.etag = "\"" + DigestUtils.md5Hex(body) + "\"";
+            this.upstreamEtag = upstreamEtag;
+            this.upstreamLastModified = upstreamLastModified;
+            this.fetched = fetched;
+            this.byCode = sort(this.units, true);
+            this.codeKeys = keys(byCode, true);
+            this.byName = sort(this.units, false);
+            this.nameKeys = keys(byName, false);
+        }
+
+        public List<OrgUnit> getUnits() {
+            return units;
+        }
+
+        public long getFetched() {
+            return fetched;
+        }
+
+        /**
+         * @return the ETag of the answer for the given filter
+         */
+        public String getEtag(String codePrefix, String namePrefix) {
+            if (isBlank(codePrefix) && isBlank(namePrefix)) {
+                return etag;
+            }
+            return "\"" + DigestUtils.md5Hex(etag + "|" + normalize(codePrefix) + "|" + normalize(namePrefix)) + "\"";
+        }
+
+        /**
+         * @return the units whose code starts with codePrefix and whose name starts with namePrefix,
+         *         ignoring case, as a DHIS2 organisationUnits answer; a null prefix matches all
+         */
+        public String getBody(String codePrefix, String namePrefix) {
+            if (isBlank(codePrefix) && isBlank(namePrefix)) {
+                return body;
+            }
+            List<OrgUnit> found;
+            if (!isBlank(codePrefix)) {
+                found = withPrefix(byCode, codeKeys, normalize(codePrefix));
+                if (!isBlank(namePrefix)) {
+                    String prefix = normalize(namePrefix);
+                    List<OrgUnit> both = new ArrayList<OrgUnit>();
+                    for (OrgUnit unit : found) {
+                        if (key(unit, false).startsWith(prefix)) {
+                            both.add(unit);
+                        }
+                    }
+                    found = both;
+                }
+            } else {
+                found = withPrefix(byName, nameKeys, normalize(namePrefix));
+            }
+            return new Gson().toJson(new OrgUnits(found));
+        }
+
+        private static List<OrgUnit> withPrefix(OrgUnit[] sorted, String[] keys, String prefix) {
+            int from = Arrays.binarySearch(keys, prefix);
+            if (from < 0) {
+                from = -from - 1;
+            } else {
+                // the first of equal keys
+                while (from > 0 && keys[from - 1].equals(prefix)) {
+                    from--;
+                }
+            }
+            List<OrgUnit> found = new ArrayList<OrgUnit>();
+            for (int i = from; i < keys.length && keys[i].startsWith(prefix); i++) {
+                found.add(sorted[i]);
+            }
+            return found;
+        }
+
+        private static OrgUnit[] sort(List<OrgUnit> units, final boolean byCode) {
+            OrgUnit[] sorted = units.toArray(new OrgUnit[units.size()]);
+            Arrays.sort(sorted, new Comparator<OrgUnit>() {
+
+                @Override
+                public int compare(OrgUnit a, OrgUnit b) {
+                    return key(a, byCode).compareTo(key(b, byCode));
+                }
+            });
+            return sorted;
+        }
+
+        private static String[] keys(OrgUnit[] sorted, boolean byCode) {
+            String[] keys = new String[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                keys[i] = key(sorted[i], byCode);
+            }
+            return keys;
+        }
+
+        private static String key(OrgUnit unit, boolean byCode) {
+            String value = byCode ? unit.code : (unit.name != null ? unit.name : unit.displayName);
+            return normalize(value);
+        }
+
+        private static String normalize(String value) {
+            return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+        }
+
+        private static boolean isBlank(String value) {
+            return value == null || value.trim().isEmpty();
+        }
+    }
+}
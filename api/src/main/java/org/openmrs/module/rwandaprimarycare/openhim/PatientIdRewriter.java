@@ -0,0 +1,370 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+/**
+ * Sets Patient.id to the value of the UPI identifier in a FHIR JSON Patient, without building
+ * the resource model.
+ *
+ * The body is scanned once: the top-level "resourceType", "id" and "identifier" members are read,
+ * every other value is only skipped over. The output is the input with the value of "id" replaced,
+ * or with an "id" member inserted at the start of the object if there was none, so all the other
+ * bytes (order of elements, whitespace, extensions HAPI does not know) reach OpenHIM unchanged.
+ *
+ * Input that is not well-formed JSON is rejected with an IllegalArgumentException.
+ */
+final class PatientIdRewriter {
+
+	private final String json;
+
+	private int pos;
+
+	private PatientIdRewriter(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * @param json a FHIR Patient in JSON
+	 * @return the body with Patient.id set to the first non-empty identifier of system UPI, or null
+	 *         if the resource is not a Patient or has no UPI identifier
+	 * @throws IllegalArgumentException if json is not a well-formed JSON object
+	 */
+	static String setIdToUpi(String json) {
+		return new PatientIdRewriter(json).rewrite();
+	}
+
+	private String rewrite() {
+		skipWhitespace();
+		expect('{');
+		int objectStart = pos;
+		int idStart = -1;
+		int idEnd = -1;
+		boolean patient = false;
+		String upi = null;
+		boolean empty = true;
+
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+		} else {
+			while (true) {
+				empty = false;
+				String name = readString();
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				if ("id".equals(name)) {
+					idStart = pos;
+					skipValue();
+					idEnd = pos;
+				} else if ("resourceType".equals(name) && peek() == '"') {
+					patient = "Patient".equals(readString());
+				} else if ("identifier".equals(name) && peek() == '[') {
+					String found = readUpi();
+					if (upi == null) {
+						upi = found;
+					}
+				} else {
+					skipValue();
+				}
+				skipWhitespace();
+				char c = next();
+				if (c == '}') {
+					break;
+				}
+				if (c != ',') {
+					throw malformed("',' or '}' expected");
+				}
+				skipWhitespace();
+			}
+		}
+		skipWhitespace();
+		if (pos < json.length()) {
+			throw malformed("content after the end of the resource");
+		}
+
+		if (!patient || upi == null) {
+			return null;
+		}
+		String id = quote(upi);
+		if (idStart >= 0) {
+			return json.substring(0, idStart) + id + json.substring(idEnd);
+		}
+		return json.substring(0, objectStart) + "\"id\":" + id + (empty ? "" : ",") + json.substring(objectStart);
+	}
+
+	/**
+	 * Reads the identifier array
+	 *
+	 * @return the value of its first identifier of system UPI with a value, or null
+	 */
+	private String readUpi() {
+		String upi = null;
+		expect('[');
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return null;
+		}
+		while (true) {
+			if (peek() == '{') {
+				String found = readUpiIdentifier();
+				if (upi == null) {
+					upi = found;
+				}
+			} else {
+				skipValue();
+			}
+			skipWhitespace();
+			char c = next();
+			if (c == ']') {
+				return upi;
+			}
+			if (c != ',') {
+				throw malformed("',' or ']' expected");
+			}
+			skipWhitespace();
+		}
+	}
+
+	/**
+	 * @return the value of the identifier object if its system is UPI and the value is not empty,
+	 *         otherwise null
+	 */
+	private String readUpiIdentifier() {
+		String system = null;
+		String value = null;
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return null;
+		}
+		while (true) {
+			String name = readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			if ("system".equals(name) && peek() == '"') {
+				system = readString();
+			} else if ("value".equals(name) && peek() == '"') {
+				value = readString();
+			} else {
+				skipValue();
+			}
+			skipWhitespace();
+			char c = next();
+			if (c == '}') {
+				break;
+			}
+			if (c != ',') {
+				throw malformed("',' or '}' expected");
+			}
+			skipWhitespace();
+		}
+		return "UPI".equals(system) && value != null && value.length() > 0 ? value : null;
+	}
+
+	private void skipValue() {
+		char c = peek();
+		if (c == '"') {
+			skipString();
+		} else if (c == '{') {
+			pos++;
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return;
+			}
+			while (true) {
+				skipString();
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				skipValue();
+				skipWhitespace();
+				c = next();
+				if (c == '}') {
+					return;
+				}
+				if (c != ',') {
+					throw malformed("',' or '}' expected");
+				}
+				skipWhitespace();
+			}
+		} else if (c == '[') {
+			pos++;
+			skipWhitespace();
+			if (peek() == ']') {
+				pos++;
+				return;
+			}
+			while (true) {
+				skipValue();
+				skipWhitespace();
+				c = next();
+				if (c == ']') {
+					return;
+				}
+				if (c != ',') {
+					throw malformed("',' or ']' expected");
+				}
+				skipWhitespace();
+			}
+		} else if (c == 't') {
+			expectLiteral("true");
+		} else if (c == 'f') {
+			expectLiteral("false");
+		} else if (c == 'n') {
+			expectLiteral("null");
+		} else if (c == '-' || (c >= '0' && c <= '9')) {
+			int start = pos;
+			while (pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) >= 0) {
+				pos++;
+			}
+			if (pos == start + 1 && c == '-') {
+				throw malformed("number expected");
+			}
+		} else {
+			throw malformed("value expected");
+		}
+	}
+
+	private void skipString() {
+		expect('"');
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return;
+			}
+			if (c == '\\') {
+				next();
+			} else if (c < 0x20) {
+				throw malformed("control character in string");
+			}
+		}
+	}
+
+	private String readString() {
+		expect('"');
+		int start = pos;
+		// fast path: no escape
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return json.substring(start, pos - 1);
+			}
+			if (c == '\\') {
+				break;
+			}
+			if (c < 0x20) {
+				throw malformed("control character in string");
+			}
+		}
+		StringBuilder sb = new StringBuilder(json.substring(start, pos - 1));
+		pos--;
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return sb.toString();
+			}
+			if (c < 0x20) {
+				throw malformed("control character in string");
+			}
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			c = next();
+			switch (c) {
+				case '"':
+				case '\\':
+				case '/':
+					sb.append(c);
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (pos + 4 > json.length()) {
+						throw malformed("truncated unicode escape");
+					}
+					try {
+						sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException e) {
+						throw malformed("invalid unicode escape");
+					}
+					pos += 4;
+					break;
+				default:
+					throw malformed("invalid escape");
+			}
+		}
+	}
+
+	private static String quote(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private void expectLiteral(String literal) {
+		if (!json.startsWith(literal, pos)) {
+			throw malformed(literal + " expected");
+		}
+		pos += literal.length();
+	}
+
+	private void expect(char expected) {
+		if (next() != expected) {
+			throw malformed("'" + expected + "' expected");
+		}
+	}
+
+	private char peek() {
+		if (pos >= json.length()) {
+			throw malformed("unexpected end of input");
+		}
+		return json.charAt(pos);
+	}
+
+	private char next() {
+		char c = peek();
+		pos++;
+		return c;
+	}
+
+	private void skipWhitespace() {
+		while (pos < json.length()) {
+			char c = json.charAt(pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return;
+			}
+			pos++;
+		}
+	}
+
+	private IllegalArgumentException malformed(String message) {
+		return new IllegalArgumentException("Malformed JSON at offset " + pos + ": " + message);
+	}
+}
@@ -0,0 +1,318 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.DaemonThreadFactory;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareBusinessLogic;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.constants.AppConstants;
+import org.openmrs.module.rwandaprimarycare.openhim.CircuitBreakers.Upstream;
+import org.openmrs.module.rwandaprimarycare.pojos.ShrMigration;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Migrates patients to the SHR in the background once they have a UPI.
+ *
+ * The migration used to be a blocking GET to {@link PrimaryCareConstants#MIGRATE_SHR_ENDPOINT}
+ * made before the registration page redirected. {@link #enqueue(Integer)} instead records a
+ * pending row in rwandaprimarycare_shr_migration, one per patient, and hands the patient id to a
+ * pool of primaryCare.shrMigration.workers threads once the transaction that saved the patient
+ * has committed:
+ * - success marks the row COMPLETED
+ * - failure bumps attempts and postpones the row with the backoff of the offline outbox
+ *   (primaryCare.outbox.backoffBase / backoffMax)
+ * - rows past primaryCare.outbox.maxRetries, or rejected with a 4xx, are moved to DEAD_LETTER
+ *
+ * At most primaryCare.shrMigration.queueSize migrations wait in memory; when it is full, and
+ * after a restart, the rows stay pending in the database and are picked up by a sweep every
+ * primaryCare.outbox.interval seconds. A patient being migrated is not queued a second time.
+ */
+@Component("rwandaprimarycare.shrMigrationQueue")
+public class ShrMigrationQueue {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	private static final int DEFAULT_WORKERS = 2;
+	private static final int DEFAULT_QUEUE_SIZE = 100;
+	private static final int DEFAULT_INTERVAL = 60;
+	private static final int DEFAULT_MAX_RETRIES = 10;
+	private static final int DEFAULT_BACKOFF_BASE = 30;
+	private static final int DEFAULT_BACKOFF_MAX = 3600;
+	private static final int MAX_ERROR_LENGTH = 1024;
+
+	private final Set<Integer> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	private final AtomicLong migrated = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
+
+	private volatile ThreadPoolExecutor workers;
+	private volatile ScheduledExecutorService sweeper;
+	private volatile Date lastSweep;
+
+	/**
+	 * @return the Spring-managed instance of this queue
+	 */
+	public static ShrMigrationQueue getInstance() {
+		return Context.getRegisteredComponent("rwandaprimarycare.shrMigrationQueue", ShrMigrationQueue.class);
+	}
+
+	/**
+	 * Starts the workers and sweeps the pending migrations left by the last shutdown
+	 */
+	public synchronized void start() {
+		if (workers != null) {
+			return;
+		}
+		int threads = Math.max(1, PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_SHR_MIGRATION_WORKERS,
+				DEFAULT_WORKERS));
+		int queueSize = Math.max(1, PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_SHR_MIGRATION_QUEUE_SIZE,
+				DEFAULT_QUEUE_SIZE));
+		workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				new DaemonThreadFactory("rwandaprimarycare-shr-migration-"), new ThreadPoolExecutor.AbortPolicy());
+		sweeper = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rwandaprimarycare-shr-migration-sweep-"));
+		scheduleSweep(0);
+		log.info("SHR migration queue started with " + threads + " worker(s)");
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		// pending rows stay in the database for the next start
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+			sweeper = null;
+		}
+		if (workers != null) {
+			workers.shutdownNow();
+			workers = null;
+			log.info("SHR migration queue stopped");
+		}
+		inFlight.clear();
+	}
+
+	/**
+	 * Queues the migration of the patient to the SHR. The pending row joins the current
+	 * transaction, if any, and the patient is handed to the workers only after it commits, so a
+	 * rolled back registration is never migrated and the caller does not wait for the SHR. Errors
+	 * are logged, not thrown.
+	 *
+	 * @param patientId a patient that just got a UPI
+	 */
+	public void enqueue(final Integer patientId) {
+		if (patientId == null) {
+			return;
+		}
+		try {
+			PrimaryCareBusinessLogic.getService().queueShrMigration(patientId);
+		} catch (RuntimeException e) {
+			// the registration itself went through, it must not fail because of the SHR
+			log.error("Could not queue the SHR migration of patient " + patientId, e);
+			return;
+		}
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+				@Override
+				public void afterCommit() {
+					submit(patientId);
+				}
+			});
+		} else {
+			submit(patientId);
+		}
+	}
+
+	/**
+	 * @return migrations per status, in memory depth and statistics since the start, for monitoring
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		ThreadPoolExecutor current = workers;
+		status.put("started", current != null);
+		status.put("counts", PrimaryCareBusinessLogic.getService().getShrMigrationCountsByStatus());
+		status.put("inFlight", inFlight.size());
+		status.put("queued", current != null ? current.getQueue().size() : 0);
+		status.put("active", current != null ? current.getActiveCount() : 0);
+		status.put("migrated", migrated.get());
+		status.put("failed", failed.get());
+		status.put("deferredToSweep", deferred.get());
+		status.put("lastSweep", lastSweep);
+		return status;
+	}
+
+	/**
+	 * Hands the patient to the workers unless it is already with them. When the queue is full the
+	 * row is left to the next sweep.
+	 *
+	 * @return false if the patient could not be handed over
+	 */
+	private boolean submit(final Integer patientId) {
+		ThreadPoolExecutor current = workers;
+		if (current == null || !inFlight.add(patientId)) {
+			return false;
+		}
+		try {
+			current.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						Context.openSession();
+						migrate(patientId);
+					} catch (Throwable t) {
+						log.error("SHR migration of patient " + patientId + " failed unexpectedly", t);
+					} finally {
+						inFlight.remove(patientId);
+						Context.closeSession();
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(patientId);
+			deferred.incrementAndGet();
+			return false;
+		}
+	}
+
+	private void migrate(final Integer patientId) {
+		ShrMigration migration = PrimaryCareBusinessLogic.getService().getShrMigration(patientId);
+		if (migration == null || !AppConstants.PENDING_STATUS.equals(migration.getStatus())) {
+			return;
+		}
+		try {
+			CircuitBreakers.of(Upstream.SHR_MIGRATE).execute(new Callable<ResponseEntity<String>>() {
+
+				@Override
+				public ResponseEntity<String> call() {
+					return OpenHIMHttpClient.getSharedRestTemplate().exchange(PrimaryCareConstants.MIGRATE_SHR_ENDPOINT + patientId,
+							HttpMethod.GET, new HttpEntity<String>(new HttpHeaders()), String.class);
+				}
+			});
+			migration.setStatus(AppConstants.COMPLETED_STATUS);
+			migration.setDateCompleted(new Date());
+			migration.setNextAttempt(null);
+			migration.setLastError(null);
+			migrated.incrementAndGet();
+		} catch (CircuitOpenException e) {
+			// not an attempt: the SHR was not called
+			migration.setNextAttempt(new Date(System.currentTimeMillis() + getBackoffBase() * 1000L));
+		} catch (HttpStatusCodeException e) {
+			boolean permanent = e.getStatusCode().is4xxClientError()
+					&& e.getStatusCode() != HttpStatus.REQUEST_TIMEOUT
+					&& e.getStatusCode() != HttpStatus.TOO_MANY_REQUESTS;
+			recordFailure(migration, e.getStatusCode() + " " + e.getResponseBodyAsString(), permanent);
+		} catch (Exception e) {
+			recordFailure(migration, e.getClass().getSimpleName() + ": " + e.getMessage(), false);
+		}
+		PrimaryCareBusinessLogic.getService().saveShrMigration(migration);
+	}
+
+	private void recordFailure(ShrMigration migration, String error, boolean permanent) {
+		failed.incrementAndGet();
+		int attempts = (migration.getAttempts() == null ? 0 : migration.getAttempts()) + 1;
+		migration.setAttempts(attempts);
+		if (error != null && error.length() > MAX_ERROR_LENGTH) {
+			error = error.substring(0, MAX_ERROR_LENGTH);
+		}
+		migration.setLastError(error);
+		int maxRetries = PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OUTBOX_MAX_RETRIES, DEFAULT_MAX_RETRIES);
+		if (permanent || attempts >= maxRetries) {
+			migration.setStatus(AppConstants.DEAD_LETTER_STATUS);
+			migration.setNextAttempt(null);
+			log.warn("SHR migration of patient " + migration.getPatientId() + " moved to dead letter after " + attempts
+					+ " attempt(s): " + error);
+		} else {
+			int backoffMax = PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OUTBOX_BACKOFF_MAX, DEFAULT_BACKOFF_MAX);
+			long delay = Math.min((long) getBackoffBase() << Math.min(attempts - 1, 20), (long) backoffMax);
+			migration.setNextAttempt(new Date(System.currentTimeMillis() + delay * 1000));
+		}
+	}
+
+	private int getBackoffBase() {
+		return PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OUTBOX_BACKOFF_BASE, DEFAULT_BACKOFF_BASE);
+	}
+
+	private void scheduleSweep(long delaySeconds) {
+		ScheduledExecutorService current = sweeper;
+		if (current == null || current.isShutdown()) {
+			return;
+		}
+		current.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Context.openSession();
+					sweep();
+				} catch (Throwable t) {
+					log.error("SHR migration sweep failed unexpectedly", t);
+				} finally {
+					Context.closeSession();
+					scheduleSweep(Math.max(1, PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_OUTBOX_INTERVAL,
+							DEFAULT_INTERVAL)));
+				}
+			}
+		}, delaySeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Hands the due pending rows to the workers, as many as the queue has room for
+	 */
+	private void sweep() {
+		ThreadPoolExecutor current = workers;
+		if (current == null) {
+			return;
+		}
+		int room = current.getQueue().remainingCapacity();
+		if (room <= 0) {
+			return;
+		}
+		// rows being migrated are pending too, fetch past them
+		List<ShrMigration> due = PrimaryCareBusinessLogic.getService().getShrMigrationsDue(room + inFlight.size());
+		int submitted = 0;
+		for (ShrMigration migration : due) {
+			if (inFlight.contains(migration.getPatientId())) {
+				continue;
+			}
+			if (!submit(migration.getPatientId())) {
+				if (current.getQueue().remainingCapacity() == 0) {
+					break;
+				}
+				continue;
+			}
+			submitted++;
+		}
+		lastSweep = new Date();
+		if (submitted > 0) {
+			log.info("SHR migration sweep queued " + submitted + " pending migration(s)");
+		}
+	}
+}
@@ -13,6 +13,10 @@ public class OfflineTransaction {
     private Date timestamp;
     private Integer isUpdated;
     private Integer retryCount;
+    private String status;
+    private Date nextAttempt;
+    private Date dateSynced;
+    private String lastError;
 
     public Integer getId() {
         return id;
@@ -85,4 +89,36 @@ public class OfflineTransaction {
     public void setRetryCount(Integer retryCount) {
         this.retryCount = retryCount;
     }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Date getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public void setNextAttempt(Date nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
+
+    public Date getDateSynced() {
+        return dateSynced;
+    }
+
+    public void setDateSynced(Date dateSynced) {
+        this.dateSynced = dateSynced;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
 }
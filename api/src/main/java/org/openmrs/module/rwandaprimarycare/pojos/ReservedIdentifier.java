@@ -0,0 +1,62 @@
+package org.openmrs.module.rwandaprimarycare.pojos;
+
+import java.util.Date;
+
+public class ReservedIdentifier {
+
+    private Integer id;
+    private String identifier;
+    private String locationCode;
+    private Integer identifierSourceId;
+    private Date dateReserved;
+
+    public ReservedIdentifier() {
+    }
+
+    public ReservedIdentifier(String identifier, String locationCode, Integer identifierSourceId) {
+        this.identifier = identifier;
+        this.locationCode = locationCode;
+        this.identifierSourceId = identifierSourceId;
+        this.dateReserved = new Date();
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public void setIdentifier(String identifier) {
+        this.identifier = identifier;
+    }
+
+    public String getLocationCode() {
+        return locationCode;
+    }
+
+    public void setLocationCode(String locationCode) {
+        this.locationCode = locationCode;
+    }
+
+    public Integer getIdentifierSourceId() {
+        return identifierSourceId;
+    }
+
+    public void setIdentifierSourceId(Integer identifierSourceId) {
+        this.identifierSourceId = identifierSourceId;
+    }
+
+    public Date getDateReserved() {
+        return dateReserved;
+    }
+
+    public void setDateReserved(Date dateReserved) {
+        this.dateReserved = dateReserved;
+    }
+}
@@ -5,6 +5,7 @@ public class ResponseDTO {
     private String status;
     private Object results;
     private Integer recordsCount;
+    private Long totalCount;
     private String message;
 
     public String getStatus() {
@@ -31,6 +32,14 @@ public class ResponseDTO {
         this.recordsCount = recordsCount;
     }
 
+    public Long getTotalCount() {
+        return totalCount;
+    }
+
+    public void setTotalCount(Long totalCount) {
+        this.totalCount = totalCount;
+    }
+
     public String getMessage() {
         return message;
     }
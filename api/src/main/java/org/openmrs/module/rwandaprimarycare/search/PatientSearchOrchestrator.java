@@ -0,0 +1,201 @@
+package org.openmrs.module.rwandaprimarycare.search;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.DaemonThreadFactory;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.pojos.CrResponse.CrPatient;
+import org.openmrs.module.rwandaprimarycare.pojos.upiIdGeneratorResponse.UPIDGeneratorResponse;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the Client Registry and NPR lookups of a search-by-document on a small bounded pool
+ * shared by all registration desks, of primaryCare.search.threads threads and
+ * primaryCare.search.queueSize waiting lookups, read when the module starts the pool.
+ *
+ * The CR lookup is a plain read, so it starts as soon as the identifier is known and overlaps
+ * with the local search. The NPR lookup asks NPR for a UPI, so it is only made once the local
+ * search and the CR both missed. Each source has its own deadline counted from the start of its
+ * lookup; a lookup that misses it is cancelled and treated as "not found".
+ *
+ * The lookups only call OpenHIM and read global properties, so they run in an OpenMRS session of
+ * their own without an authenticated user; the UserContext of the request thread is not thread
+ * safe and is never handed to the pool.
+ */
+@Component("rwandaprimarycare.patientSearchOrchestrator")
+public class PatientSearchOrchestrator {
+
+    protected final Log log = LogFactory.getLog(PatientSearchOrchestrator.class);
+
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_QUEUE_SIZE = 64;
+    private static final int DEFAULT_CR_DEADLINE = 5000;
+    private static final int DEFAULT_NPR_DEADLINE = 8000;
+
+    private volatile ThreadPoolExecutor executor;
+
+    /**
+     * @return the Spring-managed instance of the orchestrator
+     */
+    public static PatientSearchOrchestrator getInstance() {
+        return Context.getRegisteredComponent("rwandaprimarycare.patientSearchOrchestrator", PatientSearchOrchestrator.class);
+    }
+
+    /**
+     * Creates the pool
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        int threads = Math.max(1, PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_SEARCH_THREADS,
+                DEFAULT_THREADS));
+        int queueSize = Math.max(1, PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_SEARCH_QUEUE_SIZE,
+                DEFAULT_QUEUE_SIZE));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory("rwandaprimarycare-search-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        log.info("Patient search pool started (threads=" + threads + ", queueSize=" + queueSize + ")");
+    }
+
+    /**
+     * Stops the pool, interrupting the lookups still running
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            log.info("Patient search pool stopped");
+        }
+    }
+
+    /**
+     * Starts the Client Registry lookup of one search
+     *
+     * @param crLookup Client Registry lookup
+     * @return handle used to collect (or cancel) the result, and to make the NPR lookup
+     */
+    public RemoteLookup startLookup(Callable<CrPatient> crLookup) {
+        PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+        long crDeadline = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_SEARCH_CR_DEADLINE, DEFAULT_CR_DEADLINE);
+        long nprDeadline = config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_SEARCH_NPR_DEADLINE, DEFAULT_NPR_DEADLINE);
+        return new RemoteLookup(submit(crLookup), crDeadline, nprDeadline);
+    }
+
+    /**
+     * When the pool is saturated, or not started, the lookup runs in the calling thread, which
+     * already has its OpenMRS session, so the search degrades to the old sequential behaviour
+     */
+    private <T> Future<T> submit(Callable<T> lookup) {
+        try {
+            ThreadPoolExecutor current = executor;
+            if (current == null) {
+                throw new RejectedExecutionException("Search pool not started");
+            }
+            return current.submit(inOwnSession(lookup));
+        } catch (RejectedExecutionException e) {
+            log.warn("Search pool saturated or stopped, running lookup in the request thread");
+            FutureTask<T> task = new FutureTask<T>(lookup);
+            task.run();
+            return task;
+        }
+    }
+
+    /**
+     * Runs the lookup with its own OpenMRS session and UserContext
+     */
+    private <T> Callable<T> inOwnSession(final Callable<T> lookup) {
+        return new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                Context.openSession();
+                try {
+                    return lookup.call();
+                } finally {
+                    Context.closeSession();
+                }
+            }
+        };
+    }
+
+    /**
+     * The remote lookups of one search
+     */
+    public class RemoteLookup {
+
+        private final Future<CrPatient> cr;
+        private final long crStartMillis = System.currentTimeMillis();
+        private final long crDeadline;
+        private final long nprDeadline;
+
+        RemoteLookup(Future<CrPatient> cr, long crDeadline, long nprDeadline) {
+            this.cr = cr;
+            this.crDeadline = crDeadline;
+            this.nprDeadline = nprDeadline;
+        }
+
+        /**
+         * @return the CR result, or null if not found, failed or past its deadline
+         */
+        public CrPatient getCrResult() {
+            return await(cr, crStartMillis, crDeadline, "Client Registry");
+        }
+
+        /**
+         * Makes the NPR lookup, to be called only once the local search and the CR both missed
+         *
+         * @param nprLookup NPR lookup
+         * @return the NPR result, or null if not found, failed or past its deadline
+         */
+        public UPIDGeneratorResponse lookupNpr(Callable<UPIDGeneratorResponse> nprLookup) {
+            long startMillis = System.currentTimeMillis();
+            return await(submit(nprLookup), startMillis, nprDeadline, "NPR");
+        }
+
+        /**
+         * Cancels the CR lookup if it is still running
+         */
+        public void cancel() {
+            cr.cancel(true);
+        }
+
+        private <T> T await(Future<T> future, long startMillis, long deadline, String source) {
+            if (future.isCancelled()) {
+                return null;
+            }
+            long remaining = deadline - (System.currentTimeMillis() - startMillis);
+            try {
+                return future.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                log.warn(source + " lookup missed its " + deadline + "ms deadline, cancelling it");
+                future.cancel(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+            } catch (ExecutionException e) {
+                log.error(source + " lookup failed: " + e.getCause());
+            } catch (Exception e) {
+                log.error(source + " lookup failed: " + e.getMessage());
+            }
+            return null;
+        }
+    }
+}
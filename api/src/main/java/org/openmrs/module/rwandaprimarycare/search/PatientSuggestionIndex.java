@@ -0,0 +1,319 @@
+package org.openmrs.module.rwandaprimarycare.search;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Patient;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.DaemonThreadFactory;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareBusinessLogic;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareService.PatientSearchType;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the values offered as suggestions while typing a name or umudugudu on
+ * the find patient by name page.
+ *
+ * Each {@link Field} keeps its distinct values in a sorted map keyed by the upper case value,
+ * so all values starting with what was typed are a contiguous range found in O(log n).
+ * The range is ranked by number of occurrences and the top results are returned.
+ *
+ * The index is loaded from the database in the background when the module starts; until it is
+ * ready {@link #suggest(String, PatientSearchType)} returns null and callers fall back to the
+ * database. Afterwards it is kept current by {@link PatientSuggestionIndexAdvice} on every
+ * patient save. Values removed from a patient are only dropped at the next load.
+ */
+@Component("rwandaprimarycare.patientSuggestionIndex")
+public class PatientSuggestionIndex {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public enum Field {
+		GIVEN_NAME, FAMILY_NAME, MOTHER_NAME, FATHER_NAME, ADDRESS1
+	}
+
+	private static final int DEFAULT_MAX_RESULTS = 50;
+
+	private static final Comparator<Suggestion> BY_FREQUENCY = new Comparator<Suggestion>() {
+
+		@Override
+		public int compare(Suggestion a, Suggestion b) {
+			long countA = a.count.get();
+			long countB = b.count.get();
+			if (countA != countB) {
+				return countA > countB ? -1 : 1;
+			}
+			return a.key.compareTo(b.key);
+		}
+	};
+
+	private volatile Map<Field, ConcurrentSkipListMap<String, Suggestion>> fields;
+
+	private volatile ExecutorService loader;
+
+	private volatile Date lastLoaded;
+	private volatile long lastLoadMillis = -1;
+
+	/**
+	 * @return the Spring-managed instance of this index
+	 */
+	public static PatientSuggestionIndex getInstance() {
+		return Context.getRegisteredComponent("rwandaprimarycare.patientSuggestionIndex", PatientSuggestionIndex.class);
+	}
+
+	/**
+	 * Loads the index in the background
+	 */
+	public synchronized void start() {
+		if (loader != null) {
+			return;
+		}
+		loader = Executors.newSingleThreadExecutor(new DaemonThreadFactory("rwandaprimarycare-suggestion-index-"));
+		loader.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Context.openSession();
+					load();
+				} catch (Throwable t) {
+					log.error("Failed to load the patient suggestion index, suggestions will use the database", t);
+				} finally {
+					Context.closeSession();
+				}
+			}
+		});
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		if (loader != null) {
+			loader.shutdownNow();
+			loader = null;
+		}
+		fields = null;
+	}
+
+	/**
+	 * @return true once the index is loaded
+	 */
+	public boolean isReady() {
+		return fields != null;
+	}
+
+	/**
+	 * Suggestions for the find patient by name page
+	 *
+	 * @param search what was typed so far
+	 * @param searchType the field being typed
+	 * @return the most frequent values starting with search, or null if the index is not loaded
+	 *         or does not cover the search type
+	 */
+	public List<String> suggest(String search, PatientSearchType searchType) {
+		if (searchType == PatientSearchType.FANAME) {
+			return suggest(search, Field.GIVEN_NAME);
+		} else if (searchType == PatientSearchType.RWNAME) {
+			return suggest(search, Field.FAMILY_NAME);
+		} else if (searchType == PatientSearchType.MRWNAME) {
+			return suggest(search, Field.FAMILY_NAME, Field.MOTHER_NAME);
+		} else if (searchType == PatientSearchType.FATHERSRWNAME) {
+			return suggest(search, Field.FAMILY_NAME, Field.FATHER_NAME);
+		} else if (searchType == PatientSearchType.UMUDUGUDU) {
+			return suggest(search, Field.ADDRESS1);
+		}
+		return null;
+	}
+
+	/**
+	 * @param search prefix, case insensitive
+	 * @param searchFields fields to search; a value found in several fields is ranked by its total count
+	 * @return up to primaryCare.suggestions.maxResults values ranked by frequency, or null if the
+	 *         index is not loaded
+	 */
+	public List<String> suggest(String search, Field... searchFields) {
+		Map<Field, ConcurrentSkipListMap<String, Suggestion>> current = fields;
+		if (current == null) {
+			return null;
+		}
+		List<String> results = new ArrayList<String>();
+		String prefix = normalize(search);
+		if (prefix == null) {
+			return results;
+		}
+		int maxResults = PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_SUGGESTIONS_MAX_RESULTS, DEFAULT_MAX_RESULTS);
+
+		Iterable<Suggestion> candidates;
+		if (searchFields.length == 1) {
+			candidates = range(current.get(searchFields[0]), prefix).values();
+		} else {
+			Map<String, Suggestion> merged = new HashMap<String, Suggestion>();
+			for (Field field : searchFields) {
+				for (Suggestion s : range(current.get(field), prefix).values()) {
+					Suggestion existing = merged.get(s.key);
+					if (existing == null) {
+						merged.put(s.key, new Suggestion(s.key, s.value, s.count.get()));
+					} else {
+						existing.count.addAndGet(s.count.get());
+					}
+				}
+			}
+			candidates = merged.values();
+		}
+
+		// keep only the best maxResults candidates: the head of the heap is the worst one kept
+		PriorityQueue<Suggestion> top = new PriorityQueue<Suggestion>(Math.max(maxResults, 1), Collections.reverseOrder(BY_FREQUENCY));
+		for (Suggestion s : candidates) {
+			top.add(s);
+			if (top.size() > maxResults) {
+				top.poll();
+			}
+		}
+		List<Suggestion> ranked = new ArrayList<Suggestion>(top);
+		Collections.sort(ranked, BY_FREQUENCY);
+		for (Suggestion s : ranked) {
+			results.add(s.value);
+		}
+		return results;
+	}
+
+	/**
+	 * Adds the names, parent names and address1 values of a saved patient
+	 *
+	 * @param patient the saved patient
+	 * @param isNew true if the patient was just created, so its values count as new occurrences;
+	 *            values of an updated patient are only added when not indexed yet
+	 */
+	public void add(Patient patient, boolean isNew) {
+		Map<Field, ConcurrentSkipListMap<String, Suggestion>> current = fields;
+		if (current == null || patient == null) {
+			return;
+		}
+		for (PersonName name : patient.getNames()) {
+			if (!name.getVoided()) {
+				add(current.get(Field.GIVEN_NAME), name.getGivenName(), isNew);
+				add(current.get(Field.FAMILY_NAME), name.getFamilyName(), isNew);
+			}
+		}
+		for (PersonAttribute attribute : patient.getActiveAttributes()) {
+			String typeName = attribute.getAttributeType() != null ? attribute.getAttributeType().getName() : null;
+			if (PrimaryCareConstants.MOTHER_NAME_ATTRIBUTE_TYPE.equals(typeName)) {
+				add(current.get(Field.MOTHER_NAME), attribute.getValue(), isNew);
+			} else if (PrimaryCareConstants.FATHER_NAME_ATTRIBUTE_TYPE.equals(typeName)) {
+				add(current.get(Field.FATHER_NAME), attribute.getValue(), isNew);
+			}
+		}
+		for (PersonAddress address : patient.getAddresses()) {
+			if (!address.getVoided()) {
+				add(current.get(Field.ADDRESS1), address.getAddress1(), isNew);
+			}
+		}
+	}
+
+	/**
+	 * @return load state and number of distinct values per field, for monitoring
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		Map<Field, ConcurrentSkipListMap<String, Suggestion>> current = fields;
+		status.put("ready", current != null);
+		status.put("lastLoaded", lastLoaded);
+		status.put("lastLoadMs", lastLoadMillis);
+		if (current != null) {
+			for (Map.Entry<Field, ConcurrentSkipListMap<String, Suggestion>> e : current.entrySet()) {
+				status.put(e.getKey().name(), e.getValue().size());
+			}
+		}
+		return status;
+	}
+
+	private void load() {
+		long start = System.currentTimeMillis();
+		Map<Field, ConcurrentSkipListMap<String, Suggestion>> loaded = new EnumMap<Field, ConcurrentSkipListMap<String, Suggestion>>(Field.class);
+		for (Field field : Field.values()) {
+			ConcurrentSkipListMap<String, Suggestion> values = new ConcurrentSkipListMap<String, Suggestion>();
+			for (Map.Entry<String, Long> e : PrimaryCareBusinessLogic.getService().getSuggestionValueCounts(field).entrySet()) {
+				String key = normalize(e.getKey());
+				if (key == null) {
+					continue;
+				}
+				Suggestion existing = values.get(key);
+				if (existing == null) {
+					values.put(key, new Suggestion(key, e.getKey().trim(), e.getValue()));
+				} else {
+					// same value in another case or with extra spaces
+					existing.count.addAndGet(e.getValue());
+				}
+			}
+			loaded.put(field, values);
+		}
+		fields = loaded;
+		lastLoaded = new Date();
+		lastLoadMillis = System.currentTimeMillis() - start;
+		log.info("Patient suggestion index loaded in " + lastLoadMillis + "ms: " + getStatus());
+	}
+
+	private void add(ConcurrentSkipListMap<String, Suggestion> values, String value, boolean isNew) {
+		String key = normalize(value);
+		if (key == null) {
+			return;
+		}
+		Suggestion suggestion = values.get(key);
+		if (suggestion == null) {
+			Suggestion created = new Suggestion(key, value.trim(), 0);
+			suggestion = values.putIfAbsent(key, created);
+			if (suggestion == null) {
+				created.count.incrementAndGet();
+				return;
+			}
+		}
+		if (isNew) {
+			suggestion.count.incrementAndGet();
+		}
+	}
+
+	private ConcurrentNavigableMap<String, Suggestion> range(ConcurrentSkipListMap<String, Suggestion> values, String prefix) {
+		return values.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+	}
+
+	private String normalize(String value) {
+		if (value == null) {
+			return null;
+		}
+		String key = value.trim().toUpperCase();
+		return key.isEmpty() ? null : key;
+	}
+
+	private static class Suggestion {
+
+		private final String key;
+		private final String value;
+		private final AtomicLong count;
+
+		Suggestion(String key, String value, long count) {
+			this.key = key;
+			this.value = value;
+			this.count = new AtomicLong(count);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package org.openmrs.module.rwandaprimarycare.search;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Patient;
+
+/**
+ * Around advice on PatientService that keeps the {@link PatientSuggestionIndex} current
+ * whenever a patient is saved, from this module or any other
+ */
+public class PatientSuggestionIndexAdvice implements MethodInterceptor {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		if (!"savePatient".equals(invocation.getMethod().getName()) || invocation.getArguments().length == 0
+				|| !(invocation.getArguments()[0] instanceof Patient)) {
+			return invocation.proceed();
+		}
+		boolean isNew = ((Patient) invocation.getArguments()[0]).getPatientId() == null;
+		Object saved = invocation.proceed();
+		try {
+			PatientSuggestionIndex.getInstance().add((Patient) saved, isNew);
+		} catch (Exception e) {
+			// never fail a save because of the suggestion index
+			log.warn("Could not add patient to the suggestion index: " + e.getMessage());
+		}
+		return saved;
+	}
+}
@@ -2,7 +2,7 @@ package org.openmrs.module.rwandaprimarycare.utils;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
 
 public class FhirUtils {
 
@@ -17,10 +17,7 @@ public class FhirUtils {
      */
     public static boolean isFhirFormat() {
         try {
-            String fhirEnabled = Context.getAdministrationService()
-                    .getGlobalProperty("primaryCare.fhir.enabled");
-
-            return "true".equalsIgnoreCase(fhirEnabled);
+            return PrimaryCareConfig.get().isFhirEnabled();
         } catch (Exception e) {
             log.warn("Error checking FHIR format setting: " + e.getMessage());
             return false;
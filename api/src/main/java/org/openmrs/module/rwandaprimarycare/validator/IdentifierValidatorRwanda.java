@@ -14,6 +14,7 @@
 package org.openmrs.module.rwandaprimarycare.validator;
 
 import org.openmrs.module.idgen.validator.LuhnModNIdentifierValidator;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareUserContext;
 import org.openmrs.module.rwandaprimarycare.PrimaryCareUtil;
 import org.openmrs.patient.IdentifierValidator;
 import org.openmrs.patient.UnallowedIdentifierException;
@@ -41,6 +42,9 @@ public class IdentifierValidatorRwanda extends LuhnModNIdentifierValidator {
     }
     
     /** 
+     * The prefix is the location code forced on the current thread by {@link PrimaryCareUserContext},
+     * or else the code of the location the user logged in at.
+     * 
      * @see IdentifierValidator#getValidIdentifier(String)
      */
     @Override
@@ -0,0 +1,103 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Pins the output of {@link PatientIdRewriter}: only the value of the top-level "id" changes, every
+ * other byte of the body is kept.
+ */
+public class PatientIdRewriterTest {
+
+	@Test
+	public void setIdToUpi_shouldReplaceTheIdAndKeepTheOtherBytes() {
+		String json = "{\n  \"resourceType\" : \"Patient\",\n  \"id\" : \"local-1\",\n"
+				+ "  \"identifier\" : [ { \"system\" : \"UPI\", \"value\" : \"UPI-1\" } ],\n  \"active\" : true\n}\n";
+		assertEquals("{\n  \"resourceType\" : \"Patient\",\n  \"id\" : \"UPI-1\",\n"
+				+ "  \"identifier\" : [ { \"system\" : \"UPI\", \"value\" : \"UPI-1\" } ],\n  \"active\" : true\n}\n",
+				PatientIdRewriter.setIdToUpi(json));
+	}
+
+	@Test
+	public void setIdToUpi_shouldInsertTheIdWhenThereIsNone() {
+		String json = "{\"resourceType\":\"Patient\",\"identifier\":[{\"system\":\"UPI\",\"value\":\"UPI-1\"}]}";
+		assertEquals("{\"id\":\"UPI-1\",\"resourceType\":\"Patient\",\"identifier\":[{\"system\":\"UPI\",\"value\":\"UPI-1\"}]}",
+				PatientIdRewriter.setIdToUpi(json));
+	}
+
+	@Test
+	public void setIdToUpi_shouldSkipEscapedQuotesInStringsAndNames() {
+		String json = "{\"resourceType\":\"Patient\",\"id\":\"a\\\"b\",\"we\\\"ird\":\"x\\\",\\\"id\\\":\\\"y\","
+				+ "\"name\":[{\"text\":\"Jean \\\"JJ\\\" Uwimana \\\\\"}],"
+				+ "\"identifier\":[{\"system\":\"UPI\",\"value\":\"UPI-1\"}]}";
+		assertEquals("{\"resourceType\":\"Patient\",\"id\":\"UPI-1\",\"we\\\"ird\":\"x\\\",\\\"id\\\":\\\"y\","
+				+ "\"name\":[{\"text\":\"Jean \\\"JJ\\\" Uwimana \\\\\"}],"
+				+ "\"identifier\":[{\"system\":\"UPI\",\"value\":\"UPI-1\"}]}",
+				PatientIdRewriter.setIdToUpi(json));
+	}
+
+	@Test
+	public void setIdToUpi_shouldUnescapeTheUpiAndEscapeItAgainInTheId() {
+		String json = "{\"resourceType\":\"Pati\\u0065nt\",\"id\":\"1\","
+				+ "\"identifier\":[{\"system\":\"U\\u0050I\",\"value\":\"UPI-\\\"1\\\"\\/2\"}]}";
+		assertEquals("{\"resourceType\":\"Pati\\u0065nt\",\"id\":\"UPI-\\\"1\\\"/2\","
+				+ "\"identifier\":[{\"system\":\"U\\u0050I\",\"value\":\"UPI-\\\"1\\\"\\/2\"}]}",
+				PatientIdRewriter.setIdToUpi(json));
+	}
+
+	@Test
+	public void setIdToUpi_shouldOnlyReadTheTopLevelIdentifierArray() {
+		String json = "{\"resourceType\":\"Patient\","
+				+ "\"contact\":[{\"identifier\":[{\"system\":\"UPI\",\"value\":\"CONTACT\"}]}],"
+				+ "\"id\":\"1\","
+				+ "\"identifier\":[[{\"system\":\"UPI\",\"value\":\"NESTED\"}],"
+				+ "{\"system\":\"NID\",\"value\":\"1199880012345678\"},"
+				+ "{\"system\":\"UPI\",\"value\":\"\"},"
+				+ "{\"value\":\"UPI-1\",\"assigner\":{\"identifier\":{\"system\":\"UPI\",\"value\":\"ASSIGNER\"}},\"system\":\"UPI\"},"
+				+ "{\"system\":\"UPI\",\"value\":\"UPI-2\"}]}";
+		assertEquals(json.replace("\"id\":\"1\"", "\"id\":\"UPI-1\""), PatientIdRewriter.setIdToUpi(json));
+	}
+
+	@Test
+	public void setIdToUpi_shouldReturnNullWithoutUpi() {
+		assertNull(PatientIdRewriter.setIdToUpi("{\"resourceType\":\"Patient\",\"id\":\"1\"}"));
+		assertNull(PatientIdRewriter.setIdToUpi("{\"resourceType\":\"Patient\",\"identifier\":[]}"));
+		assertNull(PatientIdRewriter.setIdToUpi("{\"resourceType\":\"Patient\","
+				+ "\"identifier\":[{\"system\":\"NID\",\"value\":\"1199880012345678\"},{\"system\":\"UPI\",\"value\":\"\"},"
+				+ "{\"system\":\"UPI\"},{\"system\":\"UPI\",\"value\":null}]}"));
+		assertNull(PatientIdRewriter.setIdToUpi("{\"resourceType\":\"Patient\","
+				+ "\"contact\":[{\"identifier\":[{\"system\":\"UPI\",\"value\":\"CONTACT\"}]}]}"));
+	}
+
+	@Test
+	public void setIdToUpi_shouldReturnNullForOtherResources() {
+		assertNull(PatientIdRewriter.setIdToUpi("{\"resourceType\":\"Observation\",\"id\":\"1\","
+				+ "\"identifier\":[{\"system\":\"UPI\",\"value\":\"UPI-1\"}]}"));
+		assertNull(PatientIdRewriter.setIdToUpi("{\"resourceType\":\"Bundle\",\"entry\":[{\"resource\":"
+				+ "{\"resourceType\":\"Patient\",\"identifier\":[{\"system\":\"UPI\",\"value\":\"UPI-1\"}]}}]}"));
+		assertNull(PatientIdRewriter.setIdToUpi("{\"identifier\":[{\"system\":\"UPI\",\"value\":\"UPI-1\"}]}"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setIdToUpi_shouldRejectAnUnterminatedString() {
+		PatientIdRewriter.setIdToUpi("{\"resourceType\":\"Patient\",\"id\":\"1\\\"}");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setIdToUpi_shouldRejectContentAfterTheResource() {
+		PatientIdRewriter.setIdToUpi("{\"resourceType\":\"Patient\"} {}");
+	}
+
+	@Test
+	public void transformPatientForOpenHIM_shouldForwardBodiesWithoutUpiOrOfOtherResourcesUnchanged() {
+		OpenHIMClientRegistryProxy proxy = new OpenHIMClientRegistryProxy();
+		String noUpi = "{\"resourceType\":\"Patient\",\"id\":\"1\",\"identifier\":[]}";
+		assertSame(noUpi, proxy.transformPatientForOpenHIM(noUpi, "POST", "/Patient"));
+		String observation = "{\"resourceType\":\"Observation\",\"subject\":{\"display\":\"Patient\"},"
+				+ "\"identifier\":[{\"system\":\"UPI\",\"value\":\"UPI-1\"}]}";
+		assertSame(observation, proxy.transformPatientForOpenHIM(observation, "PUT", "/Patient/1"));
+	}
+}
@@ -0,0 +1,93 @@
+package org.openmrs.module.rwandaprimarycare;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.module.rwandaprimarycare.benchmarks.PatientDataGenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PrimaryCareBusinessLogic.sortResultsForUser / sortResultsForUmudugudu on in-memory patients,
+ * without a database: this package so the health center attribute type can be set directly.
+ *
+ * Every invocation sorts a fresh copy of the search result, the copy is part of the measure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RankingBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int resultSize;
+
+	private List<Patient> results;
+
+	private Location userLocation;
+
+	private String umudugudu;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		PersonAttributeType healthCenter = new PersonAttributeType(1);
+		healthCenter.setName("Health Center");
+		healthCenter.setFormat(Location.class.getName());
+		PrimaryCareBusinessLogic.assignedLocationPersonAttributeType = healthCenter;
+		userLocation = new Location(1);
+		umudugudu = PatientDataGenerator.umudugudu(7);
+
+		// about 1 result in 10 lives in the searched umudugudu, half of the results are registered here
+		Random random = new Random(42);
+		results = new ArrayList<Patient>(resultSize);
+		for (int i = 0; i < resultSize; i++) {
+			Patient patient = new Patient(i + 1);
+			int villages = random.nextInt(5) == 0 ? 2 : 1;
+			for (int v = 0; v < villages; v++) {
+				PersonAddress address = new PersonAddress();
+				address.setAddress1(PatientDataGenerator.umudugudu(random.nextInt(10) == 0 ? 7 : random.nextInt(500)));
+				address.setPreferred(v == 0);
+				patient.addAddress(address);
+			}
+			patient.addAttribute(new PersonAttribute(healthCenter, String.valueOf(1 + random.nextInt(2))));
+			results.add(patient);
+		}
+	}
+
+	@Benchmark
+	public List<Patient> sortResultsForUser() {
+		return PrimaryCareBusinessLogic.sortResultsForUser(new ArrayList<Patient>(results), userLocation);
+	}
+
+	@Benchmark
+	public List<Patient> sortResultsForUmudugudu() {
+		return PrimaryCareBusinessLogic.sortResultsForUmudugudu(new ArrayList<Patient>(results), umudugudu);
+	}
+
+	/**
+	 * Both orders at once, as the name search with an umudugudu does
+	 */
+	@Benchmark
+	public List<Patient> rankResults() {
+		return PrimaryCareBusinessLogic.rankResults(new ArrayList<Patient>(results), userLocation, umudugudu);
+	}
+}
@@ -0,0 +1,40 @@
+package org.openmrs.module.rwandaprimarycare.benchmarks;
+
+import org.hibernate.SessionFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.TestContextManager;
+
+/**
+ * Starts OpenMRS on the in-memory H2 database of the core test framework, loads the standard
+ * test data set and authenticates as admin, so benchmarks can call the API as a logged in user.
+ *
+ * The test framework is normally driven by JUnit; here the Spring context is loaded through
+ * {@link TestContextManager} and the setup JUnit would run is called directly.
+ * The context lives until the benchmark JVM exits.
+ */
+public class BenchmarkContext extends BaseModuleContextSensitiveTest {
+
+	private static BenchmarkContext instance;
+
+	/**
+	 * Starts OpenMRS once per JVM and opens an OpenMRS session for the calling thread.
+	 * Benchmarks must use thread scoped state, so their setup runs on the thread that measures.
+	 */
+	public static synchronized BenchmarkContext start() throws Exception {
+		if (instance == null) {
+			BenchmarkContext context = new BenchmarkContext();
+			new TestContextManager(BenchmarkContext.class).prepareTestInstance(context);
+			instance = context;
+		}
+		if (!Context.isSessionOpen()) {
+			Context.openSession();
+		}
+		instance.baseSetupWithStandardDataAndAuthentication();
+		return instance;
+	}
+
+	public SessionFactory getSessionFactory() {
+		return applicationContext.getBean("sessionFactory", SessionFactory.class);
+	}
+}
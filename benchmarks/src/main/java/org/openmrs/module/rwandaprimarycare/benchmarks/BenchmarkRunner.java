@@ -0,0 +1,30 @@
+package org.openmrs.module.rwandaprimarycare.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JSON, so results of two releases can be compared.
+ *
+ * Takes the usual JMH command line options, e.g. to run only the search benchmarks on 10k patients:
+ * java -jar benchmarks.jar PatientSearchBenchmark -p patientCount=10000 -rff search.json
+ *
+ * Without -rff the results go to jmh-result.json in the working directory.
+ */
+public class BenchmarkRunner {
+
+	private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		Options options = new OptionsBuilder()
+				.parent(commandLine)
+				.resultFormat(commandLine.getResultFormat().hasValue() ? commandLine.getResultFormat().get() : ResultFormatType.JSON)
+				.result(commandLine.getResult().hasValue() ? commandLine.getResult().get() : DEFAULT_RESULT_FILE)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,76 @@
+package org.openmrs.module.rwandaprimarycare.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.validator.IdentifierValidatorRwanda;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IdentifierValidatorRwanda.isValid and getValidIdentifier.
+ *
+ * getValidIdentifier looks up the location code of the logged in user, so this runs as admin on
+ * the H2 test database with registration.defaultLocationCode set; that lookup is part of the measure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdentifierValidatorBenchmark {
+
+	private static final String LOCATION_CODE = "389";
+
+	private static final int IDENTIFIER_COUNT = 1024;
+
+	private final IdentifierValidatorRwanda validator = new IdentifierValidatorRwanda();
+
+	private String[] undecorated;
+
+	private String[] identifiers;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		BenchmarkContext.start();
+		Context.getAdministrationService().setGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_DEFAULT_LOCATION_CODE,
+				LOCATION_CODE);
+
+		Random random = new Random(42);
+		undecorated = new String[IDENTIFIER_COUNT];
+		identifiers = new String[IDENTIFIER_COUNT];
+		for (int i = 0; i < IDENTIFIER_COUNT; i++) {
+			undecorated[i] = String.valueOf(100000 + random.nextInt(900000));
+			identifiers[i] = validator.getValidIdentifier(undecorated[i]);
+		}
+	}
+
+	@Benchmark
+	public boolean isValid() {
+		return validator.isValid(identifiers[nextIndex()]);
+	}
+
+	@Benchmark
+	public String getValidIdentifier() {
+		return validator.getValidIdentifier(undecorated[nextIndex()]);
+	}
+
+	private int nextIndex() {
+		next = (next + 1) & (IDENTIFIER_COUNT - 1);
+		return next;
+	}
+}
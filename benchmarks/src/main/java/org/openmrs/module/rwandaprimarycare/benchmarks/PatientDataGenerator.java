@@ -0,0 +1,182 @@
+package org.openmrs.module.rwandaprimarycare.benchmarks;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.jdbc.Work;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Bulk loads synthetic patients with plain JDBC batches, which is orders of magnitude faster than
+ * PatientService.savePatient for a million patients.
+ *
+ * Every patient gets a preferred name, an umudugudu (address1), a health center attribute and,
+ * for one patient in five, a previous address in another umudugudu. Names and villages are drawn
+ * from fixed lists with a seeded random, so the same patient count always gives the same data and
+ * a search for one of the {@link #FAMILY_NAMES} matches about one patient in 25.
+ */
+public class PatientDataGenerator {
+
+	public static final String[] GIVEN_NAMES = { "Jean", "Marie", "Claudine", "Emmanuel", "Eric", "Alice", "Patrick",
+			"Josiane", "Innocent", "Diane", "Olivier", "Aline", "Fabrice", "Grace", "Theogene", "Vestine", "Janvier",
+			"Solange", "Celestin", "Chantal" };
+
+	public static final String[] FAMILY_NAMES = { "Uwimana", "Mukamana", "Niyonzima", "Habimana", "Uwase", "Nshimiyimana",
+			"Mukandayisenga", "Hakizimana", "Ingabire", "Niyonsaba", "Tuyisenge", "Uwamahoro", "Bizimana", "Mugisha",
+			"Nyirahabimana", "Ndayisaba", "Iradukunda", "Umutoni", "Kayitesi", "Munyaneza", "Nsengimana", "Uwera",
+			"Mutesi", "Ishimwe", "Byiringiro" };
+
+	public static final int UMUDUGUDU_COUNT = 500;
+
+	private static final int BATCH_SIZE = 1000;
+
+	private static final int CREATOR = 1;
+
+	/**
+	 * @return the synthetic umudugudu with the given number
+	 */
+	public static String umudugudu(int number) {
+		return "Umudugudu " + number;
+	}
+
+	/**
+	 * Inserts patientCount patients
+	 *
+	 * @param healthCenterAttributeTypeId the health center person attribute type
+	 * @param locationIds health center location ids, patients are spread evenly over them
+	 */
+	public static void generate(SessionFactory sessionFactory, final int patientCount, final int healthCenterAttributeTypeId,
+			final int[] locationIds) {
+		sessionFactory.getCurrentSession().doWork(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				insert(connection, patientCount, healthCenterAttributeTypeId, locationIds);
+			}
+		});
+	}
+
+	private static void insert(Connection connection, int patientCount, int healthCenterAttributeTypeId, int[] locationIds)
+			throws SQLException {
+		Random random = new Random(42);
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		int personId = nextId(connection, "person", "person_id");
+		int nameId = nextId(connection, "person_name", "person_name_id");
+		int addressId = nextId(connection, "person_address", "person_address_id");
+		int attributeId = nextId(connection, "person_attribute", "person_attribute_id");
+
+		PreparedStatement person = connection.prepareStatement("insert into person (person_id, gender, birthdate,"
+				+ " birthdate_estimated, dead, deathdate_estimated, creator, date_created, voided, uuid)"
+				+ " values (?, ?, ?, false, false, false, ?, ?, false, ?)");
+		PreparedStatement patient = connection.prepareStatement("insert into patient (patient_id, creator, date_created,"
+				+ " voided, allergy_status) values (?, ?, ?, false, 'Unknown')");
+		PreparedStatement name = connection.prepareStatement("insert into person_name (person_name_id, person_id, preferred,"
+				+ " given_name, family_name, creator, date_created, voided, uuid) values (?, ?, true, ?, ?, ?, ?, false, ?)");
+		PreparedStatement address = connection.prepareStatement("insert into person_address (person_address_id, person_id,"
+				+ " preferred, address1, country, creator, date_created, voided, uuid) values (?, ?, ?, ?, 'Rwanda', ?, ?, false, ?)");
+		PreparedStatement attribute = connection.prepareStatement("insert into person_attribute (person_attribute_id,"
+				+ " person_id, person_attribute_type_id, value, creator, date_created, voided, uuid)"
+				+ " values (?, ?, ?, ?, ?, ?, false, ?)");
+		try {
+			Calendar birthdate = Calendar.getInstance();
+			for (int i = 0; i < patientCount; i++, personId++) {
+				birthdate.setTimeInMillis(now.getTime());
+				birthdate.add(Calendar.DAY_OF_YEAR, -random.nextInt(365 * 90));
+
+				person.setInt(1, personId);
+				person.setString(2, random.nextBoolean() ? "F" : "M");
+				person.setDate(3, new java.sql.Date(birthdate.getTimeInMillis()));
+				person.setInt(4, CREATOR);
+				person.setTimestamp(5, now);
+				person.setString(6, UUID.randomUUID().toString());
+				person.addBatch();
+
+				patient.setInt(1, personId);
+				patient.setInt(2, CREATOR);
+				patient.setTimestamp(3, now);
+				patient.addBatch();
+
+				name.setInt(1, nameId++);
+				name.setInt(2, personId);
+				name.setString(3, GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]);
+				name.setString(4, FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)]);
+				name.setInt(5, CREATOR);
+				name.setTimestamp(6, now);
+				name.setString(7, UUID.randomUUID().toString());
+				name.addBatch();
+
+				addAddress(address, addressId++, personId, true, umudugudu(random.nextInt(UMUDUGUDU_COUNT)), now);
+				if (random.nextInt(5) == 0) {
+					addAddress(address, addressId++, personId, false, umudugudu(random.nextInt(UMUDUGUDU_COUNT)), now);
+				}
+
+				attribute.setInt(1, attributeId++);
+				attribute.setInt(2, personId);
+				attribute.setInt(3, healthCenterAttributeTypeId);
+				attribute.setString(4, String.valueOf(locationIds[i % locationIds.length]));
+				attribute.setInt(5, CREATOR);
+				attribute.setTimestamp(6, now);
+				attribute.setString(7, UUID.randomUUID().toString());
+				attribute.addBatch();
+
+				if ((i + 1) % BATCH_SIZE == 0) {
+					executeBatches(person, patient, name, address, attribute);
+				}
+			}
+			executeBatches(person, patient, name, address, attribute);
+			if (!connection.getAutoCommit()) {
+				connection.commit();
+			}
+		} finally {
+			close(person, patient, name, address, attribute);
+		}
+	}
+
+	private static void addAddress(PreparedStatement address, int addressId, int personId, boolean preferred, String address1,
+			Timestamp now) throws SQLException {
+		address.setInt(1, addressId);
+		address.setInt(2, personId);
+		address.setBoolean(3, preferred);
+		address.setString(4, address1);
+		address.setInt(5, CREATOR);
+		address.setTimestamp(6, now);
+		address.setString(7, UUID.randomUUID().toString());
+		address.addBatch();
+	}
+
+	/**
+	 * Persons before the rows referencing them
+	 */
+	private static void executeBatches(PreparedStatement... statements) throws SQLException {
+		for (PreparedStatement statement : statements) {
+			statement.executeBatch();
+		}
+	}
+
+	private static void close(Statement... statements) {
+		for (Statement statement : statements) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				// nothing left to do with it
+			}
+		}
+	}
+
+	private static int nextId(Connection connection, String table, String column) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet rs = statement.executeQuery("select max(" + column + ") from " + table);
+			return rs.next() ? rs.getInt(1) + 1 : 1;
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.openmrs.module.rwandaprimarycare.benchmarks;
+
+import org.hibernate.SessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareUtil;
+import org.openmrs.module.rwandaprimarycare.db.hibernate.HibernatePrimaryCareDAO;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HibernatePrimaryCareDAO.getPatients, the find patient by name query, on an H2 database of
+ * {@link #patientCount} generated patients (see {@link PatientDataGenerator}).
+ *
+ * Each patient count runs in its own JVM; generating the million patient data set takes a few
+ * minutes and needs the 4g heap set below.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class PatientSearchBenchmark {
+
+	private static final String HEALTH_CENTER = "Health Center";
+
+	private static final int PAGE_SIZE = 50;
+
+	@Param({ "10000", "100000", "1000000" })
+	public int patientCount;
+
+	private SessionFactory sessionFactory;
+
+	private HibernatePrimaryCareDAO dao;
+
+	private PersonAttributeType healthCenter;
+
+	private Location userLocation;
+
+	private String familyName;
+
+	private String umudugudu;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		BenchmarkContext context = BenchmarkContext.start();
+		sessionFactory = context.getSessionFactory();
+		dao = new HibernatePrimaryCareDAO();
+		dao.setSessionFactory(sessionFactory);
+
+		Context.getAdministrationService().setGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_HEALTH_CENTER_ATTRIBUTE_TYPE,
+				HEALTH_CENTER);
+		healthCenter = PrimaryCareUtil.getHealthCenterAttributeType();
+		if (healthCenter == null) {
+			healthCenter = new PersonAttributeType();
+			healthCenter.setName(HEALTH_CENTER);
+			healthCenter.setFormat(Location.class.getName());
+			healthCenter.setDescription("Health center the patient is registered at");
+			healthCenter = Context.getPersonService().savePersonAttributeType(healthCenter);
+		}
+		userLocation = Context.getLocationService().getLocation(1);
+		int otherLocationId = Context.getLocationService().getLocation(2).getLocationId();
+
+		PatientDataGenerator.generate(sessionFactory, patientCount, healthCenter.getPersonAttributeTypeId(),
+				new int[] { userLocation.getLocationId(), otherLocationId });
+		sessionFactory.getCurrentSession().clear();
+
+		familyName = PatientDataGenerator.FAMILY_NAMES[1];
+		umudugudu = PatientDataGenerator.umudugudu(7);
+	}
+
+	/**
+	 * The whole result list through the original Criteria query, as the name search used to load it
+	 */
+	@Benchmark
+	public List<Patient> byFamilyNameUnpaged() {
+		List<Patient> patients = dao.getPatients(null, familyName, null, null, 0, null, healthCenter, userLocation, false);
+		sessionFactory.getCurrentSession().clear();
+		return patients;
+	}
+
+	@Benchmark
+	public List<Patient> byFamilyNameAndUmuduguduUnpaged() {
+		List<Patient> patients = dao.getPatients(null, familyName, null, null, 0, umudugudu, healthCenter, userLocation, false);
+		sessionFactory.getCurrentSession().clear();
+		return patients;
+	}
+
+	@Benchmark
+	public List<Patient> byFamilyNameRestrictedToHealthCenterUnpaged() {
+		List<Patient> patients = dao.getPatients(null, familyName, null, null, 0, null, healthCenter, userLocation, true);
+		sessionFactory.getCurrentSession().clear();
+		return patients;
+	}
+
+	/**
+	 * First ranked page of the paged query
+	 */
+	@Benchmark
+	public List<Patient> byFamilyNameFirstPage() {
+		List<Patient> patients = dao.getPatients(null, familyName, null, null, 0, umudugudu, healthCenter, userLocation, false,
+				0, PAGE_SIZE);
+		sessionFactory.getCurrentSession().clear();
+		return patients;
+	}
+
+	@Benchmark
+	public Long byFamilyNameCount() {
+		return dao.getPatientCount(null, familyName, null, null, 0, umudugudu, healthCenter, userLocation, false);
+	}
+}
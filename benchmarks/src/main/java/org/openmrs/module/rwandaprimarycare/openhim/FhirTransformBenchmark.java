@@ -0,0 +1,182 @@
+package org.openmrs.module.rwandaprimarycare.openhim;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Patient.id rewrite OpenHIMClientRegistryProxy does on every Patient POST and PUT forwarded
+ * to OpenHIM, against the HAPI parse / set id / encode round trip it replaced. This package so the
+ * transformation can be called directly.
+ *
+ * The payloads are fhir-patient.json and the requests in docs/sample_payloads. Those are in the
+ * registration format of the module rather than FHIR, so they are mapped to the FHIR Patient a
+ * client would send for them, with a UPI identifier, when the trial starts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FhirTransformBenchmark {
+
+	private static final String FHIR_PATIENT = "fhir-patient";
+
+	@Param({ FHIR_PATIENT, "create_patient_full", "create_patient_minimal", "update_patient" })
+	public String payload;
+
+	private OpenHIMClientRegistryProxy proxy;
+
+	private String patient;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		if (FHIR_PATIENT.equals(payload)) {
+			patient = readResource("/fhir-patient.json");
+		} else {
+			patient = toFhirPatient(readResource("/sample_payloads/" + payload + ".json"));
+		}
+		proxy = new OpenHIMClientRegistryProxy();
+		// the transformation prints a line per call, which would flood the benchmark output
+		System.setOut(new PrintStream(new NullOutputStream()));
+		// first call creates the FhirContext, keep it out of the measure
+		proxy.transformPatientWithHapi(patient);
+		if (proxy.transformPatientForOpenHIM(patient, "POST", "/Patient") == patient) {
+			throw new IllegalStateException("Payload " + payload + " was not transformed");
+		}
+	}
+
+	@Benchmark
+	public String transformPost() {
+		return proxy.transformPatientForOpenHIM(patient, "POST", "/Patient");
+	}
+
+	@Benchmark
+	public String transformPut() {
+		return proxy.transformPatientForOpenHIM(patient, "PUT", "/Patient/UPI-12345");
+	}
+
+	/**
+	 * The HAPI round trip every Patient POST and PUT went through before
+	 */
+	@Benchmark
+	public String transformWithHapi() {
+		return proxy.transformPatientWithHapi(patient);
+	}
+
+	/**
+	 * Requests that are passed through untouched, for comparison
+	 */
+	@Benchmark
+	public String passThroughGet() {
+		return proxy.transformPatientForOpenHIM(patient, "GET", "/Patient");
+	}
+
+	private String readResource(String name) throws Exception {
+		InputStream in = getClass().getResourceAsStream(name);
+		if (in == null) {
+			throw new IllegalArgumentException("No resource " + name);
+		}
+		try {
+			return IOUtils.toString(in, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Maps a registration request of docs/sample_payloads to a FHIR Patient in JSON. Requests without
+	 * a UPI get one derived from their primary care id, so that every payload is rewritten.
+	 */
+	private static String toFhirPatient(String sample) {
+		JsonObject json = new JsonParser().parse(sample).getAsJsonObject();
+		Patient patient = new Patient();
+
+		String upi = null;
+		String primaryCareId = null;
+		for (JsonElement element : json.getAsJsonArray("identifiers")) {
+			JsonObject identifier = element.getAsJsonObject();
+			String system = identifier.get("system").getAsString();
+			String value = identifier.get("value").getAsString();
+			patient.addIdentifier().setSystem(system).setValue(value);
+			if ("UPI".equals(system)) {
+				upi = value;
+			} else if ("PRIMARY_CARE_ID".equals(system)) {
+				primaryCareId = value;
+			}
+		}
+		if (upi == null) {
+			patient.addIdentifier().setSystem("UPI").setValue("UPI-" + primaryCareId);
+		}
+
+		HumanName name = patient.addName().setUse(HumanName.NameUse.OFFICIAL).setFamily(getString(json, "surName"));
+		for (String given : getString(json, "postNames").split(" ")) {
+			name.addGiven(given);
+		}
+		patient.setGender("F".equals(getString(json, "gender")) ? Enumerations.AdministrativeGender.FEMALE
+				: Enumerations.AdministrativeGender.MALE);
+		patient.setBirthDateElement(new DateType(getString(json, "dateOfBirth")));
+		if (json.has("phoneNumber")) {
+			patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue(getString(json, "phoneNumber"));
+		}
+		if (json.has("maritalStatus")) {
+			patient.getMaritalStatus().setText(getString(json, "maritalStatus"));
+		}
+
+		JsonArray addresses = json.getAsJsonArray("addressList");
+		for (int i = 0; i < addresses.size(); i++) {
+			JsonObject a = addresses.get(i).getAsJsonObject();
+			Address address = patient.addAddress()
+					.setUse("WORK".equals(getString(a, "type")) ? Address.AddressUse.WORK : Address.AddressUse.HOME)
+					.setCountry(getString(a, "country")).setState(getString(a, "state"))
+					.setDistrict(getString(a, "district")).setCity(getString(a, "city"))
+					.setPostalCode(getString(a, "postalCode"));
+			if (a.has("street")) {
+				address.addLine(getString(a, "street"));
+			}
+			address.addExtension("http://fhir.openmrs.org/ext/address#sector", new StringType(getString(a, "sector")));
+			address.addExtension("http://fhir.openmrs.org/ext/address#cell", new StringType(getString(a, "cell")));
+		}
+		for (String extension : new String[] { "fatherName", "motherName", "nationality", "educationalLevel",
+				"profession", "religion" }) {
+			if (json.has(extension)) {
+				patient.addExtension("http://fhir.openmrs.org/ext/patient#" + extension,
+						new StringType(getString(json, extension)));
+			}
+		}
+		return FhirContext.forR4().newJsonParser().setPrettyPrint(true).encodeResourceToString(patient);
+	}
+
+	private static String getString(JsonObject json, String name) {
+		JsonElement value = json.get(name);
+		return value == null || value.isJsonNull() ? null : value.getAsString();
+	}
+}
@@ -3,6 +3,7 @@ package org.openmrs.module.rwandaprimarycare;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -11,6 +12,9 @@ import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.api.context.Context;
+import org.openmrs.messagesource.MessageSourceService;
+import org.openmrs.module.rwandaprimarycare.service.BulkIdExportService;
+import org.openmrs.module.rwandaprimarycare.service.BulkIdExportService.BulkIdExport;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -44,9 +48,15 @@ public class BarCodeController {
 	    		
 		    } else if (howManyOfflineIds != null){
 		            List<String> stList = PrimaryCareBusinessLogic.getNewPrimaryIdentifiers(howManyOfflineIds);
-		            model.addAttribute("idList",stList);
-		            model.addAttribute("locationName", PrimaryCareBusinessLogic.getLocationLoggedIn(request.getSession()).getName().replace(" Health Center", ""));
-		            System.out.println(stList);
+		            String label = getIdentifierLabelEPL(PrimaryCareBusinessLogic.getLocationLoggedIn(request.getSession()).getName().replace(" Health Center", ""));
+		            int copies = Boolean.TRUE.equals(multiple) ? PrimaryCareBusinessLogic.getNumberOfBarcodeCopiesToPrint() : 1;
+		            StringBuilder labels = new StringBuilder();
+		            for (int i = 0; i < copies; i++) {
+		            	for (String identifier : stList) {
+		            		labels.append(label.replace(BulkIdExportService.IDENTIFIER, identifier));
+		            	}
+		            }
+		            model.addAttribute("idLabelsEPL", labels.toString());
 		    }
 			// determine the number of bar codes to print
 			if (multiple != null && multiple == true){
@@ -65,43 +75,54 @@ public class BarCodeController {
 	}
 	
 	
+	/**
+	 * Streams EPL labels of new identifiers for the location, see {@link BulkIdsController#renderBarCode}
+	 */
 	@RequestMapping("/module/rwandaprimarycare/barCodeOtherLocation.form")
-		public ModelAndView renderBarCode(
-	        @RequestParam(required=true, value="howManyIds") Integer numIds,
-	        @RequestParam(required=true, value="location") Integer locationId,
+		public void renderBarCode(
+	        @RequestParam(required=false, value="howManyIds") Integer numIds,
+	        @RequestParam(required=false, value="location") Integer locationId,
+	        @RequestParam(required=false, value="exportId") String exportId,
+	        @RequestParam(required=false, value="resume") Boolean resume,
+	        @RequestParam(required=false, value="resumeAfter") String resumeAfter,
 	        HttpServletRequest request,
-	        HttpServletResponse response,
-	        ModelMap model) throws PrimaryCareException {
+	        HttpServletResponse response) throws PrimaryCareException {
 		
 		//LK: Need to ensure that all primary care methods only throw a PrimaryCareException
     	//So that errors will be directed to a touch screen error page
+		BulkIdExport export;
     	try{
-    		//get request location
-			Location loc = Context.getLocationService().getLocation(locationId);
-			//get logged in location so that we can reset volatile location
-			Location originalLoc = PrimaryCareBusinessLogic.getLocationLoggedIn(request.getSession());
-			
-			//set volatile location
-			 PrimaryCareUtil.setVolatileUserData(PrimaryCareConstants.VOLATILE_USER_DATA_LOGIN_LOCATION, loc);
-			
-			//get ids
-			List<String> idList = PrimaryCareBusinessLogic.getNewPrimaryIdentifiers(numIds);
-	        model.addAttribute("idList",idList);
-	        model.addAttribute("locationName", loc.getName().replace(" Health Center", ""));
-	        model.addAttribute("count", "1");
-	        
-	        
-	        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-	        model.addAttribute("introLabelEPL",  "A35,15,0,3,1,1,N,\"Printed on " + sdf.format(new Date()) + " for " + loc.getName().toUpperCase() + "\"");
-	        
-	        PrimaryCareUtil.setVolatileUserData(PrimaryCareConstants.VOLATILE_USER_DATA_LOGIN_LOCATION, originalLoc);
-			
+    		if (Boolean.TRUE.equals(resume)) {
+    			export = BulkIdsController.getExportToResume(exportId);
+    		} else {
+	    		//get request location
+				Location loc = BulkIdsController.getLocation(numIds, locationId);
+				String locationName = loc.getName().replace(" Health Center", "");
+		        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+		        String introLabelEPL = "A35,15,0,3,1,1,N,\"Printed on " + sdf.format(new Date()) + " for " + loc.getName().toUpperCase() + "\"";
+				export = BulkIdExportService.getInstance().start(exportId, loc, numIds, "\nN\n" + introLabelEPL + "\nP1\n",
+						getIdentifierLabelEPL(locationName));
+    		}
     	} catch(Exception e)
     	{
     		throw new PrimaryCareException(e);
     	}
-    	
-		return new ModelAndView("/module/rwandaprimarycare/barCode", model);
+    	BulkIdsController.streamExport(export, resumeAfter, "text/epl", "barCode.epl", response);
+	}
+	
+	/**
+	 * EPL label of a new identifier, with {@link BulkIdExportService#IDENTIFIER} in place of the
+	 * identifier; the one template of both the pre-printed labels and the labels for another location
+	 */
+	static String getIdentifierLabelEPL(String locationName) {
+		MessageSourceService mss = Context.getMessageSourceService();
+		Locale locale = Context.getLocale();
+		return "\nN\n"
+				+ "B250,10,0,1,1,6,40,B,\"" + BulkIdExportService.IDENTIFIER + "\"\n"
+				+ "A375,10,0,3,1,1,N,\"(" + locationName + ")\"\n"
+				+ "A250,104,0,3,1,1,N,\"" + mss.getMessage("rwandaprimarycare.touchscreen.gender", null, locale) + ":\"\n"
+				+ "A250,128,0,3,1,1,N,\"" + mss.getMessage("rwandaprimarycare.touchscreen.birthdate", null, locale) + ":\"\n"
+				+ "P1\n";
 	}
 	
-}
\ No newline at end of file
+}
@@ -1,59 +1,117 @@
 package org.openmrs.module.rwandaprimarycare;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.Location;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.service.BulkIdExportService;
+import org.openmrs.module.rwandaprimarycare.service.BulkIdExportService.BulkIdExport;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 
 @Controller
 public class BulkIdsController {
 
+	protected static final Log log = LogFactory.getLog(BulkIdsController.class);
+
+		/**
+		 * Streams a CSV of new identifiers for the location. With resume=true, continues the export
+		 * exportId after resumeAfter, or after what was last sent.
+		 */
 		@RequestMapping("/module/rwandaprimarycare/bulkIds.form")
 		public void renderBarCode(
-	        @RequestParam(required=true, value="howManyIds") Integer numIds,
-	        @RequestParam(required=true, value="location") Integer locationId,
+	        @RequestParam(required=false, value="howManyIds") Integer numIds,
+	        @RequestParam(required=false, value="location") Integer locationId,
+	        @RequestParam(required=false, value="exportId") String exportId,
+	        @RequestParam(required=false, value="resume") Boolean resume,
+	        @RequestParam(required=false, value="resumeAfter") String resumeAfter,
 	        HttpServletRequest request,
 	        HttpServletResponse response) throws PrimaryCareException {
-			
+
+			BulkIdExport export;
+			String fileName;
 			try {
-				//get request location
-				Location loc = Context.getLocationService().getLocation(locationId);
-				//get logged in location so that we can reset volatile location
-				Location originalLoc = PrimaryCareBusinessLogic.getLocationLoggedIn(request.getSession());
-				
-				//set volatile location
-				 PrimaryCareUtil.setVolatileUserData(PrimaryCareConstants.VOLATILE_USER_DATA_LOGIN_LOCATION, loc);
-				
-				//get ids
-				List<String> idList = PrimaryCareBusinessLogic.getNewPrimaryIdentifiers(numIds);
-				StringBuilder ret = new StringBuilder(loc.getName().toUpperCase() + "\nID,Kinyarwanda Name,Christian Name\n");
-				for (String id: idList){
-					ret.append(id + "\n");
+				if (Boolean.TRUE.equals(resume)) {
+					export = getExportToResume(exportId);
+				} else {
+					//get request location
+					Location loc = getLocation(numIds, locationId);
+					export = BulkIdExportService.getInstance().start(exportId, loc, numIds,
+							loc.getName().toUpperCase() + "\nID,Kinyarwanda Name,Christian Name\n",
+							BulkIdExportService.IDENTIFIER + "\n");
 				}
-				
-				//reset user location
-				PrimaryCareUtil.setVolatileUserData(PrimaryCareConstants.VOLATILE_USER_DATA_LOGIN_LOCATION, originalLoc);
-			    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-			    response.setContentType("text/comma-separated-values");
-			    response.setHeader("Content-Disposition","attachment; filename=\"idExport_"+ loc.getName() + "_" + sdf.format(new Date()) + ".csv\"");
-				try {
-			    	response.getOutputStream().write(ret.toString().getBytes());
-			    } catch (Exception ex){
-			    	//
-			    }
+				SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+				fileName = "idExport_" + export.getLocationName() + "_" + sdf.format(new Date())
+						+ (Boolean.TRUE.equals(resume) ? "_resumed" : "") + ".csv";
 			} catch (Exception ex) {
 				throw new PrimaryCareException(ex);
 			}
+			streamExport(export, resumeAfter, "text/comma-separated-values", fileName, response);
 	}
-			
-			
-			
+
+		/**
+		 * Progress of a CSV or barcode export, for the page that started it
+		 */
+		@RequestMapping(value = "/module/rwandaprimarycare/bulkIdsProgress.form", produces = "application/json")
+		@ResponseBody
+		public ResponseEntity<Object> getProgress(@RequestParam(value="exportId") String exportId) {
+			if (!Context.isAuthenticated()) {
+				return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+			}
+			BulkIdExport export = BulkIdExportService.getInstance().getExport(exportId);
+			if (export == null) {
+				return new ResponseEntity<Object>(HttpStatus.NOT_FOUND);
+			}
+			return new ResponseEntity<Object>(export.getProgress(), HttpStatus.OK);
+		}
+
+		static Location getLocation(Integer numIds, Integer locationId) {
+			if (numIds == null || locationId == null)
+				throw new IllegalArgumentException("howManyIds and location are required");
+			Location loc = Context.getLocationService().getLocation(locationId);
+			if (loc == null)
+				throw new IllegalArgumentException("No location with id " + locationId);
+			return loc;
+		}
+
+		static BulkIdExport getExportToResume(String exportId) {
+			BulkIdExport export = BulkIdExportService.getInstance().getExport(exportId);
+			if (export == null)
+				throw new IllegalArgumentException("The identifier export " + exportId + " does not exist or has expired");
+			return export;
+		}
+
+		/**
+		 * Writes the export to the response as the identifiers are generated. Once the first chunk has
+		 * been sent an error can no longer be shown as a page, so it is only logged; the export
+		 * remains available to resume.
+		 */
+		static void streamExport(BulkIdExport export, String resumeAfter, String contentType, String fileName,
+				HttpServletResponse response) throws PrimaryCareException {
+			response.setContentType(contentType);
+			response.setCharacterEncoding("UTF-8");
+			response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+			response.setHeader("X-Export-Id", export.getExportId());
+			try {
+				BulkIdExportService.getInstance().write(export, resumeAfter, response.getOutputStream());
+			} catch (IOException ex) {
+				// the client went away, the export can be resumed
+			} catch (Exception ex) {
+				if (!response.isCommitted())
+					throw new PrimaryCareException(ex);
+				log.error("Identifier export " + export.getExportId() + " failed after the download started", ex);
+			}
+		}
+
 }
@@ -10,6 +10,8 @@ import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.rwandaprimarycare.constants.AppConstants;
+import org.openmrs.module.rwandaprimarycare.openhim.OrgUnitCatalog;
+import org.openmrs.module.rwandaprimarycare.openhim.OrgUnitCatalog.Catalog;
 import org.openmrs.module.rwandaprimarycare.pojos.globalResponse.ResponseDTO;
 import org.openmrs.module.rwandaprimarycare.pojos.location.LocationPojo;
 import org.openmrs.module.rwandaprimarycare.pojos.patient.Identifier;
@@ -17,20 +19,18 @@ import org.openmrs.module.rwandaprimarycare.pojos.patient.PatientPojo;
 import org.openmrs.module.rwandaprimarycare.pojos.requestBody.FindByDocument;
 import org.openmrs.module.rwandaprimarycare.pojos.requestBody.FindByName;
 import org.openmrs.module.rwandaprimarycare.pojos.trackedEntityInstance.TeiRequestResponse;
-import org.openmrs.module.rwandaprimarycare.service.DhisService;
 import org.openmrs.module.rwandaprimarycare.service.FindPatientService;
-import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
-import org.springframework.web.client.RestTemplate;
 
 import javax.servlet.http.HttpSession;
 import java.util.ArrayList;
@@ -78,10 +78,20 @@ public class FindPatient {
             @RequestParam("surName") String surName,
             @RequestParam(value = "postName", required = false) String postName,
             @RequestParam(value = "yearOfBirth", required = false) String yearOfBirth,
-            @RequestParam(value = "origin", required = false) String origin
+            @RequestParam(value = "origin", required = false) String origin,
+            @RequestParam(value = "offset", required = false, defaultValue = "0") int offset,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "count", required = false, defaultValue = "false") boolean count
     ) {
+        if (offset < 0) {
+            ResponseDTO error = new ResponseDTO();
+            error.setStatus(AppConstants.RESPONSE_FAILURE);
+            error.setMessage("offset must not be negative");
+            return new ResponseEntity<Object>(error, HttpStatus.BAD_REQUEST);
+        }
         FindPatientService findPatientService = new FindPatientService();
-        ResponseDTO result = findPatientService.findPatientAjax(surName, postName, yearOfBirth, origin);
+        int pageSize = findPatientService.getSearchPageSize(limit);
+        ResponseDTO result = findPatientService.findPatientAjax(surName, postName, yearOfBirth, origin, offset, pageSize, count);
         return new ResponseEntity<Object>(result, HttpStatus.OK);
     }
 
@@ -158,23 +168,28 @@ public class FindPatient {
         return response;
     }
 
+    /**
+     * DHIS2 organisation units, served from the in-memory catalog. code and name filter by prefix,
+     * ignoring case; If-None-Match with the ETag of a previous answer gets a 304 when nothing changed.
+     */
     @RequestMapping(method = RequestMethod.GET, value = "/rwandaprimarycare/orgUnit")
     @ResponseBody
-    public ResponseEntity<String> getDhisOrgUnit(){
-        log.error("Checking the List Of Organization Units");
-        final String dhis2ServerPrefix = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_DHIS2_PREFIX);
-        final String openhimDhisUrl = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_NIDA_API) + (dhis2ServerPrefix.toLowerCase().indexOf("null") != 0 ?dhis2ServerPrefix:"") + "/api";
-
-        try{
-            HttpEntity<String> orgUnitRequest = DhisService.openHIMHttpEntity();
-
-            String url = openhimDhisUrl + "/organisationUnits?paging=false&fields=id,name,displayName,code";
-            log.error("URL: " + url);
-            return (new RestTemplate()).exchange(url, HttpMethod.GET, orgUnitRequest, String.class);
-        } catch(Exception e){
-            log.error(e.getMessage());
+    public ResponseEntity<String> getDhisOrgUnit(@RequestParam(value = "code", required = false) String code,
+                                                 @RequestParam(value = "name", required = false) String name,
+                                                 @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        Catalog catalog = OrgUnitCatalog.getInstance().getCatalog();
+        if (catalog == null) {
+            return new ResponseEntity<String>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        String etag = catalog.getEtag(code, name);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(etag);
+        headers.setCacheControl("no-cache");
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag))) {
+            return new ResponseEntity<String>(headers, HttpStatus.NOT_MODIFIED);
         }
-        return null;
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return new ResponseEntity<String>(catalog.getBody(code, name), headers, HttpStatus.OK);
     }
 
     @RequestMapping(method = RequestMethod.GET, value = "/rwandaprimarycare/findPatient/location")
@@ -11,6 +11,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.openhim.OpenHIMHttpClient;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -75,7 +76,7 @@ public class FindUserFromNIDAByIdController {
 
                 search = search.trim().replace(" ", "");
                 final String uri = openhimPatientUrl+"/?id=" + search;
-                RestTemplate restTemplate = new RestTemplate();
+                RestTemplate restTemplate = OpenHIMHttpClient.getSharedRestTemplate();
 
                 String plainCreds = openhimClientID+":"+openhimPwd;
                 byte[] plainCredsBytes = plainCreds.getBytes();
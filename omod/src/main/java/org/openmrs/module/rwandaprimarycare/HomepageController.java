@@ -54,7 +54,7 @@ public class HomepageController {
 	        }
 	        if (recent == null) {
 	            try {
-	                recent = new RecentlyViewedPatients(Integer.valueOf(Context.getAdministrationService().getGlobalProperty("registration.maxRecentlyViewed")));
+	                recent = new RecentlyViewedPatients(Integer.valueOf(PrimaryCareConfig.get().get("registration.maxRecentlyViewed")));
 	                session.setAttribute("RECENT_PATIENTS", recent);
 	            } catch (Exception ex){
 	                throw new RuntimeException("The global proerty registration.maxRecentlyViewed is not set correctly.  Please verify all the registration global properties.");
@@ -72,7 +72,7 @@ public class HomepageController {
 	            }
 	        }
 	        
-	        if (Context.getAdministrationService().getGlobalProperty("registration.showDiagnosisLink").equals("true")) {
+	        if (PrimaryCareConfig.get().isShowDiagnosisLink()) {
 	        	model.addAttribute("showDiagnosisLink", Boolean.TRUE);
 	        }
 	        
@@ -95,7 +95,7 @@ public class HomepageController {
 	        }
 	        String locationStr = request.getParameter("location");
 	
-	        if (Context.getAdministrationService().getGlobalProperty("registration.showDiagnosisLink").equals("true")) {
+	        if (PrimaryCareConfig.get().isShowDiagnosisLink()) {
 	        	model.addAttribute("showDiagnosisLink", Boolean.TRUE);
 	        }
 	        
@@ -109,6 +109,7 @@ public class HomepageController {
                 //NOTE:   this is used by the identifier validator to determine identifier prefixes.  Default to default location global property if not found when requesting new IDs.
                 PrimaryCareUtil.setVolatileUserData(PrimaryCareConstants.VOLATILE_USER_DATA_LOGIN_LOCATION, location);
                 User user = Context.getAuthenticatedUser();
+                PrimaryCareUserSession.bind(session, user);
                 model.addAttribute("user", user);
                 
                 if (Context.getAuthenticatedUser().getUserProperty(OpenmrsConstants.USER_PROPERTY_DEFAULT_LOCATION) == null || !Context.getAuthenticatedUser().getUserProperty(OpenmrsConstants.USER_PROPERTY_DEFAULT_LOCATION).equals(locationStr)){
@@ -15,10 +15,10 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.Patient;
 import org.openmrs.PersonAddress;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.addresshierarchy.AddressHierarchyEntry;
-import org.openmrs.module.addresshierarchy.AddressHierarchyLevel;
 import org.openmrs.module.addresshierarchy.AddressValidator;
-import org.openmrs.module.addresshierarchy.service.AddressHierarchyService;
+import org.openmrs.module.rwandaprimarycare.address.AddressHierarchyIndex;
+import org.openmrs.module.rwandaprimarycare.address.AddressHierarchyTree;
+import org.openmrs.module.rwandaprimarycare.address.AddressHierarchyTree.Node;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.ServletRequestUtils;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -115,69 +115,39 @@ public class HtmlFormEntryAddressHierarchyController {
 	protected void locations(HttpServletRequest request, HttpServletResponse response,
 			@RequestParam(value = "locationId", required = false) Integer locationId) throws Exception {
 
-		AddressHierarchyService ahs = Context.getService(AddressHierarchyService.class);
-		List<AddressHierarchyEntry> locationList;
-
-		if (locationId == null || locationId == -1){
-			locationList = ahs.getTopOfHierarchyList();
-		}
-		else {
-			locationList = ahs.getNextComponent(locationId);
-		}
-
-		Map<String, List<AddressHierarchyEntry>> map = new HashMap<String,List<AddressHierarchyEntry>>();
-		map.put(Integer.toString(1), locationList);
-
-		AddressHierarchyEntry ah = null;
+		AddressHierarchyTree tree = AddressHierarchyIndex.getInstance().getTree();
+		List<Node> locationList = tree.getChildren(locationId == null || locationId == -1 ? null : locationId);
 
 		StringBuffer sb = new StringBuffer();
 		sb.append("{");
-		if (map.values().iterator().hasNext()){
-			List<AddressHierarchyEntry> currList = map.values().iterator().next();
-			sb.append("\"addresses\":");
-			sb.append("[");
-			Iterator<AddressHierarchyEntry> locIterator = currList.iterator();
-			while(locIterator.hasNext()){
-				sb.append("{");
-				ah = locIterator.next();
-
-				sb.append("\"id\":");
-				String idString = "";
-				Integer tempId = -1;
-				tempId = ah.getAddressHierarchyEntryId();
-				if(tempId!=null && tempId != -1){
-					idString = tempId.toString();
-
-				}
-				sb.append("\""+idString+"\"");
-				sb.append(",");
-
-				sb.append("\"type\":");
-				AddressHierarchyLevel type = ah.getLevel();
-				String typeName = "";
-				if(type!=null){
-					typeName = type.getName();
-				}
-				sb.append("\""+typeName+"\"");
-				sb.append(",");
+		sb.append("\"addresses\":");
+		sb.append("[");
+		Iterator<Node> locIterator = locationList.iterator();
+		while(locIterator.hasNext()){
+			Node ah = locIterator.next();
+			sb.append("{");
 
-				String childTypeName = "";
-				AddressHierarchyLevel tempChildType = ahs.getChildAddressHierarchyLevel(type);
-				if(tempChildType != null){
-					childTypeName = tempChildType.getName();
-				}
-				sb.append("\"childType\":");
-				sb.append("\""+childTypeName+"\"");
+			sb.append("\"id\":");
+			sb.append("\""+ah.getId()+"\"");
+			sb.append(",");
+
+			// level names are kept once per level by the tree
+			sb.append("\"type\":");
+			sb.append("\""+tree.getLevelName(ah)+"\"");
+			sb.append(",");
+
+			String childTypeName = tree.getChildLevelName(ah);
+			sb.append("\"childType\":");
+			sb.append("\""+(childTypeName != null ? childTypeName : "")+"\"");
+			sb.append(",");
+			sb.append("\"display\":");
+			sb.append("\""+ah.getName()+"\"");
+			sb.append("}");
+			if(locIterator.hasNext()){
 				sb.append(",");
-				sb.append("\"display\":");
-				sb.append("\""+ah.getLocationName()+"\"");
-				sb.append("}");
-				if(locIterator.hasNext()){
-					sb.append(",");
-				}
 			}
-			sb.append("]");
 		}
+		sb.append("]");
 		sb.append("}");
 
 		response.setContentType("text/html");
@@ -0,0 +1,179 @@
+package org.openmrs.module.rwandaprimarycare;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.address.AddressHierarchyIndex;
+import org.openmrs.module.rwandaprimarycare.identifier.PrimaryIdentifierPool;
+import org.openmrs.module.rwandaprimarycare.metadata.PrimaryCareMetadata;
+import org.openmrs.module.rwandaprimarycare.openhim.CircuitBreakers;
+import org.openmrs.module.rwandaprimarycare.openhim.ConnectivityMonitor;
+import org.openmrs.module.rwandaprimarycare.openhim.OfflineTransactionSyncTask;
+import org.openmrs.module.rwandaprimarycare.openhim.OpenHIMClientRegistryProxy;
+import org.openmrs.module.rwandaprimarycare.openhim.OpenHIMHttpClient;
+import org.openmrs.module.rwandaprimarycare.openhim.OpenHIMProxyExecutor;
+import org.openmrs.module.rwandaprimarycare.openhim.OrgUnitCatalog;
+import org.openmrs.module.rwandaprimarycare.openhim.ShrMigrationQueue;
+import org.openmrs.module.rwandaprimarycare.search.PatientSuggestionIndex;
+import org.openmrs.module.rwandaprimarycare.service.CrPatientCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only runtime statistics of the module, for monitoring dashboards
+ */
+@Controller
+public class PrimaryCareMonitoringController {
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    @Autowired
+    private OpenHIMClientRegistryProxy openHIMProxy;
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/httpPool", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getHttpPoolStats() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(OpenHIMHttpClient.getInstance().getPoolStats(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/connectivity", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getConnectivityStatus() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(ConnectivityMonitor.getInstance().getStatus(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/offlineTransactions", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getOfflineTransactionStatus() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(OfflineTransactionSyncTask.getInstance().getStatus(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/crCache", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getCrCacheStats() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(CrPatientCache.getInstance().getStats(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/suggestionIndex", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getSuggestionIndexStatus() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(PatientSuggestionIndex.getInstance().getStatus(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/metadata", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getMetadataStatus() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(PrimaryCareMetadata.getInstance().getStatus(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/locationCodes", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getLocationCodes() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        RwandaLocationCodes codes = RwandaLocationCodes.get();
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("codes", codes.getCodesByLocationName());
+        status.put("errors", codes.getErrors());
+        return new ResponseEntity<Object>(status, HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/identifierPool", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getIdentifierPoolStatus() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(PrimaryIdentifierPool.getInstance().getStatus(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/identifierSearchFormat", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getIdentifierSearchFormat() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(openHIMProxy.getIdentifierSearchStats(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/createUpdateEnrichment", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getCreateUpdateEnrichmentStats() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(openHIMProxy.getEnrichmentStats(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/openhimProxy", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getOpenHIMProxyStats() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(OpenHIMProxyExecutor.getInstance().getStats(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/circuitBreakers", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getCircuitBreakerStatus() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(CircuitBreakers.getInstance().getStatus(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/shrMigration", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getShrMigrationStatus() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(ShrMigrationQueue.getInstance().getStatus(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/orgUnitCatalog", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getOrgUnitCatalogStatus() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(OrgUnitCatalog.getInstance().getStatus(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/rwandaprimarycare/monitoring/addressHierarchy", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<Object> getAddressHierarchyStatus() {
+        if (!Context.isAuthenticated()) {
+            return new ResponseEntity<Object>(HttpStatus.UNAUTHORIZED);
+        }
+        return new ResponseEntity<Object>(AddressHierarchyIndex.getInstance().getStatus(), HttpStatus.OK);
+    }
+}
@@ -0,0 +1,47 @@
+package org.openmrs.module.rwandaprimarycare;
+
+import java.io.Serializable;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.openmrs.User;
+
+/**
+ * Reports the HTTP session of a user to {@link PrimaryCareUserContext}, so the data kept for the
+ * user is dropped when its last session is invalidated, by logout or by timeout.
+ */
+public final class PrimaryCareUserSession implements HttpSessionBindingListener, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String SESSION_ATTRIBUTE = "rwandaprimarycare.userSession";
+
+	private final Integer userId;
+
+	private PrimaryCareUserSession(Integer userId) {
+		this.userId = userId;
+	}
+
+	/**
+	 * Binds the session to the user, once per session
+	 */
+	public static void bind(HttpSession session, User user) {
+		Object bound = session.getAttribute(SESSION_ATTRIBUTE);
+		if (bound instanceof PrimaryCareUserSession && ((PrimaryCareUserSession) bound).userId.equals(user.getUserId())) {
+			return;
+		}
+		session.setAttribute(SESSION_ATTRIBUTE, new PrimaryCareUserSession(user.getUserId()));
+	}
+
+	@Override
+	public void valueBound(HttpSessionBindingEvent event) {
+		PrimaryCareUserContext.sessionStarted(userId);
+	}
+
+	@Override
+	public void valueUnbound(HttpSessionBindingEvent event) {
+		PrimaryCareUserContext.sessionEnded(userId);
+	}
+}
@@ -73,7 +73,7 @@ public class RwandaPrimaryCarePatientDashboardController {
 	        
 	        Patient patient = Context.getPatientService().getPatient(patientId);
 	        
-	        if(Context.getAdministrationService().getGlobalProperty("registration.overrideHealthCenterAttribute").equals("true"))
+	        if("true".equals(PrimaryCareConfig.get().get("registration.overrideHealthCenterAttribute")))
 	        {
 	        	PrimaryCareBusinessLogic.setHealthCenter(patient, PrimaryCareWebLogic.getCurrentLocation(session));
 	        }
@@ -275,7 +275,7 @@ public class RwandaPrimaryCarePatientDashboardController {
 	                registrationEncounterToday = PrimaryCareBusinessLogic.saveEncounterAndVerifyVisit(registrationEncounterToday);
 
 	        }
-	        if (Context.getAdministrationService().getGlobalProperty("registration.showDiagnosisLink").equals("true")) {
+	        if (PrimaryCareConfig.get().isShowDiagnosisLink()) {
 	        	model.addAttribute("showDiagnosisLink", Boolean.TRUE);
 	        }
 	        if (registrationEncounterToday != null)
@@ -325,7 +325,7 @@ public class RwandaPrimaryCarePatientDashboardController {
     	//So that errors will be directed to a touch screen error page
     	try{
 	        Calendar todaysDate = Calendar.getInstance();
-	        Integer backEntry = Integer.valueOf(Context.getAdministrationService().getGlobalProperty("registration.backEntryLimit"));
+	        Integer backEntry = Integer.valueOf(PrimaryCareConfig.get().get("registration.backEntryLimit"));
 	        
 	        List<Date> dates = new ArrayList<Date>();
 	        
@@ -7,34 +7,17 @@ import java.util.Map;
 import org.apache.commons.lang.StringUtils;
 import org.openmrs.api.context.Context;
 import org.openmrs.messagesource.MessageSourceService;
-import org.openmrs.module.addresshierarchy.AddressHierarchyEntry;
-import org.openmrs.module.addresshierarchy.service.AddressHierarchyService;
+import org.openmrs.module.rwandaprimarycare.address.AddressHierarchyIndex;
 
 public class PrimaryCareDWRService {
 
     
     public Integer getAddressHierarchyId(Integer parentId, String searchString){
-        Integer ret = null;
         if (Context.getAuthenticatedUser() != null && parentId != null && searchString != null && !searchString.equals("")){
-            AddressHierarchyService ahs = Context.getService(AddressHierarchyService.class);
-            if (parentId.intValue() == 0){
-                List<AddressHierarchyEntry> topList = ahs.getTopOfHierarchyList();
-                for (AddressHierarchyEntry ah : topList){
-                    if (ah != null && ah.getLocationName().equals(searchString))
-                        return ah.getAddressHierarchyEntryId();
-                }
-            } else {
-                
-                    List<AddressHierarchyEntry> childList = ahs.getNextComponent(parentId);
-                    for (AddressHierarchyEntry ahTmp : childList){
-                        if (ahTmp != null && ahTmp.getLocationName().equals(searchString))
-                            return ahTmp.getAddressHierarchyEntryId();
-                    }
-                    
-                
-            }
+            // 0 is the top of the hierarchy
+            return AddressHierarchyIndex.getInstance().getTree().getChildId(parentId.intValue() == 0 ? null : parentId, searchString);
         }
-        return ret;
+        return null;
     }
     
     public String getMessage(String message){
@@ -3,18 +3,30 @@ package org.openmrs.module.rwandaprimarycare.openhim;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
-import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * OpenHIM Client Registry Proxy Controller
@@ -35,6 +47,19 @@ import java.util.TreeMap;
  *   clientregistry.clientRegistryServerUrl =
  *     "http://localhost:8080/openmrs/ws/rwandaprimarycare/openhim"
  *
+ * Requests that are forwarded unchanged (searches and reads other than identifier searches,
+ * DELETE, non-Patient resources) are streamed: bodies are piped between the servlet and the
+ * OpenHIM connection instead of being read into memory.
+ *
+ * The exchange with OpenHIM runs on the bounded pool of {@link OpenHIMProxyExecutor}: the
+ * container thread is released as soon as the request is queued, and the response is written
+ * when the exchange completes. A request that finds the pool and its queue full is refused with
+ * a 503, one that takes longer than primaryCare.openhim.proxyTimeout gets a 504, both as FHIR
+ * OperationOutcomes. The exchange writes a streamed response through a {@link GuardedResponse}:
+ * once the request timed out its writes fail instead of reaching the servlet response, so the
+ * container thread answering the timeout and the pool thread never write it both. The OpenHIM
+ * connection of a streamed exchange gives up by the same deadline, freeing the pool thread.
+ *
  * Note: Uses /ws/ prefix (not /module/) to ensure Spring DispatcherServlet routing.
  * This follows the pattern used by openmrs-module-webservices.rest.
  *
@@ -51,7 +76,9 @@ public class OpenHIMProxyController {
 	/**
 	 * Handle all HTTP methods and paths under /openhim/**
 	 *
-	 * Extracts request details and delegates to proxy service.
+	 * Extracts request details and queues the exchange with the proxy service. Pass-through
+	 * requests are streamed straight to the response, the others are buffered so that the proxy
+	 * service can transform them.
 	 *
 	 * Examples:
 	 * - GET  /openhim/Patient?family=Man
@@ -60,54 +87,134 @@ public class OpenHIMProxyController {
 	 * - PUT  /openhim/Patient/123
 	 *
 	 * @param request HTTP servlet request
-	 * @param body Request body (optional, used for POST/PUT)
-	 * @return OpenHIM response (forwarded as-is)
+	 * @param servletResponse HTTP servlet response, written directly when streaming
+	 * @return OpenHIM response (forwarded as-is) once the exchange completes; null once it has been streamed
 	 */
 	@RequestMapping(
 		value = "/rwandaprimarycare/openhim/**",
 		method = {RequestMethod.GET, RequestMethod.POST, RequestMethod.PUT, RequestMethod.DELETE}
 	)
 	@ResponseBody
-	public ResponseEntity<String> proxyRequest(
-			HttpServletRequest request,
-			@RequestBody(required = false) String body) {
+	public DeferredResult<ResponseEntity<String>> proxyRequest(
+			final HttpServletRequest request,
+			final HttpServletResponse servletResponse) {
+
+		// 1. Extract HTTP method
+		final String httpMethod = request.getMethod();
+
+		// 2. Extract resource path
+		// Input:  /openmrs/ws/rwandaprimarycare/openhim/Patient/123
+		// Output: /Patient/123
+		String fullPath = request.getRequestURI();
+		final String resourcePath = extractResourcePath(fullPath);
+
+		// 3. Extract query string
+		// Input: family=Man&given=John
+		final String queryString = request.getQueryString();
 
+		// 4. Extract headers
+		final Map<String, String> headers = extractHeaders(request);
+
+		// 5. Queue the exchange, releasing the container thread
+		final OpenHIMProxyExecutor executor = OpenHIMProxyExecutor.getInstance();
+		final long timeout = executor.getTimeout();
+		final long deadline = System.currentTimeMillis() + timeout;
+		final GuardedResponse guardedResponse = new GuardedResponse(servletResponse);
+		final DeferredResult<ResponseEntity<String>> result = new DeferredResult<ResponseEntity<String>>(timeout);
+		final Future<?> task;
 		try {
-			// 1. Extract HTTP method
-			String httpMethod = request.getMethod();
+			task = executor.submit(new Runnable() {
 
-			// 2. Extract resource path
-			// Input:  /openmrs/ws/rwandaprimarycare/openhim/Patient/123
-			// Output: /Patient/123
-			String fullPath = request.getRequestURI();
-			String resourcePath = extractResourcePath(fullPath);
+				@Override
+				public void run() {
+					result.setResult(exchange(request, guardedResponse, httpMethod, resourcePath, queryString, headers,
+						deadline));
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.warn("OpenHIM proxy saturated, refusing " + httpMethod + " " + resourcePath);
+			result.setResult(proxyService.createErrorResponse(HttpStatus.SERVICE_UNAVAILABLE,
+				"OpenHIM proxy is busy, retry later"));
+			return result;
+		}
+		result.onTimeout(new Runnable() {
 
-			// 3. Extract query string
-			// Input: family=Man&given=John
-			String queryString = request.getQueryString();
+			@Override
+			public void run() {
+				task.cancel(true);
+				executor.timedOut();
+				// from here on the exchange cannot touch the response
+				boolean started = guardedResponse.abandon();
+				log.warn("OpenHIM proxy request timed out after " + timeout + "ms: " + httpMethod + " " + resourcePath);
+				// a streamed response that already started cannot be replaced
+				result.setResult(started ? null : proxyService.createErrorResponse(
+					HttpStatus.GATEWAY_TIMEOUT, "OpenHIM did not answer within " + timeout + "ms"));
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Run one exchange with OpenHIM, on a thread of the proxy pool
+	 *
+	 * @param deadline time by which the request times out, in milliseconds since the epoch
+	 * @return OpenHIM response (forwarded as-is), or null once it has been streamed
+	 */
+	private ResponseEntity<String> exchange(
+			HttpServletRequest request,
+			GuardedResponse servletResponse,
+			String httpMethod,
+			String resourcePath,
+			String queryString,
+			Map<String, String> headers,
+			long deadline) {
 
-			// 4. Extract headers
-			Map<String, String> headers = extractHeaders(request);
+		if (System.currentTimeMillis() >= deadline) {
+			// timed out while queued
+			return null;
+		}
+		try {
+			// Stream pass-through requests; a null ResponseEntity tells Spring the response is handled
+			if (proxyService.isPassThrough(httpMethod, resourcePath, queryString)) {
+				proxyService.streamToOpenHIM(httpMethod, resourcePath, queryString, headers,
+					request, servletResponse, deadline);
+				return null;
+			}
 
-			// 5. Log request
+			String body = readBody(request);
 			log.info("Proxying " + httpMethod + " " + resourcePath +
 					(queryString != null ? "?" + queryString : "") +
 					(body != null ? " (with body)" : ""));
 
-			// 6. Forward to OpenHIM via proxy service
-			ResponseEntity<String> response = proxyService.forwardToOpenHIM(
+			// Forward to OpenHIM via proxy service, response returned as-is
+			return proxyService.forwardToOpenHIM(
 				httpMethod, resourcePath, queryString, body, headers);
 
-			// 7. Return response as-is
-			return response;
-
 		} catch (Exception e) {
+			if (servletResponse.isStarted()) {
+				// part of a streamed response went out, or the request timed out meanwhile
+				log.warn("Streaming from OpenHIM interrupted: " + e.getMessage());
+				return null;
+			}
 			log.error("Error in proxy controller", e);
 			return ResponseEntity.status(500)
 				.body("{\"error\": \"Proxy error: " + escapeJson(e.getMessage()) + "\"}");
 		}
 	}
 
+	/**
+	 * Read the request body, which only transformed requests need as a String
+	 *
+	 * @param request HTTP servlet request
+	 * @return Request body, or null if there is none
+	 */
+	private String readBody(HttpServletRequest request) throws IOException {
+		String encoding = request.getCharacterEncoding();
+		String body = StreamUtils.copyToString(request.getInputStream(),
+			Charset.forName(encoding != null ? encoding : "UTF-8"));
+		return body.isEmpty() ? null : body;
+	}
+
 	/**
 	 * Extract FHIR resource path from full URI
 	 *
@@ -177,4 +284,288 @@ public class OpenHIMProxyController {
 				   .replace("\r", "\\r")
 				   .replace("\t", "\\t");
 	}
+
+	/**
+	 * The servlet response as the exchange sees it. Every change to the response is made under one
+	 * lock and fails once the request timed out, so that nothing the exchange does afterwards
+	 * reaches the response the container thread completes.
+	 */
+	private static class GuardedResponse extends HttpServletResponseWrapper {
+
+		private final Object lock = new Object();
+
+		// guarded by lock
+		private boolean started;
+		private boolean abandoned;
+		private ServletOutputStream outputStream;
+		private PrintWriter writer;
+
+		GuardedResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		/**
+		 * Called on timeout: later changes made by the exchange fail
+		 *
+		 * @return true if the exchange already changed the response
+		 */
+		boolean abandon() {
+			synchronized (lock) {
+				abandoned = true;
+				return started;
+			}
+		}
+
+		/**
+		 * @return true if the exchange changed the response, or may no longer do so
+		 */
+		boolean isStarted() {
+			synchronized (lock) {
+				return started || abandoned;
+			}
+		}
+
+		/**
+		 * Must hold the lock
+		 *
+		 * @return false if the response was abandoned
+		 */
+		private boolean claim() {
+			if (abandoned) {
+				return false;
+			}
+			started = true;
+			return true;
+		}
+
+		private void claimOrFail() throws IOException {
+			if (!claim()) {
+				throw new IOException("OpenHIM proxy request timed out");
+			}
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			synchronized (lock) {
+				if (claim()) {
+					super.setStatus(sc);
+				}
+			}
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public void setStatus(int sc, String sm) {
+			synchronized (lock) {
+				if (claim()) {
+					super.setStatus(sc, sm);
+				}
+			}
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			synchronized (lock) {
+				if (claim()) {
+					super.setHeader(name, value);
+				}
+			}
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			synchronized (lock) {
+				if (claim()) {
+					super.addHeader(name, value);
+				}
+			}
+		}
+
+		@Override
+		public void setIntHeader(String name, int value) {
+			synchronized (lock) {
+				if (claim()) {
+					super.setIntHeader(name, value);
+				}
+			}
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+			synchronized (lock) {
+				if (claim()) {
+					super.addIntHeader(name, value);
+				}
+			}
+		}
+
+		@Override
+		public void setDateHeader(String name, long date) {
+			synchronized (lock) {
+				if (claim()) {
+					super.setDateHeader(name, date);
+				}
+			}
+		}
+
+		@Override
+		public void addDateHeader(String name, long date) {
+			synchronized (lock) {
+				if (claim()) {
+					super.addDateHeader(name, date);
+				}
+			}
+		}
+
+		@Override
+		public void setContentType(String type) {
+			synchronized (lock) {
+				if (claim()) {
+					super.setContentType(type);
+				}
+			}
+		}
+
+		@Override
+		public void setContentLength(int len) {
+			synchronized (lock) {
+				if (claim()) {
+					super.setContentLength(len);
+				}
+			}
+		}
+
+		@Override
+		public void setCharacterEncoding(String charset) {
+			synchronized (lock) {
+				if (claim()) {
+					super.setCharacterEncoding(charset);
+				}
+			}
+		}
+
+		@Override
+		public void setBufferSize(int size) {
+			synchronized (lock) {
+				if (claim()) {
+					super.setBufferSize(size);
+				}
+			}
+		}
+
+		@Override
+		public void setLocale(Locale locale) {
+			synchronized (lock) {
+				if (claim()) {
+					super.setLocale(locale);
+				}
+			}
+		}
+
+		@Override
+		public void reset() {
+			synchronized (lock) {
+				if (claim()) {
+					super.reset();
+				}
+			}
+		}
+
+		@Override
+		public void resetBuffer() {
+			synchronized (lock) {
+				if (claim()) {
+					super.resetBuffer();
+				}
+			}
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			synchronized (lock) {
+				claimOrFail();
+				super.sendError(sc);
+			}
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			synchronized (lock) {
+				claimOrFail();
+				super.sendError(sc, msg);
+			}
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			synchronized (lock) {
+				claimOrFail();
+				super.sendRedirect(location);
+			}
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			synchronized (lock) {
+				claimOrFail();
+				super.flushBuffer();
+			}
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			synchronized (lock) {
+				claimOrFail();
+				if (outputStream == null) {
+					final ServletOutputStream out = super.getOutputStream();
+					outputStream = new ServletOutputStream() {
+
+						@Override
+						public void write(int b) throws IOException {
+							synchronized (lock) {
+								claimOrFail();
+								out.write(b);
+							}
+						}
+
+						@Override
+						public void write(byte[] b, int off, int len) throws IOException {
+							synchronized (lock) {
+								claimOrFail();
+								out.write(b, off, len);
+							}
+						}
+
+						@Override
+						public void flush() throws IOException {
+							synchronized (lock) {
+								claimOrFail();
+								out.flush();
+							}
+						}
+
+						@Override
+						public void close() throws IOException {
+							synchronized (lock) {
+								claimOrFail();
+								out.close();
+							}
+						}
+					};
+				}
+				return outputStream;
+			}
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			synchronized (lock) {
+				claimOrFail();
+				if (writer == null) {
+					writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+				}
+				return writer;
+			}
+		}
+	}
 }
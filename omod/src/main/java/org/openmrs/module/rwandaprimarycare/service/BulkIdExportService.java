@@ -0,0 +1,278 @@
+package org.openmrs.module.rwandaprimarycare.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Location;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareUtil;
+import org.openmrs.module.rwandaprimarycare.identifier.PrimaryIdentifierPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bulk generation of primary identifiers for another location (CSV lists and EPL barcode labels
+ * printed ahead for offline use), written to the response as they are generated.
+ *
+ * Identifiers are asked from idgen primaryCare.bulkIds.chunkSize at a time and each chunk is
+ * flushed to the client before the next one is generated, so a run of thousands of identifiers
+ * never sits in memory and the browser starts receiving rows at once. Every identifier issued
+ * is kept with its export for a day, so a download cut off halfway can be resumed: the resumed
+ * download starts after the last identifier received, or after the last chunk flushed, and
+ * generates only what is still missing.
+ *
+ * An export belongs to the user who started it: only that user can follow its progress or resume it.
+ */
+public class BulkIdExportService {
+
+    protected final Log log = LogFactory.getLog(BulkIdExportService.class);
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_INTERRUPTED = "INTERRUPTED";
+    public static final String STATUS_FAILED = "FAILED";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+
+    /**
+     * Placeholder of the identifier in the row template of an export
+     */
+    public static final String IDENTIFIER = "{identifier}";
+
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+    private static final long EXPORT_TTL = 24L * 60 * 60 * 1000;
+
+    private static BulkIdExportService instance;
+
+    private final ConcurrentMap<String, BulkIdExport> exports = new ConcurrentHashMap<String, BulkIdExport>();
+
+    private BulkIdExportService() {
+    }
+
+    public static synchronized BulkIdExportService getInstance() {
+        if (instance == null) {
+            instance = new BulkIdExportService();
+        }
+        return instance;
+    }
+
+    /**
+     * Registers a new export
+     *
+     * @param exportId id chosen by the client so it can follow the progress, or null for a random one
+     * @param location location the identifiers are generated for
+     * @param total number of identifiers to generate
+     * @param header written at the start of each download of the export
+     * @param rowTemplate written for each identifier, with {@link #IDENTIFIER} replaced by the identifier
+     * @return the export, to pass to {@link #write(BulkIdExport, String, OutputStream)}
+     */
+    public BulkIdExport start(String exportId, Location location, int total, String header, String rowTemplate) {
+        purgeExpired();
+        if (total <= 0) {
+            throw new IllegalArgumentException("The number of identifiers must be positive, got " + total);
+        }
+        BulkIdExport export = new BulkIdExport(exportId != null ? exportId : UUID.randomUUID().toString(),
+                getAuthenticatedUserId(), location.getName(), PrimaryCareUtil.getPrimaryCareLocationCode(location), total,
+                header, rowTemplate);
+        if (exports.putIfAbsent(export.getExportId(), export) != null) {
+            throw new IllegalStateException("An identifier export with id " + export.getExportId() + " already exists");
+        }
+        return export;
+    }
+
+    /**
+     * @return the export with the given id, or null if there is none, it expired or it was started
+     *         by another user than the authenticated one
+     */
+    public BulkIdExport getExport(String exportId) {
+        BulkIdExport export = exportId != null ? exports.get(exportId) : null;
+        if (export == null || export.creatorId == null || !export.creatorId.equals(getAuthenticatedUserId())) {
+            return null;
+        }
+        return export;
+    }
+
+    /**
+     * Writes the header then one row per identifier, generating the identifiers not issued yet
+     * chunk by chunk. The chunk is flushed to the client before the next one is generated.
+     *
+     * @param resumeAfter last identifier the client received, or null to continue after the last
+     *        chunk flushed (all of them for a new export)
+     * @throws IOException if the client goes away; the export can then be resumed
+     */
+    public void write(BulkIdExport export, String resumeAfter, OutputStream out) throws Exception {
+        if (!export.writing.compareAndSet(false, true)) {
+            throw new IllegalStateException("The identifier export " + export.getExportId() + " is already being downloaded");
+        }
+        try {
+            int chunkSize = Math.max(1, PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_BULK_IDS_CHUNK_SIZE,
+                    DEFAULT_CHUNK_SIZE));
+            // identifiers flushed but lost in transit are skipped rather than printed twice: a gap
+            // in the sequence is harmless, two patients with the same label are not
+            int position = resumeAfter != null ? export.positionAfter(resumeAfter) : export.written;
+            export.status = STATUS_RUNNING;
+            export.touch();
+
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(export.header);
+            while (true) {
+                List<String> chunk = export.getIssued(position, chunkSize);
+                if (chunk.isEmpty()) {
+                    int missing = export.total - export.getIssuedCount();
+                    if (missing <= 0) {
+                        break;
+                    }
+                    chunk = generate(export, Math.min(chunkSize, missing));
+                }
+                for (String identifier : chunk) {
+                    writer.write(export.rowTemplate.replace(IDENTIFIER, identifier));
+                }
+                writer.flush();
+                out.flush();
+                position += chunk.size();
+                export.written = position;
+                export.touch();
+            }
+            export.status = STATUS_COMPLETED;
+            log.info("Identifier export " + export.getExportId() + " for " + export.locationName + " completed, "
+                    + export.getIssuedCount() + " identifiers");
+        } catch (IOException e) {
+            export.status = STATUS_INTERRUPTED;
+            export.error = e.getMessage();
+            log.info("Identifier export " + export.getExportId() + " interrupted after " + export.written
+                    + " identifiers: " + e.getMessage());
+            throw e;
+        } catch (Exception e) {
+            export.status = STATUS_FAILED;
+            export.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+            throw e;
+        } finally {
+            export.touch();
+            export.writing.set(false);
+        }
+    }
+
+    private List<String> generate(BulkIdExport export, int quantity) throws Exception {
+        // idgen logs each identifier; its own session keeps the request session from growing with the run
+        List<String> generated = PrimaryIdentifierPool.getInstance().generateInOwnSession(export.locationCode, quantity);
+        export.addIssued(generated);
+        return generated;
+    }
+
+    private Integer getAuthenticatedUserId() {
+        User user = Context.getAuthenticatedUser();
+        return user == null ? null : user.getUserId();
+    }
+
+    private void purgeExpired() {
+        long oldest = System.currentTimeMillis() - EXPORT_TTL;
+        for (Iterator<BulkIdExport> it = exports.values().iterator(); it.hasNext(); ) {
+            BulkIdExport export = it.next();
+            if (!export.writing.get() && export.updated.getTime() < oldest) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * One bulk generation and the identifiers issued for it so far
+     */
+    public static class BulkIdExport {
+
+        private final String exportId;
+        private final Integer creatorId;
+        private final String locationName;
+        private final String locationCode;
+        private final int total;
+        private final String header;
+        private final String rowTemplate;
+        private final List<String> issued = new ArrayList<String>();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        private final Date started = new Date();
+        private volatile Date updated = started;
+        private volatile int written;
+        private volatile String status = STATUS_RUNNING;
+        private volatile String error;
+
+        BulkIdExport(String exportId, Integer creatorId, String locationName, String locationCode, int total, String header,
+                String rowTemplate) {
+            this.exportId = exportId;
+            this.creatorId = creatorId;
+            this.locationName = locationName;
+            this.locationCode = locationCode;
+            this.total = total;
+            this.header = header;
+            this.rowTemplate = rowTemplate;
+        }
+
+        public String getExportId() {
+            return exportId;
+        }
+
+        public String getLocationName() {
+            return locationName;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * @return what has been generated and written so far, for the client to follow the export
+         */
+        public Map<String, Object> getProgress() {
+            Map<String, Object> progress = new LinkedHashMap<String, Object>();
+            progress.put("exportId", exportId);
+            progress.put("location", locationName);
+            progress.put("total", total);
+            progress.put("issued", getIssuedCount());
+            progress.put("written", written);
+            progress.put("lastWritten", written > 0 ? getIssued(written - 1, 1).get(0) : null);
+            progress.put("status", status);
+            progress.put("error", error);
+            progress.put("started", started);
+            progress.put("updated", updated);
+            return progress;
+        }
+
+        synchronized int getIssuedCount() {
+            return issued.size();
+        }
+
+        synchronized List<String> getIssued(int from, int max) {
+            if (from >= issued.size()) {
+                return new ArrayList<String>();
+            }
+            return new ArrayList<String>(issued.subList(from, Math.min(from + max, issued.size())));
+        }
+
+        synchronized void addIssued(List<String> identifiers) {
+            issued.addAll(identifiers);
+        }
+
+        synchronized int positionAfter(String identifier) {
+            int index = issued.indexOf(identifier.trim());
+            if (index < 0) {
+                throw new IllegalArgumentException("Identifier " + identifier + " was not issued by export " + exportId);
+            }
+            return index + 1;
+        }
+
+        void touch() {
+            updated = new Date();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.openmrs.module.rwandaprimarycare.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.pojos.CrResponse.CrPatient;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded, time-expiring cache of Client Registry identifier lookups.
+ *
+ * Entries are keyed by identifier type and normalized identifier. Both found patients and
+ * "not found" answers are cached, each with its own time to live; failed calls are never cached.
+ * When the cache is full the least recently used entry is evicted.
+ * Entries of a patient are dropped whenever that patient is pushed to the Client Registry.
+ */
+public class CrPatientCache {
+
+    protected final Log log = LogFactory.getLog(CrPatientCache.class);
+
+    private static final int DEFAULT_MAX_ENTRIES = 1000;
+    private static final int DEFAULT_POSITIVE_TTL = 300;
+    private static final int DEFAULT_NEGATIVE_TTL = 60;
+
+    private static final String KEY_SEPARATOR = "|";
+
+    private static CrPatientCache instance;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    // access ordered, so the eldest entry is the least recently used one; guarded by itself
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private CrPatientCache() {
+    }
+
+    public static synchronized CrPatientCache getInstance() {
+        if (instance == null) {
+            instance = new CrPatientCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Looks up a cached Client Registry answer
+     *
+     * @param identifier the searched identifier, as typed by the user
+     * @param identifierType the identifier type of the search
+     * @return the cached answer, or null on a cache miss; a cached "not found" is returned as an
+     *         entry holding a null patient
+     */
+    public Entry get(String identifier, String identifierType) {
+        String key = toKey(identifier, identifierType);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.isExpired()) {
+                entries.remove(key);
+                expirations.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the answer of a successful Client Registry call
+     *
+     * @param patient the patient found, or null if the Client Registry did not know the identifier
+     */
+    public void put(String identifier, String identifierType, CrPatient patient) {
+        PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+        maxEntries = Math.max(config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CR_CACHE_MAX_ENTRIES, DEFAULT_MAX_ENTRIES), 1);
+        int ttl = patient != null
+                ? config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CR_CACHE_POSITIVE_TTL, DEFAULT_POSITIVE_TTL)
+                : config.getInt(PrimaryCareConstants.GLOBAL_PROPERTY_CR_CACHE_NEGATIVE_TTL, DEFAULT_NEGATIVE_TTL);
+        if (ttl <= 0) {
+            return;
+        }
+        Entry entry = new Entry(patient, System.currentTimeMillis() + ttl * 1000L);
+        synchronized (entries) {
+            entries.put(toKey(identifier, identifierType), entry);
+        }
+    }
+
+    /**
+     * Drops every cached answer for the given identifier, whatever the type it was searched with
+     */
+    public void invalidate(String identifier) {
+        if (identifier == null || identifier.trim().isEmpty()) {
+            return;
+        }
+        String suffix = KEY_SEPARATOR + normalize(identifier);
+        synchronized (entries) {
+            Iterator<String> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().endsWith(suffix)) {
+                    keys.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return size and hit/miss/eviction counters, for monitoring
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        synchronized (entries) {
+            stats.put("size", entries.size());
+        }
+        stats.put("maxEntries", maxEntries);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("expirations", expirations.get());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+
+    private String toKey(String identifier, String identifierType) {
+        String type = identifierType == null ? "" : identifierType.trim().toUpperCase();
+        return type + KEY_SEPARATOR + normalize(identifier);
+    }
+
+    private String normalize(String identifier) {
+        return identifier == null ? "" : identifier.trim().replaceAll(" ", "").toUpperCase();
+    }
+
+    /**
+     * One cached Client Registry answer
+     */
+    public static class Entry {
+
+        private final CrPatient patient;
+        private final long expiresAt;
+
+        Entry(CrPatient patient, long expiresAt) {
+            this.patient = patient;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return the patient found, or null for a cached "not found"
+         */
+        public CrPatient getPatient() {
+            return patient;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
@@ -3,8 +3,7 @@ package org.openmrs.module.rwandaprimarycare.service;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.api.context.Context;
-import org.openmrs.module.rwandaprimarycare.PrimaryCareConstants;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 
@@ -23,10 +22,9 @@ public class DhisService {
      */
     public static HttpEntity<String> openHIMHttpEntity() {
         try {
-            String username = Context.getAdministrationService()
-                    .getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_USER_NAME);
-            String password = Context.getAdministrationService()
-                    .getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_USER_PWD);
+            PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+            String username = config.getOpenHimUser();
+            String password = config.getOpenHimPassword();
 
             if (username == null || password == null) {
                 log.error("OpenHIM credentials not configured for DHIS2 access");
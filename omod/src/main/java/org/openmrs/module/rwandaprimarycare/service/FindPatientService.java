@@ -17,6 +17,11 @@ import org.openmrs.module.mohbilling.businesslogic.InsurancePolicyUtil;
 import org.openmrs.module.mohbilling.model.InsurancePolicy;
 import org.openmrs.module.rwandaprimarycare.*;
 import org.openmrs.module.rwandaprimarycare.constants.AppConstants;
+import org.openmrs.module.rwandaprimarycare.openhim.CircuitBreakers;
+import org.openmrs.module.rwandaprimarycare.openhim.CircuitBreakers.Upstream;
+import org.openmrs.module.rwandaprimarycare.openhim.CircuitOpenException;
+import org.openmrs.module.rwandaprimarycare.openhim.OpenHIMHttpClient;
+import org.openmrs.module.rwandaprimarycare.openhim.ShrMigrationQueue;
 import org.openmrs.module.rwandaprimarycare.pojos.CrResponse.CodeValue;
 import org.openmrs.module.rwandaprimarycare.pojos.CrResponse.Contact;
 import org.openmrs.module.rwandaprimarycare.pojos.CrResponse.CrPatient;
@@ -35,6 +40,7 @@ import org.openmrs.module.rwandaprimarycare.pojos.patient.PatientPojo;
 import org.openmrs.module.rwandaprimarycare.pojos.upiIdGeneratorResponse.UPIDGeneratorResponse;
 import org.openmrs.module.rwandaprimarycare.pojos.upiIdGeneratorResponse.UPIDGeneratorResponseData;
 import org.openmrs.module.rwandaprimarycare.pojos.upiIdGeneratorResponse.UPIDGeneratorResponseList;
+import org.openmrs.module.rwandaprimarycare.search.PatientSearchOrchestrator;
 import org.openmrs.module.rwandaprimarycare.utils.FhirUtils;
 import org.openmrs.util.PrivilegeConstants;
 import org.openmrs.web.WebConstants;
@@ -42,8 +48,9 @@ import org.springframework.context.support.MessageSourceAccessor;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.client.HttpClientErrorException;
 
 import javax.servlet.http.HttpSession;
 import java.io.PrintWriter;
@@ -51,6 +58,7 @@ import java.io.StringWriter;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import static org.openmrs.module.rwandaprimarycare.PatientDataTransfer.generateUpidRequest;
 import static org.openmrs.module.rwandaprimarycare.constants.AppConstants.*;
@@ -58,63 +66,87 @@ import static org.springframework.util.StringUtils.hasText;
 
 public class FindPatientService {
     protected final Log log = LogFactory.getLog(FindPatientService.class);
+
+    private static final int DEFAULT_SEARCH_PAGE_SIZE = 50;
+    private static final int DEFAULT_SEARCH_MAX_PAGE_SIZE = 200;
     OpenHimConnection openHimConnection = getOpenHimConnection();
 
-    public ResponseDTO findPatientAjax(String identifier, String identifierType, String fosaid) {
+    public ResponseDTO findPatientAjax(final String identifier, final String identifierType, String fosaid) {
 
         log.info("Print from FindPatientService" + identifier + " | " + identifierType);
         openHimConnection = getOpenHimConnection();
         ResponseDTO responseDTO = null;
         List<PatientPojo> results = new ArrayList<PatientPojo>();
 
+        //Start the CR lookup right away, it runs while the local search is in progress
+        PatientSearchOrchestrator.RemoteLookup remoteLookup = null;
+        if (!identifierType.equals("PRIMARY_CARE") && CustomUtils.isOnline() && openHimConnection.getStatus().equals(AppConstants.OPENHIM_DEFINED)) {
+            remoteLookup = PatientSearchOrchestrator.getInstance().startLookup(new Callable<CrPatient>() {
+
+                @Override
+                public CrPatient call() {
+                    return checkPatientCR(identifier, identifierType);
+                }
+            });
+        }
 
+        try {
                 /*TODO 1.Local Search #RFC-84
                        2.Check and add Orgin and Rank
                 * */
-        //Search in Local
-        if (!identifierType.equals("TEMPID")) responseDTO = checkPatientLocal(identifier, identifierType, results);
+            //Search in Local
+            if (!identifierType.equals("TEMPID")) responseDTO = checkPatientLocal(identifier, identifierType, results, remoteLookup);
 
-        if (responseDTO != null) {
-            log.info("retuning LOCAL Response");
-            return responseDTO;
-        }
+            if (responseDTO != null) {
+                log.info("retuning LOCAL Response");
+                return responseDTO;
+            }
 
-        if(identifierType.equals("PRIMARY_CARE")){
-            responseDTO = new ResponseDTO();
-            responseDTO.setStatus(AppConstants.RESPONSE_FAILURE);
-            return responseDTO;
-        }
+            if (identifierType.equals("PRIMARY_CARE")) {
+                responseDTO = new ResponseDTO();
+                responseDTO.setStatus(AppConstants.RESPONSE_FAILURE);
+                return responseDTO;
+            }
 
-        if (CustomUtils.isOnline() && openHimConnection.getStatus().equals(AppConstants.OPENHIM_DEFINED)) {
-            //Check CR
-            CrPatient crPatient = checkPatientCR(identifier, identifierType);
-            log.info("Print from checkPatientCR " + crPatient);
-            if (crPatient != null && crPatient.getEntry() != null) {
-
-                /*TODO 1.getCrResponse
-                 * */
-                responseDTO = getCrResponse(crPatient, results);
-                log.info("Print from getCrResponse " + responseDTO);
-                if (responseDTO != null) {
-                    log.info("retuning CR response");
-                    return responseDTO;
+            if (remoteLookup != null) {
+                //Check CR
+                CrPatient crPatient = remoteLookup.getCrResult();
+                log.info("Print from checkPatientCR " + crPatient);
+                if (crPatient != null && crPatient.getEntry() != null) {
+                    responseDTO = getCrResponse(crPatient, results);
+                    log.info("Print from getCrResponse " + responseDTO);
+                    if (responseDTO != null) {
+                        log.info("retuning CR response");
+                        return responseDTO;
+                    }
+                } else {
+                    log.info("retuning CR openHimConnection.getStatus().equals(AppConstants.OPENHIM_DEFINED)");
                 }
-            } else {
-                log.info("retuning CR openHimConnection.getStatus().equals(AppConstants.OPENHIM_DEFINED)");
-            }
 
-            if (!identifierType.equals("INSURANCE_POLICY_NUMBER") && !identifierType.equals("PASSPORT")) {
-                UPIDGeneratorResponse upidGeneratorResponse = generateUpiIdWithFosaId(identifier, identifierType, null);
-                responseDTO = getNprResponse(upidGeneratorResponse, results);
-                if (responseDTO != null) {
-                    return responseDTO;
+                //Check NPR, which is asked for a UPI only once neither the local DB nor the CR knows the patient
+                if (!identifierType.equals("INSURANCE_POLICY_NUMBER") && !identifierType.equals("PASSPORT")) {
+                    UPIDGeneratorResponse upidGeneratorResponse = remoteLookup.lookupNpr(new Callable<UPIDGeneratorResponse>() {
+
+                        @Override
+                        public UPIDGeneratorResponse call() {
+                            return generateUpiIdWithFosaId(identifier, identifierType, null);
+                        }
+                    });
+                    responseDTO = getNprResponse(upidGeneratorResponse, results);
+                    if (responseDTO != null) {
+                        return responseDTO;
+                    }
                 }
             }
+            //OpenHim Connection Failure
+            responseDTO = new ResponseDTO();
+            responseDTO.setStatus(AppConstants.RESPONSE_FAILURE);
+            return responseDTO;
+        } finally {
+            if (remoteLookup != null) {
+                remoteLookup.cancel();
+            }
         }
-        //OpenHim Connection Failure
-        responseDTO = new ResponseDTO();
-        responseDTO.setStatus(AppConstants.RESPONSE_FAILURE);
-        return responseDTO;
     }
 
     private ResponseDTO getNprResponse(UPIDGeneratorResponse upidGeneratorResponse, List<PatientPojo> results) {
@@ -306,101 +338,14 @@ public class FindPatientService {
     private ResponseDTO getLocalResponse(List<Patient> patients, List<PatientPojo> results) {
 
         ResponseDTO responseDTO = new ResponseDTO();
-        log.info("getLocalResponse crResponse - =====3" + patients.size());
         if (patients != null) {
+            log.info("getLocalResponse crResponse - =====3" + patients.size());
+            List<Integer> patientIds = new ArrayList<Integer>();
             for (Patient localPatient : patients) {
-                PatientPojo patientPojo = new PatientPojo();
-
-                patientPojo.setSurName(localPatient.getFamilyName());
-                patientPojo.setPostNames(localPatient.getGivenName());
-                //Add Local Identifiers
-                List<Identifier> ids = new ArrayList<Identifier>();
-
-                Set<PatientIdentifier> identifiers = localPatient.getIdentifiers();
-                for (PatientIdentifier pi : identifiers) {
-
-
-                    if (pi.getIdentifierType().getPatientIdentifierTypeId() == 3) {
-                        ids.add(new Identifier("PRIMARY_CARE_ID", pi.getIdentifier()));
-                    }
-                    if (pi.getIdentifierType().getPatientIdentifierTypeId() == 5) {
-                        ids.add(new Identifier("NID", pi.getIdentifier()));
-                    }
-                    if (pi.getIdentifierType().getPatientIdentifierTypeId() == 13) {
-                        ids.add(new Identifier("UPI", pi.getIdentifier()));
-                    }
-                    if (pi.getIdentifierType().getPatientIdentifierTypeId() == 14) {
-                        ids.add(new Identifier("NIN", pi.getIdentifier()));
-                    }
-                    if (pi.getIdentifierType().getPatientIdentifierTypeId() == 15) {
-                        ids.add(new Identifier("NID_APPLICATION_NUMBER", pi.getIdentifier()));
-                    }
-                    if (pi.getIdentifierType().getPatientIdentifierTypeId() == 4) {
-                        ids.add(new Identifier("TRACNET_NUMBER", pi.getIdentifier()));
-                    }
-
-                }
-
-                try {
-                    List<InsurancePolicy> insurances = InsurancePolicyUtil.getInsurancePoliciesByPatient(localPatient);
-                    for (InsurancePolicy policy : insurances) {
-                        ids.add(new Identifier("INSURANCE_POLICY_NUMBER", policy.getInsuranceCardNo()));
-                    }
-                    if (insurances.size() == 0) {
-                        ids.add(new Identifier("INSURANCE_POLICY_NUMBER", ""));
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    ids.add(new Identifier("INSURANCE_POLICY_NUMBER", ""));
-                }
-
-
-                patientPojo.setIdentifiers(ids);
-                //Add Local Address
-                Set<PersonAddress> allAddresses = localPatient.getAddresses();
-                List<Address> responseAddressList = new ArrayList<Address>();
-                for (PersonAddress address : allAddresses) {
-                    Address responseAddress = new Address();
-                    responseAddress.setAddressId(String.valueOf(address.getId()));
-                    responseAddress.setType(address.getAddress15());
-                    responseAddress.setText(address.getAddress1());
-                    responseAddress.setPostalCode(address.getPostalCode());
-                    responseAddress.setCity(address.getCityVillage());
-                    responseAddress.setDistrict(address.getCountyDistrict());
-                    responseAddress.setState(address.getStateProvince());
-                    responseAddress.setCountry(address.getCountry());
-                    responseAddress.setCell(address.getAddress3());
-                    responseAddress.setSector(address.getAddress2());
-                    responseAddressList.add(responseAddress);
-                }
-                patientPojo.setAddressList(responseAddressList);
-
-                SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
-
-                patientPojo.setOpenMrsId(String.valueOf(localPatient.getPatientId()));
-
-                patientPojo.setGender(localPatient.getGender());
-                patientPojo.setNationality("Rwanda");
-                PersonAttribute personAttribute = localPatient.getAttribute(PrimaryCareConstants.GLOBAL_PROPERTY_CIVIL_STATUS_CONCEPT);
-                if (personAttribute != null) patientPojo.setMaritalStatus(personAttribute.getValue());
-                personAttribute = localPatient.getAttribute(PrimaryCareConstants.GLOBAL_PROPERTY_PHONE_NUMBER_CONCEPT);
-                if (personAttribute != null) patientPojo.setPhoneNumber(personAttribute.getValue());
-                personAttribute = localPatient.getAttribute(PrimaryCareConstants.FATHER_NAME_ATTRIBUTE_TYPE);
-                if (personAttribute != null) patientPojo.setFatherName(personAttribute.getValue());
-                personAttribute = localPatient.getAttribute(PrimaryCareConstants.MOTHER_NAME_ATTRIBUTE_TYPE);
-                if (personAttribute != null) patientPojo.setMotherName(personAttribute.getValue());
-                personAttribute = localPatient.getAttribute(PrimaryCareConstants.GLOBAL_PROPERTY_EDUCATION_LEVEL_CONCEPT);
-                if (personAttribute != null) patientPojo.setEducationalLevel(personAttribute.getValue());
-                personAttribute = localPatient.getAttribute(PrimaryCareConstants.GLOBAL_PROPERTY_PROFESSION_CONCEPT);
-                if (personAttribute != null) patientPojo.setProfession(personAttribute.getValue());
-                personAttribute = localPatient.getAttribute(PrimaryCareConstants.GLOBAL_PROPERTY_RELIGION_CONCEPT);
-                if (personAttribute != null) patientPojo.setReligion(personAttribute.getValue());
-                personAttribute = localPatient.getAttribute(PrimaryCareConstants.GLOBAL_PROPERTY_SPOUSE_NAME_CONCEPT);
-                if (personAttribute != null) patientPojo.setSpouse(personAttribute.getValue());
-                patientPojo.setDateOfBirth(formatter.format(localPatient.getBirthdate()));
-                patientPojo.setCitizenStatus(localPatient.getDead());
-                results.add(patientPojo);
+                patientIds.add(localPatient.getPatientId());
             }
+            //identifiers, addresses, attributes and insurance cards of all patients in a few queries
+            results.addAll(PrimaryCareBusinessLogic.getService().getPatientPojos(patientIds));
             responseDTO.setResults(results);
             responseDTO.setStatus(results.isEmpty() ? AppConstants.RESPONSE_FAILURE : AppConstants.RESPONSE_SUCCESS);
             responseDTO.setRecordsCount(results.size());
@@ -411,6 +356,14 @@ public class FindPatientService {
     }
 
     public ResponseDTO checkPatientLocal(String identifier, String identifierType, List<PatientPojo> results) {
+        return checkPatientLocal(identifier, identifierType, results, null);
+    }
+
+    /**
+     * @param remoteLookup CR lookup already in flight for this identifier, or null to query the CR here
+     */
+    private ResponseDTO checkPatientLocal(String identifier, String identifierType, List<PatientPojo> results,
+                                          PatientSearchOrchestrator.RemoteLookup remoteLookup) {
         List<PatientPojo> results1 = new ArrayList<PatientPojo>();
         ResponseDTO responseDTO = null;
         List<Patient> singletonPatient = new ArrayList<Patient>();
@@ -452,7 +405,12 @@ public class FindPatientService {
                 }
 
             }
-            CrPatient crEntry = checkPatientCR(identifier, identifierType);
+            CrPatient crEntry;
+            if (remoteLookup != null) {
+                crEntry = remoteLookup.getCrResult();
+            } else {
+                crEntry = checkPatientCR(identifier, identifierType);
+            }
             if (crEntry != null && crEntry.getEntry() != null) {
                 ResponseDTO crResponse = getCrResponse(crEntry, results1);
                 if (crResponse != null) {
@@ -529,9 +487,13 @@ public class FindPatientService {
                 //model.addAttribute("identifierTypes", PrimaryCareBusinessLogic.getPatientIdentifierTypesToUse());
 
 
+                CrPatientCache.Entry cached = CrPatientCache.getInstance().get(identifier, identifierType);
+                if (cached != null) {
+                    return cached.getPatient();
+                }
+
                 identifier = identifier.trim().replaceAll(" ", "");
                 final String uri = openHimConnection.getOpenhimUrl() + "/clientregistry/Patient?identifier=" + identifier;
-                RestTemplate restTemplate = new RestTemplate();
 
                 String plainCreds = openHimConnection.getOpenhimClientId() + ":" + openHimConnection.getOpenhimPassword();
                 byte[] plainCredsBytes = plainCreds.getBytes();
@@ -543,21 +505,30 @@ public class FindPatientService {
                 HttpEntity<String> request = new HttpEntity<String>(headers);
                 ResponseEntity<CrPatient> response = null;
                 CrPatient result = null;
+                boolean answered = false;
                 try {
-                    response = restTemplate.exchange(uri, HttpMethod.GET, request, CrPatient.class);
+                    response = exchange(Upstream.CLIENT_REGISTRY, uri, HttpMethod.GET, request, CrPatient.class);
                     result = response.getBody();
-                } catch (Exception ignored) {
-                    ignored.printStackTrace();
-                    log.error("checkPatientCR#491 " + ignored.toString());
+                    answered = true;
+                } catch (HttpClientErrorException e) {
+                    answered = e.getStatusCode() == HttpStatus.NOT_FOUND;
+                    log.error("checkPatientCR#491 " + e.toString());
+                } catch (CircuitOpenException e) {
+                    log.debug("checkPatientCR#491 " + e.getMessage());
+                } catch (Exception e) {
+                    log.error("checkPatientCR#491 Client Registry lookup failed", e);
                 }
 
 
                 //Check CR
-                if (result != null && result.getEntry() != null) {
-                    return result;
-                } else {
-                    return null;
+                if (result == null || result.getEntry() == null) {
+                    result = null;
+                }
+                // failed calls are not cached, so the next search tries the CR again
+                if (answered) {
+                    CrPatientCache.getInstance().put(identifier, identifierType, result);
                 }
+                return result;
             }
         }
         return null;
@@ -565,6 +536,16 @@ public class FindPatientService {
 
 
     public ResponseDTO findPatientAjax(String surName, String postName, String yearOfBirth, String origin) {
+        return findPatientAjax(surName, postName, yearOfBirth, origin, 0, getSearchPageSize(), false);
+    }
+
+    /**
+     * @param firstResult index of the first local patient to return
+     * @param maxResults number of local patients to return
+     * @param withCount whether to set the total number of local matches on the response
+     */
+    public ResponseDTO findPatientAjax(String surName, String postName, String yearOfBirth, String origin,
+                                       int firstResult, int maxResults, boolean withCount) {
 
 
         ResponseDTO responseDTO = new ResponseDTO();
@@ -626,7 +607,6 @@ public class FindPatientService {
                     }
                 case "CR":
                     String uri = openHimConnection.getOpenhimUrl() + "/Patient?family=" + surName + "&given=" + postName + "&birthdate=" + yearOfBirth;
-                    RestTemplate restTemplate = new RestTemplate();
 
                     String plainCreds = openHimConnection.getOpenhimClientId() + ":" + openHimConnection.getOpenhimPassword();
                     byte[] plainCredsBytes = plainCreds.getBytes();
@@ -639,7 +619,7 @@ public class FindPatientService {
                     ResponseEntity<CrPatient> response = null;
                     CrPatient result = null;
                     try {
-                        response = restTemplate.exchange(uri, HttpMethod.GET, request, CrPatient.class);
+                        response = exchange(Upstream.CLIENT_REGISTRY, uri, HttpMethod.GET, request, CrPatient.class);
                         result = response.getBody();
 
                         if (result != null && result.getEntry() != null) {
@@ -651,27 +631,31 @@ public class FindPatientService {
                         }
 
 
-                    } catch (Exception ignored) {
-                        ignored.printStackTrace();
-                        log.error("findPatientAjax CR Exception" + ignored.toString());
+                    } catch (CircuitOpenException e) {
+                        log.debug("findPatientAjax CR " + e.getMessage());
+                    } catch (Exception e) {
+                        log.error("findPatientAjax CR Exception", e);
                     }
 
                     break;
                 default:
-                    List<Patient> patients;
+                    Float age = null;
                     if (yearOfBirth != null && !yearOfBirth.isEmpty()) {
                         // Search with age filter
                         LocalDate birthdate = new LocalDate(Integer.parseInt(yearOfBirth), 1, 1);
                         LocalDate now = new LocalDate();
-                        Years age = Years.yearsBetween(birthdate, now);
-                        patients = PrimaryCareBusinessLogic.getService().getPatients(surName, postName, null, (float) age.getYears(), null, null, null, null, null, null, null, null, null, null, null, null, null, null);
-                    } else {
-                        // Search without age filter
-                        patients = PrimaryCareBusinessLogic.getService().getPatients(surName, postName, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+                        age = (float) Years.yearsBetween(birthdate, now).getYears();
                     }
+                    //only one page of patients is loaded
+                    List<Patient> patients = PrimaryCareBusinessLogic.getService().getPatients(surName, postName, null, age, null, null, null, firstResult, maxResults);
                     responseDTO = getLocalResponse(patients, results);
                     log.info("----results ---" + patients.size());
-                    if (responseDTO != null) return responseDTO;
+                    if (responseDTO != null) {
+                        if (withCount) {
+                            responseDTO.setTotalCount(PrimaryCareBusinessLogic.getService().getPatientCount(surName, postName, null, age, null, null, null));
+                        }
+                        return responseDTO;
+                    }
 
                     log.info("----null ---");
             }
@@ -682,10 +666,31 @@ public class FindPatientService {
         return responseDTO;
     }
 
+    /**
+     * @return number of patients per page of a local name search
+     */
+    public int getSearchPageSize() {
+        return PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_SEARCH_PAGE_SIZE, DEFAULT_SEARCH_PAGE_SIZE);
+    }
+
+    /**
+     * @param limit page size asked for by the request, or null
+     * @return limit capped to primaryCare.search.maxPageSize, or the default page size if no
+     *         positive limit was asked for
+     */
+    public int getSearchPageSize(Integer limit) {
+        if (limit == null || limit <= 0) {
+            return getSearchPageSize();
+        }
+        int max = PrimaryCareConfig.get().getInt(PrimaryCareConstants.GLOBAL_PROPERTY_SEARCH_MAX_PAGE_SIZE, DEFAULT_SEARCH_MAX_PAGE_SIZE);
+        return Math.min(limit, Math.max(max, 1));
+    }
+
     public OpenHimConnection getOpenHimConnection() {
         OpenHimConnection openHimConnection = new OpenHimConnection();
         try {
-            final String openhimPatientUrl = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_NIDA_API);
+            PrimaryCareConfig.Snapshot config = PrimaryCareConfig.get();
+            final String openhimPatientUrl = config.getOpenHimNidaApi();
             if (openhimPatientUrl == null || openhimPatientUrl.isEmpty()) {
                 log.info("[error]------ Openhim patient report URL is not defined on administration settings.");
                 //model.addAttribute("nidaResult", "NOAPI");
@@ -695,7 +700,7 @@ public class FindPatientService {
                 openHimConnection.setOpenhimUrl(openhimPatientUrl);
             }
 
-            final String openhimClientID = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_USER_NAME);
+            final String openhimClientID = config.getOpenHimUser();
             if (openhimClientID == null || openhimClientID.isEmpty()) {
                 log.error("[error]------ Openhim client ID is not defined on administration settings.");
                 //model.addAttribute("nidaResult", "NOAPI");
@@ -704,7 +709,7 @@ public class FindPatientService {
             } else {
                 openHimConnection.setOpenhimClientId(openhimClientID);
             }
-            final String openhimPwd = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_USER_PWD);
+            final String openhimPwd = config.getOpenHimPassword();
             if (openhimPwd == null || openhimPwd.isEmpty()) {
                 log.error("[error]------ Openhim client Basic Auth Password is not defined on administration settings.");
                 //model.addAttribute("nidaResult", "NOAPI");
@@ -725,21 +730,20 @@ public class FindPatientService {
         UPIDGeneratorResponse result = null;
         if (CustomUtils.isOnline()) {
 
-            final String openhimPatientUrl = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_NIDA_API);
+            final String openhimPatientUrl = PrimaryCareConfig.get().getOpenHimNidaApi();
             String plainCreds = openHimConnection.getOpenhimClientId() + ":" + openHimConnection.getOpenhimPassword();
             byte[] plainCredsBytes = plainCreds.getBytes();
             byte[] base64CredsBytes = Base64.encodeBase64(plainCredsBytes);
             String base64Creds = new String(base64CredsBytes);
 
             try {
-                String fosaid = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_FACILITY_ID);
-                RestTemplate restTemplate1 = new RestTemplate();
+                String fosaid = PrimaryCareConfig.get().getFacilityId();
                 HttpHeaders headers = new HttpHeaders();
                 headers.add("Content-Type", "application/json");
                 headers.add("Authorization", "Basic " + base64Creds);
                 UPIDGeneratorResponse upidRequest = generateUpidRequest(docType, search, fosaid, patientPojo);
                 HttpEntity<String> request = new HttpEntity<String>(new Gson().toJson(upidRequest.data), headers);
-                ResponseEntity<UPIDGeneratorResponse> response = restTemplate1.exchange(openhimPatientUrl + "/api/v1/citizens/getCitizen", HttpMethod.POST, request, UPIDGeneratorResponse.class);
+                ResponseEntity<UPIDGeneratorResponse> response = exchange(Upstream.NPR, openhimPatientUrl + "/api/v1/citizens/getCitizen", HttpMethod.POST, request, UPIDGeneratorResponse.class);
                 result = response.getBody();
                 log.error("*********************************************MMMM********: " + new Gson().toJson(result));
 //        JsonObject resp = (JsonObject) result.get("data");
@@ -762,15 +766,14 @@ public class FindPatientService {
     }
 
     public UPIDGeneratorResponseList getPatientDetailsFromNPR(String surName, String postName, String yearOfBirth) {
-        String facilityId = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_FACILITY_ID);
+        String facilityId = PrimaryCareConfig.get().getFacilityId();
         UPIDGeneratorResponseList result = null;
-        final String openhimPatientUrl = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_NIDA_API);
+        final String openhimPatientUrl = PrimaryCareConfig.get().getOpenHimNidaApi();
         String plainCreds = openHimConnection.getOpenhimClientId() + ":" + openHimConnection.getOpenhimPassword();
         byte[] plainCredsBytes = plainCreds.getBytes();
         byte[] base64CredsBytes = Base64.encodeBase64(plainCredsBytes);
         String base64Creds = new String(base64CredsBytes);
         try {
-            RestTemplate restTemplate1 = new RestTemplate();
             HttpHeaders headers = new HttpHeaders();
             JsonObject reqBody = new JsonObject();
             reqBody.addProperty("documentType", "OTHERS");
@@ -781,7 +784,7 @@ public class FindPatientService {
             headers.add("Content-Type", "application/json");
             headers.add("Authorization", "Basic " + base64Creds);
             HttpEntity<String> request = new HttpEntity<String>(reqBody.toString(), headers);
-            ResponseEntity<UPIDGeneratorResponseList> response = restTemplate1.exchange(openhimPatientUrl + "/api/v1/citizens/getCitizen", HttpMethod.POST, request, UPIDGeneratorResponseList.class);
+            ResponseEntity<UPIDGeneratorResponseList> response = exchange(Upstream.NPR, openhimPatientUrl + "/api/v1/citizens/getCitizen", HttpMethod.POST, request, UPIDGeneratorResponseList.class);
             result = response.getBody();
             log.info("getPatientDetailsFromNPR" + new Gson().toJson(result));
         } catch (Exception e) {
@@ -1247,7 +1250,9 @@ public class FindPatientService {
                     patientJsonObject.addProperty("id", upiIdentifier.getValue());
                 }
             }
-            final String openhimPatientUrl = Context.getAdministrationService().getGlobalProperty(PrimaryCareConstants.GLOBAL_PROPERTY_OPENHIM_NIDA_API);
+            final String openhimPatientUrl = PrimaryCareConfig.get().getOpenHimNidaApi();
+            // a placeholder UPI must not reach the CR or the SHR, the patient is pushed once NPR assigned the real one
+            final boolean upiOffline = upidGeneratorResponse != null && upidGeneratorResponse.isOffline;
             try {
                 if (needToSaveOnCR && !addIdentifier.isEmpty()) {
 
@@ -1257,19 +1262,18 @@ public class FindPatientService {
 
                         // JsonObject patientJsonObject = hel.formatPatient(newPatient, addNationalIdentifier, addIdentifier, givenName, familyName, gender, age, birthdateDay, birthdateMonth, birthdateYear, country, province, district, sector, cell, address1, mothersName, fathersName);
 
-                        if (CustomUtils.isOnline()) {
+                        if (CustomUtils.isOnline() && !upiOffline) {
 
                             String plainCreds = openHimConnection.getOpenhimClientId() + ":" + openHimConnection.getOpenhimPassword();
                             byte[] plainCredsBytes = plainCreds.getBytes();
                             byte[] base64CredsBytes = Base64.encodeBase64(plainCredsBytes);
                             String base64Creds = new String(base64CredsBytes);
 
-                            RestTemplate restTemplate = new RestTemplate();
                             HttpHeaders headers = new HttpHeaders();
                             headers.add("Content-Type", "application/json");
                             headers.add("Authorization", "Basic " + base64Creds);
                             HttpEntity<String> request = new HttpEntity<String>(patientJsonObject.toString(), headers);
-                            ResponseEntity<String> response = restTemplate.exchange(openhimPatientUrl + "/clientregistry/Patient", HttpMethod.POST, request, String.class);
+                            ResponseEntity<String> response = exchange(Upstream.CLIENT_REGISTRY, openhimPatientUrl + "/clientregistry/Patient", HttpMethod.POST, request, String.class);
                             String result = response.getBody();
                         } else {
                             isCRFails = true;
@@ -1277,6 +1281,8 @@ public class FindPatientService {
                     } catch (Exception e) {
                         e.printStackTrace();
                         isCRFails = true;
+                    } finally {
+                        invalidateCrCache(identifierPojos);
                     }
 
 
@@ -1304,7 +1310,10 @@ public class FindPatientService {
                         offlineTransaction.setPayload(localData);
                         offlineTransaction.setNationalIdType(identifierPojos.get(0).getSystem());
                         offlineTransaction.setNationalId(identifierPojos.get(0).getValue());
-                        offlineTransaction.setType("patient_sync_in");
+                        offlineTransaction.setType(OFFLINE_PATIENT_SYNC_IN);
+                        if (upiOffline) {
+                            offlineTransaction.setStatus(AppConstants.HELD_STATUS);
+                        }
                         offlineTransaction.setTimestamp(new Date());
                         offlineTransaction.setIsUpdated(0);
                         offlineTransaction.setRetryCount(0);
@@ -1314,7 +1323,7 @@ public class FindPatientService {
                     }
                     //store of offline sync
                     if(upidGeneratorResponse != null && upidGeneratorResponse.isOffline){
-                        UPIDService.getInstance().saveForOffline(upidGeneratorResponse);
+                        UPIDService.getInstance().saveForOffline(upidGeneratorResponse, patient.getPatientId());
                     }
                 }
             } catch (IdentifierNotUniqueException ex) {
@@ -1327,8 +1336,8 @@ public class FindPatientService {
                 throw new RuntimeException(ex.getMessage());
             }
 
-            if (isUpidGenerated) {
-                syncCall(newPatient.getPatientId());
+            if (isUpidGenerated && !upiOffline) {
+                ShrMigrationQueue.getInstance().enqueue(newPatient.getPatientId());
             }
 
             return "redirect:/module/rwandaprimarycare/patient.form?skipPresentQuestion=false&patientId=" + newPatient.getPatientId();
@@ -1338,28 +1347,33 @@ public class FindPatientService {
         }
     }
 
-    private void syncCall(Integer patientId) {
-        try {
-            RestTemplate restTemplate = new RestTemplate();
-
-            HttpHeaders headers = new HttpHeaders();
-            HttpEntity<String> request = new HttpEntity<String>(headers);
-            ResponseEntity<String> response = null;
-            String result = null;
-            try {
-                response = restTemplate.exchange(PrimaryCareConstants.MIGRATE_SHR_ENDPOINT + patientId, HttpMethod.GET, request, String.class);
-                result = response.getBody();
-            } catch (Exception e) {
-                log.error("Error -syncCall  " + e.getMessage());
-                e.printStackTrace();
-            }
-            log.error("Error -syncCall  RESPONSE ===>" + result);
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Drops the cached Client Registry lookups of a patient that was just pushed to the CR
+     */
+    private void invalidateCrCache(List<Identifier> identifiers) {
+        if (identifiers == null) {
+            return;
+        }
+        for (Identifier identifier : identifiers) {
+            CrPatientCache.getInstance().invalidate(identifier.getValue());
         }
-
     }
 
+    /**
+     * Exchange with an upstream through its circuit breaker: while the breaker is open this fails
+     * at once with a CircuitOpenException, so the caller goes to its offline branch without
+     * waiting for a connect timeout
+     */
+    private static <T> ResponseEntity<T> exchange(Upstream upstream, final String url, final HttpMethod method,
+            final HttpEntity<?> request, final Class<T> responseType) throws Exception {
+        return CircuitBreakers.of(upstream).execute(new Callable<ResponseEntity<T>>() {
+
+            @Override
+            public ResponseEntity<T> call() {
+                return OpenHIMHttpClient.getSharedRestTemplate().exchange(url, method, request, responseType);
+            }
+        });
+    }
 
     public void debugError(final Throwable th) {
         StringWriter writer = new StringWriter();
@@ -1685,13 +1699,14 @@ public class FindPatientService {
 
         try {
             PrimaryCareBusinessLogic.preferredIdentifierSafeSavePatient(localPatient);
-            if (updateCrFlag) updateCr(patient, localPatient);
+            boolean upiOffline = upidGeneratorResponse != null && upidGeneratorResponse.isOffline;
+            if (updateCrFlag) updateCr(patient, localPatient, upiOffline);
 
-            if (upidGenerate && !alreadyHaveUpi) {
-                syncCall(localPatient.getPatientId());
+            if (upidGenerate && !alreadyHaveUpi && !upiOffline) {
+                ShrMigrationQueue.getInstance().enqueue(localPatient.getPatientId());
             }
             if(upidGeneratorResponse != null && upidGeneratorResponse.isOffline){
-                UPIDService.getInstance().saveForOffline(upidGeneratorResponse);
+                UPIDService.getInstance().saveForOffline(upidGeneratorResponse, localPatient.getPatientId());
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -1702,7 +1717,11 @@ public class FindPatientService {
         return AppConstants.COMPLETED_STATUS;
     }
 
-    private void updateCr(PatientPojo patient, Patient localPatient) {
+    /**
+     * @param upiOffline the patient only has a placeholder UPI, so the update is queued HELD
+     *        instead of being sent, see {@link OfflineUpidHandler}
+     */
+    private void updateCr(PatientPojo patient, Patient localPatient, boolean upiOffline) {
 
         String openhimPatientUrl = openHimConnection.getOpenhimUrl();
         boolean isCrFails = false;
@@ -1778,19 +1797,18 @@ public class FindPatientService {
                     patientJsonObject.addProperty("id", upiId.getValue());
                 }
             }
-            if (CustomUtils.isOnline() && !addIdentifier.isEmpty()) {
+            if (CustomUtils.isOnline() && !addIdentifier.isEmpty() && !upiOffline) {
 
                 String plainCreds = openHimConnection.getOpenhimClientId() + ":" + openHimConnection.getOpenhimPassword();
                 byte[] plainCredsBytes = plainCreds.getBytes();
                 byte[] base64CredsBytes = Base64.encodeBase64(plainCredsBytes);
                 String base64Creds = new String(base64CredsBytes);
 
-                RestTemplate restTemplate = new RestTemplate();
                 HttpHeaders headers = new HttpHeaders();
                 headers.add("Content-Type", "application/json");
                 headers.add("Authorization", "Basic " + base64Creds);
                 HttpEntity<String> request = new HttpEntity<String>(patientJsonObject.toString(), headers);
-                ResponseEntity<String> response = restTemplate.exchange(openhimPatientUrl + "/clientregistry/Patient", HttpMethod.POST, request, String.class);
+                ResponseEntity<String> response = exchange(Upstream.CLIENT_REGISTRY, openhimPatientUrl + "/clientregistry/Patient", HttpMethod.POST, request, String.class);
                 String result = response.getBody();
             } else {
                 isCrFails = true;
@@ -1799,6 +1817,7 @@ public class FindPatientService {
             e.printStackTrace();
             isCrFails = true;
         } finally {
+            invalidateCrCache(patient.getIdentifiers());
             if (isCrFails & !addIdentifier.isEmpty() && isUPIPresent) {
                 log.info("=======patientJsonObject======>" + patientJsonObject);
                 log.info("=========localPatient====>" + localPatient);
@@ -1815,7 +1834,10 @@ public class FindPatientService {
                     e.printStackTrace();
                 }
 
-                offlineTransaction.setType("patient_sync_up");
+                offlineTransaction.setType(OFFLINE_PATIENT_SYNC_UP);
+                if (upiOffline) {
+                    offlineTransaction.setStatus(AppConstants.HELD_STATUS);
+                }
                 offlineTransaction.setTimestamp(new Date());
                 offlineTransaction.setIsUpdated(0);
                 offlineTransaction.setRetryCount(0);
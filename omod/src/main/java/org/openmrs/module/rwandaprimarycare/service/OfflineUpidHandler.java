@@ -0,0 +1,154 @@
+package org.openmrs.module.rwandaprimarycare.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareBusinessLogic;
+import org.openmrs.module.rwandaprimarycare.constants.AppConstants;
+import org.openmrs.module.rwandaprimarycare.openhim.OfflineTransactionHandler;
+import org.openmrs.module.rwandaprimarycare.openhim.ShrMigrationQueue;
+import org.openmrs.module.rwandaprimarycare.pojos.OfflineTransaction;
+import org.openmrs.module.rwandaprimarycare.pojos.PayloadData;
+import org.openmrs.module.rwandaprimarycare.pojos.upiIdGeneratorResponse.UPIDGeneratorResponse;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Puts the UPI that NPR assigned on replay of an offline UPI request (see
+ * {@link UPIDService#saveForOffline(UPIDGeneratorResponse, Integer)}) on the patient, in place of
+ * the OFFLINE- placeholder the patient was saved with.
+ *
+ * A patient who got a real UPI meanwhile is left alone. An answer without a UPI is an error, so
+ * the request is replayed later rather than marked completed.
+ *
+ * The Client Registry pushes of the patient were queued HELD and its SHR migration was not
+ * queued, so that the placeholder reaches neither; once the patient has a real UPI the held
+ * pushes get it in place of the placeholder and are released, and the migration is queued.
+ */
+@Component("rwandaprimarycare.offlineUpidHandler")
+public class OfflineUpidHandler implements OfflineTransactionHandler {
+
+    protected final Log log = LogFactory.getLog(OfflineUpidHandler.class);
+
+    private static final String UPI_IDENTIFIER_TYPE = "UPID";
+
+    @Override
+    public String getType() {
+        return AppConstants.OFFLINE_UPID;
+    }
+
+    @Override
+    public void onReplayed(OfflineTransaction transaction, PayloadData payloadData, String responseBody) {
+        UPIDGeneratorResponse response = responseBody != null ? new Gson().fromJson(responseBody, UPIDGeneratorResponse.class) : null;
+        String upi = response != null && response.getData() != null ? response.getData().upi : null;
+        if (upi == null || upi.trim().isEmpty() || upi.startsWith(AppConstants.OFFLINE_UPID_PREFIX)) {
+            throw new IllegalStateException("NPR returned no UPI for offline transaction " + transaction.getUuid());
+        }
+        upi = upi.trim();
+
+        // the sync task runs without a user
+        Context.addProxyPrivilege(PrivilegeConstants.GET_PATIENTS);
+        Context.addProxyPrivilege(PrivilegeConstants.EDIT_PATIENTS);
+        Context.addProxyPrivilege(PrivilegeConstants.GET_IDENTIFIER_TYPES);
+        try {
+            Patient patient = getPatient(transaction, payloadData);
+            if (patient == null) {
+                log.warn("No patient found for offline transaction " + transaction.getUuid() + ", UPI " + upi + " not assigned");
+                return;
+            }
+            PatientIdentifier placeholder = null;
+            for (PatientIdentifier identifier : patient.getActiveIdentifiers()) {
+                if (UPI_IDENTIFIER_TYPE.equals(identifier.getIdentifierType().getName())) {
+                    if (identifier.getIdentifier() == null || !identifier.getIdentifier().startsWith(AppConstants.OFFLINE_UPID_PREFIX)) {
+                        log.info("Patient " + patient.getPatientId() + " already has UPI " + identifier.getIdentifier()
+                                + ", ignoring UPI " + upi + " of offline transaction " + transaction.getUuid());
+                        if (identifier.getIdentifier() != null) {
+                            releaseHeld(patient.getPatientId(), identifier.getIdentifier());
+                        }
+                        return;
+                    }
+                    placeholder = identifier;
+                }
+            }
+            if (placeholder == null) {
+                log.warn("Patient " + patient.getPatientId() + " has no UPI placeholder, UPI " + upi + " not assigned");
+                return;
+            }
+            String oldUpi = placeholder.getIdentifier();
+            placeholder.setIdentifier(upi);
+            PrimaryCareBusinessLogic.preferredIdentifierSafeSavePatient(patient);
+
+            CrPatientCache.getInstance().invalidate(oldUpi);
+            CrPatientCache.getInstance().invalidate(upi);
+            CrPatientCache.getInstance().invalidate(transaction.getNationalId());
+            log.info("Patient " + patient.getPatientId() + ": offline UPI " + oldUpi + " replaced by " + upi);
+            releaseHeld(patient.getPatientId(), upi);
+        } finally {
+            Context.removeProxyPrivilege(PrivilegeConstants.GET_IDENTIFIER_TYPES);
+            Context.removeProxyPrivilege(PrivilegeConstants.EDIT_PATIENTS);
+            Context.removeProxyPrivilege(PrivilegeConstants.GET_PATIENTS);
+        }
+    }
+
+    /**
+     * Puts the UPI in place of the placeholder in the held Client Registry pushes of the patient,
+     * queues them for replay after this transaction, and queues the SHR migration of the patient
+     */
+    private void releaseHeld(Integer patientId, String upi) {
+        Gson gson = new Gson();
+        for (OfflineTransaction held : PrimaryCareBusinessLogic.getService().getOfflineTransactionsHeld()) {
+            PayloadData payloadData = gson.fromJson(held.getPayload(), PayloadData.class);
+            if (payloadData == null || !patientId.equals(payloadData.getPatientId())) {
+                continue;
+            }
+            if (payloadData.getPayload() != null) {
+                JsonObject body = new JsonParser().parse(payloadData.getPayload()).getAsJsonObject();
+                setUpi(body, upi);
+                payloadData.setPayload(body.toString());
+            }
+            held.setPayload(gson.toJson(payloadData));
+            held.setStatus(AppConstants.PENDING_STATUS);
+            held.setNextAttempt(null);
+            PrimaryCareBusinessLogic.getService().saveOfflineTransaction(held);
+            log.info("Offline transaction " + held.getUuid() + " of patient " + patientId + " released with UPI " + upi);
+        }
+        ShrMigrationQueue.getInstance().enqueue(patientId);
+    }
+
+    /**
+     * Sets Patient.id and the value of the UPI identifiers of a Client Registry Patient
+     */
+    private static void setUpi(JsonObject patient, String upi) {
+        if (patient.has("id")) {
+            patient.addProperty("id", upi);
+        }
+        JsonArray identifiers = patient.has("identifier") && patient.get("identifier").isJsonArray()
+                ? patient.getAsJsonArray("identifier") : new JsonArray();
+        for (JsonElement element : identifiers) {
+            JsonElement system = element.isJsonObject() ? element.getAsJsonObject().get("system") : null;
+            if (system != null && system.isJsonPrimitive() && "UPI".equals(system.getAsString())) {
+                element.getAsJsonObject().addProperty("value", upi);
+            }
+        }
+    }
+
+    /**
+     * By patient id, or by national id for rows queued without one
+     */
+    private Patient getPatient(OfflineTransaction transaction, PayloadData payloadData) {
+        if (payloadData.getPatientId() != null) {
+            return Context.getPatientService().getPatient(payloadData.getPatientId());
+        }
+        List<Patient> patients = PrimaryCareBusinessLogic.getService().findPatientByIdentifier(transaction.getNationalId());
+        return patients.size() == 1 ? patients.get(0) : null;
+    }
+}
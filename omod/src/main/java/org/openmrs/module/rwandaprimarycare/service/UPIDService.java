@@ -1,10 +1,19 @@
 package org.openmrs.module.rwandaprimarycare.service;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareBusinessLogic;
+import org.openmrs.module.rwandaprimarycare.PrimaryCareConfig;
+import org.openmrs.module.rwandaprimarycare.constants.AppConstants;
+import org.openmrs.module.rwandaprimarycare.pojos.OfflineTransaction;
+import org.openmrs.module.rwandaprimarycare.pojos.PayloadData;
 import org.openmrs.module.rwandaprimarycare.pojos.patient.PatientPojo;
 import org.openmrs.module.rwandaprimarycare.pojos.upiIdGeneratorResponse.UPIDGeneratorResponse;
 import org.openmrs.module.rwandaprimarycare.pojos.upiIdGeneratorResponse.UPIDGeneratorResponseData;
+import org.springframework.http.HttpMethod;
 
 import java.util.UUID;
 
@@ -69,6 +78,7 @@ public class UPIDService {
             response.setData(data);
             response.setStatus("ok");
             response.setMessage("Offline UPID generated");
+            response.isOffline = true;
 
         } catch (Exception e) {
             log.error("Error generating offline UPID: " + e.getMessage(), e);
@@ -84,20 +94,45 @@ public class UPIDService {
      * Format: OFFLINE-{UUID}
      */
     private String generateOfflineUPID() {
-        return "OFFLINE-" + UUID.randomUUID().toString().substring(0, 12).toUpperCase();
+        return AppConstants.OFFLINE_UPID_PREFIX + UUID.randomUUID().toString().substring(0, 12).toUpperCase();
     }
 
     /**
      * Save UPID for offline synchronization
-     * Stores the UPID response for later syncing when online
+     * Queues the NPR citizen request in the offline transaction outbox so that the
+     * real UPI is requested from NPR once OpenHIM is reachable again; the
+     * {@link OfflineUpidHandler} then puts it on the patient in place of the placeholder
      *
      * @param upidGeneratorResponse Response to save
+     * @param patientId the patient saved with the placeholder UPI
      */
-    public void saveForOffline(UPIDGeneratorResponse upidGeneratorResponse) {
+    public void saveForOffline(UPIDGeneratorResponse upidGeneratorResponse, Integer patientId) {
         try {
-            // TODO: Implement offline storage logic
-            // This would typically save to a queue or database for later sync
-            log.info("Saving UPID for offline sync: " + upidGeneratorResponse.data.upi);
+            UPIDGeneratorResponseData data = upidGeneratorResponse.data;
+            log.info("Saving UPID for offline sync: " + data.upi);
+
+            // the offline UPI is only a local placeholder, NPR must assign the real one
+            JsonObject citizenRequest = new Gson().toJsonTree(data).getAsJsonObject();
+            citizenRequest.remove("upi");
+
+            String nidaUrl = PrimaryCareConfig.get().getOpenHimNidaApi();
+            String payload = new Gson().toJson(new PayloadData(nidaUrl + "/api/v1/citizens/getCitizen", HttpMethod.POST.name(),
+                    citizenRequest.toString(), AppConstants.OFFLINE_UPID, patientId));
+
+            OfflineTransaction offlineTransaction = new OfflineTransaction();
+            offlineTransaction.setPayload(payload);
+            offlineTransaction.setType(AppConstants.OFFLINE_UPID);
+            if (data.nid != null && !data.nid.isEmpty()) {
+                offlineTransaction.setNationalIdType("NID");
+                offlineTransaction.setNationalId(data.nid);
+            } else if (data.nin != null && !data.nin.isEmpty()) {
+                offlineTransaction.setNationalIdType("NIN");
+                offlineTransaction.setNationalId(data.nin);
+            } else if (data.applicationNumber != null && !data.applicationNumber.isEmpty()) {
+                offlineTransaction.setNationalIdType("NID_APPLICATION_NUMBER");
+                offlineTransaction.setNationalId(data.applicationNumber);
+            }
+            PrimaryCareBusinessLogic.getService().saveOfflineTransaction(offlineTransaction);
         } catch (Exception e) {
             log.error("Error saving UPID for offline: " + e.getMessage(), e);
         }
@@ -6,14 +6,6 @@ response.setHeader("Content-Disposition", "attachment; filename=\"barCode.epl\""
 <%@ include file="/WEB-INF/template/include.jsp"%>
 
 
-<c:if test="${!empty introLabelEPL}">
-
-N
-${introLabelEPL}
-P1
-
-</c:if>
-
 <c:if test="${patient != null}">
 <c:forEach begin="1" end="${count}">
 
@@ -30,17 +22,4 @@ P1
 </c:forEach>
 </c:if>
 
-<c:if test="${idList != null}">
-<c:forEach begin="1" end="${count}">
-<c:forEach items="${idList}" var="i">
-
-N
-B250,10,0,1,1,6,40,B,"${i}"
-A375,10,0,3,1,1,N,"(${locationName})"
-A250,104,0,3,1,1,N,"<spring:message code="rwandaprimarycare.touchscreen.gender"/>:"
-A250,128,0,3,1,1,N,"<spring:message code="rwandaprimarycare.touchscreen.birthdate"/>:"
-P1
-
-</c:forEach>
-</c:forEach>
-</c:if>
+<c:if test="${!empty idLabelsEPL}">${idLabelsEPL}</c:if>
@@ -29,10 +29,11 @@ autocomplete:off;
 			alert('Please choose a location');
 			return;
 		}	
-		window.open('bulkIds.form?howManyIds=' + select.options[select.selectedIndex].value + "&location=" + location.options[location.selectedIndex].value);
+		var exportId = newExportId();
+		window.open('bulkIds.form?howManyIds=' + select.options[select.selectedIndex].value + "&location=" + location.options[location.selectedIndex].value + "&exportId=" + exportId);
 		select.value="";
 		location.value="";
-		document.getElementById('printmessage').innerHTML='<i><spring:message code="rwandaprimarycare.idsGenerated"/>!</i>';
+		followExport('bulkIds.form', exportId, '<spring:message code="rwandaprimarycare.idsGenerated"/>');
 	}
 	
 	function printAsBarcodes(){
@@ -46,10 +47,47 @@ autocomplete:off;
 			alert('Please choose a location');
 			return;
 		}
-		window.open('barCodeOtherLocation.form?howManyIds=' + select.options[select.selectedIndex].value + "&location=" + location.options[location.selectedIndex].value);
+		var exportId = newExportId();
+		window.open('barCodeOtherLocation.form?howManyIds=' + select.options[select.selectedIndex].value + "&location=" + location.options[location.selectedIndex].value + "&exportId=" + exportId);
 		select.value="";
 		location.value="";
-		document.getElementById('printmessage').innerHTML='<i><spring:message code="rwandaprimarycare.barcodesPrinted"/>!</i>';
+		followExport('barCodeOtherLocation.form', exportId, '<spring:message code="rwandaprimarycare.barcodesPrinted"/>');
+	}
+	
+	function newExportId(){
+		return new Date().getTime() + '-' + Math.floor(Math.random() * 1000000);
+	}
+	
+	// the identifiers are generated while they are downloaded, show how far it got
+	function followExport(form, exportId, doneMessage){
+		var misses = 0;
+		var timer = setInterval(function(){
+			$j.ajax({ url: 'bulkIdsProgress.form', data: { exportId: exportId }, dataType: 'json', success: function(progress){
+				misses = 0;
+				var message = '<spring:message code="rwandaprimarycare.idExportProgress"/>: ' + progress.written + ' / ' + progress.total;
+				if (progress.status == 'COMPLETED'){
+					clearInterval(timer);
+					message = '<i>' + doneMessage + '!</i>';
+				} else if (progress.status == 'INTERRUPTED' || progress.status == 'FAILED'){
+					clearInterval(timer);
+					message += ' <i><spring:message code="rwandaprimarycare.idExportInterrupted"/></i> '
+						+ '<a href="javascript:resumeExport(\'' + form + '\', \'' + exportId + '\', \'' + doneMessage + '\')"><spring:message code="rwandaprimarycare.idExportResume"/></a>';
+				}
+				document.getElementById('printmessage').innerHTML = message;
+			}, error: function(xhr){
+				// the download may not have registered the export yet, give it a few polls
+				if (xhr.status == 404 && ++misses < 5){
+					return;
+				}
+				clearInterval(timer);
+				document.getElementById('printmessage').innerHTML = '<i><spring:message code="rwandaprimarycare.idExportProgressFailed"/></i>';
+			}});
+		}, 1000);
+	}
+	
+	function resumeExport(form, exportId, doneMessage){
+		window.open(form + '?resume=true&exportId=' + exportId);
+		followExport(form, exportId, doneMessage);
 	}
 	
 </script>